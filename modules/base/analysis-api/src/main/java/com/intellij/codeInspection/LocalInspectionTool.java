@@ -96,6 +96,22 @@ public abstract class LocalInspectionTool extends InspectionProfileEntry {
     return false;
   }
 
+  /**
+   * Override this to return true if problems reported while visiting an element depend only on the text and the PSI of the element's subtree,
+   * and are reported for elements inside that subtree.
+   * <p/>
+   * For example, an inspection checking the naming of the visited declaration may override this,
+   * while an inspection looking for usages of the declaration elsewhere in the file must not.
+   * <p/>
+   * When the inspection result cache is enabled ({@code -Didea.inspection.result.cache=true}), on the fly highlighting of such inspection
+   * reuses problems of elements which subtree hasn't changed since the previous run instead of visiting them again.
+   *
+   * @return true if problems found for an element can be reused while its subtree is not changed.
+   */
+  public boolean isSubtreeLocal() {
+    return false;
+  }
+
   /**
    * Override this to report problems at file level.
    *
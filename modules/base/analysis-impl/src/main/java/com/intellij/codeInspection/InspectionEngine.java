@@ -92,7 +92,7 @@ public class InspectionEngine {
                                     @Nonnull PsiElementVisitor elementVisitor,
                                     @Nonnull Set<String> elementDialectIds,
                                     @Nullable Set<String> dialectIdsSpecifiedForTool) {
-    if (dialectIdsSpecifiedForTool != null && !intersect(elementDialectIds, dialectIdsSpecifiedForTool)) return;
+    if (!isDialectAccepted(elementDialectIds, dialectIdsSpecifiedForTool)) return;
     //noinspection ForLoopReplaceableByForEach
     for (int i = 0, elementsSize = elements.size(); i < elementsSize; i++) {
       PsiElement element = elements.get(i);
@@ -101,6 +101,15 @@ public class InspectionEngine {
     }
   }
 
+  /**
+   * @param elementDialectIds
+   * @param dialectIdsSpecifiedForTool null means all accepted
+   * @return false if the tool is not run on elements of these dialects
+   */
+  public static boolean isDialectAccepted(@Nonnull Set<String> elementDialectIds, @Nullable Set<String> dialectIdsSpecifiedForTool) {
+    return dialectIdsSpecifiedForTool == null || intersect(elementDialectIds, dialectIdsSpecifiedForTool);
+  }
+
   private static boolean intersect(@Nonnull Set<String> ids1, @Nonnull Set<String> ids2) {
     if (ids1.size() > ids2.size()) return intersect(ids2, ids1);
     for (String id : ids1) {
@@ -29,9 +29,7 @@ import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.Reference;
-import java.util.Collections;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 public abstract class ArchiveHandler {
   public static final long DEFAULT_LENGTH = 0L;
@@ -62,6 +60,7 @@ public abstract class ArchiveHandler {
   private final File myPath;
   private final Object myLock = new Object();
   private volatile Reference<Map<String, EntryInfo>> myEntries = new SoftReference<Map<String, EntryInfo>>(null);
+  private volatile Reference<ChildrenIndex> myChildren = new SoftReference<ChildrenIndex>(null);
   private boolean myCorrupted;
 
   protected ArchiveHandler(@Nonnull String path) {
@@ -87,20 +86,59 @@ public abstract class ArchiveHandler {
 
   @Nonnull
   public String[] list(@Nonnull String relativePath) {
-    EntryInfo entry = getEntryInfo(relativePath);
+    Map<String, EntryInfo> entries = getEntriesMap();
+    EntryInfo entry = entries.get(relativePath);
     if (entry == null || !entry.isDirectory) return ArrayUtil.EMPTY_STRING_ARRAY;
 
-    Set<String> names = new THashSet<String>();
-    for (EntryInfo info : getEntriesMap().values()) {
-      if (info.parent == entry) {
-        names.add(info.shortName.toString());
-      }
-    }
-    return ArrayUtil.toStringArray(names);
+    String[] names = getChildrenIndex(entries).children.get(entry);
+    return names != null ? names.clone() : ArrayUtil.EMPTY_STRING_ARRAY;
   }
 
   public void dispose() {
     myEntries.clear();
+    myChildren.clear();
+  }
+
+  /**
+   * Names of the children of every directory entry, built with one pass over the entries instead of one pass per {@link #list} call.
+   * Holds the entries map it was built from since entries are compared by identity and the map is recreated after being collected.
+   */
+  private static class ChildrenIndex {
+    private final Map<String, EntryInfo> entries;
+    private final Map<EntryInfo, String[]> children;
+
+    private ChildrenIndex(@Nonnull Map<String, EntryInfo> entries) {
+      Map<EntryInfo, Set<String>> names = new IdentityHashMap<EntryInfo, Set<String>>();
+      for (EntryInfo info : entries.values()) {
+        if (info.parent == null) continue;
+        Set<String> parentNames = names.get(info.parent);
+        if (parentNames == null) {
+          names.put(info.parent, parentNames = new THashSet<String>());
+        }
+        parentNames.add(info.shortName.toString());
+      }
+
+      this.entries = entries;
+      this.children = new IdentityHashMap<EntryInfo, String[]>(names.size());
+      for (Map.Entry<EntryInfo, Set<String>> entry : names.entrySet()) {
+        children.put(entry.getKey(), ArrayUtil.toStringArray(entry.getValue()));
+      }
+    }
+  }
+
+  @Nonnull
+  private ChildrenIndex getChildrenIndex(@Nonnull Map<String, EntryInfo> entries) {
+    ChildrenIndex index = SoftReference.dereference(myChildren);
+    if (index == null || index.entries != entries) {
+      synchronized (myLock) {
+        index = SoftReference.dereference(myChildren);
+        if (index == null || index.entries != entries) {
+          index = new ChildrenIndex(entries);
+          myChildren = new SoftReference<ChildrenIndex>(index);
+        }
+      }
+    }
+    return index;
   }
 
   @Nullable
@@ -9,11 +9,13 @@ import com.intellij.openapi.util.Getter;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.WalkingState;
 import com.intellij.util.concurrency.AtomicFieldUpdater;
 import consulo.logging.Logger;
 import gnu.trove.TLongHashSet;
 import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.TestOnly;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -24,8 +26,8 @@ import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Predicate;
 
@@ -33,7 +35,15 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
   static final Logger LOG = Logger.getInstance(IntervalTreeImpl.class);
   static final boolean DEBUG = LOG.isDebugEnabled() || ApplicationManager.getApplication() != null && ApplicationManager.getApplication().isUnitTestMode();
   private int keySize; // number of all intervals, counting all duplicates, some of them maybe gced
-  final ReadWriteLock l = new ReentrantReadWriteLock();
+  final ReentrantReadWriteLock l = new ReentrantReadWriteLock();
+
+  // number of queries of one tree version answered under the lock before a snapshot of that version is taken, negative disables snapshots.
+  // Taking a snapshot copies the nodes changed since the previous one, it pays off for versions queried many times (painting, highlighting passes)
+  static final int SNAPSHOT_QUERY_THRESHOLD = SystemProperties.getIntProperty("idea.interval.tree.snapshot.threshold", 4);
+  private volatile int mySnapshotQueryThreshold = SNAPSHOT_QUERY_THRESHOLD;
+  private volatile IntervalTreeSnapshot<T> mySnapshot;
+  private final Object mySnapshotLock = new Object();
+  private final AtomicLong myLockedQueries = new AtomicLong(); // modCount << 32 | queries of that version answered under the lock
 
   protected abstract int compareEqualStartIntervals(@Nonnull IntervalNode<T> i1, @Nonnull IntervalNode<T> i2);
 
@@ -47,6 +57,8 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
     final List<Getter<E>> intervals;
     int maxEnd; // max of all intervalEnd()s among all children.
     int delta;  // delta of startOffset. getStartOffset() = myStartOffset + Sum of deltas up to root
+    // immutable mirror of this subtree taken by the last snapshot, null if the subtree changed since. Guarded by the tree lock, see dropSnapshotNodes()
+    IntervalTreeSnapshot.Node<E> mySnapshotNode;
 
     private volatile long cachedDeltaUpToRoot; // field (packed to long for atomicity) containing deltaUpToRoot, node modCount and allDeltasUpAreNull flag
     // fields are packed as following
@@ -81,6 +93,26 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
       return (IntervalNode<E>)parent;
     }
 
+    @Override
+    public void setLeft(RedBlackTree.Node<E> left) {
+      super.setLeft(left);
+      dropSnapshotNodes();
+    }
+
+    @Override
+    public void setRight(RedBlackTree.Node<E> right) {
+      super.setRight(right);
+      dropSnapshotNodes();
+    }
+
+    // the subtree of this node changed, so did the subtrees of all its ancestors.
+    // A node without a mirror never has an ancestor with one, so the walk stops at the first node dropped before
+    private void dropSnapshotNodes() {
+      for (IntervalNode<E> node = this; node != null && node.mySnapshotNode != null; node = node.getParent()) {
+        node.mySnapshotNode = null;
+      }
+    }
+
     @Override
     public boolean processAliveKeys(@Nonnull Processor<? super E> processor) {
       //noinspection ForLoopReplaceableByForEach
@@ -145,6 +177,7 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
 
     void removeIntervalInternal(int i) {
       intervals.remove(i);
+      dropSnapshotNodes();
       if (isAttachedToTree()) {   // for detached node, do not update tree node count
         assert myIntervalTree.keySize > 0 : myIntervalTree.keySize;
         myIntervalTree.keySize--;
@@ -154,6 +187,7 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
     void addInterval(@Nonnull E interval) {
       myIntervalTree.assertUnderWriteLock();
       intervals.add(createGetter(interval));
+      dropSnapshotNodes();
       if (isAttachedToTree()) { // for detached node, do not update tree node count
         myIntervalTree.keySize++;
         myIntervalTree.setNode(interval, this);
@@ -249,6 +283,7 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
     int changeDelta(int change) {
       if (change != 0) {
         setCachedValues(0, false, 0); // deltaUpToRoot is not valid anymore
+        dropSnapshotNodes();
         return delta += change;
       }
       return delta;
@@ -257,17 +292,20 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
     void clearDelta() {
       if (delta != 0) {
         setCachedValues(0, false, 0); // deltaUpToRoot is not valid anymore
+        dropSnapshotNodes();
         delta = 0;
       }
     }
 
     @Override
     public int setIntervalStart(int start) {
+      dropSnapshotNodes();
       return myStart = start;
     }
 
     @Override
     public int setIntervalEnd(int end) {
+      dropSnapshotNodes();
       return myEnd = end;
     }
 
@@ -281,6 +319,7 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
     @Override
     public boolean setValid(boolean value) {
       setFlag(VALID_FLAG, value);
+      dropSnapshotNodes();
       return value;
     }
 
@@ -422,6 +461,53 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
     return (IntervalNode<T>)root;
   }
 
+  @Override
+  void incModCount() {
+    super.incModCount();
+    mySnapshot = null;
+  }
+
+  /**
+   * Returns an immutable snapshot of the current tree version, which can be queried without the lock, or null if the version is not
+   * queried often enough to pay for a snapshot yet. Snapshots are never used by the thread holding the write lock, as it may query
+   * a tree it's in the middle of changing.
+   */
+  @Nullable
+  IntervalTreeSnapshot<T> getSnapshot() {
+    int threshold = mySnapshotQueryThreshold;
+    if (threshold < 0 || l.isWriteLockedByCurrentThread()) return null;
+    IntervalTreeSnapshot<T> snapshot = mySnapshot;
+    int modCount = getModCount();
+    if (snapshot != null && snapshot.getModCount() == modCount) return snapshot;
+
+    long queries = myLockedQueries.get();
+    long next = (int)(queries >>> 32) == modCount ? queries + 1 : (long)modCount << 32 | 1;
+    myLockedQueries.compareAndSet(queries, next);
+    if ((int)next <= threshold) return null;
+
+    l.readLock().lock();
+    try {
+      // readers taking a snapshot store mirrors in the nodes, one at a time
+      synchronized (mySnapshotLock) {
+        snapshot = mySnapshot;
+        if (snapshot == null || snapshot.getModCount() != getModCount()) {
+          snapshot = IntervalTreeSnapshot.take(getRoot(), getModCount());
+          mySnapshot = snapshot;
+        }
+        return snapshot;
+      }
+    }
+    finally {
+      l.readLock().unlock();
+    }
+  }
+
+  @TestOnly
+  void setSnapshotQueryThreshold(int threshold) {
+    mySnapshotQueryThreshold = threshold;
+    mySnapshot = null;
+  }
+
   @Override
   public boolean processAll(@Nonnull Processor<? super T> processor) {
     try {
@@ -447,6 +533,8 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
 
   @Override
   public boolean processOverlappingWith(int start, int end, @Nonnull Processor<? super T> processor) {
+    IntervalTreeSnapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) return snapshot.processOverlappingWith(start, end, processor);
     try {
       l.readLock().lock();
       checkMax(true);
@@ -523,6 +611,8 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
 
   @Override
   public boolean processContaining(int offset, @Nonnull Processor<? super T> processor) {
+    IntervalTreeSnapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) return snapshot.processContaining(offset, processor);
     try {
       l.readLock().lock();
       checkMax(true);
@@ -562,6 +652,9 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
 
   @Nonnull
   MarkupIterator<T> overlappingIterator(@Nonnull final TextRangeInterval rangeInterval, @Nullable Predicate<IntervalNode<T>> nodeFilter) {
+    IntervalTreeSnapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) return snapshot.overlappingIterator(rangeInterval, nodeFilter);
+
     l.readLock().lock();
 
     try {
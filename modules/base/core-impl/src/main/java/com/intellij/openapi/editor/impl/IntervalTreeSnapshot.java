@@ -0,0 +1,244 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.ex.MarkupIterator;
+import com.intellij.openapi.util.Getter;
+import com.intellij.util.IncorrectOperationException;
+import com.intellij.util.Processor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * Immutable copy of an {@link IntervalTreeImpl} taken at one modification count, queried without the tree lock.
+ * <p>
+ * The snapshot is a tree of {@link Node}s mirroring the tree nodes. Each tree node keeps the mirror of its subtree until the subtree
+ * changes, and a change drops the mirrors of the changed node and its ancestors only, so the next snapshot copies O(changes * log n) nodes
+ * and shares the mirrors of the unchanged subtrees with the previous one.
+ * Keys are read through the getters copied when the mirror was taken, so garbage collected markers are skipped.
+ *
+ * @author VISTALL
+ * @since 2020-06-16
+ */
+final class IntervalTreeSnapshot<T> {
+  private final int myModCount;
+  @Nullable
+  private final Node<T> myRoot;
+
+  private IntervalTreeSnapshot(int modCount, @Nullable Node<T> root) {
+    myModCount = modCount;
+    myRoot = root;
+  }
+
+  /**
+   * Must be called under the tree read lock and only by one thread at a time, as it stores the new mirrors in the tree nodes.
+   */
+  @Nonnull
+  static <T> IntervalTreeSnapshot<T> take(@Nullable IntervalTreeImpl.IntervalNode<T> root, int modCount) {
+    return new IntervalTreeSnapshot<>(modCount, mirror(root));
+  }
+
+  @Nullable
+  private static <T> Node<T> mirror(@Nullable IntervalTreeImpl.IntervalNode<T> node) {
+    if (node == null) return null;
+    Node<T> mirror = node.mySnapshotNode;
+    if (mirror == null) {
+      mirror = new Node<>(node, mirror(node.getLeft()), mirror(node.getRight()));
+      node.mySnapshotNode = mirror;
+    }
+    return mirror;
+  }
+
+  int getModCount() {
+    return myModCount;
+  }
+
+  int getNodeCount() {
+    return myRoot == null ? 0 : myRoot.myValidNodeCount;
+  }
+
+  boolean processOverlappingWith(int start, int end, @Nonnull Processor<? super T> processor) {
+    return processOverlappingWith(myRoot, 0, start, end, processor);
+  }
+
+  private static <T> boolean processOverlappingWith(@Nullable Node<T> root, int deltaUpToRootExclusive, int start, int end, @Nonnull Processor<? super T> processor) {
+    if (root == null || start > root.maxEnd(deltaUpToRootExclusive)) return true; // right of the rightmost interval in the subtree
+    int delta = deltaUpToRootExclusive + root.myDelta;
+
+    if (!processOverlappingWith(root.myLeft, delta, start, end, processor)) return false;
+    if (root.myKeys != null) {
+      int rootStart = root.myStart + delta;
+      if (Math.max(rootStart, start) <= Math.min(root.myEnd + delta, end) && !root.processAliveKeys(processor)) return false;
+      if (end < rootStart) return true; // left of the root, can't be in the right subtree
+    }
+
+    return processOverlappingWith(root.myRight, delta, start, end, processor);
+  }
+
+  boolean processContaining(int offset, @Nonnull Processor<? super T> processor) {
+    return processContaining(myRoot, 0, offset, processor);
+  }
+
+  private static <T> boolean processContaining(@Nullable Node<T> root, int deltaUpToRootExclusive, int offset, @Nonnull Processor<? super T> processor) {
+    if (root == null || offset > root.maxEnd(deltaUpToRootExclusive)) return true;
+    int delta = deltaUpToRootExclusive + root.myDelta;
+
+    if (!processContaining(root.myLeft, delta, offset, processor)) return false;
+    if (root.myKeys != null) {
+      int rootStart = root.myStart + delta;
+      if (rootStart <= offset && offset < root.myEnd + delta && !root.processAliveKeys(processor)) return false;
+      if (offset < rootStart) return true;
+    }
+
+    return processContaining(root.myRight, delta, offset, processor);
+  }
+
+  @Nonnull
+  MarkupIterator<T> overlappingIterator(@Nonnull TextRangeInterval rangeInterval, @Nullable Predicate<IntervalTreeImpl.IntervalNode<T>> nodeFilter) {
+    List<Node<T>> nodes = new ArrayList<>();
+    collectOverlapping(myRoot, 0, rangeInterval.getStartOffset(), rangeInterval.getEndOffset(), nodeFilter, nodes);
+    if (nodes.isEmpty()) {
+      //noinspection unchecked
+      return MarkupIterator.EMPTY;
+    }
+
+    return new MarkupIterator<T>() {
+      private int myNodeIndex;
+      private int myKeyIndex;
+      private T myCurrent;
+
+      @Override
+      public boolean hasNext() {
+        while (myCurrent == null && myNodeIndex < nodes.size()) {
+          Getter<T>[] keys = nodes.get(myNodeIndex).myKeys;
+          if (myKeyIndex < keys.length) {
+            myCurrent = keys[myKeyIndex++].get();
+          }
+          else {
+            myNodeIndex++;
+            myKeyIndex = 0;
+          }
+        }
+        return myCurrent != null;
+      }
+
+      @Override
+      public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        T t = myCurrent;
+        myCurrent = null;
+        return t;
+      }
+
+      @Override
+      public T peek() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return myCurrent;
+      }
+
+      @Override
+      public void remove() {
+        throw new IncorrectOperationException();
+      }
+
+      @Override
+      public void dispose() {
+      }
+    };
+  }
+
+  // node filter only tells whether the node has keys of interest, subtrees of filtered out nodes are still visited
+  private static <T> void collectOverlapping(@Nullable Node<T> root,
+                                             int deltaUpToRootExclusive,
+                                             int start,
+                                             int end,
+                                             @Nullable Predicate<IntervalTreeImpl.IntervalNode<T>> nodeFilter,
+                                             @Nonnull List<? super Node<T>> result) {
+    if (root == null || start > root.maxEnd(deltaUpToRootExclusive)) return;
+    int delta = deltaUpToRootExclusive + root.myDelta;
+
+    collectOverlapping(root.myLeft, delta, start, end, nodeFilter, result);
+    if (root.myKeys != null) {
+      int rootStart = root.myStart + delta;
+      if (Math.max(rootStart, start) <= Math.min(root.myEnd + delta, end) && (nodeFilter == null || nodeFilter.test(root.myNode))) {
+        result.add(root);
+      }
+      if (end < rootStart) return;
+    }
+
+    collectOverlapping(root.myRight, delta, start, end, nodeFilter, result);
+  }
+
+  /**
+   * Immutable mirror of a tree node and its subtree. Offsets are relative the same way as in the tree: the start of the node is
+   * {@link #myStart} plus the deltas of all valid nodes up to the root. Invalid nodes have no keys and don't shift their subtrees.
+   */
+  static final class Node<T> {
+    private final IntervalTreeImpl.IntervalNode<T> myNode;
+    private final int myDelta;
+    private final int myStart;
+    private final int myEnd;
+    // max end in the subtree, not counting the delta of this node, Integer.MIN_VALUE if the subtree has no valid nodes
+    private final int myMaxEnd;
+    @Nullable
+    private final Getter<T>[] myKeys; // null for invalid nodes
+    @Nullable
+    private final Node<T> myLeft;
+    @Nullable
+    private final Node<T> myRight;
+    private final int myValidNodeCount;
+
+    @SuppressWarnings("unchecked")
+    private Node(@Nonnull IntervalTreeImpl.IntervalNode<T> node, @Nullable Node<T> left, @Nullable Node<T> right) {
+      boolean valid = node.isValid();
+      myNode = node;
+      myDelta = valid ? node.delta : 0;
+      myStart = node.intervalStart();
+      myEnd = node.intervalEnd();
+      myKeys = valid ? node.intervals.toArray(new Getter[0]) : null;
+      myLeft = left;
+      myRight = right;
+
+      myValidNodeCount = (valid ? 1 : 0) + validNodeCount(left) + validNodeCount(right);
+      myMaxEnd = Math.max(valid ? myEnd + myDelta : Integer.MIN_VALUE, Math.max(maxEndOf(left, myDelta), maxEndOf(right, myDelta)));
+    }
+
+    private static int validNodeCount(@Nullable Node<?> node) {
+      return node == null ? 0 : node.myValidNodeCount;
+    }
+
+    private static int maxEndOf(@Nullable Node<?> node, int deltaUpToNodeExclusive) {
+      return node == null ? Integer.MIN_VALUE : node.maxEnd(deltaUpToNodeExclusive);
+    }
+
+    private int maxEnd(int deltaUpToRootExclusive) {
+      return myValidNodeCount == 0 ? Integer.MIN_VALUE : myMaxEnd + deltaUpToRootExclusive;
+    }
+
+    private boolean processAliveKeys(@Nonnull Processor<? super T> processor) {
+      for (Getter<T> getter : myKeys) {
+        T key = getter.get();
+        if (key != null && !processor.process(key)) return false;
+      }
+      return true;
+    }
+  }
+}
@@ -21,48 +21,117 @@ import com.intellij.openapi.util.io.FileAttributes;
 import com.intellij.openapi.util.io.FileSystemUtil;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.io.DataInputOutputUtil;
 import com.intellij.util.io.FileAccessorCache;
+import com.intellij.util.io.IOUtil;
 import com.intellij.util.text.ByteArrayCharSequence;
 import consulo.vfs.impl.archive.ArchiveEntry;
 import consulo.vfs.impl.archive.ArchiveFile;
+import org.jetbrains.annotations.TestOnly;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.Iterator;
-import java.util.Map;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class ZipHandler extends ArchiveHandler {
-  private static final FileAccessorCache<ZipHandler, ArchiveFile> ourZipFileFileAccessorCache = new FileAccessorCache<ZipHandler, ArchiveFile>(20, 10) {
-    @Override
-    protected ArchiveFile createAccessor(ZipHandler key) throws IOException {
-      final String canonicalPathToZip = key.getCanonicalPathToZip();
-      FileAttributes attributes = FileSystemUtil.getAttributes(canonicalPathToZip);
-      key.myFileStamp = attributes != null ? attributes.lastModified : DEFAULT_TIMESTAMP;
-      key.myFileLength = attributes != null ? attributes.length : DEFAULT_LENGTH;
+  private static final Logger LOG = Logger.getInstance(ZipHandler.class);
+  private static final int ENTRIES_CACHE_VERSION = 1;
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
 
-      return key.createArchiveFile(canonicalPathToZip);
-    }
+  // number of open archives starts small and doubles while more than 1/8 of archive requests of a window reopen an archive closed to stay in budget
+  private static final int MIN_OPEN_ARCHIVES = 30;
+  private static final int MAX_OPEN_ARCHIVES = SystemProperties.getIntProperty("idea.max.open.archives", 480);
+  static final int BUDGET_WINDOW = 4096;
 
-    @Override
-    protected void disposeAccessor(final ArchiveFile fileAccessor) throws IOException {
-      // todo: ZipFile isn't disposable for Java6, replace the code below with 'disposeCloseable(fileAccessor);'
-      fileAccessor.close();
-    }
+  private static volatile FileAccessorCache<ZipHandler, ArchiveFile> ourZipFileFileAccessorCache = createAccessorCache(MIN_OPEN_ARCHIVES);
+  private static volatile int ourOpenArchivesBudget = MIN_OPEN_ARCHIVES;
+  // caches replaced by larger ones, cleared on every window to close archives released after the replacement
+  private static final List<FileAccessorCache<ZipHandler, ArchiveFile>> ourRetiredCaches = ContainerUtil.createLockFreeCopyOnWriteList();
+  // changed when all archives are closed on purpose, by a budget switch or by clearFileAccessorCache
+  private static volatile int ourCacheGeneration;
 
-    @Override
-    public boolean isEqual(ZipHandler val1, ZipHandler val2) {
-      return val1 == val2; // reference equality to handle different jars for different ZipHandlers on the same path
-    }
-  };
+  private static final AtomicInteger ourWindowRequests = new AtomicInteger();
+  private static final AtomicInteger ourWindowReopens = new AtomicInteger();
 
   private volatile String myCanonicalPathToZip;
   private volatile long myFileStamp;
 
   private volatile long myFileLength;
+  // generation of the cache the archive was last opened in, reset when it is closed on purpose
+  private volatile int myOpenedGeneration = -1;
+  // entries read from the archive under the lock of the handler, they are written to the entries cache after the lock is released
+  private final AtomicReference<Runnable> myPendingEntriesSave = new AtomicReference<>();
+
+  @Nonnull
+  private static FileAccessorCache<ZipHandler, ArchiveFile> createAccessorCache(int budget) {
+    return new FileAccessorCache<ZipHandler, ArchiveFile>(budget * 2 / 3, budget / 3) {
+      @Override
+      protected ArchiveFile createAccessor(ZipHandler key) throws IOException {
+        final String canonicalPathToZip = key.getCanonicalPathToZip();
+        FileAttributes attributes = FileSystemUtil.getAttributes(canonicalPathToZip);
+        key.myFileStamp = attributes != null ? attributes.lastModified : DEFAULT_TIMESTAMP;
+        key.myFileLength = attributes != null ? attributes.length : DEFAULT_LENGTH;
+
+        // only an archive evicted by the cache itself is reopened because the budget is too small
+        int generation = ourCacheGeneration;
+        if (key.myOpenedGeneration == generation) {
+          ourWindowReopens.incrementAndGet();
+        }
+        key.myOpenedGeneration = generation;
+
+        return key.createArchiveFile(canonicalPathToZip);
+      }
+
+      @Override
+      protected void disposeAccessor(final ArchiveFile fileAccessor) throws IOException {
+        // todo: ZipFile isn't disposable for Java6, replace the code below with 'disposeCloseable(fileAccessor);'
+        fileAccessor.close();
+      }
+
+      @Override
+      public boolean isEqual(ZipHandler val1, ZipHandler val2) {
+        return val1 == val2; // reference equality to handle different jars for different ZipHandlers on the same path
+      }
+    };
+  }
+
+  private static void countRequest() {
+    if (ourWindowRequests.incrementAndGet() >= BUDGET_WINDOW) {
+      adjustOpenArchivesBudget();
+    }
+  }
+
+  private static synchronized void adjustOpenArchivesBudget() {
+    int requests = ourWindowRequests.getAndSet(0);
+    int reopens = ourWindowReopens.getAndSet(0);
+    if (requests < BUDGET_WINDOW) return; // other thread has just adjusted
+
+    for (FileAccessorCache<ZipHandler, ArchiveFile> cache : ourRetiredCaches) {
+      cache.clear();
+    }
+
+    if (reopens * 8 > requests && ourOpenArchivesBudget < MAX_OPEN_ARCHIVES) {
+      int budget = Math.min(ourOpenArchivesBudget * 2, MAX_OPEN_ARCHIVES);
+      FileAccessorCache<ZipHandler, ArchiveFile> oldCache = ourZipFileFileAccessorCache;
+      ourCacheGeneration++;
+      ourZipFileFileAccessorCache = createAccessorCache(budget);
+      ourOpenArchivesBudget = budget;
+      ourRetiredCaches.add(oldCache);
+      oldCache.clear();
+      LOG.info("Open archives budget increased to " + budget + ", " + reopens + " of " + requests + " requests reopened an archive");
+    }
+  }
+
+  @TestOnly
+  static int getOpenArchivesBudget() {
+    return ourOpenArchivesBudget;
+  }
 
   public ZipHandler(@Nonnull String path) {
     super(path);
@@ -82,28 +151,191 @@ public abstract class ZipHandler extends ArchiveHandler {
   @Nonnull
   @Override
   protected Map<String, EntryInfo> createEntriesMap() throws IOException {
+    File cacheFile = getEntriesCacheFile();
+    FileAttributes attributes = cacheFile != null ? FileSystemUtil.getAttributes(getCanonicalPathToZip()) : null;
+    if (attributes != null) {
+      Map<String, EntryInfo> map = loadEntries(cacheFile, attributes);
+      if (map != null) return map;
+    }
+
     FileAccessorCache.Handle<ArchiveFile> zipRef = getZipFileHandle();
+    Map<String, EntryInfo> map;
     try {
       ArchiveFile zip = zipRef.get();
 
-      Map<String, EntryInfo> map = new ZipEntryMap(zip.getSize());
+      map = new ZipEntryMap(zip.getSize());
       map.put("", createRootEntry());
 
       Iterator<? extends ArchiveEntry> entries = zip.entries();
       while (entries.hasNext()) {
         getOrCreate(entries.next(), map, zip);
       }
-
-      return map;
     }
     finally {
       zipRef.release();
     }
+
+    if (attributes != null) {
+      myPendingEntriesSave.set(() -> saveEntries(cacheFile, attributes, map));
+    }
+    return map;
+  }
+
+  @Nonnull
+  @Override
+  protected Map<String, EntryInfo> getEntriesMap() {
+    Map<String, EntryInfo> map = super.getEntriesMap();
+    // other threads asking for entries don't wait for the cache file to be written
+    Runnable save = myPendingEntriesSave.getAndSet(null);
+    if (save != null) {
+      save.run();
+    }
+    return map;
+  }
+
+  /**
+   * Directory where entries of archives are stored between sessions, so that the entries map collected by GC or dropped on restart
+   * is restored without reading the central directory again. Entries are reused while the archive has the same length and timestamp.
+   *
+   * @return null if entries shouldn't be persisted
+   */
+  @Nullable
+  protected File getEntriesCacheDirectory() {
+    return null;
+  }
+
+  @Nullable
+  private File getEntriesCacheFile() throws IOException {
+    File directory = getEntriesCacheDirectory();
+    if (directory == null) return null;
+    String path = getCanonicalPathToZip();
+    return new File(directory, new File(path).getName() + "." + Integer.toHexString(FileUtil.pathHashCode(path)));
+  }
+
+  /**
+   * Deletes the files in the directory of {@link #getEntriesCacheDirectory()} which were saved for archives deleted or changed since.
+   * Files of archives which are still used are only replaced when these archives change, the other files have to be removed this way.
+   * Temporary files last modified before {@code sessionStart} were left by a crash while they were written.
+   */
+  protected static void removeStaleEntriesCaches(@Nonnull File directory, long sessionStart) {
+    File[] files = directory.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+        // a temporary file of this session may be written right now, it is renamed or deleted when it is done
+        if (file.lastModified() >= sessionStart) continue;
+      }
+      else if (isEntriesCacheUpToDate(file)) {
+        continue;
+      }
+      FileUtil.delete(file);
+    }
+  }
+
+  private static boolean isEntriesCacheUpToDate(@Nonnull File cacheFile) {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+      if (in.readInt() != ENTRIES_CACHE_VERSION) return false;
+      FileAttributes attributes = FileSystemUtil.getAttributes(IOUtil.readUTF(in));
+      return attributes != null && in.readLong() == attributes.length && in.readLong() == attributes.lastModified;
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
+  @Nullable
+  private Map<String, EntryInfo> loadEntries(@Nonnull File cacheFile, @Nonnull FileAttributes attributes) {
+    if (!cacheFile.isFile()) return null;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+      if (in.readInt() != ENTRIES_CACHE_VERSION ||
+          !getCanonicalPathToZip().equals(IOUtil.readUTF(in)) ||
+          in.readLong() != attributes.length ||
+          in.readLong() != attributes.lastModified) {
+        return null;
+      }
+
+      int count = DataInputOutputUtil.readINT(in);
+      Map<String, EntryInfo> map = new ZipEntryMap(count);
+      EntryInfo[] infos = new EntryInfo[count];
+      String[] paths = new String[count];
+      infos[0] = createRootEntry();
+      paths[0] = "";
+      map.put("", infos[0]);
+      for (int i = 1; i < count; i++) {
+        int parent = DataInputOutputUtil.readINT(in);
+        CharSequence shortName = ByteArrayCharSequence.convertToBytesIfPossible(IOUtil.readUTF(in));
+        boolean isDirectory = in.readBoolean();
+        long length = in.readLong();
+        long timestamp = in.readLong();
+        infos[i] = new EntryInfo(shortName, isDirectory, length, timestamp, infos[parent]);
+        paths[i] = parent == 0 ? shortName.toString() : paths[parent] + '/' + shortName;
+        map.put(paths[i], infos[i]);
+      }
+      return map;
+    }
+    catch (IOException | RuntimeException e) {
+      Logger.getInstance(getClass()).info("Cannot load entries of " + getFile() + " from " + cacheFile + ": " + e);
+      FileUtil.delete(cacheFile);
+      return null;
+    }
+  }
+
+  private void saveEntries(@Nonnull File cacheFile, @Nonnull FileAttributes attributes, @Nonnull Map<String, EntryInfo> map) {
+    // parents are written before their children, every entry refers to its parent by the order it was written in
+    Set<EntryInfo> inMap = Collections.newSetFromMap(new IdentityHashMap<>(map.size()));
+    inMap.addAll(map.values());
+    Map<EntryInfo, Integer> indices = new IdentityHashMap<>(map.size());
+    List<EntryInfo> ordered = new ArrayList<>(map.size());
+    EntryInfo root = map.get("");
+    indices.put(root, 0);
+    ordered.add(root);
+    for (EntryInfo info : map.values()) {
+      // entries whose parent was replaced in the map (see getOrCreate) can't be restored by path, don't persist such archives
+      if (!addWithParents(info, indices, ordered, inMap)) return;
+    }
+
+    File tempFile = new File(cacheFile.getPath() + TEMP_FILE_SUFFIX);
+    try {
+      FileUtil.createParentDirs(tempFile);
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        out.writeInt(ENTRIES_CACHE_VERSION);
+        IOUtil.writeUTF(out, getCanonicalPathToZip());
+        out.writeLong(attributes.length);
+        out.writeLong(attributes.lastModified);
+        DataInputOutputUtil.writeINT(out, ordered.size());
+        for (int i = 1; i < ordered.size(); i++) {
+          EntryInfo info = ordered.get(i);
+          DataInputOutputUtil.writeINT(out, indices.get(info.parent));
+          IOUtil.writeUTF(out, info.shortName.toString());
+          out.writeBoolean(info.isDirectory);
+          out.writeLong(info.length);
+          out.writeLong(info.timestamp);
+        }
+      }
+      FileUtil.rename(tempFile, cacheFile);
+    }
+    catch (IOException e) {
+      Logger.getInstance(getClass()).info("Cannot save entries of " + getFile() + " to " + cacheFile + ": " + e);
+      FileUtil.delete(tempFile);
+    }
+  }
+
+  private static boolean addWithParents(@Nonnull EntryInfo info,
+                                        @Nonnull Map<EntryInfo, Integer> indices,
+                                        @Nonnull List<EntryInfo> ordered,
+                                        @Nonnull Set<EntryInfo> inMap) {
+    if (indices.containsKey(info)) return true;
+    if (info.parent == null || !inMap.contains(info.parent) || !addWithParents(info.parent, indices, ordered, inMap)) return false;
+    indices.put(info, ordered.size());
+    ordered.add(info);
+    return true;
   }
 
   @Nonnull
   private FileAccessorCache.Handle<ArchiveFile> getZipFileHandle() throws IOException {
-    FileAccessorCache.Handle<ArchiveFile> handle = ourZipFileFileAccessorCache.get(this);
+    countRequest();
+    FileAccessorCache<ZipHandler, ArchiveFile> cache = ourZipFileFileAccessorCache;
+    FileAccessorCache.Handle<ArchiveFile> handle = cache.get(this);
 
     if (getFile() == getFileToUse()) { // files are canonicalized
       // IDEA-148458, http://bugs.java.com/view_bug.do?bug_id=4425695, JVM crashes on use of opened ZipFile after it was updated
@@ -116,16 +348,22 @@ public abstract class ZipHandler extends ArchiveHandler {
       if (attributes.lastModified == myFileStamp && attributes.length == myFileLength) return handle;
 
       // Note that zip_util.c#ZIP_Get_From_Cache will allow us to have duplicated ZipFile instances without a problem
-      removeZipHandlerFromCache();
+      myOpenedGeneration = -1;
+      cache.remove(this);
       handle.release();
-      handle = ourZipFileFileAccessorCache.get(this);
+      handle = cache.get(this);
     }
 
     return handle;
   }
 
   private void removeZipHandlerFromCache() {
+    myOpenedGeneration = -1;
     ourZipFileFileAccessorCache.remove(this);
+    // the archive may still be open in a cache replaced by a larger one
+    for (FileAccessorCache<ZipHandler, ArchiveFile> cache : ourRetiredCaches) {
+      cache.remove(this);
+    }
   }
 
   @Nonnull
@@ -236,6 +474,12 @@ public abstract class ZipHandler extends ArchiveHandler {
 
   // also used in Kotlin
   public static void clearFileAccessorCache() {
+    synchronized (ZipHandler.class) {
+      ourCacheGeneration++;
+    }
     ourZipFileFileAccessorCache.clear();
+    for (FileAccessorCache<ZipHandler, ArchiveFile> cache : ourRetiredCaches) {
+      cache.clear();
+    }
   }
 }
\ No newline at end of file
@@ -20,6 +20,7 @@ import com.intellij.ide.StartupProgress;
 import com.intellij.openapi.application.ApplicationInfo;
 import com.intellij.openapi.util.BuildNumber;
 import com.intellij.openapi.util.Couple;
+import com.intellij.openapi.util.ShutDownTracker;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.util.SmartList;
 import com.intellij.util.graph.*;
@@ -28,11 +29,13 @@ import consulo.container.boot.ContainerPathManager;
 import consulo.container.impl.*;
 import consulo.container.impl.classloader.Java9ModuleInitializer;
 import consulo.container.impl.classloader.PluginClassLoaderFactory;
+import consulo.container.impl.classloader.PluginLoadStatistics;
 import consulo.container.plugin.*;
 import consulo.container.util.StatCollector;
 import consulo.logging.Logger;
 import consulo.util.lang.StringUtil;
 import consulo.util.lang.reflect.ReflectionUtil;
+import consulo.util.nodep.classloader.UrlClassLoader;
 import gnu.trove.THashMap;
 import gnu.trove.TIntProcedure;
 
@@ -72,6 +75,8 @@ public class PluginsLoader {
 
   static final float PLUGINS_PROGRESS_MAX_VALUE = 0.3f;
 
+  private static UrlClassLoader.CachePool ourClassPathCachePool;
+
   public static void setVersionChecker() {
     PluginValidator.VALIDATOR = new PluginDescriptorVersionValidator() {
       @Override
@@ -268,6 +273,7 @@ public class PluginsLoader {
     Collections.sort(pluginDescriptors, getPluginDescriptorComparator(idToDescriptorMap));
 
     stat.dump("Plugins load", getLogger()::info);
+    PluginLoadStatistics.get().dumpDescriptorLoadStatistics(getLogger()::info);
     return pluginDescriptors;
   }
 
@@ -313,11 +319,9 @@ public class PluginsLoader {
     final File[] files = pluginsHome.listFiles();
     if (files != null) {
       int i = result.size();
-      for (File file : files) {
-        Runnable mark = stat.mark(file.getName());
-        final PluginDescriptorImpl descriptor = PluginDescriptorLoader.loadDescriptor(file, isHeadlessMode, isPreInstalledPath, C_LOG);
+      final PluginDescriptorImpl[] descriptors = PluginDescriptorLoader.loadDescriptors(files, isHeadlessMode, isPreInstalledPath, C_LOG, stat);
+      for (final PluginDescriptorImpl descriptor : descriptors) {
         if (descriptor == null) {
-          mark.run();
           continue;
         }
 
@@ -334,7 +338,6 @@ public class PluginsLoader {
         else {
           result.add(descriptor);
         }
-        mark.run();
       }
     }
   }
@@ -525,7 +528,7 @@ public class PluginsLoader {
         final File file = aClassPath.getCanonicalFile(); // it is critical not to have "." and ".." in classpath elements
         urls.add(file.toURI().toURL());
       }
-      return PluginClassLoaderFactory.create(urls, parentLoaders, pluginId, pluginDescriptor.getVersion(), pluginRoot);
+      return PluginClassLoaderFactory.create(urls, parentLoaders, pluginId, pluginDescriptor.getVersion(), pluginRoot, getClassPathCachePool());
     }
     catch (IOException e) {
       getLogger().error(e);
@@ -533,6 +536,19 @@ public class PluginsLoader {
     return null;
   }
 
+  @Nonnull
+  private static synchronized UrlClassLoader.CachePool getClassPathCachePool() {
+    UrlClassLoader.CachePool pool = ourClassPathCachePool;
+    if (pool == null) {
+      File storeFile = new File(ContainerPathManager.get().getSystemPath(), "plugins-classpath.index");
+      final UrlClassLoader.CachePool newPool = UrlClassLoader.createPersistentCachePool(storeFile);
+      // package index of jars is collected lazily by class loaders, store what we have at exit
+      ShutDownTracker.getInstance().registerShutdownTask(() -> UrlClassLoader.saveCachePool(newPool));
+      ourClassPathCachePool = pool = newPool;
+    }
+    return pool;
+  }
+
   @Nonnull
   static ClassLoader[] getParentLoaders(Map<PluginId, ? extends PluginDescriptor> idToDescriptorMap, PluginId[] pluginIds) {
     final List<ClassLoader> classLoaders = new ArrayList<>();
@@ -0,0 +1,478 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.vfs.impl.zip;
+
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.util.SystemProperties;
+import consulo.logging.Logger;
+import consulo.util.io.PreJava9IOUtil;
+import consulo.vfs.impl.archive.ArchiveEntry;
+import consulo.vfs.impl.archive.ArchiveFile;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Zip archive read from a memory mapped file. Unlike {@link java.util.zip.ZipFile}, which reads entries under the lock of the zip file,
+ * every stream works on its own view of the mapping and inflates with its own {@link Inflater} taken from a shared pool, so any number
+ * of threads can read entries of the same archive at the same time. The file is closed right after mapping and doesn't hold a descriptor.
+ * The mapping is released when the archive and all streams opened from it are closed.
+ * <p>
+ * Reading a mapping of a file truncated on disk crashes the JVM, so before opening a stream the size and the timestamp of the file are
+ * checked and a changed file is read with {@link ZipArchiveFile} from then on. A mapped file can't be deleted on Windows, so there the
+ * reader is off by default. It is turned on or off everywhere with {@code -Didea.zip.mapped.reader}.
+ * <p>
+ * Only plain archives are read this way, {@link #open(String)} falls back to {@link ZipArchiveFile} for zip64, encrypted entries,
+ * unsupported compression methods and files larger than 2Gb.
+ *
+ * @author VISTALL
+ * @since 2020-06-12
+ */
+public class MappedZipArchiveFile implements ArchiveFile {
+  private static final Logger LOG = Logger.getInstance(MappedZipArchiveFile.class);
+
+  private static final boolean ourEnabled = SystemProperties.getBooleanProperty("idea.zip.mapped.reader", !SystemInfo.isWindows);
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_HEADER_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_HEADER_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+  private static final int STORED = 0;
+  private static final int DEFLATED = 8;
+
+  private final String myName;
+  // never read relatively, streams work on duplicates
+  private final ByteBuffer myBuffer;
+  private final Map<String, MappedEntry> myEntries;
+  private final long myLength;
+  private final long myTimeStamp;
+  // the archive itself and its open streams, the mapping is released when it drops to zero
+  private final AtomicInteger myUsers = new AtomicInteger(1);
+  private final AtomicBoolean myClosed = new AtomicBoolean();
+  // reads the file after it was changed on disk
+  private volatile ArchiveFile myChangedFile;
+
+  private MappedZipArchiveFile(@Nonnull String name, @Nonnull ByteBuffer buffer, @Nonnull Map<String, MappedEntry> entries, long length, long timeStamp) {
+    myName = name;
+    myBuffer = buffer;
+    myEntries = entries;
+    myLength = length;
+    myTimeStamp = timeStamp;
+  }
+
+  @Nonnull
+  public static ArchiveFile open(@Nonnull String path) throws IOException {
+    if (ourEnabled) {
+      try {
+        ArchiveFile file = tryOpen(path);
+        if (file != null) return file;
+      }
+      catch (IOException | RuntimeException e) {
+        LOG.debug("Cannot map " + path, e);
+      }
+    }
+    return new ZipArchiveFile(path);
+  }
+
+  // package-private for tests, the reader may be turned off
+  @Nullable
+  static MappedZipArchiveFile tryOpen(@Nonnull String path) throws IOException {
+    long timeStamp = new File(path).lastModified();
+    long length;
+    ByteBuffer buffer;
+    try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+      length = file.length();
+      if (length > Integer.MAX_VALUE || length < END_HEADER_SIZE) return null;
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    MappedZipArchiveFile archive = null;
+    try {
+      archive = readCentralDirectory(path, buffer, length, timeStamp);
+      return archive;
+    }
+    finally {
+      if (archive == null) PreJava9IOUtil.invokeCleaner(buffer);
+    }
+  }
+
+  @Nullable
+  private static MappedZipArchiveFile readCentralDirectory(@Nonnull String path, @Nonnull ByteBuffer buffer, long length, long timeStamp) {
+    int end = findEndHeader(buffer);
+    if (end < 0) return null;
+    int count = buffer.getShort(end + 10) & 0xFFFF;
+    long centralSize = buffer.getInt(end + 12) & 0xFFFFFFFFL;
+    long centralOffset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+    if (count == 0xFFFF || centralOffset == 0xFFFFFFFFL) return null; // zip64
+
+    // non-zero for archives with a prefix, e.g. self extracting ones
+    long base = end - centralSize - centralOffset;
+    if (base < 0) return null;
+
+    Map<String, MappedEntry> entries = new LinkedHashMap<>(count * 4 / 3 + 1);
+    int p = (int)(base + centralOffset);
+    for (int i = 0; i < count; i++) {
+      if (p + CENTRAL_HEADER_SIZE > end || buffer.getInt(p) != CENTRAL_HEADER_SIGNATURE) return null;
+      int flags = buffer.getShort(p + 8) & 0xFFFF;
+      int method = buffer.getShort(p + 10) & 0xFFFF;
+      long dosTime = buffer.getInt(p + 12) & 0xFFFFFFFFL;
+      long compressedSize = buffer.getInt(p + 20) & 0xFFFFFFFFL;
+      long size = buffer.getInt(p + 24) & 0xFFFFFFFFL;
+      int nameLength = buffer.getShort(p + 28) & 0xFFFF;
+      int extraLength = buffer.getShort(p + 30) & 0xFFFF;
+      int commentLength = buffer.getShort(p + 32) & 0xFFFF;
+      long localOffset = buffer.getInt(p + 42) & 0xFFFFFFFFL;
+
+      if ((flags & 1) != 0 || method != STORED && method != DEFLATED) return null;
+      if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localOffset == 0xFFFFFFFFL) return null;
+
+      byte[] nameBytes = new byte[nameLength];
+      ByteBuffer nameBuffer = buffer.duplicate();
+      nameBuffer.position(p + CENTRAL_HEADER_SIZE);
+      nameBuffer.get(nameBytes);
+      String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+      if (!entries.containsKey(name)) {
+        entries.put(name, new MappedEntry(name, method, dosTime, compressedSize, size, base + localOffset));
+      }
+      p += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return new MappedZipArchiveFile(path, buffer, entries, length, timeStamp);
+  }
+
+  private static int findEndHeader(@Nonnull ByteBuffer buffer) {
+    int last = buffer.limit() - END_HEADER_SIZE;
+    int first = Math.max(0, last - MAX_COMMENT_SIZE);
+    for (int p = last; p >= first; p--) {
+      if (buffer.getInt(p) == END_HEADER_SIGNATURE && p + END_HEADER_SIZE + (buffer.getShort(p + 20) & 0xFFFF) == buffer.limit()) {
+        return p;
+      }
+    }
+    return -1;
+  }
+
+  @Nonnull
+  @Override
+  public String getName() {
+    return myName;
+  }
+
+  @Nullable
+  @Override
+  public ArchiveEntry getEntry(String name) {
+    MappedEntry entry = myEntries.get(name);
+    // same as ZipFile#getEntry
+    if (entry == null && !name.endsWith("/")) entry = myEntries.get(name + "/");
+    return entry;
+  }
+
+  @Nullable
+  @Override
+  public InputStream getInputStream(@Nonnull ArchiveEntry archiveEntry) throws IOException {
+    ArchiveFile changedFile = getChangedFile();
+    if (changedFile != null) {
+      ArchiveEntry entry = changedFile.getEntry(archiveEntry.getName());
+      return entry != null ? changedFile.getInputStream(entry) : null;
+    }
+
+    MappedEntry entry = (MappedEntry)archiveEntry;
+    // the mapping must not be read after it's released
+    acquire();
+    try {
+      long local = entry.myLocalHeaderOffset;
+      if (local + LOCAL_HEADER_SIZE > myBuffer.limit() || myBuffer.getInt((int)local) != LOCAL_HEADER_SIGNATURE) {
+        throw new ZipException("Invalid local header of " + entry.myName + " in " + myName);
+      }
+      long dataStart = local + LOCAL_HEADER_SIZE + (myBuffer.getShort((int)local + 26) & 0xFFFF) + (myBuffer.getShort((int)local + 28) & 0xFFFF);
+      if (dataStart + entry.myCompressedSize > myBuffer.limit()) {
+        throw new ZipException("Invalid size of " + entry.myName + " in " + myName);
+      }
+
+      ByteBuffer data = myBuffer.duplicate();
+      data.limit((int)(dataStart + entry.myCompressedSize));
+      data.position((int)dataStart);
+      return entry.myMethod == STORED ? new StoredInputStream(this, data) : new InflatingInputStream(this, data, entry.mySize);
+    }
+    catch (IOException | RuntimeException e) {
+      release();
+      throw e;
+    }
+  }
+
+  @Nullable
+  private ArchiveFile getChangedFile() throws IOException {
+    ArchiveFile changedFile = myChangedFile;
+    if (changedFile != null) return changedFile;
+
+    File file = new File(myName);
+    if (file.length() == myLength && file.lastModified() == myTimeStamp) return null;
+    synchronized (this) {
+      if (myChangedFile == null) {
+        if (myClosed.get()) throw new IOException(myName + " is closed");
+        LOG.info(myName + " was changed on disk, reading it without mapping");
+        myChangedFile = new ZipArchiveFile(myName);
+      }
+      return myChangedFile;
+    }
+  }
+
+  private void acquire() throws IOException {
+    while (true) {
+      int users = myUsers.get();
+      if (users == 0) throw new IOException(myName + " is closed");
+      if (myUsers.compareAndSet(users, users + 1)) return;
+    }
+  }
+
+  private void release() {
+    if (myUsers.decrementAndGet() == 0) {
+      PreJava9IOUtil.invokeCleaner(myBuffer);
+    }
+  }
+
+  /**
+   * Streams opened before keep the mapping until they are closed.
+   */
+  @Override
+  public void close() {
+    if (!myClosed.compareAndSet(false, true)) return;
+    synchronized (this) {
+      if (myChangedFile != null) myChangedFile.close();
+    }
+    release();
+  }
+
+  @Nonnull
+  @Override
+  public Iterator<? extends ArchiveEntry> entries() {
+    return Collections.unmodifiableCollection(myEntries.values()).iterator();
+  }
+
+  @Override
+  public int getSize() {
+    return myEntries.size();
+  }
+
+  private static class MappedEntry implements ArchiveEntry {
+    private final String myName;
+    private final int myMethod;
+    private final long myDosTime;
+    private final long myCompressedSize;
+    private final long mySize;
+    private final long myLocalHeaderOffset;
+
+    private MappedEntry(String name, int method, long dosTime, long compressedSize, long size, long localHeaderOffset) {
+      myName = name;
+      myMethod = method;
+      myDosTime = dosTime;
+      myCompressedSize = compressedSize;
+      mySize = size;
+      myLocalHeaderOffset = localHeaderOffset;
+    }
+
+    @Override
+    public String getName() {
+      return myName;
+    }
+
+    @Override
+    public long getSize() {
+      return mySize;
+    }
+
+    @Override
+    public long getTime() {
+      Calendar calendar = new GregorianCalendar((int)((myDosTime >> 25) & 0x7f) + 1980, (int)((myDosTime >> 21) & 0x0f) - 1, (int)((myDosTime >> 16) & 0x1f),
+                                                (int)((myDosTime >> 11) & 0x1f), (int)((myDosTime >> 5) & 0x3f), (int)((myDosTime << 1) & 0x3e));
+      return calendar.getTimeInMillis();
+    }
+
+    @Override
+    public boolean isDirectory() {
+      return myName.endsWith("/");
+    }
+  }
+
+  private static class StoredInputStream extends InputStream {
+    private final MappedZipArchiveFile myArchive;
+    private final ByteBuffer myData;
+    private final AtomicBoolean myClosed = new AtomicBoolean();
+
+    private StoredInputStream(@Nonnull MappedZipArchiveFile archive, @Nonnull ByteBuffer data) {
+      myArchive = archive;
+      myData = data;
+    }
+
+    @Override
+    public int read() {
+      return myData.hasRemaining() ? myData.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(@Nonnull byte[] b, int off, int len) {
+      if (len == 0) return 0;
+      if (!myData.hasRemaining()) return -1;
+      len = Math.min(len, myData.remaining());
+      myData.get(b, off, len);
+      return len;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int)Math.max(0, Math.min(n, myData.remaining()));
+      myData.position(myData.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return myData.remaining();
+    }
+
+    @Override
+    public void close() {
+      if (myClosed.compareAndSet(false, true)) {
+        myData.position(myData.limit());
+        myArchive.release();
+      }
+    }
+  }
+
+  /**
+   * Inflaters are expensive to create and hold native memory, streams take one from this pool and return it on close.
+   */
+  private static class InflaterState {
+    private static final int MAX_POOLED = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private static final ConcurrentLinkedQueue<InflaterState> ourPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger ourPooledCount = new AtomicInteger();
+
+    private final Inflater myInflater = new Inflater(true);
+    private final byte[] myInput = new byte[8192];
+
+    @Nonnull
+    static InflaterState acquire() {
+      InflaterState state = ourPool.poll();
+      if (state == null) return new InflaterState();
+      ourPooledCount.decrementAndGet();
+      return state;
+    }
+
+    void release() {
+      myInflater.reset();
+      if (ourPooledCount.incrementAndGet() <= MAX_POOLED) {
+        ourPool.offer(this);
+      }
+      else {
+        ourPooledCount.decrementAndGet();
+        myInflater.end();
+      }
+    }
+  }
+
+  private static class InflatingInputStream extends InputStream {
+    private final MappedZipArchiveFile myArchive;
+    private final ByteBuffer myData;
+    private final long mySize;
+    private InflaterState myState;
+    private boolean myDummyByteAdded;
+    private byte[] mySingleByte;
+
+    private InflatingInputStream(@Nonnull MappedZipArchiveFile archive, @Nonnull ByteBuffer data, long size) {
+      myArchive = archive;
+      myData = data;
+      mySize = size;
+      myState = InflaterState.acquire();
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (mySingleByte == null) mySingleByte = new byte[1];
+      return read(mySingleByte, 0, 1) == -1 ? -1 : mySingleByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+      InflaterState state = myState;
+      if (state == null) throw new IOException("Stream closed");
+      if (len == 0) return 0;
+      Inflater inflater = state.myInflater;
+      try {
+        while (true) {
+          int n = inflater.inflate(b, off, len);
+          if (n > 0) return n;
+          if (inflater.finished() || inflater.needsDictionary()) return -1;
+          if (inflater.needsInput()) {
+            if (myData.hasRemaining()) {
+              int chunk = Math.min(myData.remaining(), state.myInput.length);
+              myData.get(state.myInput, 0, chunk);
+              inflater.setInput(state.myInput, 0, chunk);
+            }
+            else if (!myDummyByteAdded) {
+              // inflater in nowrap mode needs an extra byte after the compressed data, see ZipFile.ZipFileInflaterInputStream
+              myDummyByteAdded = true;
+              state.myInput[0] = 0;
+              inflater.setInput(state.myInput, 0, 1);
+            }
+            else {
+              throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+          }
+        }
+      }
+      catch (DataFormatException e) {
+        String message = e.getMessage();
+        throw new ZipException(message != null ? message : "Invalid ZLIB data format");
+      }
+    }
+
+    @Override
+    public int available() {
+      InflaterState state = myState;
+      if (state == null || state.myInflater.finished()) return 0;
+      return (int)Math.min(Integer.MAX_VALUE, Math.max(0, mySize - state.myInflater.getBytesWritten()));
+    }
+
+    @Override
+    public void close() {
+      InflaterState state = myState;
+      if (state != null) {
+        myState = null;
+        state.release();
+        myArchive.release();
+      }
+    }
+  }
+}
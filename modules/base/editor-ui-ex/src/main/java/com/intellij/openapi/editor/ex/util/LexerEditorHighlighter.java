@@ -24,6 +24,9 @@ import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.ExceptionUtil;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.text.ImmutableCharSequence;
 import com.intellij.util.text.SingleCharSequence;
 import com.intellij.util.ui.UIUtil;
@@ -35,11 +38,21 @@ import javax.annotation.Nonnull;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
 
 public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDocumentListener {
   private static final Logger LOG = Logger.getInstance(LexerEditorHighlighter.class);
   private static final int LEXER_INCREMENTALITY_THRESHOLD = 200;
   private static final Set<Class> ourNonIncrementalLexers = new HashSet<>();
+  // texts of at least this length (in chars) are lexed in chunks in parallel, see lexInParallel
+  private static final int PARALLEL_LEXING_THRESHOLD = SystemProperties.getIntProperty("idea.editor.highlighter.parallel.lexing.threshold", 2 * 1024 * 1024);
+  private static final int MIN_CHUNK_LENGTH = 256 * 1024;
+  private static final int LEXING_THREADS = Math.min(8, Runtime.getRuntime().availableProcessors() - 1);
+  private static final ExecutorService ourLexingExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("LexerEditorHighlighter Pool", Math.max(1, LEXING_THREADS));
   private HighlighterClient myEditor;
   private final Lexer myLexer;
   private final Map<IElementType, TextAttributes> myAttributesMap = new HashMap<>();
@@ -160,6 +173,13 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
         return;
       }
 
+      if (e.getNewLength() >= PARALLEL_LEXING_THRESHOLD) {
+        // relexing a huge inserted text sequentially would take as long as lexing the whole document in chunks
+        myText = null;
+        doSetText(text);
+        return;
+      }
+
       myText = text;
       int oldStartOffset = e.getOffset();
 
@@ -418,18 +438,20 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
     final TokenProcessor processor = createTokenProcessor(0);
     final int textLength = text.length();
-    myLexer.start(text, 0, textLength, myLexer instanceof RestartableLexer ? ((RestartableLexer)myLexer).getStartState() : myInitialState);
     mySegments.removeAll();
-    int i = 0;
-    while (true) {
-      final IElementType tokenType = myLexer.getTokenType();
-      if (tokenType == null) break;
-
-      int state = myLexer.getState();
-      int data = mySegments.packData(tokenType, state, canRestart(state));
-      processor.addToken(i, myLexer.getTokenStart(), myLexer.getTokenEnd(), data, tokenType);
-      i++;
-      myLexer.advance();
+    if (!lexInParallel(text, processor)) {
+      myLexer.start(text, 0, textLength, getStartState());
+      int i = 0;
+      while (true) {
+        final IElementType tokenType = myLexer.getTokenType();
+        if (tokenType == null) break;
+
+        int state = myLexer.getState();
+        int data = mySegments.packData(tokenType, state, canRestart(state));
+        processor.addToken(i, myLexer.getTokenStart(), myLexer.getTokenEnd(), data, tokenType);
+        i++;
+        myLexer.advance();
+      }
     }
     processor.finish();
 
@@ -442,6 +464,170 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     }
   }
 
+  private int getStartState() {
+    return myLexer instanceof RestartableLexer ? ((RestartableLexer)myLexer).getStartState() : myInitialState;
+  }
+
+  private boolean lexInParallel(@Nonnull CharSequence text, @Nonnull TokenProcessor processor) {
+    if (text.length() < PARALLEL_LEXING_THRESHOLD || LEXING_THREADS < 1) return false;
+    int[] tokenIndex = {0};
+    return lexInParallel(text, myLexer, myHighlighter::getHighlightingLexer, MIN_CHUNK_LENGTH, getStartState(), this::canRestart, (start, end, state, tokenType) -> {
+      processor.addToken(tokenIndex[0]++, start, end, mySegments.packData(tokenType, state, canRestart(state)), tokenType);
+    });
+  }
+
+  interface TokenConsumer {
+    void consume(int start, int end, int state, @Nonnull IElementType tokenType);
+  }
+
+  /**
+   * Lexes a huge text in chunks starting at line starts. The first chunk is lexed by the given lexer on the calling thread, the others
+   * are lexed in parallel by new lexers of the same class, speculatively from the start state. The chunks are then joined in order:
+   * the lexer of the previous chunk goes on until it reaches a token in a restartable state which the next chunk has lexed the same way,
+   * and the tokens of the next chunk are taken from there on. A chunk whose speculative start was wrong costs the sequential relexing of it.
+   *
+   * @return false if the text is shorter than two chunks or the lexer can't be instantiated for chunks, and should be lexed sequentially
+   */
+  static boolean lexInParallel(@Nonnull CharSequence text,
+                               @Nonnull Lexer lexer,
+                               @Nonnull Supplier<? extends Lexer> lexerFactory,
+                               int minChunkLength,
+                               int startState,
+                               @Nonnull IntPredicate canRestart,
+                               @Nonnull TokenConsumer consumer) {
+    int[] chunkStarts = findChunkStarts(text, minChunkLength);
+    if (chunkStarts.length < 2) return false;
+
+    Lexer[] lexers = new Lexer[chunkStarts.length];
+    lexers[0] = lexer;
+    for (int k = 1; k < lexers.length; k++) {
+      Lexer chunkLexer = lexerFactory.get();
+      if (chunkLexer == lexer || chunkLexer.getClass() != lexer.getClass()) return false;
+      lexers[k] = chunkLexer;
+    }
+
+    LexedChunk[] chunks = new LexedChunk[chunkStarts.length];
+    List<Future<LexedChunk>> futures = new ArrayList<>(chunkStarts.length - 1);
+    try {
+      for (int k = 1; k < chunkStarts.length; k++) {
+        int chunk = k;
+        futures.add(ourLexingExecutor.submit(() -> lexChunk(lexers[chunk], text, chunkStarts, chunk, startState, canRestart)));
+      }
+      chunks[0] = lexChunk(lexer, text, chunkStarts, 0, startState, canRestart);
+      for (int k = 1; k < chunkStarts.length; k++) {
+        chunks[k] = futures.get(k - 1).get();
+      }
+    }
+    catch (InterruptedException e) {
+      throw new ProcessCanceledException(e);
+    }
+    catch (ExecutionException e) {
+      ExceptionUtil.rethrowUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    }
+    finally {
+      for (Future<LexedChunk> future : futures) {
+        future.cancel(true);
+      }
+    }
+
+    joinChunks(chunks, canRestart, consumer);
+    return true;
+  }
+
+  @Nonnull
+  static int[] findChunkStarts(@Nonnull CharSequence text, int minChunkLength) {
+    int chunkLength = Math.max(minChunkLength, text.length() / (Math.max(1, LEXING_THREADS) * 4));
+    List<Integer> starts = new ArrayList<>();
+    starts.add(0);
+    for (int offset = chunkLength; offset < text.length(); offset += chunkLength) {
+      int lineStart = StringUtil.indexOf(text, '\n', offset) + 1;
+      if (lineStart == 0 || lineStart >= text.length()) break;
+      if (lineStart > starts.get(starts.size() - 1)) {
+        starts.add(lineStart);
+        offset = lineStart;
+      }
+    }
+    return ArrayUtil.toIntArray(starts);
+  }
+
+  // lexes from the chunk start until a restartable token of the next chunk, the lexer is left at that token
+  @Nonnull
+  static LexedChunk lexChunk(@Nonnull Lexer lexer, @Nonnull CharSequence text, @Nonnull int[] chunkStarts, int chunk, int startState, @Nonnull IntPredicate canRestart) {
+    int nextChunkStart = chunk + 1 < chunkStarts.length ? chunkStarts[chunk + 1] : Integer.MAX_VALUE;
+    lexer.start(text, chunkStarts[chunk], text.length(), startState);
+    LexedChunk result = new LexedChunk(lexer);
+    for (IElementType tokenType = lexer.getTokenType(); tokenType != null; tokenType = lexer.getTokenType()) {
+      int tokenStart = lexer.getTokenStart();
+      int state = lexer.getState();
+      if (tokenStart >= nextChunkStart && canRestart.test(state)) break;
+      result.add(tokenStart, lexer.getTokenEnd(), state, tokenType);
+      lexer.advance();
+    }
+    result.myEnd = lexer.getTokenType() == null ? Integer.MAX_VALUE : lexer.getTokenStart();
+    return result;
+  }
+
+  static void joinChunks(@Nonnull LexedChunk[] chunks, @Nonnull IntPredicate canRestart, @Nonnull TokenConsumer consumer) {
+    LexedChunk current = chunks[0];
+    int from = 0;
+    int next = 1;
+    while (true) {
+      for (int t = from; t < current.myCount; t++) {
+        consumer.consume(current.myStarts[t], current.myEnds[t], current.myStates[t], current.myTypes[t]);
+      }
+
+      Lexer lexer = current.myLexer;
+      from = -1;
+      for (IElementType tokenType = lexer.getTokenType(); tokenType != null; tokenType = lexer.getTokenType()) {
+        int tokenStart = lexer.getTokenStart();
+        int state = lexer.getState();
+        if (canRestart.test(state)) {
+          while (next < chunks.length && tokenStart >= chunks[next].myEnd) next++; // the lexer has passed the whole chunk
+          if (next < chunks.length && (from = chunks[next].indexOf(tokenStart, state, tokenType)) >= 0) break;
+        }
+        consumer.consume(tokenStart, lexer.getTokenEnd(), state, tokenType);
+        lexer.advance();
+      }
+      if (from < 0) return;
+      current = chunks[next++];
+    }
+  }
+
+  static class LexedChunk {
+    private final Lexer myLexer;
+    private int[] myStarts = new int[1024];
+    private int[] myEnds = new int[1024];
+    private int[] myStates = new int[1024];
+    private IElementType[] myTypes = new IElementType[1024];
+    private int myCount;
+    private int myEnd; // start of the first token not in the chunk
+
+    private LexedChunk(@Nonnull Lexer lexer) {
+      myLexer = lexer;
+    }
+
+    private void add(int start, int end, int state, @Nonnull IElementType type) {
+      if (myCount == myStarts.length) {
+        int capacity = myCount * 2;
+        myStarts = Arrays.copyOf(myStarts, capacity);
+        myEnds = Arrays.copyOf(myEnds, capacity);
+        myStates = Arrays.copyOf(myStates, capacity);
+        myTypes = Arrays.copyOf(myTypes, capacity);
+      }
+      myStarts[myCount] = start;
+      myEnds[myCount] = end;
+      myStates[myCount] = state;
+      myTypes[myCount] = type;
+      myCount++;
+    }
+
+    private int indexOf(int start, int state, @Nonnull IElementType type) {
+      int index = Arrays.binarySearch(myStarts, 0, myCount, start);
+      return index >= 0 && myStates[index] == state && myTypes[index] == type ? index : -1;
+    }
+  }
+
   @Nonnull
   protected TokenProcessor createTokenProcessor(final int startIndex) {
     return new TokenProcessor();
@@ -21,6 +21,7 @@ import javax.annotation.Nonnull;
 
 import javax.annotation.Nullable;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -108,6 +109,30 @@ public abstract class FileBasedIndex {
                                                                @Nullable Condition<? super V> valueChecker,
                                                                @Nonnull Processor<? super VirtualFile> processor);
 
+  /**
+   * Processes every file in {@code filter} that contains at least one of {@code dataKeys}, each file once.
+   * Unlike calling {@link #getContainingFiles} per key the index is brought up to date and locked only once for the whole batch.
+   *
+   * @param valueChecker if not null only values accepted by it are taken into account
+   * @return {@code false} if processor returned {@code false}; {@code true} otherwise
+   */
+  public <K, V> boolean processFilesContainingAnyKey(@Nonnull ID<K, V> indexId,
+                                                     @Nonnull Collection<? extends K> dataKeys,
+                                                     @Nonnull GlobalSearchScope filter,
+                                                     @Nullable IdFilter idFilter,
+                                                     @Nullable Condition<? super V> valueChecker,
+                                                     @Nonnull Processor<? super VirtualFile> processor) {
+    Set<VirtualFile> processed = new HashSet<>();
+    for (K dataKey : dataKeys) {
+      boolean result = processValues(indexId, dataKey, null, (file, value) -> {
+        if (valueChecker != null && !valueChecker.value(value)) return true;
+        return !processed.add(file) || processor.process(file);
+      }, filter, idFilter);
+      if (!result) return false;
+    }
+    return true;
+  }
+
   /**
    * It is guaranteed to return data which is up-to-date within the given project.
    * Keys obtained from the files which do not belong to the project specified may not be up-to-date or even exist.
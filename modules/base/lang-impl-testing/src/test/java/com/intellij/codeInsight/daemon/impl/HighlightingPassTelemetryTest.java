@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInsight.daemon.impl;
+
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author VISTALL
+ * @since 2020-10-17
+ */
+public class HighlightingPassTelemetryTest extends TestCase {
+  private final HighlightingPassTelemetry myTelemetry = new HighlightingPassTelemetry();
+
+  public void testCanceledRunsAreNotAveraged() {
+    assertEquals(-1, myTelemetry.getAverageCollectNanos("pass"));
+
+    myTelemetry.collectFinished("pass", "a.txt", 5, 0, true);
+    assertEquals(-1, myTelemetry.getAverageCollectNanos("pass"));
+
+    myTelemetry.collectFinished("pass", "a.txt", 100, 0, false);
+    myTelemetry.collectFinished("pass", "b.txt", 300, 0, false);
+    myTelemetry.collectFinished("pass", "b.txt", 1, 0, true);
+    assertEquals(200, myTelemetry.getAverageCollectNanos("pass"));
+  }
+
+  public void testCanceledRunsAreReported() {
+    myTelemetry.collectFinished("pass", "a.txt", 100, 0, false);
+    myTelemetry.collectFinished("pass", "a.txt", 40, 0, true);
+
+    String json = myTelemetry.toJson();
+    assertTrue(json, json.contains("\"runs\": 2"));
+    assertTrue(json, json.contains("\"canceledRuns\": 1"));
+    assertTrue(json, json.contains("\"collectNanos\": 140"));
+    assertTrue(json, json.contains("\"maxCollectNanos\": 100"));
+  }
+
+  public void testVisiblePassesFirst() {
+    TestPass hidden = new TestPass("cheap", 2, 1);
+    TestPass showing = new TestPass("cheap", 1, 2);
+    TestPass visible = new TestPass("cheap", 0, 3);
+
+    assertEquals(Arrays.asList(visible, showing, hidden), sort(hidden, showing, visible));
+  }
+
+  public void testCheapPassesFirstWithinVisibility() {
+    myTelemetry.collectFinished("cheap", null, 10, 0, false);
+    myTelemetry.collectFinished("expensive", null, 1000, 0, false);
+    // a canceled run of the cheap pass doesn't make it look expensive
+    myTelemetry.collectFinished("cheap", null, 5000, 0, true);
+
+    TestPass expensive = new TestPass("expensive", 0, 1);
+    TestPass cheap = new TestPass("cheap", 0, 2);
+    TestPass unknown = new TestPass("unknown", 0, 3);
+    TestPass hiddenCheap = new TestPass("cheap", 1, 4);
+
+    assertEquals(Arrays.asList(unknown, cheap, expensive, hiddenCheap), sort(hiddenCheap, expensive, cheap, unknown));
+  }
+
+  public void testEqualCostPassesAreOrderedById() {
+    TestPass third = new TestPass("c", 0, 3);
+    TestPass first = new TestPass("a", 0, 1);
+    TestPass second = new TestPass("b", 0, 2);
+
+    assertEquals(Arrays.asList(first, second, third), sort(third, first, second));
+  }
+
+  @Nonnull
+  private List<TestPass> sort(@Nonnull TestPass... passes) {
+    List<TestPass> sorted = new ArrayList<>(Arrays.asList(passes));
+    sorted.sort(myTelemetry.createPriorityComparator(sorted, pass -> pass.myVisibility, pass -> pass.myName, pass -> pass.myId));
+    return sorted;
+  }
+
+  private static class TestPass {
+    private final String myName;
+    private final int myVisibility;
+    private final int myId;
+
+    TestPass(@Nonnull String name, int visibility, int id) {
+      myName = name;
+      myVisibility = visibility;
+      myId = id;
+    }
+
+    @Override
+    public String toString() {
+      return myName + "#" + myId;
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInsight.daemon.impl;
+
+import com.intellij.codeInspection.LocalInspectionTool;
+import com.intellij.codeInspection.ProblemDescriptor;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.impl.FakePsiElement;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+/**
+ * @author VISTALL
+ * @since 2020-10-17
+ */
+public class InspectionResultCacheTest extends TestCase {
+  private final InspectionResultCache myCache = new InspectionResultCache(true);
+  private final LocalInspectionTool myTool = new SubtreeLocalInspection();
+  private final List<TestElement> myVisited = new ArrayList<>();
+
+  //   file
+  //   /  \
+  //  a    b
+  //  |
+  //  c
+  private final TestElement myFile = new TestElement("file", null, 30);
+  private final TestElement myA = new TestElement("a", myFile, 20);
+  private final TestElement myB = new TestElement("b", myFile, 10);
+  private final TestElement myC = new TestElement("c", myA, 5);
+  private final List<TestElement> myElements = Arrays.asList(myC, myA, myB, myFile);
+
+  public void testOnlySubtreeLocalToolsOnTheFlyAreCached() {
+    assertTrue(myCache.isApplicable(myTool, true));
+    assertFalse(myCache.isApplicable(myTool, false));
+    assertFalse(myCache.isApplicable(new LocalInspectionTool() {
+    }, true));
+    assertFalse(new InspectionResultCache(false).isApplicable(myTool, true));
+  }
+
+  public void testUnchangedSubtreesAreReused() {
+    Map<PsiElement, List<ProblemDescriptor>> first = inspect();
+    assertEquals(myElements, myVisited);
+
+    myVisited.clear();
+    Map<PsiElement, List<ProblemDescriptor>> second = inspect();
+    assertEquals(Collections.emptyList(), myVisited);
+    for (TestElement element : myElements) {
+      assertSame(first.get(element).get(0), second.get(element).get(0));
+    }
+
+    InspectionResultCache.ToolStatistics statistics = myCache.getStatistics().get(myTool.getShortName());
+    assertEquals(4, statistics.getHits());
+    assertEquals(4, statistics.getMisses());
+  }
+
+  public void testChangedSubtreesAreRecomputed() {
+    Map<PsiElement, List<ProblemDescriptor>> first = inspect();
+
+    // c and all its parents are changed, b is not
+    myCache.subtreeChanged(myC);
+    myVisited.clear();
+    Map<PsiElement, List<ProblemDescriptor>> second = inspect();
+    assertEquals(Arrays.asList(myC, myA, myFile), myVisited);
+    assertSame(first.get(myB).get(0), second.get(myB).get(0));
+    assertNotSame(first.get(myA).get(0), second.get(myA).get(0));
+
+    // a subtree of another length is recomputed even without a change event
+    myB.myTextLength++;
+    myVisited.clear();
+    inspect();
+    assertEquals(Collections.singletonList(myB), myVisited);
+  }
+
+  public void testEverythingIsRecomputedAfterClear() {
+    inspect();
+    myCache.clear();
+    myVisited.clear();
+    inspect();
+    assertEquals(myElements, myVisited);
+  }
+
+  // what LocalInspectionsPass does for a subtree local tool: reuse cached problems of an element or visit it and cache what it reported
+  @Nonnull
+  private Map<PsiElement, List<ProblemDescriptor>> inspect() {
+    Map<PsiElement, List<ProblemDescriptor>> result = new HashMap<>();
+    for (TestElement element : myElements) {
+      List<ProblemDescriptor> problems = myCache.getProblems(myTool, element);
+      if (problems == null) {
+        myVisited.add(element);
+        problems = Collections.singletonList(createProblem(element));
+        myCache.putProblems(myTool, element, problems);
+      }
+      result.put(element, problems);
+    }
+    return result;
+  }
+
+  @Nonnull
+  private static ProblemDescriptor createProblem(@Nonnull PsiElement element) {
+    return (ProblemDescriptor)Proxy.newProxyInstance(InspectionResultCacheTest.class.getClassLoader(), new Class[]{ProblemDescriptor.class},
+                                                     (proxy, method, args) -> "getPsiElement".equals(method.getName()) ? element : null);
+  }
+
+  private static class SubtreeLocalInspection extends LocalInspectionTool {
+    @Nonnull
+    @Override
+    public String getShortName() {
+      return "SubtreeLocal";
+    }
+
+    @Override
+    public boolean isSubtreeLocal() {
+      return true;
+    }
+  }
+
+  private static class TestElement extends FakePsiElement {
+    private final String myName;
+    private final PsiElement myParent;
+    private int myTextLength;
+
+    TestElement(@Nonnull String name, @Nullable PsiElement parent, int textLength) {
+      myName = name;
+      myParent = parent;
+      myTextLength = textLength;
+    }
+
+    @Override
+    public PsiElement getParent() {
+      return myParent;
+    }
+
+    @Override
+    public int getTextLength() {
+      return myTextLength;
+    }
+
+    @Override
+    public String toString() {
+      return myName;
+    }
+  }
+}
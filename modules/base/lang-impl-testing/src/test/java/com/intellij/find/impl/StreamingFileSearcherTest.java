@@ -0,0 +1,336 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.impl;
+
+import com.intellij.find.FindManager;
+import com.intellij.find.FindModel;
+import com.intellij.find.FindResult;
+import com.intellij.navigation.NavigationItem;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.impl.StubVirtualFile;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.search.SearchScope;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Occurrences found by {@link StreamingFileSearcher} must be the ones found in the document text of the file by the same {@link FindManager}.
+ *
+ * @author VISTALL
+ * @since 2020-06-17
+ */
+public class StreamingFileSearcherTest extends TestCase {
+  private static final FindManager ourFindManager = new TestFindManager();
+  private static final VirtualFile ourFile = new StubVirtualFile();
+
+  public void testRegexpsWhichMayMatchLineBreaksAreNotStreamed() {
+    for (String regexp : new String[]{"a\\sb", "a\\Rb", "a\\Xb", "a\\N{LATIN SMALL LETTER A}b", "a\\p{Space}b", "a\\Db", "a\\yb", "a\\0b",
+            "a\\u000Ab", "a\\x{A}b", "a\\Z", "a[^b]", "(?s)a.b", "(?is)a.b", "a\nb", "a\\"}) {
+      assertFalse(regexp, StreamingFileSearcher.isApplicable(regexpModel(regexp)));
+    }
+    for (String regexp : new String[]{"a\\db", "\\bword\\b", "(a)\\1", "(?<g>a)\\k<g>", "a\\.b\\(", "\\Qa.b\\E", "a\\\\", "(?i)a.b"}) {
+      assertTrue(regexp, StreamingFileSearcher.isApplicable(regexpModel(regexp)));
+    }
+  }
+
+  public void testMatchesAcrossChunkBoundaries() throws IOException {
+    Random random = new Random(42);
+    String[] words = {"foo", "food", "Foo", "bar", "x", "foo_bar"};
+    for (int round = 0; round < 20; round++) {
+      StringBuilder text = new StringBuilder();
+      while (text.length() < 3000) {
+        text.append(words[random.nextInt(words.length)]).append(random.nextInt(5) == 0 ? "\n" : " ");
+      }
+      int maxChunk = 1 + random.nextInt(round < 10 ? 8 : 200);
+      assertOccurrences(text.toString(), new Random(round), maxChunk, plainModel("foo", false, false));
+      assertOccurrences(text.toString(), new Random(round), maxChunk, plainModel("foo", true, true));
+      assertOccurrences(text.toString(), new Random(round), maxChunk, regexpModel("fo+d?"));
+    }
+  }
+
+  public void testCrLfLineSeparators() throws IOException {
+    String text = "foo\r\nbar foo\r\r\nfoo\rfoo bar\n\rfoo\r";
+    for (int maxChunk : new int[]{1, 2, 3, 5, 100}) {
+      assertOccurrences(text, new Random(maxChunk), maxChunk, plainModel("foo", false, false));
+      assertOccurrences(text, new Random(maxChunk), maxChunk, regexpModel("^foo$"));
+    }
+  }
+
+  // the reader is read in chunks of 256K chars, with an occurrence and a CRLF around the first chunk ends
+  public void testLargeFile() throws IOException {
+    int chunk = 256 * 1024;
+    StringBuilder text = new StringBuilder();
+    while (text.length() < 3 * chunk) {
+      text.append("some text foo\r\n");
+    }
+    text.replace(chunk - 2, chunk + 2, "food");
+    text.replace(2 * chunk - 1, 2 * chunk + 1, "\r\n");
+    text.replace(2 * chunk + 1, 2 * chunk + 4, "foo");
+    FindModel model = plainModel("foo", false, false);
+
+    List<TextRange> found = findOccurrences(new StringReader(text.toString()), model);
+    assertEquals(findInDocumentText(text.toString(), model), found);
+  }
+
+  public void testProcessorStopsSearch() throws IOException {
+    List<TextRange> found = new ArrayList<>();
+    StreamingFileSearcher.OccurrenceProcessor processor = (occurrence, searchOffset) -> {
+      found.add(new TextRange(occurrence.getStartOffset(), occurrence.getEndOffset()));
+      return found.size() < 2;
+    };
+    assertFalse(StreamingFileSearcher.processOccurrences(new StringReader("foo foo foo"), ourFile, plainModel("foo", false, false), ourFindManager,
+                                                         new EmptyProgressIndicator(ModalityState.NON_MODAL), processor));
+    assertEquals(2, found.size());
+  }
+
+  private static void assertOccurrences(@Nonnull String text, @Nonnull Random random, int maxChunk, @Nonnull FindModel model) throws IOException {
+    List<TextRange> found = findOccurrences(new ChunkReader(text, random, maxChunk), model);
+    assertEquals(model.getStringToFind() + " in chunks of up to " + maxChunk, findInDocumentText(text, model), found);
+  }
+
+  @Nonnull
+  private static List<TextRange> findOccurrences(@Nonnull Reader reader, @Nonnull FindModel model) throws IOException {
+    List<TextRange> found = new ArrayList<>();
+    StreamingFileSearcher.OccurrenceProcessor processor = (occurrence, searchOffset) -> {
+      assertTrue(searchOffset <= occurrence.getStartOffset());
+      found.add(new TextRange(occurrence.getStartOffset(), occurrence.getEndOffset()));
+      return true;
+    };
+    assertTrue(StreamingFileSearcher.processOccurrences(reader, ourFile, model, ourFindManager, new EmptyProgressIndicator(ModalityState.NON_MODAL), processor));
+    return found;
+  }
+
+  @Nonnull
+  private static List<TextRange> findInDocumentText(@Nonnull String text, @Nonnull FindModel model) {
+    String documentText = StringUtil.convertLineSeparators(text);
+    List<TextRange> result = new ArrayList<>();
+    int offset = 0;
+    while (offset < documentText.length()) {
+      FindResult found = ourFindManager.findString(documentText, offset, model, ourFile);
+      if (!found.isStringFound()) break;
+      result.add(new TextRange(found.getStartOffset(), found.getEndOffset()));
+      offset = found.getEndOffset();
+    }
+    assertFalse(result.isEmpty());
+    return result;
+  }
+
+  @Nonnull
+  private static FindModel plainModel(@Nonnull String stringToFind, boolean caseSensitive, boolean wholeWords) {
+    FindModel model = new FindModel();
+    model.setStringToFind(stringToFind);
+    model.setCaseSensitive(caseSensitive);
+    model.setWholeWordsOnly(wholeWords);
+    return model;
+  }
+
+  @Nonnull
+  private static FindModel regexpModel(@Nonnull String regexp) {
+    FindModel model = new FindModel();
+    model.setStringToFind(regexp);
+    model.setRegularExpressions(true);
+    return model;
+  }
+
+  // returns the text in chunks of random length, up to maxChunk chars
+  private static class ChunkReader extends StringReader {
+    private final Random myRandom;
+    private final int myMaxChunk;
+
+    ChunkReader(@Nonnull String text, @Nonnull Random random, int maxChunk) {
+      super(text);
+      myRandom = random;
+      myMaxChunk = maxChunk;
+    }
+
+    @Override
+    public int read(@Nonnull char[] buffer, int offset, int length) throws IOException {
+      return super.read(buffer, offset, Math.min(length, 1 + myRandom.nextInt(myMaxChunk)));
+    }
+  }
+
+  // finds plain text, whole words and regexps in the given text only, as FindManagerImpl does outside comments and literals
+  private static class TestFindManager extends FindManager {
+    @Nonnull
+    @Override
+    public FindResult findString(@Nonnull CharSequence text, int offset, @Nonnull FindModel model) {
+      return findString(text, offset, model, null);
+    }
+
+    @Nonnull
+    @Override
+    public FindResult findString(@Nonnull CharSequence text, int offset, @Nonnull FindModel model, @Nullable VirtualFile findContextFile) {
+      Pattern pattern = model.isRegularExpressions()
+                        ? model.compileRegExp()
+                        : Pattern.compile(Pattern.quote(model.getStringToFind()), model.isCaseSensitive() ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+      Matcher matcher = pattern.matcher(text);
+      for (int start = offset; start <= text.length() && matcher.find(start); start = matcher.start() + 1) {
+        if (!model.isWholeWordsOnly() || isWholeWord(text, matcher.start(), matcher.end())) {
+          return new FindResultImpl(matcher.start(), matcher.end());
+        }
+      }
+      return new FindResultImpl();
+    }
+
+    private static boolean isWholeWord(@Nonnull CharSequence text, int start, int end) {
+      return (start == 0 || !Character.isJavaIdentifierPart(text.charAt(start - 1))) && (end == text.length() || !Character.isJavaIdentifierPart(text.charAt(end)));
+    }
+
+    @Override
+    public FindModel createReplaceInFileModel() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Nullable
+    @Override
+    public FindModel getPreviousFindModel() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setPreviousFindModel(FindModel previousFindModel) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void showSettingsAndFindUsages(@Nonnull NavigationItem[] targets) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void showFindDialog(@Nonnull FindModel model, @Nonnull Runnable okHandler) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int showPromptDialog(@Nonnull FindModel model, String title) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Nonnull
+    @Override
+    public FindModel getFindInFileModel() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Nonnull
+    @Override
+    public FindModel getFindInProjectModel() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int showMalformedReplacementPrompt(@Nonnull FindModel model, String title, MalformedReplacementStringException exception) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getStringToReplace(@Nonnull String foundString, @Nonnull FindModel model, int startOffset, @Nonnull CharSequence documentText) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean findWasPerformed() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setFindWasPerformed() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean selectNextOccurrenceWasPerformed() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setSelectNextOccurrenceWasPerformed() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clearFindingNextUsageInFile() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setFindNextModel(FindModel model) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindModel getFindNextModel() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindModel getFindNextModel(@Nonnull Editor editor) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean canFindUsages(@Nonnull PsiElement element) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void findUsages(@Nonnull PsiElement element) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void findUsagesInScope(@Nonnull PsiElement element, @Nonnull SearchScope searchScope) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void findUsages(@Nonnull PsiElement element, boolean showDialog) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void findUsagesInEditor(@Nonnull PsiElement element, @Nonnull FileEditor editor) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean findNextUsageInEditor(@Nonnull FileEditor editor) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean findPreviousUsageInEditor(@Nonnull FileEditor editor) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
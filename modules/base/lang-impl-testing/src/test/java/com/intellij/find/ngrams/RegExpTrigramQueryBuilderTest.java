@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.openapi.util.text.TrigramBuilder;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @author VISTALL
+ * @since 2020-06-17
+ */
+public class RegExpTrigramQueryBuilderTest extends TestCase {
+  public void testLiteral() {
+    assertQuery("abc AND bcd", "abcd");
+    assertQuery("abc AND bcd", "ABcd");
+    assertQuery("ALL", "ab");
+    assertQuery("abc", "x\\.abc");
+    assertQuery("ALL", "a\\.b|abc");
+  }
+
+  public void testAlternation() {
+    assertQuery("bar OR foo", "foo|bar");
+    assertQuery("(bar AND foo AND oba AND oob) OR (azz AND baz)", "foobar|bazz");
+    assertQuery("ALL", "foo|ba");
+  }
+
+  public void testRequiredFragments() {
+    assertQuery("bar AND foo", "foo.*bar");
+    assertQuery("bar AND foo", "foo\\s+bar");
+    assertQuery("ALL", "(foo)?x");
+  }
+
+  public void testCharacterClasses() {
+    assertQuery("get OR set", "[gs]et");
+    assertQuery("ALL", "[a-z]et");
+    assertQuery("alu AND val", "valu[^a]");
+  }
+
+  public void testUnsupportedSyntaxMatchesEverything() {
+    assertQuery("ALL", "(foo");
+    assertQuery("ALL", "(foo)\\1");
+    assertQuery("ALL", "foo)");
+  }
+
+  public void testEveryMatchSatisfiesQuery() {
+    String text = "public static final String FOO_BAR = \"getValue\"; int count = 42; void setCount(int c) { count = c; }\n" +
+                  "// TODO: remove getValue() and setValue(String) after 2020.2\n" +
+                  "private final Map<String, List<Integer>> myValuesByName = new HashMap<>();";
+    String[] patterns = {"[gs]etValue", "get\\w+\\(", "FOO_(BAR|BAZ)", "count\\s*=\\s*\\d+", "TODO:?\\s+\\w+", "(?i)todo", "20\\d\\d\\.\\d",
+      "Map<\\w+, List<\\w+>>", "my[A-Z]\\w+ByName", "int\\s+\\w+\\s*=", "final\\s+(String|Map)", "set(Count|Value)\\((int|String)",
+      "\\Qnew HashMap<>()\\E", "(?:public|private)\\s+(?:static\\s+)?final", "Value(s)?", "c\\)?\\s*\\{", "\\WgetValue"};
+    TIntHashSet trigrams = new TIntHashSet();
+    for (String pattern : patterns) {
+      Matcher matcher = Pattern.compile(pattern).matcher(text);
+      assertTrue(pattern, matcher.find());
+      TrigramQuery query = RegExpTrigramQueryBuilder.build(pattern);
+      trigrams.clear();
+      TrigramBuilder.processTrigrams(matcher.group(), new TrigramBuilder.TrigramProcessor() {
+        @Override
+        public boolean execute(int value) {
+          trigrams.add(value);
+          return true;
+        }
+      });
+      assertTrue(pattern + " -> " + query, query.matches(trigrams));
+    }
+  }
+
+  private static void assertQuery(String expected, String regExp) {
+    assertEquals(expected, RegExpTrigramQueryBuilder.build(regExp).toString());
+  }
+}
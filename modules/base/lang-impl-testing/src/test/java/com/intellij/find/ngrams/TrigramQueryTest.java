@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.openapi.util.text.TrigramBuilder;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileSystem;
+import com.intellij.openapi.vfs.newvfs.impl.StubVirtualFile;
+import com.intellij.util.Processor;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates queries against an in-memory trigram index of a few files.
+ *
+ * @author VISTALL
+ * @since 2020-06-17
+ */
+public class TrigramQueryTest extends TestCase {
+  private final Map<VirtualFile, String> myTexts = new LinkedHashMap<>();
+  private final Map<VirtualFile, TIntHashSet> myTrigrams = new HashMap<>();
+  private final TrigramQuery.FileIndex myIndex = new TrigramQuery.FileIndex() {
+    @Nonnull
+    @Override
+    public Set<VirtualFile> createFileSet() {
+      return new HashSet<>();
+    }
+
+    @Override
+    public void processFilesWithAll(@Nonnull Set<Integer> trigrams, @Nonnull Processor<VirtualFile> processor) {
+      for (VirtualFile file : myTexts.keySet()) {
+        if (containsAll(file, trigrams) && !processor.process(file)) return;
+      }
+    }
+
+    @Override
+    public void processFilesWithAny(@Nonnull Set<Integer> trigrams, @Nonnull Processor<VirtualFile> processor) {
+      for (VirtualFile file : myTexts.keySet()) {
+        if (containsAny(file, trigrams) && !processor.process(file)) return;
+      }
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    addFile("a.txt", "void setCount(int count)");
+    addFile("b.txt", "void setValue(String value)");
+    addFile("c.txt", "int getCount() { return count; }");
+    addFile("d.txt", "foobar and foobaz");
+    addFile("e.txt", "foo, bar and baz");
+    addFile("f.txt", "nothing to see here");
+  }
+
+  public void testAnd() {
+    assertFiles("setCount", "a.txt");
+    assertFiles("count\\W", "a.txt", "c.txt");
+  }
+
+  public void testOr() {
+    assertFiles("[gs]etCount", "a.txt", "c.txt");
+    assertFiles("foobar|setValue", "b.txt", "d.txt");
+  }
+
+  // AND of trigrams and sub-queries intersects the sets found for them
+  public void testAndWithSubQueries() {
+    assertFiles("set(Count|Value)", "a.txt", "b.txt");
+    assertFiles("foo(bar|baz)", "d.txt");
+    assertFiles("void set(Count|Value)\\((int|String)", "a.txt", "b.txt");
+    // trigrams don't span punctuation, so "int getCount()" has all trigrams of "getCount(int"
+    assertFiles("(get|set)Count\\(int", "a.txt", "c.txt");
+  }
+
+  public void testNoMatches() {
+    assertFiles("foo(qux|quux)");
+    assertFiles("setCount|getValue\\(int", "a.txt");
+  }
+
+  public void testAll() {
+    assertNull(RegExpTrigramQueryBuilder.build("[a-z]+").findFiles(myIndex));
+    assertEquals(Collections.emptySet(), TrigramQuery.NONE.findFiles(myIndex));
+  }
+
+  // an OR with a sub-query matching any file matches any file
+  public void testOrWithAllSubQuery() {
+    TrigramQuery setCount = TrigramQuery.ofText("setCount");
+    TrigramQuery any = TrigramQuery.or(TrigramQuery.ofText("foo"), TrigramQuery.and(TrigramQuery.ofText("ab"), TrigramQuery.ALL));
+    assertSame(TrigramQuery.ALL, any);
+    assertNull(TrigramQuery.or(setCount, any).findFiles(myIndex));
+    assertEquals(names("a.txt"), names(TrigramQuery.and(setCount, any).findFiles(myIndex)));
+  }
+
+  private void assertFiles(@Nonnull String regExp, @Nonnull String... expectedNames) {
+    TrigramQuery query = RegExpTrigramQueryBuilder.build(regExp);
+    Set<VirtualFile> files = query.findFiles(myIndex);
+    assertNotNull(regExp + " -> " + query, files);
+    assertEquals(regExp + " -> " + query, names(expectedNames), names(files));
+
+    // files are filtered by the index only, a file containing a match must never be skipped
+    Pattern pattern = Pattern.compile(regExp);
+    for (Map.Entry<VirtualFile, String> entry : myTexts.entrySet()) {
+      if (pattern.matcher(entry.getValue()).find()) {
+        assertTrue(regExp + " -> " + query + " skips " + entry.getKey(), files.contains(entry.getKey()));
+      }
+    }
+  }
+
+  @Nonnull
+  private static Set<String> names(@Nonnull String... names) {
+    return new TreeSet<>(Arrays.asList(names));
+  }
+
+  @Nonnull
+  private static Set<String> names(@Nonnull Set<VirtualFile> files) {
+    Set<String> names = new TreeSet<>();
+    for (VirtualFile file : files) {
+      names.add(file.getName());
+    }
+    return names;
+  }
+
+  private void addFile(@Nonnull String name, @Nonnull String text) {
+    VirtualFile file = new TestFile(name);
+    TIntHashSet trigrams = new TIntHashSet();
+    TrigramBuilder.processTrigrams(text, new TrigramBuilder.TrigramProcessor() {
+      @Override
+      public boolean execute(int value) {
+        trigrams.add(value);
+        return true;
+      }
+    });
+    myTexts.put(file, text);
+    myTrigrams.put(file, trigrams);
+  }
+
+  private boolean containsAll(@Nonnull VirtualFile file, @Nonnull Set<Integer> trigrams) {
+    for (int trigram : trigrams) {
+      if (!myTrigrams.get(file).contains(trigram)) return false;
+    }
+    return true;
+  }
+
+  private boolean containsAny(@Nonnull VirtualFile file, @Nonnull Set<Integer> trigrams) {
+    for (int trigram : trigrams) {
+      if (myTrigrams.get(file).contains(trigram)) return true;
+    }
+    return false;
+  }
+
+  private static class TestFile extends StubVirtualFile {
+    private final String myName;
+
+    TestFile(@Nonnull String name) {
+      myName = name;
+    }
+
+    @Nonnull
+    @Override
+    public String getName() {
+      return myName;
+    }
+
+    @Nonnull
+    @Override
+    public VirtualFileSystem getFileSystem() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString() {
+      return myName;
+    }
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.lang.Language;
+import com.intellij.lexer.LexerBase;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.tree.IElementType;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+/**
+ * Parallel lexing of {@link LexerEditorHighlighter} must produce the same tokens and lexer states as sequential lexing.
+ *
+ * @author VISTALL
+ * @since 2020-06-16
+ */
+public class LexerEditorHighlighterTest extends TestCase {
+  private static final IElementType COMMENT = new IElementType("COMMENT", Language.ANY);
+  private static final IElementType STRING = new IElementType("STRING", Language.ANY);
+  private static final IElementType IDENTIFIER = new IElementType("IDENTIFIER", Language.ANY);
+  private static final IElementType WHITE_SPACE = new IElementType("WHITE_SPACE", Language.ANY);
+  private static final IElementType OPERATION = new IElementType("OPERATION", Language.ANY);
+
+  private static final int MIN_CHUNK_LENGTH = 1000;
+  private static final IntPredicate CAN_RESTART = state -> state == TestLexer.INITIAL;
+
+  // a comment and a string are longer than any chunk, so some chunk starts inside each of them
+  public void testChunkStartsInsideMultiLineCommentAndString() {
+    StringBuilder text = new StringBuilder();
+    appendCode(text, 200);
+    text.append("/* long comment\n");
+    for (int i = 0; i < 2000; i++) {
+      text.append(" * comment line ").append(i).append(" with \"quote\n");
+    }
+    text.append(" */\n");
+    appendCode(text, 200);
+    text.append("s = \"long string\n");
+    for (int i = 0; i < 2000; i++) {
+      text.append("  string line ").append(i).append(" /* not a comment\n");
+    }
+    text.append("\";\n");
+    appendCode(text, 200);
+
+    assertParallelLexingEqualsSequential(text);
+  }
+
+  public void testRandomTexts() {
+    Random random = new Random(42);
+    for (int round = 0; round < 5; round++) {
+      StringBuilder text = new StringBuilder();
+      while (text.length() < 100 * MIN_CHUNK_LENGTH) {
+        int lines = 1 + random.nextInt(200);
+        switch (random.nextInt(3)) {
+          case 0:
+            appendCode(text, lines);
+            break;
+          case 1:
+            text.append("/*\n").append(StringUtil.repeat(" * comment \"\n", lines)).append(" */\n");
+            break;
+          default:
+            text.append("\"\n").append(StringUtil.repeat(" string /* line\n", lines)).append("\"\n");
+        }
+      }
+      assertParallelLexingEqualsSequential(text);
+    }
+  }
+
+  // every chunk after the first starts inside the comment, its speculative tokens are dropped and the previous lexer goes on over it
+  public void testJoinChunksLexedFromWrongState() {
+    StringBuilder text = new StringBuilder("/*\n");
+    for (int i = 0; i < 1000; i++) {
+      text.append(" x = \"").append(i).append("\";\n");
+    }
+    text.append("*/ y;\n");
+
+    int[] chunkStarts = LexerEditorHighlighter.findChunkStarts(text, MIN_CHUNK_LENGTH);
+    assertTrue(chunkStarts.length > 2);
+
+    // lexed from the start state, the comment lines look like code
+    List<String> speculative = new ArrayList<>();
+    LexerEditorHighlighter.LexedChunk second = LexerEditorHighlighter.lexChunk(new TestLexer(), text, chunkStarts, 1, TestLexer.INITIAL, CAN_RESTART);
+    LexerEditorHighlighter.joinChunks(new LexerEditorHighlighter.LexedChunk[]{second}, CAN_RESTART, collector(speculative));
+    assertTrue(speculative.stream().anyMatch(token -> token.endsWith(":STRING")));
+
+    List<String> expected = lexSequentially(text);
+    assertFalse(expected.stream().anyMatch(token -> token.endsWith(":STRING")));
+    LexerEditorHighlighter.LexedChunk[] chunks = new LexerEditorHighlighter.LexedChunk[chunkStarts.length];
+    for (int k = 0; k < chunks.length; k++) {
+      chunks[k] = LexerEditorHighlighter.lexChunk(new TestLexer(), text, chunkStarts, k, TestLexer.INITIAL, CAN_RESTART);
+    }
+    List<String> joined = new ArrayList<>();
+    LexerEditorHighlighter.joinChunks(chunks, CAN_RESTART, collector(joined));
+    assertEquals(expected, joined);
+  }
+
+  public void testTextShorterThanTwoChunksIsNotSplit() {
+    StringBuilder text = new StringBuilder();
+    appendCode(text, 10);
+    assertFalse(LexerEditorHighlighter.lexInParallel(text, new TestLexer(), TestLexer::new, MIN_CHUNK_LENGTH, TestLexer.INITIAL, CAN_RESTART, collector(new ArrayList<>())));
+  }
+
+  private static void appendCode(StringBuilder text, int lines) {
+    for (int i = 0; i < lines; i++) {
+      text.append("int value").append(i).append(" = value + ").append(i).append("; /* short */ \"str\";\n");
+    }
+  }
+
+  private static void assertParallelLexingEqualsSequential(CharSequence text) {
+    List<String> expected = lexSequentially(text);
+
+    AtomicInteger lexersCreated = new AtomicInteger();
+    List<String> actual = new ArrayList<>();
+    assertTrue(LexerEditorHighlighter.lexInParallel(text, new TestLexer(), () -> {
+      lexersCreated.incrementAndGet();
+      return new TestLexer();
+    }, MIN_CHUNK_LENGTH, TestLexer.INITIAL, CAN_RESTART, collector(actual)));
+    assertTrue(String.valueOf(lexersCreated.get()), lexersCreated.get() > 1);
+
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals("token " + i, expected.get(i), actual.get(i));
+    }
+    assertTrue(expected.stream().anyMatch(token -> token.contains(":" + TestLexer.IN_COMMENT + ":")));
+  }
+
+  @Nonnull
+  private static List<String> lexSequentially(@Nonnull CharSequence text) {
+    List<String> tokens = new ArrayList<>();
+    LexerEditorHighlighter.TokenConsumer consumer = collector(tokens);
+    TestLexer lexer = new TestLexer();
+    lexer.start(text, 0, text.length(), TestLexer.INITIAL);
+    for (IElementType tokenType = lexer.getTokenType(); tokenType != null; tokenType = lexer.getTokenType()) {
+      consumer.consume(lexer.getTokenStart(), lexer.getTokenEnd(), lexer.getState(), tokenType);
+      lexer.advance();
+    }
+    return tokens;
+  }
+
+  // token range, lexer state and type
+  @Nonnull
+  private static LexerEditorHighlighter.TokenConsumer collector(@Nonnull List<? super String> tokens) {
+    return (start, end, state, tokenType) -> tokens.add(start + "-" + end + ":" + state + ":" + tokenType);
+  }
+
+  /**
+   * Lexes a block comment line by line in the {@link #IN_COMMENT} state, and a string up to the closing quote as a single token,
+   * even across lines.
+   */
+  private static class TestLexer extends LexerBase {
+    private static final int INITIAL = 0;
+    private static final int IN_COMMENT = 1;
+
+    private CharSequence myBuffer;
+    private int myBufferEnd;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private int myState;
+    private int myNextState;
+    private IElementType myTokenType;
+
+    @Override
+    public void start(@Nonnull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myBufferEnd = endOffset;
+      myTokenEnd = startOffset;
+      myNextState = initialState;
+      advance();
+    }
+
+    @Override
+    public int getState() {
+      return myState;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return myTokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      myTokenStart = myTokenEnd;
+      myState = myNextState;
+      if (myTokenStart >= myBufferEnd) {
+        myTokenType = null;
+        return;
+      }
+
+      int offset = myTokenStart;
+      char c = myBuffer.charAt(offset);
+      if (myState == IN_COMMENT || startsWith(offset, "/*")) {
+        myTokenType = COMMENT;
+        lexCommentLine(myState == IN_COMMENT ? offset : offset + 2);
+      }
+      else if (c == '"') {
+        myTokenType = STRING;
+        int end = StringUtil.indexOf(myBuffer, '"', offset + 1, myBufferEnd);
+        myTokenEnd = end < 0 ? myBufferEnd : end + 1;
+      }
+      else if (Character.isWhitespace(c)) {
+        myTokenType = WHITE_SPACE;
+        myTokenEnd = skip(offset, true);
+      }
+      else if (Character.isLetterOrDigit(c)) {
+        myTokenType = IDENTIFIER;
+        myTokenEnd = skip(offset, false);
+      }
+      else {
+        myTokenType = OPERATION;
+        myTokenEnd = offset + 1;
+      }
+    }
+
+    private void lexCommentLine(int offset) {
+      int lineEnd = StringUtil.indexOf(myBuffer, '\n', offset, myBufferEnd);
+      int limit = lineEnd < 0 ? myBufferEnd : lineEnd;
+      for (int i = offset; i + 1 < limit; i++) {
+        if (startsWith(i, "*/")) {
+          myTokenEnd = i + 2;
+          myNextState = INITIAL;
+          return;
+        }
+      }
+      myTokenEnd = lineEnd < 0 ? myBufferEnd : lineEnd + 1;
+      myNextState = IN_COMMENT;
+    }
+
+    private boolean startsWith(int offset, String prefix) {
+      return offset + prefix.length() <= myBufferEnd && StringUtil.startsWith(myBuffer.subSequence(offset, offset + prefix.length()), prefix);
+    }
+
+    private int skip(int offset, boolean whitespace) {
+      while (offset < myBufferEnd) {
+        char c = myBuffer.charAt(offset);
+        if (whitespace ? !Character.isWhitespace(c) : !Character.isLetterOrDigit(c)) break;
+        offset++;
+      }
+      return offset;
+    }
+
+    @Nonnull
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myBufferEnd;
+    }
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.ex.MarkupIterator;
+import com.intellij.openapi.editor.ex.RangeMarkerEx;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.containers.ContainerUtil;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author VISTALL
+ * @since 2020-10-17
+ */
+public class IntervalTreeSnapshotTest extends TestCase {
+  private DocumentImpl myDocument;
+  // markers are weakly referenced by the tree
+  private final List<RangeMarkerEx> myMarkers = new ArrayList<>();
+  private IntervalTreeImpl<RangeMarkerEx> myTree;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDocument = new DocumentImpl(StringUtil.repeatSymbol('x', 1000), true);
+    myTree = addMarker(0, 10).myNode.getTree();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myTree.setSnapshotQueryThreshold(IntervalTreeImpl.SNAPSHOT_QUERY_THRESHOLD);
+    super.tearDown();
+  }
+
+  public void testSnapshotQueriesMatchLockedQueries() {
+    Random random = new Random(42);
+    for (int i = 0; i < 300; i++) {
+      addRandomMarker(random);
+    }
+    for (int step = 0; step < 200; step++) {
+      int offset = random.nextInt(myDocument.getTextLength());
+      switch (random.nextInt(4)) {
+        case 0:
+          myDocument.insertString(offset, StringUtil.repeatSymbol(' ', 1 + random.nextInt(20)));
+          break;
+        case 1:
+          myDocument.deleteString(offset, Math.min(myDocument.getTextLength(), offset + random.nextInt(20)));
+          break;
+        case 2:
+          addRandomMarker(random);
+          break;
+        default:
+          myMarkers.remove(random.nextInt(myMarkers.size())).dispose();
+      }
+
+      for (int query = 0; query < 5; query++) {
+        int start = random.nextInt(myDocument.getTextLength());
+        int end = start + random.nextInt(100);
+        myTree.setSnapshotQueryThreshold(-1);
+        List<List<RangeMarkerEx>> locked = collectQueries(start, end);
+        myTree.setSnapshotQueryThreshold(0);
+        assertNotNull(myTree.getSnapshot());
+        assertEquals(locked, collectQueries(start, end));
+      }
+    }
+  }
+
+  public void testSnapshotIsDroppedOnChange() {
+    RangeMarkerEx first = myMarkers.get(0);
+    myTree.setSnapshotQueryThreshold(0);
+    IntervalTreeSnapshot<RangeMarkerEx> snapshot = myTree.getSnapshot();
+    assertNotNull(snapshot);
+    assertSame(snapshot, myTree.getSnapshot());
+
+    RangeMarkerEx second = addMarker(5, 30);
+    snapshot = assertNewSnapshot(snapshot);
+    assertEquals(Arrays.asList(first, second), collectOverlapping(0, 100));
+
+    first.dispose();
+    snapshot = assertNewSnapshot(snapshot);
+    assertEquals(Collections.singletonList(second), collectOverlapping(0, 100));
+
+    myDocument.insertString(0, "yyyyy");
+    assertNewSnapshot(snapshot);
+    assertEquals(Collections.singletonList(second), collectOverlapping(33, 34));
+    assertEquals(Collections.emptyList(), collectOverlapping(0, 9));
+  }
+
+  public void testUnchangedSubtreesAreShared() {
+    for (int i = 1; i < 500; i++) {
+      addMarker(2 * i, 2 * i + 1);
+    }
+    myTree.setSnapshotQueryThreshold(0);
+    assertNotNull(myTree.getSnapshot());
+    Map<IntervalTreeImpl.IntervalNode<RangeMarkerEx>, IntervalTreeSnapshot.Node<RangeMarkerEx>> mirrors = collectMirrors();
+    assertEquals(myTree.nodeSize(), mirrors.size());
+
+    myDocument.insertString(700, " ");
+    addMarker(300, 310);
+    IntervalTreeSnapshot<RangeMarkerEx> snapshot = myTree.getSnapshot();
+    assertNotNull(snapshot);
+    assertEquals(500 + 1, snapshot.getNodeCount());
+
+    int copied = 0;
+    for (Map.Entry<IntervalTreeImpl.IntervalNode<RangeMarkerEx>, IntervalTreeSnapshot.Node<RangeMarkerEx>> entry : collectMirrors().entrySet()) {
+      assertNotNull(entry.getValue());
+      if (entry.getValue() != mirrors.get(entry.getKey())) copied++;
+    }
+    // only the paths from the changed nodes to the root are copied
+    assertTrue(String.valueOf(copied), copied > 0 && copied < 50);
+  }
+
+  // not an assertion: prints how many queries background threads make while the document is edited, and how long the edits take,
+  // with queries under the tree lock and with snapshots
+  public void testQueriesDuringEditsPerformance() throws Exception {
+    final int N = 100000;
+    myDocument = new DocumentImpl(StringUtil.repeatSymbol('x', 2 * N), true);
+    myMarkers.clear();
+    myTree = addMarker(0, 1).myNode.getTree();
+    for (int i = 1; i < N; i++) {
+      addMarker(2 * i, 2 * i + 1);
+    }
+
+    for (int snapshotThreshold : new int[]{-1, IntervalTreeImpl.SNAPSHOT_QUERY_THRESHOLD}) {
+      myTree.setSnapshotQueryThreshold(snapshotThreshold);
+      runQueriesDuringEdits(snapshotThreshold < 0 ? "locked" : "snapshots", N, 1000);
+    }
+  }
+
+  private void runQueriesDuringEdits(@Nonnull String name, final int range, int edits) throws Exception {
+    final int threads = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicLong queries = new AtomicLong();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        final Random random = new Random(t);
+        futures.add(executor.submit(() -> {
+          while (!done.get()) {
+            int start = random.nextInt(range);
+            myTree.processOverlappingWith(start, start + 200, marker -> true);
+            queries.incrementAndGet();
+          }
+          return null;
+        }));
+      }
+
+      long started = System.currentTimeMillis();
+      for (int i = 0; i < edits; i++) {
+        int offset = i * 97 % range;
+        myDocument.insertString(offset, " ");
+        myDocument.deleteString(offset, offset + 1);
+      }
+      long editTime = System.currentTimeMillis() - started;
+      done.set(true);
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      System.out.printf("%s: %d edits in %d ms, %d queries from %d threads%n", name, edits * 2, editTime, queries.get(), threads);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Nonnull
+  private RangeMarkerImpl addMarker(int start, int end) {
+    RangeMarkerImpl marker = new RangeMarkerImpl(myDocument, start, end, true, true);
+    myMarkers.add(marker);
+    return marker;
+  }
+
+  private void addRandomMarker(@Nonnull Random random) {
+    int start = random.nextInt(myDocument.getTextLength());
+    addMarker(start, Math.min(myDocument.getTextLength(), start + random.nextInt(50)));
+  }
+
+  @Nonnull
+  private IntervalTreeSnapshot<RangeMarkerEx> assertNewSnapshot(@Nonnull IntervalTreeSnapshot<RangeMarkerEx> old) {
+    IntervalTreeSnapshot<RangeMarkerEx> snapshot = myTree.getSnapshot();
+    assertNotNull(snapshot);
+    assertNotSame(old, snapshot);
+    assertFalse(old.getModCount() == snapshot.getModCount());
+    return snapshot;
+  }
+
+  @Nonnull
+  private Map<IntervalTreeImpl.IntervalNode<RangeMarkerEx>, IntervalTreeSnapshot.Node<RangeMarkerEx>> collectMirrors() {
+    Map<IntervalTreeImpl.IntervalNode<RangeMarkerEx>, IntervalTreeSnapshot.Node<RangeMarkerEx>> mirrors = new IdentityHashMap<>();
+    collectMirrors(myTree.getRoot(), mirrors);
+    return mirrors;
+  }
+
+  private static void collectMirrors(@Nullable IntervalTreeImpl.IntervalNode<RangeMarkerEx> node,
+                                     @Nonnull Map<IntervalTreeImpl.IntervalNode<RangeMarkerEx>, IntervalTreeSnapshot.Node<RangeMarkerEx>> mirrors) {
+    if (node == null) return;
+    mirrors.put(node, node.mySnapshotNode);
+    collectMirrors(node.getLeft(), mirrors);
+    collectMirrors(node.getRight(), mirrors);
+  }
+
+  // results of processOverlappingWith, processContaining(start) and overlappingIterator
+  @Nonnull
+  private List<List<RangeMarkerEx>> collectQueries(int start, int end) {
+    List<RangeMarkerEx> containing = new ArrayList<>();
+    myTree.processContaining(start, new CommonProcessors.CollectProcessor<>(containing));
+    List<RangeMarkerEx> iterated = new ArrayList<>();
+    MarkupIterator<RangeMarkerEx> iterator = myTree.overlappingIterator(new TextRangeInterval(start, end), null);
+    try {
+      ContainerUtil.addAll(iterated, iterator);
+    }
+    finally {
+      iterator.dispose();
+    }
+    return Arrays.asList(collectOverlapping(start, end), containing, iterated);
+  }
+
+  @Nonnull
+  private List<RangeMarkerEx> collectOverlapping(int start, int end) {
+    List<RangeMarkerEx> result = new ArrayList<>();
+    myTree.processOverlappingWith(start, end, new CommonProcessors.CollectProcessor<>(result));
+    return result;
+  }
+}
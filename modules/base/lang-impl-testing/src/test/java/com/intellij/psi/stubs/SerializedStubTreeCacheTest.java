@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.ThrowableComputable;
+import com.intellij.util.indexing.StorageException;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * @author VISTALL
+ * @since 2020-10-17
+ */
+public class SerializedStubTreeCacheTest extends TestCase {
+  private static final int FILE_ID = 42;
+
+  private final SerializedStubTreeCache myCache = new SerializedStubTreeCache();
+  private int myReads;
+
+  public void testStoredTreeIsCached() throws StorageException {
+    SerializedStubTree stored = createTree(1);
+
+    assertSame(stored, myCache.read(FILE_ID, false, reader(stored)).get(FILE_ID));
+    assertSame(stored, myCache.read(FILE_ID, false, reader(createTree(2))).get(FILE_ID));
+    assertEquals(1, myReads);
+
+    myCache.remove(FILE_ID);
+    SerializedStubTree reindexed = createTree(3);
+    assertSame(reindexed, myCache.read(FILE_ID, false, reader(reindexed)).get(FILE_ID));
+    assertEquals(2, myReads);
+  }
+
+  public void testInMemoryModeBypassesCache() throws StorageException {
+    SerializedStubTree stored = createTree(1);
+    SerializedStubTree inMemory = createTree(2);
+
+    // nothing read in the in-memory mode is cached
+    assertSame(inMemory, myCache.read(FILE_ID, true, reader(inMemory)).get(FILE_ID));
+    assertSame(stored, myCache.read(FILE_ID, false, reader(stored)).get(FILE_ID));
+    assertEquals(2, myReads);
+
+    // and the cached stored tree isn't returned instead of the in-memory one
+    assertSame(inMemory, myCache.read(FILE_ID, true, reader(inMemory)).get(FILE_ID));
+    assertEquals(3, myReads);
+
+    assertSame(stored, myCache.read(FILE_ID, false, reader(inMemory)).get(FILE_ID));
+    assertEquals(3, myReads);
+  }
+
+  @Nonnull
+  private ThrowableComputable<Map<Integer, SerializedStubTree>, StorageException> reader(@Nonnull SerializedStubTree tree) {
+    return () -> {
+      myReads++;
+      return Collections.singletonMap(FILE_ID, tree);
+    };
+  }
+
+  @Nonnull
+  private static SerializedStubTree createTree(int marker) {
+    byte[] bytes = {(byte)marker};
+    return new SerializedStubTree(bytes, bytes.length, null, bytes, bytes.length, null);
+  }
+}
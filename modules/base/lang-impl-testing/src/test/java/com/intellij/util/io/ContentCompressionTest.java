@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteArraySequence;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.CompressionUtil;
+import com.intellij.util.io.storage.AbstractStorage;
+import com.intellij.util.io.storage.CapacityAllocationPolicy;
+import com.intellij.util.io.storage.RefCountingStorage;
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author VISTALL
+ * @since 2020-06-15
+ */
+public class ContentCompressionTest extends TestCase {
+  public void testBlocksRoundTrip() throws IOException {
+    Random random = new Random(42);
+    byte[] text = ("public class Foo { int bar() { return 42; } }\n").getBytes("UTF-8");
+    for (int length : new int[]{0, 1, 100, 64 * 1024 - 1, 64 * 1024, 64 * 1024 + 1, 300 * 1024}) {
+      byte[] repetitive = new byte[length];
+      for (int i = 0; i < length; i++) {
+        repetitive[i] = text[i % text.length];
+      }
+      byte[] incompressible = new byte[length];
+      random.nextBytes(incompressible);
+
+      assertRoundTrip(repetitive);
+      assertRoundTrip(incompressible);
+    }
+  }
+
+  public void testBlocksInsideLargerArray() throws IOException {
+    byte[] bytes = new byte[200 * 1024];
+    Arrays.fill(bytes, 1000, 150 * 1024, (byte)'a');
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    CompressionUtil.writeCompressedBlocks(new DataOutputStream(out), bytes, 1000, 100 * 1024);
+    assertTrue(out.size() < 10 * 1024);
+
+    byte[] read = CompressionUtil.readCompressedBlocks(new DataInputStream(new UnsyncByteArrayInputStream(out.getInternalBuffer(), 0, out.size())));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 1000, 1000 + 100 * 1024), read));
+  }
+
+  public void testRangeReads() throws IOException {
+    int blockSize = 64 * 1024;
+    byte[] bytes = new byte[3 * blockSize + 1000];
+    Random random = new Random(42);
+    // a compressible block, an incompressible one and compressible ones again
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte)(i / blockSize == 1 ? random.nextInt() : 'a' + i % 7);
+    }
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    CompressionUtil.writeCompressedBlocks(new DataOutputStream(out), bytes, 0, bytes.length);
+
+    int[][] ranges = {{0, 0}, {0, 10}, {100, 1000}, {blockSize - 10, 20}, {blockSize, blockSize}, {blockSize + 5, 2 * blockSize},
+      {2 * blockSize - 1, 2}, {3 * blockSize, 1000}, {bytes.length - 10, 100}, {bytes.length, 10}, {bytes.length + 10, 10}, {0, Integer.MAX_VALUE}};
+    for (int[] range : ranges) {
+      DataInputStream in = new DataInputStream(new UnsyncByteArrayInputStream(out.getInternalBuffer(), 0, out.size()));
+      int from = Math.min(range[0], bytes.length);
+      int to = (int)Math.min((long)from + range[1], bytes.length);
+      assertTrue(Arrays.toString(range), Arrays.equals(Arrays.copyOfRange(bytes, from, to), CompressionUtil.readCompressedBlocks(in, range[0], range[1])));
+    }
+  }
+
+  // contents stored with deflate by the storage itself and as lz4 blocks written by the caller are read back unchanged
+  public void testStorageRoundTrip() throws IOException {
+    List<byte[]> contents = createCorpus();
+    long totalSize = 0;
+    for (byte[] content : contents) {
+      totalSize += content.length;
+    }
+
+    File dir = FileUtil.createTempDirectory("content", "compression");
+    try {
+      for (boolean lz4 : new boolean[]{false, true}) {
+        String path = new File(dir, lz4 ? "lz4" : "deflate").getPath();
+        RefCountingStorage storage = new RefCountingStorage(path, CapacityAllocationPolicy.FIVE_PERCENT_FOR_GROWTH, lz4);
+        try {
+          int[] records = new int[contents.size()];
+          for (int i = 0; i < records.length; i++) {
+            records[i] = storage.acquireNewRecord();
+            storage.writeBytes(records[i], encode(contents.get(i), lz4), true);
+          }
+          long started = System.nanoTime();
+          for (int i = 0; i < records.length; i++) {
+            assertTrue(lz4 + ": " + i, Arrays.equals(contents.get(i), decode(storage, records[i], lz4)));
+          }
+          long readTime = System.nanoTime() - started;
+          storage.force();
+
+          long storedSize = new File(path + AbstractStorage.DATA_EXTENSION).length();
+          assertTrue(lz4 + ": " + storedSize + " of " + totalSize, storedSize < totalSize);
+          System.out.println((lz4 ? "lz4 blocks" : "deflate") + ": " + storedSize + " of " + totalSize + " bytes (" + storedSize * 100 / totalSize + "%), " +
+                             "read in " + readTime / 1000000 + "ms");
+        }
+        finally {
+          storage.dispose();
+        }
+      }
+    }
+    finally {
+      FileUtil.delete(dir);
+    }
+  }
+
+  // source-like texts of different sizes and a few incompressible files
+  private static List<byte[]> createCorpus() throws IOException {
+    Random random = new Random(42);
+    String[] lines = {"package com.example;\n", "import java.util.List;\n", "public class Foo extends Bar {\n", "  private int myValue;\n",
+      "  public int getValue() {\n", "    return myValue;\n", "  }\n", "}\n", "  // comment\n", "\n"};
+    List<byte[]> contents = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      int length = i % 50 == 0 ? 200 * 1024 : random.nextInt(8 * 1024);
+      if (i % 20 == 7) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        contents.add(bytes);
+        continue;
+      }
+      StringBuilder text = new StringBuilder();
+      while (text.length() < length) {
+        text.append(lines[random.nextInt(lines.length)]);
+      }
+      contents.add(text.toString().getBytes("UTF-8"));
+    }
+    return contents;
+  }
+
+  private static void assertRoundTrip(byte[] bytes) throws IOException {
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    CompressionUtil.writeCompressedBlocks(new DataOutputStream(out), bytes, 0, bytes.length);
+    DataInputStream in = new DataInputStream(new UnsyncByteArrayInputStream(out.getInternalBuffer(), 0, out.size()));
+    assertTrue(Arrays.equals(bytes, CompressionUtil.readCompressedBlocks(in)));
+    assertEquals(0, in.available());
+  }
+
+  private static ByteArraySequence encode(byte[] content, boolean lz4) throws IOException {
+    if (!lz4) return new ByteArraySequence(content);
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    CompressionUtil.writeCompressedBlocks(new DataOutputStream(out), content, 0, content.length);
+    return new ByteArraySequence(out.getInternalBuffer(), 0, out.size());
+  }
+
+  private static byte[] decode(RefCountingStorage storage, int record, boolean lz4) throws IOException {
+    try (DataInputStream in = storage.readStream(record)) {
+      return lz4 ? CompressionUtil.readCompressedBlocks(in) : FileUtil.loadBytes(in);
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * @author VISTALL
+ * @since 2020-06-10
+ */
+public class ShardedEnumeratorTest extends TestCase {
+  private static final int SHARDS = 8;
+
+  private File myDir;
+  private File myFile;
+  private ShardedPersistentEnumerator<String> myEnumerator;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("sharded", "enumerator");
+    myFile = new File(myDir, "names");
+    myEnumerator = new ShardedPersistentEnumerator<>(myFile, EnumeratorStringDescriptor.INSTANCE, 4096, SHARDS);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myEnumerator.close();
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testAddEqualStrings() throws IOException {
+    final int index = myEnumerator.enumerate("IntelliJ IDEA");
+    myEnumerator.enumerate("Just another string");
+    assertEquals(index, myEnumerator.enumerate("IntelliJ IDEA"));
+    assertEquals(index, myEnumerator.tryEnumerate("IntelliJ IDEA"));
+    assertEquals(0, myEnumerator.tryEnumerate("Not enumerated"));
+  }
+
+  public void testValuesSpreadOverShards() throws IOException {
+    Set<Integer> shards = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      String value = "value" + i;
+      int id = myEnumerator.enumerate(value);
+      assertEquals(value, myEnumerator.valueOf(id));
+      shards.add(id & (ShardedPersistentEnumerator.MAX_SHARDS - 1));
+    }
+    assertEquals(SHARDS, shards.size());
+  }
+
+  public void testOpeningClosing() throws IOException {
+    Map<String, Integer> ids = new HashMap<>();
+    for (int i = 0; i < 1000; i++) {
+      String value = StringEnumeratorTest.createRandomString();
+      ids.put(value, myEnumerator.enumerate(value));
+    }
+    myEnumerator.close();
+    myEnumerator = new ShardedPersistentEnumerator<>(myFile, EnumeratorStringDescriptor.INSTANCE, 4096, SHARDS);
+    for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+      assertEquals(entry.getValue().intValue(), myEnumerator.tryEnumerate(entry.getKey()));
+      assertEquals(entry.getKey(), myEnumerator.valueOf(entry.getValue()));
+    }
+
+    Set<String> all = new HashSet<>();
+    myEnumerator.processAllDataObjects(all::add);
+    assertEquals(ids.keySet(), all);
+  }
+
+  public void testShardCountChangeIsVersionUpdate() throws IOException {
+    myEnumerator.enumerate("IntelliJ IDEA");
+    myEnumerator.close();
+    try {
+      myEnumerator = new ShardedPersistentEnumerator<>(myFile, EnumeratorStringDescriptor.INSTANCE, 4096, SHARDS / 2);
+      fail();
+    }
+    catch (PersistentEnumeratorBase.VersionUpdatedException ignored) {
+    }
+    ShardedPersistentEnumerator.deleteFiles(myFile);
+    myEnumerator = new ShardedPersistentEnumerator<>(myFile, EnumeratorStringDescriptor.INSTANCE, 4096, SHARDS / 2);
+    assertEquals(0, myEnumerator.tryEnumerate("IntelliJ IDEA"));
+  }
+
+  public void testConcurrentEnumerate() throws Exception {
+    final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    final List<String> values = createValues(20000);
+    final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    runConcurrently(threads, values, myEnumerator, ids);
+
+    assertEquals(values.size(), new HashSet<>(ids.values()).size());
+    for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+      assertEquals(entry.getKey(), myEnumerator.valueOf(entry.getValue()));
+    }
+  }
+
+  // readers resolve ids published by writers while the shards keep growing
+  public void testConcurrentValueOfWhileEnumerating() throws Exception {
+    final int writers = 4;
+    final int readers = 4;
+    final List<String> values = createValues(20000);
+    final int[] ids = new int[values.size()];
+    final AtomicIntegerArray published = new AtomicIntegerArray(values.size());
+    final AtomicInteger finishedWriters = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+    try {
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for (int t = 0; t < writers; t++) {
+        final int writer = t;
+        tasks.add(() -> {
+          try {
+            for (int i = writer; i < values.size(); i += writers) {
+              ids[i] = myEnumerator.enumerate(values.get(i));
+              published.set(i, 1);
+            }
+          }
+          finally {
+            finishedWriters.incrementAndGet();
+          }
+          return null;
+        });
+      }
+      for (int t = 0; t < readers; t++) {
+        final Random random = new Random(t);
+        tasks.add(() -> {
+          while (finishedWriters.get() < writers) {
+            int i = random.nextInt(values.size());
+            if (published.get(i) == 0) continue;
+            // the id is read after the published flag, so it is the one the writer stored
+            int id = ids[i];
+            assertEquals(values.get(i), myEnumerator.valueOf(id));
+            assertEquals(id, myEnumerator.tryEnumerate(values.get(i)));
+          }
+          return null;
+        });
+      }
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    Set<Integer> distinct = new HashSet<>();
+    for (int i = 0; i < values.size(); i++) {
+      assertTrue(distinct.add(ids[i]));
+      assertEquals(values.get(i), myEnumerator.valueOf(ids[i]));
+    }
+  }
+
+  private static List<String> createValues(int count) {
+    Set<String> values = new LinkedHashSet<>();
+    while (values.size() < count) {
+      values.add(StringEnumeratorTest.createRandomString());
+    }
+    return new ArrayList<>(values);
+  }
+
+  // every thread enumerates all values starting from its own offset
+  private static void runConcurrently(int threads,
+                                      final List<String> values,
+                                      final ShardedPersistentEnumerator<String> enumerator,
+                                      final ConcurrentMap<String, Integer> ids) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        final int offset = t * values.size() / threads;
+        tasks.add(() -> {
+          for (int i = 0; i < values.size(); i++) {
+            String value = values.get((offset + i) % values.size());
+            int id = enumerator.enumerate(value);
+            Integer previous = ids.putIfAbsent(value, id);
+            assertTrue(previous == null || previous == id);
+          }
+          return null;
+        });
+      }
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -103,6 +103,7 @@ public class DaemonCodeAnalyzerImpl extends DaemonCodeAnalyzerEx implements Pers
   @NonNls
   private static final String URL_ATT = "url";
   private final PassExecutorService myPassExecutorService;
+  private final InspectionResultCache myInspectionResultCache = new InspectionResultCache();
 
   public DaemonCodeAnalyzerImpl(@Nonnull Project project) {
     // DependencyValidationManagerImpl adds scope listener, so, we need to force service creation
@@ -141,6 +142,7 @@ public class DaemonCodeAnalyzerImpl extends DaemonCodeAnalyzerEx implements Pers
 
   @Override
   public synchronized void dispose() {
+    myInspectionResultCache.logStatistics();
     clearReferences();
   }
 
@@ -516,6 +518,7 @@ public class DaemonCodeAnalyzerImpl extends DaemonCodeAnalyzerEx implements Pers
   // return true if the progress was really canceled
   boolean doRestart() {
     myFileStatusMap.markAllFilesDirty("Global restart");
+    myInspectionResultCache.clear();
     return stopProcess(true, "Global restart");
   }
 
@@ -554,6 +557,11 @@ public class DaemonCodeAnalyzerImpl extends DaemonCodeAnalyzerEx implements Pers
     return myFileStatusMap;
   }
 
+  @Nonnull
+  public InspectionResultCache getInspectionResultCache() {
+    return myInspectionResultCache;
+  }
+
   public synchronized boolean isRunning() {
     return !myUpdateProgress.isCanceled();
   }
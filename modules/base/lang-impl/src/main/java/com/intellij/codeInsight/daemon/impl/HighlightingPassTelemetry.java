@@ -0,0 +1,288 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInsight.daemon.impl;
+
+import com.google.gson.GsonBuilder;
+import com.intellij.codeHighlighting.TextEditorHighlightingPass;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.SystemProperties;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Collects per pass and per file timings of highlighting passes run by {@link PassExecutorService}: time spent in
+ * {@link TextEditorHighlightingPass#collectInformation}, the memory it allocated (with {@code -Didea.highlighting.pass.telemetry.allocations=true},
+ * when the JVM can measure it per thread), time spent in {@link TextEditorHighlightingPass#applyInformationToEditor} and the number of runs
+ * canceled in the middle.
+ * <p>
+ * Average collect time of completed runs of a pass class is also what {@link PassExecutorService} uses to start cheap passes first.
+ * Statistics can be written as JSON with {@link #dump(File)}; on project close they are written to {@code -Didea.highlighting.pass.telemetry.file}.
+ *
+ * @author VISTALL
+ * @since 2020-06-17
+ */
+final class HighlightingPassTelemetry {
+  static final String DUMP_FILE_PROPERTY = "idea.highlighting.pass.telemetry.file";
+  // (pass, file) pairs are recorded up to this number, the rest of files are recorded as one
+  private static final int MAX_FILE_RECORDS = 2000;
+  private static final String OTHER_FILES = "<other files>";
+  private static final com.sun.management.ThreadMXBean ourAllocationBean = getAllocationBean();
+
+  private final ConcurrentMap<Key, PassRecord> myFileRecords = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, PassRecord> myPassRecords = new ConcurrentHashMap<>();
+
+  @Nullable
+  private static com.sun.management.ThreadMXBean getAllocationBean() {
+    if (!SystemProperties.getBooleanProperty("idea.highlighting.pass.telemetry.allocations", false)) return null;
+    try {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported()) {
+        ((com.sun.management.ThreadMXBean)bean).setThreadAllocatedMemoryEnabled(true);
+        return (com.sun.management.ThreadMXBean)bean;
+      }
+    }
+    catch (Throwable ignored) {
+      // not a HotSpot-like JVM
+    }
+    return null;
+  }
+
+  @Nonnull
+  Measurement startCollecting() {
+    return new Measurement();
+  }
+
+  void collectFinished(@Nonnull TextEditorHighlightingPass pass, @Nullable String filePath, @Nonnull Measurement measurement, boolean canceled) {
+    long nanos = System.nanoTime() - measurement.myStartNanos;
+    long allocated = measurement.myStartAllocated < 0 ? 0 : Math.max(0, currentThreadAllocatedBytes() - measurement.myStartAllocated);
+    collectFinished(getPassName(pass), filePath, nanos, allocated, canceled);
+  }
+
+  void collectFinished(@Nonnull String passName, @Nullable String filePath, long nanos, long allocated, boolean canceled) {
+    getPassRecord(passName).addCollect(nanos, allocated, canceled);
+    getFileRecord(passName, filePath).addCollect(nanos, allocated, canceled);
+  }
+
+  void applied(@Nonnull TextEditorHighlightingPass pass, @Nullable String filePath, long nanos) {
+    String passName = getPassName(pass);
+    getPassRecord(passName).addApply(nanos);
+    getFileRecord(passName, filePath).addApply(nanos);
+  }
+
+  /**
+   * @return average collect time of completed runs of passes of this class, or -1 if none has completed yet
+   */
+  long getAverageCollectNanos(@Nonnull String passName) {
+    PassRecord record = myPassRecords.get(passName);
+    return record == null ? -1 : record.getAverageCollectNanos();
+  }
+
+  /**
+   * Orders passes by their visibility, lowest first, then by average collect time of their class so far, cheapest first,
+   * and then by id. Visibility and cost of every pass are computed once, before sorting.
+   */
+  @Nonnull
+  <P> Comparator<P> createPriorityComparator(@Nonnull Collection<? extends P> passes,
+                                             @Nonnull ToIntFunction<? super P> visibility,
+                                             @Nonnull Function<? super P, String> passName,
+                                             @Nonnull ToIntFunction<? super P> id) {
+    Map<P, Integer> visibilities = new HashMap<>(passes.size());
+    Map<P, Long> costs = new HashMap<>(passes.size());
+    for (P pass : passes) {
+      visibilities.put(pass, visibility.applyAsInt(pass));
+      costs.put(pass, Math.max(0, getAverageCollectNanos(passName.apply(pass))));
+    }
+    return Comparator.comparingInt((P pass) -> visibilities.get(pass))
+            .thenComparingLong(pass -> costs.get(pass))
+            .thenComparingInt(id);
+  }
+
+  @Nonnull
+  private PassRecord getPassRecord(@Nonnull String passName) {
+    return myPassRecords.computeIfAbsent(passName, name -> new PassRecord(name, null));
+  }
+
+  @Nonnull
+  private PassRecord getFileRecord(@Nonnull String passName, @Nullable String filePath) {
+    Key key = new Key(passName, filePath);
+    PassRecord record = myFileRecords.get(key);
+    if (record != null) return record;
+    if (myFileRecords.size() >= MAX_FILE_RECORDS) {
+      key = new Key(key.myPass, OTHER_FILES);
+    }
+    return myFileRecords.computeIfAbsent(key, k -> new PassRecord(k.myPass, k.myFile));
+  }
+
+  @Nonnull
+  static String getPassName(@Nonnull TextEditorHighlightingPass pass) {
+    return pass.getClass().getName();
+  }
+
+  private static long currentThreadAllocatedBytes() {
+    return ourAllocationBean == null ? -1 : ourAllocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  void clear() {
+    myFileRecords.clear();
+    myPassRecords.clear();
+  }
+
+  /**
+   * Statistics as JSON: {@code passes} has totals of every pass class, {@code files} - of every pass for every file,
+   * both sorted by total collect time, most expensive first.
+   */
+  @Nonnull
+  String toJson() {
+    Report report = new Report();
+    report.allocationsMeasured = ourAllocationBean != null;
+    report.passes = toStats(myPassRecords.values());
+    report.files = toStats(myFileRecords.values());
+    return new GsonBuilder().setPrettyPrinting().create().toJson(report);
+  }
+
+  @Nonnull
+  private static List<PassStats> toStats(@Nonnull Collection<PassRecord> records) {
+    List<PassStats> stats = new ArrayList<>(records.size());
+    for (PassRecord record : records) {
+      stats.add(record.toStats());
+    }
+    stats.sort(Comparator.comparingLong((PassStats record) -> record.collectNanos).reversed());
+    return stats;
+  }
+
+  void dump(@Nonnull File file) throws IOException {
+    FileUtil.writeToFile(file, toJson());
+  }
+
+  static final class Measurement {
+    private final long myStartNanos = System.nanoTime();
+    private final long myStartAllocated = currentThreadAllocatedBytes();
+  }
+
+  private static final class Key {
+    private final String myPass;
+    private final String myFile;
+
+    private Key(@Nonnull String pass, @Nullable String file) {
+      myPass = pass;
+      myFile = file;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key key = (Key)o;
+      return myPass.equals(key.myPass) && Objects.equals(myFile, key.myFile);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * myPass.hashCode() + Objects.hashCode(myFile);
+    }
+  }
+
+  // updated concurrently by passes of different files, counters of a record aren't read atomically
+  private static final class PassRecord {
+    private final String myPass;
+    private final String myFile;
+    private final LongAdder myRuns = new LongAdder();
+    private final LongAdder myCanceledRuns = new LongAdder();
+    private final LongAdder myCollectNanos = new LongAdder();
+    private final LongAdder myCompletedCollectNanos = new LongAdder();
+    private final LongAccumulator myMaxCollectNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder myAllocatedBytes = new LongAdder();
+    private final LongAdder myApplies = new LongAdder();
+    private final LongAdder myApplyNanos = new LongAdder();
+
+    private PassRecord(@Nonnull String pass, @Nullable String file) {
+      myPass = pass;
+      myFile = file;
+    }
+
+    private void addCollect(long nanos, long allocated, boolean canceled) {
+      myRuns.increment();
+      if (canceled) {
+        myCanceledRuns.increment();
+      }
+      else {
+        myCompletedCollectNanos.add(nanos);
+      }
+      myCollectNanos.add(nanos);
+      myMaxCollectNanos.accumulate(nanos);
+      myAllocatedBytes.add(allocated);
+    }
+
+    private void addApply(long nanos) {
+      myApplies.increment();
+      myApplyNanos.add(nanos);
+    }
+
+    // canceled runs stop at an arbitrary point, they say nothing about the cost of the pass
+    private long getAverageCollectNanos() {
+      long completedRuns = myRuns.sum() - myCanceledRuns.sum();
+      return completedRuns <= 0 ? -1 : myCompletedCollectNanos.sum() / completedRuns;
+    }
+
+    @Nonnull
+    private PassStats toStats() {
+      PassStats stats = new PassStats();
+      stats.pass = myPass;
+      stats.file = myFile;
+      stats.runs = myRuns.sum();
+      stats.canceledRuns = myCanceledRuns.sum();
+      stats.collectNanos = myCollectNanos.sum();
+      stats.maxCollectNanos = myMaxCollectNanos.get();
+      stats.allocatedBytes = myAllocatedBytes.sum();
+      stats.applies = myApplies.sum();
+      stats.applyNanos = myApplyNanos.sum();
+      return stats;
+    }
+  }
+
+  // fields are serialized by name
+  @SuppressWarnings("unused")
+  private static final class PassStats {
+    private String pass;
+    private String file;
+    private long runs;
+    private long canceledRuns;
+    private long collectNanos;
+    private long maxCollectNanos;
+    private long allocatedBytes;
+    private long applies;
+    private long applyNanos;
+  }
+
+  @SuppressWarnings("unused")
+  private static final class Report {
+    private boolean allocationsMeasured;
+    private List<PassStats> passes;
+    private List<PassStats> files;
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInsight.daemon.impl;
+
+import com.intellij.codeInspection.LocalInspectionTool;
+import com.intellij.codeInspection.ProblemDescriptor;
+import com.intellij.psi.PsiDirectory;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.util.ConcurrencyUtil;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.containers.ContainerUtil;
+import consulo.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Problems found by {@link LocalInspectionTool#isSubtreeLocal() subtree local} inspections, remembered per element visited by
+ * {@link LocalInspectionsPass}, so an element is not visited again while neither its subtree nor its length changed.
+ * <p>
+ * Every PSI change stamps the changed element and all its parents with a new subtree modification stamp, a cached result is valid while
+ * the stamp of its element stays the same. Everything is dropped on the daemon restart (inspection profile, roots or dumb mode changes).
+ * Disabled unless {@code -Didea.inspection.result.cache=true}.
+ *
+ * @author VISTALL
+ * @since 2020-06-17
+ */
+public final class InspectionResultCache {
+  private static final Logger LOG = Logger.getInstance(InspectionResultCache.class);
+  static final boolean ENABLED = SystemProperties.getBooleanProperty("idea.inspection.result.cache", false);
+
+  private final boolean myEnabled;
+  private final AtomicLong myStamp = new AtomicLong();
+  // elements which subtree was changed -> stamp of the last change, elements not changed since they were created have stamp 0
+  private final ConcurrentMap<PsiElement, Long> mySubtreeStamps = ContainerUtil.createConcurrentWeakMap();
+  private final ConcurrentMap<LocalInspectionTool, ConcurrentMap<PsiElement, CachedProblems>> myProblems = ContainerUtil.createConcurrentWeakMap();
+  private final ConcurrentMap<String, ToolStatistics> myStatistics = new ConcurrentHashMap<>();
+
+  InspectionResultCache() {
+    this(ENABLED);
+  }
+
+  InspectionResultCache(boolean enabled) {
+    myEnabled = enabled;
+  }
+
+  boolean isApplicable(@Nonnull LocalInspectionTool tool, boolean isOnTheFly) {
+    return myEnabled && isOnTheFly && !tool.runForWholeFile() && tool.isSubtreeLocal();
+  }
+
+  /**
+   * @return problems the tool found when it visited this very element last time, or null if the subtree of the element changed since then
+   */
+  @Nullable
+  List<ProblemDescriptor> getProblems(@Nonnull LocalInspectionTool tool, @Nonnull PsiElement element) {
+    ConcurrentMap<PsiElement, CachedProblems> toolProblems = myProblems.get(tool);
+    CachedProblems cached = toolProblems == null ? null : toolProblems.get(element);
+    List<ProblemDescriptor> result = cached != null && cached.isUpToDate(element, getSubtreeStamp(element)) ? cached.myProblems : null;
+    getStatistics(tool).record(result != null);
+    return result;
+  }
+
+  void putProblems(@Nonnull LocalInspectionTool tool, @Nonnull PsiElement element, @Nonnull List<ProblemDescriptor> problems) {
+    ConcurrentMap<PsiElement, CachedProblems> toolProblems = myProblems.get(tool);
+    if (toolProblems == null) {
+      toolProblems = ConcurrencyUtil.cacheOrGet(myProblems, tool, ContainerUtil.createConcurrentWeakMap());
+    }
+    toolProblems.put(element, new CachedProblems(element.getTextLength(), getSubtreeStamp(element), problems));
+  }
+
+  private long getSubtreeStamp(@Nonnull PsiElement element) {
+    Long stamp = mySubtreeStamps.get(element);
+    return stamp == null ? 0 : stamp;
+  }
+
+  void subtreeChanged(@Nonnull PsiElement element) {
+    if (!myEnabled) return;
+    long stamp = myStamp.incrementAndGet();
+    for (PsiElement e = element; e != null && !(e instanceof PsiDirectory); e = e.getParent()) {
+      mySubtreeStamps.put(e, stamp);
+      if (e instanceof PsiFile) break;
+    }
+  }
+
+  void clear() {
+    myProblems.clear();
+    mySubtreeStamps.clear();
+  }
+
+  @Nonnull
+  private ToolStatistics getStatistics(@Nonnull LocalInspectionTool tool) {
+    return myStatistics.computeIfAbsent(tool.getShortName(), name -> new ToolStatistics());
+  }
+
+  /**
+   * @return hits and misses of every tool looked up in the cache since the project was opened, by tool short name
+   */
+  @Nonnull
+  public Map<String, ToolStatistics> getStatistics() {
+    return Collections.unmodifiableMap(new TreeMap<>(myStatistics));
+  }
+
+  void logStatistics() {
+    if (myEnabled && !myStatistics.isEmpty()) {
+      LOG.info("Inspection result cache: " + getStatistics());
+    }
+  }
+
+  private static final class CachedProblems {
+    private final int myTextLength;
+    private final long mySubtreeStamp;
+    private final List<ProblemDescriptor> myProblems;
+
+    private CachedProblems(int textLength, long subtreeStamp, @Nonnull List<ProblemDescriptor> problems) {
+      myTextLength = textLength;
+      mySubtreeStamp = subtreeStamp;
+      myProblems = problems.isEmpty() ? Collections.emptyList() : new ArrayList<>(problems);
+    }
+
+    private boolean isUpToDate(@Nonnull PsiElement element, long subtreeStamp) {
+      if (mySubtreeStamp != subtreeStamp || myTextLength != element.getTextLength()) return false;
+      for (ProblemDescriptor problem : myProblems) {
+        if (problem.getPsiElement() == null) return false;
+      }
+      return true;
+    }
+  }
+
+  public static final class ToolStatistics {
+    private final AtomicInteger myHits = new AtomicInteger();
+    private final AtomicInteger myMisses = new AtomicInteger();
+
+    private void record(boolean hit) {
+      (hit ? myHits : myMisses).incrementAndGet();
+    }
+
+    public int getHits() {
+      return myHits.get();
+    }
+
+    public int getMisses() {
+      return myMisses.get();
+    }
+
+    public double getHitRate() {
+      int hits = getHits();
+      int total = hits + getMisses();
+      return total == 0 ? 0 : (double)hits / total;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d hits, %d misses (%.1f%%)", getHits(), getMisses(), getHitRate() * 100);
+    }
+  }
+}
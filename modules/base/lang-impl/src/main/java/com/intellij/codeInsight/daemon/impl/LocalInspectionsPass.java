@@ -18,6 +18,7 @@ package com.intellij.codeInsight.daemon.impl;
 
 import com.intellij.codeHighlighting.Pass;
 import com.intellij.codeInsight.daemon.DaemonBundle;
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
 import com.intellij.codeInsight.daemon.HighlightDisplayKey;
 import com.intellij.codeInsight.daemon.impl.analysis.HighlightingLevelManager;
 import com.intellij.codeInsight.daemon.impl.quickfix.QuickFixAction;
@@ -287,11 +288,19 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
       }
     };
 
-    PsiElementVisitor visitor =
-            InspectionEngine.createVisitorAndAcceptElements(tool, holder, isOnTheFly, session, elements, elementDialectIds, dialectIdsSpecifiedForTool);
+    InspectionResultCache cache = getResultCache(tool, isOnTheFly);
+    PsiElementVisitor visitor;
+    if (cache == null) {
+      visitor = InspectionEngine.createVisitorAndAcceptElements(tool, holder, isOnTheFly, session, elements, elementDialectIds, dialectIdsSpecifiedForTool);
+    }
+    else {
+      visitor = InspectionEngine
+              .createVisitorAndAcceptElements(tool, holder, isOnTheFly, session, Collections.emptyList(), elementDialectIds, dialectIdsSpecifiedForTool);
+      acceptElementsWithCache(cache, tool, holder, elements, visitor, elementDialectIds, dialectIdsSpecifiedForTool);
+    }
 
     synchronized (init) {
-      init.add(new InspectionContext(toolWrapper, holder, holder.getResultCount(), visitor, dialectIdsSpecifiedForTool));
+      init.add(new InspectionContext(toolWrapper, holder, holder.getResultCount(), visitor, dialectIdsSpecifiedForTool, cache));
     }
     advanceProgress(1);
 
@@ -309,7 +318,13 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
     Processor<InspectionContext> processor = context -> {
       indicator.checkCanceled();
       ApplicationManager.getApplication().assertReadAccessAllowed();
-      InspectionEngine.acceptElements(elements, context.visitor, elementDialectIds, context.dialectIdsSpecifiedForTool);
+      if (context.cache == null) {
+        InspectionEngine.acceptElements(elements, context.visitor, elementDialectIds, context.dialectIdsSpecifiedForTool);
+      }
+      else {
+        acceptElementsWithCache(context.cache, context.tool.getTool(), context.holder, elements, context.visitor, elementDialectIds,
+                                context.dialectIdsSpecifiedForTool);
+      }
       advanceProgress(1);
       context.tool.getTool().inspectionFinished(session, context.holder);
 
@@ -326,6 +341,40 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
     }
   }
 
+  @Nullable
+  private InspectionResultCache getResultCache(@Nonnull LocalInspectionTool tool, boolean isOnTheFly) {
+    InspectionResultCache cache = ((DaemonCodeAnalyzerImpl)DaemonCodeAnalyzer.getInstance(myProject)).getInspectionResultCache();
+    return cache.isApplicable(tool, isOnTheFly) ? cache : null;
+  }
+
+  // problems of elements which subtree is not changed are registered again instead of visiting the elements
+  private static void acceptElementsWithCache(@Nonnull InspectionResultCache cache,
+                                              @Nonnull LocalInspectionTool tool,
+                                              @Nonnull ProblemsHolder holder,
+                                              @Nonnull List<PsiElement> elements,
+                                              @Nonnull PsiElementVisitor visitor,
+                                              @Nonnull Set<String> elementDialectIds,
+                                              @Nullable Set<String> dialectIdsSpecifiedForTool) {
+    if (!InspectionEngine.isDialectAccepted(elementDialectIds, dialectIdsSpecifiedForTool)) return;
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0, elementsSize = elements.size(); i < elementsSize; i++) {
+      PsiElement element = elements.get(i);
+      List<ProblemDescriptor> cached = cache.getProblems(tool, element);
+      if (cached != null) {
+        for (ProblemDescriptor descriptor : cached) {
+          holder.registerProblem(descriptor);
+        }
+      }
+      else {
+        int problemsBefore = holder.getResultCount();
+        element.accept(visitor);
+        List<ProblemDescriptor> problems = holder.getResults();
+        cache.putProblems(tool, element, problems.subList(problemsBefore, problems.size()));
+      }
+      ProgressManager.checkCanceled();
+    }
+  }
+
   void inspectInjectedPsi(@Nonnull final List<PsiElement> elements,
                           final boolean onTheFly,
                           @Nonnull final ProgressIndicator indicator,
@@ -751,12 +800,14 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
                               int problemsSize,
                               // need this to diff between found problems in visible part and the rest
                               @Nonnull PsiElementVisitor visitor,
-                              @Nullable Set<String> dialectIdsSpecifiedForTool) {
+                              @Nullable Set<String> dialectIdsSpecifiedForTool,
+                              @Nullable InspectionResultCache cache) {
       this.tool = tool;
       this.holder = holder;
       this.problemsSize = problemsSize;
       this.visitor = visitor;
       this.dialectIdsSpecifiedForTool = dialectIdsSpecifiedForTool;
+      this.cache = cache;
     }
 
     @Nonnull
@@ -768,5 +819,7 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
     private final PsiElementVisitor visitor;
     @Nullable
     private final Set<String> dialectIdsSpecifiedForTool;
+    @Nullable
+    private final InspectionResultCache cache;
   }
 }
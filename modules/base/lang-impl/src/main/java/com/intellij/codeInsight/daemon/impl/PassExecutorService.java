@@ -27,6 +27,7 @@ import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.ProperTextRange;
 import consulo.util.dataholder.Key;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.text.StringUtil;
@@ -39,8 +40,11 @@ import gnu.trove.THashMap;
 import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NonNls;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -58,6 +62,7 @@ final class PassExecutorService implements Disposable {
   private final Project myProject;
   private volatile boolean isDisposed;
   private final AtomicInteger nextPassId = new AtomicInteger(100);
+  private final HighlightingPassTelemetry myTelemetry = new HighlightingPassTelemetry();
 
   PassExecutorService(@Nonnull Project project) {
     myProject = project;
@@ -69,6 +74,21 @@ final class PassExecutorService implements Disposable {
     // some workers could, although idle, still retain some thread references for some time causing leak hunter to frown
     ForkJoinPool.commonPool().awaitQuiescence(1, TimeUnit.SECONDS);
     isDisposed = true;
+
+    String telemetryFile = System.getProperty(HighlightingPassTelemetry.DUMP_FILE_PROPERTY);
+    if (telemetryFile != null) {
+      try {
+        myTelemetry.dump(new File(telemetryFile));
+      }
+      catch (IOException e) {
+        LOG.warn("Cannot write highlighting pass telemetry to " + telemetryFile, e);
+      }
+    }
+  }
+
+  @Nonnull
+  HighlightingPassTelemetry getTelemetry() {
+    return myTelemetry;
   }
 
   void cancelAll(boolean waitForTermination) {
@@ -185,6 +205,14 @@ final class PassExecutorService implements Disposable {
       assertConsistency(freePasses, toBeSubmitted, threadsToStartCountdown);
     }
 
+    // passes ready at the same time are submitted in priority order: the job pool starts them in about that order
+    Comparator<ScheduledPass> byPriority = createPriorityComparator(toBeSubmitted.values());
+    freePasses.sort(byPriority);
+    for (ScheduledPass pass : toBeSubmitted.values()) {
+      pass.mySuccessorsOnSubmit.sort(byPriority);
+      pass.mySuccessorsOnCompletion.sort(byPriority);
+    }
+
     log(updateProgress, null, vFiles + " ----- starting " + threadsToStartCountdown.get(), freePasses);
 
     for (ScheduledPass dependentPass : dependentPasses) {
@@ -227,6 +255,29 @@ final class PassExecutorService implements Disposable {
     }
   }
 
+  /**
+   * Passes highlighting the visible area of a showing editor go first, then other passes of showing editors, then the rest.
+   * Within a group passes are ordered by the average collect time of their completed runs so far, cheapest first, and then by id (the dependency order).
+   */
+  @Nonnull
+  private Comparator<ScheduledPass> createPriorityComparator(@Nonnull Collection<ScheduledPass> passes) {
+    Map<FileEditor, ProperTextRange> visibleRanges = new HashMap<>();
+    return myTelemetry.createPriorityComparator(passes, pass -> getVisibility(pass, visibleRanges), pass -> HighlightingPassTelemetry.getPassName(pass.myPass),
+                                                pass -> pass.myPass.getId());
+  }
+
+  // 0 - in the visible area of a showing editor, 1 - in a showing editor, 2 - in an editor not showing
+  private static int getVisibility(@Nonnull ScheduledPass scheduledPass, @Nonnull Map<FileEditor, ProperTextRange> visibleRanges) {
+    FileEditor fileEditor = scheduledPass.myFileEditor;
+    if (!fileEditor.getComponent().isShowing()) return 2;
+    TextEditorHighlightingPass pass = scheduledPass.myPass;
+    if (!(fileEditor instanceof TextEditor) || !(pass instanceof ProgressableTextEditorHighlightingPass) || !ApplicationManager.getApplication().isDispatchThread()) {
+      return 1;
+    }
+    ProperTextRange visibleRange = visibleRanges.computeIfAbsent(fileEditor, e -> VisibleHighlightingPassFactory.calculateVisibleRange(((TextEditor)e).getEditor()));
+    return visibleRange.intersects(((ProgressableTextEditorHighlightingPass)pass).myRestrictRange) ? 0 : 1;
+  }
+
   @Nonnull
   private TextEditorHighlightingPass convertToTextHighlightingPass(@Nonnull final HighlightingPass pass, final Document document, @Nonnull AtomicInteger id, int previousPassId) {
     TextEditorHighlightingPass textEditorHighlightingPass;
@@ -375,6 +426,8 @@ final class PassExecutorService implements Disposable {
     private final List<ScheduledPass> mySuccessorsOnSubmit = new ArrayList<>();
     @Nonnull
     private final DaemonProgressIndicator myUpdateProgress;
+    @Nullable
+    private final String myFilePath; // for telemetry
 
     private ScheduledPass(@Nonnull FileEditor fileEditor,
                           @Nonnull TextEditorHighlightingPass pass,
@@ -384,6 +437,9 @@ final class PassExecutorService implements Disposable {
       myPass = pass;
       myThreadsToStartCountdown = threadsToStartCountdown;
       myUpdateProgress = progressIndicator;
+      Document document = pass.getDocument();
+      VirtualFile file = document == null ? null : FileDocumentManager.getInstance().getFile(document);
+      myFilePath = file == null ? null : file.getPath();
     }
 
     @Override
@@ -422,7 +478,13 @@ final class PassExecutorService implements Disposable {
             }
 
             if (!myUpdateProgress.isCanceled() && !myProject.isDisposed()) {
-              myPass.collectInformation(myUpdateProgress);
+              HighlightingPassTelemetry.Measurement measurement = myTelemetry.startCollecting();
+              try {
+                myPass.collectInformation(myUpdateProgress);
+              }
+              finally {
+                myTelemetry.collectFinished(myPass, myFilePath, measurement, myUpdateProgress.isCanceled());
+              }
             }
           }
           catch (ProcessCanceledException e) {
@@ -447,7 +509,7 @@ final class PassExecutorService implements Disposable {
       log(myUpdateProgress, myPass, "Finished. ");
 
       if (!myUpdateProgress.isCanceled()) {
-        applyInformationToEditorsLater(myFileEditor, myPass, myUpdateProgress, myThreadsToStartCountdown, () -> {
+        applyInformationToEditorsLater(myFileEditor, myPass, myFilePath, myUpdateProgress, myThreadsToStartCountdown, () -> {
           for (ScheduledPass successor : mySuccessorsOnCompletion) {
             int predecessorsToRun = successor.myRunningPredecessorsCount.decrementAndGet();
             if (predecessorsToRun == 0) {
@@ -477,6 +539,7 @@ final class PassExecutorService implements Disposable {
 
   private void applyInformationToEditorsLater(@Nonnull final FileEditor fileEditor,
                                               @Nonnull final TextEditorHighlightingPass pass,
+                                              @Nullable final String filePath,
                                               @Nonnull final DaemonProgressIndicator updateProgress,
                                               @Nonnull final AtomicInteger threadsToStartCountdown,
                                               @Nonnull Runnable callbackOnApplied) {
@@ -491,7 +554,9 @@ final class PassExecutorService implements Disposable {
       Document document = pass.getDocument();
       try {
         if (fileEditor.getComponent().isDisplayable() || ApplicationManager.getApplication().isHeadlessEnvironment()) {
+          long started = System.nanoTime();
           pass.applyInformationToEditor();
+          myTelemetry.applied(pass, filePath, System.nanoTime() - started);
           repaintErrorStripeAndIcon(fileEditor);
           FileStatusMap fileStatusMap = DaemonCodeAnalyzerEx.getInstanceEx(myProject).getFileStatusMap();
           if (document != null) {
@@ -43,10 +43,12 @@ final class PsiChangeHandler extends PsiTreeChangeAdapter implements Disposable
   private final Project myProject;
   private final Map<Document, List<Pair<PsiElement, Boolean>>> changedElements = ContainerUtil.createWeakMap();
   private final FileStatusMap myFileStatusMap;
+  private final InspectionResultCache myInspectionResultCache;
 
   PsiChangeHandler(@Nonnull Project project, @Nonnull MessageBusConnection connection) {
     myProject = project;
     myFileStatusMap = DaemonCodeAnalyzerEx.getInstanceEx(myProject).getFileStatusMap();
+    myInspectionResultCache = ((DaemonCodeAnalyzerImpl)DaemonCodeAnalyzerEx.getInstanceEx(myProject)).getInspectionResultCache();
     EditorFactory.getInstance().getEventMulticaster().addDocumentListener(new DocumentListener() {
       @Override
       public void beforeDocumentChange(@Nonnull DocumentEvent e) {
@@ -171,6 +173,7 @@ final class PsiChangeHandler extends PsiTreeChangeAdapter implements Disposable
         return;
       }
       myFileStatusMap.markAllFilesDirty(event);
+      myInspectionResultCache.clear();
     }
   }
 
@@ -184,6 +187,7 @@ final class PsiChangeHandler extends PsiTreeChangeAdapter implements Disposable
     }
 
     if (!child.isValid()) return;
+    myInspectionResultCache.subtreeChanged(child);
 
     PsiDocumentManagerImpl pdm = (PsiDocumentManagerImpl)PsiDocumentManager.getInstance(myProject);
     Document document = pdm.getCachedDocument(file);
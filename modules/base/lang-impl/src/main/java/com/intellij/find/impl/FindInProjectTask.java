@@ -3,12 +3,14 @@ package com.intellij.find.impl;
 
 import com.intellij.find.FindBundle;
 import com.intellij.find.FindInProjectSearchEngine;
+import com.intellij.find.FindManager;
 import com.intellij.find.FindModel;
 import com.intellij.find.findInProject.FindInProjectManager;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ApplicationNamesInfo;
 import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.fileTypes.FileTypeManager;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleManager;
@@ -47,6 +49,7 @@ import gnu.trove.THashSet;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -177,7 +180,8 @@ class FindInProjectTask {
       final boolean skipProjectFile = ProjectCoreUtil.isProjectOrWorkspaceFile(virtualFile) && !myFindModel.isSearchInProjectFiles();
       if (skipProjectFile && !Registry.is("find.search.in.project.files")) return true;
 
-      if (fileLength > FileUtilRt.LARGE_FOR_CONTENT_LOADING) {
+      boolean largeFile = fileLength > FileUtilRt.LARGE_FOR_CONTENT_LOADING;
+      if (largeFile && !StreamingFileSearcher.isApplicable(myFindModel)) {
         myLargeFiles.add(virtualFile);
         return true;
       }
@@ -194,11 +198,20 @@ class FindInProjectTask {
       Pair.NonNull<PsiFile, VirtualFile> pair = ReadAction.compute(() -> findFile(virtualFile));
       if (pair == null) return true;
 
-      Set<UsageInfo> processedUsages = usagesBeingProcessed.computeIfAbsent(virtualFile, __ -> ContainerUtil.newConcurrentSet());
       PsiFile psiFile = pair.first;
       VirtualFile sourceVirtualFile = pair.second;
+      // files not opened in editors are searched without loading their documents, large files are searched the same way
+      boolean searchWithoutDocument = sourceVirtualFile.equals(virtualFile) &&
+                                      StreamingFileSearcher.isApplicable(myFindModel) &&
+                                      (largeFile || FileDocumentManager.getInstance().getCachedDocument(virtualFile) == null);
+      if (largeFile && !searchWithoutDocument) {
+        myLargeFiles.add(virtualFile);
+        return true;
+      }
+
+      Set<UsageInfo> processedUsages = usagesBeingProcessed.computeIfAbsent(virtualFile, __ -> ContainerUtil.newConcurrentSet());
       AtomicBoolean projectFileUsagesFound = new AtomicBoolean();
-      if (!FindInProjectUtil.processUsagesInFile(psiFile, sourceVirtualFile, myFindModel, info -> {
+      Processor<UsageInfo> usageProcessor = info -> {
         if (skipProjectFile) {
           projectFileUsagesFound.set(true);
           return true;
@@ -209,7 +222,11 @@ class FindInProjectTask {
         boolean success = consumer.process(info);
         processedUsages.add(info);
         return success;
-      })) return false;
+      };
+      if (searchWithoutDocument) {
+        if (!processUsagesWithoutDocument(psiFile, virtualFile, largeFile, usageProcessor)) return false;
+      }
+      else if (!FindInProjectUtil.processUsagesInFile(psiFile, sourceVirtualFile, myFindModel, usageProcessor)) return false;
       usagesBeingProcessed.remove(virtualFile); // after the whole virtualFile processed successfully, remove mapping to save memory
 
       if (projectFileUsagesFound.get()) {
@@ -251,6 +268,42 @@ class FindInProjectTask {
     PsiSearchHelperImpl.processFilesConcurrentlyDespiteWriteActions(myProject, sorted, myProgress, new AtomicBoolean(), processor);
   }
 
+  /**
+   * Searches the file content read from disk, creating usages for found occurrences only.
+   * Only the preview part of a large file can be shown, so its search stops at the first occurrence after the preview and the file is
+   * reported as not scanned.
+   *
+   * @return false if the consumer stopped the search
+   */
+  private boolean processUsagesWithoutDocument(@Nonnull PsiFile psiFile,
+                                               @Nonnull VirtualFile virtualFile,
+                                               boolean largeFile,
+                                               @Nonnull Processor<? super UsageInfo> consumer) {
+    FindManager findManager = FindManager.getInstance(myProject);
+    int usagesLimitOffset = largeFile ? ReadAction.compute(psiFile::getTextLength) : Integer.MAX_VALUE;
+    TooManyUsagesStatus tooManyUsagesStatus = TooManyUsagesStatus.getFrom(myProgress);
+    AtomicBoolean stopped = new AtomicBoolean();
+    try {
+      StreamingFileSearcher.processOccurrences(virtualFile, myFindModel, findManager, myProgress, (occurrence, searchOffset) -> {
+        if (occurrence.getEndOffset() > usagesLimitOffset) {
+          myLargeFiles.add(virtualFile);
+          return false;
+        }
+        tooManyUsagesStatus.pauseProcessingIfTooManyUsages(); // wait for user out of read action
+        return ReadAction.compute(() -> {
+          if (!psiFile.isValid()) return false;
+          if (consumer.process(new FindResultUsageInfo(findManager, psiFile, searchOffset, myFindModel, occurrence))) return true;
+          stopped.set(true);
+          return false;
+        });
+      });
+    }
+    catch (IOException e) {
+      LOG.debug("Can't read " + virtualFile, e);
+    }
+    return !stopped.get();
+  }
+
   // must return non-binary files
   @Nonnull
   private Collection<VirtualFile> collectFilesInScope(@Nonnull final Set<VirtualFile> alreadySearched, final boolean skipIndexed) {
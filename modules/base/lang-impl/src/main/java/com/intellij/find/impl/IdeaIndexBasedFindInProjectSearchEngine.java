@@ -3,11 +3,14 @@ package com.intellij.find.impl;
 
 import com.intellij.find.FindInProjectSearchEngine;
 import com.intellij.find.FindModel;
+import com.intellij.find.ngrams.RegExpTrigramQueryBuilder;
 import com.intellij.find.ngrams.TrigramIndex;
+import com.intellij.find.ngrams.TrigramQuery;
 import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.util.text.TrigramBuilder;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -48,6 +51,9 @@ public class IdeaIndexBasedFindInProjectSearchEngine implements FindInProjectSea
 
     private final boolean myHasTrigrams;
     private final String myStringToFindInIndices;
+    // trigrams required by the regular expression, null for plain text search
+    @Nullable
+    private final TrigramQuery myRegExpQuery;
 
     MyFindInProjectSearcher(@Nonnull Project project, @Nonnull FindModel findModel) {
       myProject = project;
@@ -57,35 +63,49 @@ public class IdeaIndexBasedFindInProjectSearchEngine implements FindInProjectSea
       String stringToFind = findModel.getStringToFind();
 
       if (findModel.isRegularExpressions()) {
+        myRegExpQuery = Registry.is("idea.regexp.search.uses.indices") ? RegExpTrigramQueryBuilder.build(stringToFind) : TrigramQuery.ALL;
         stringToFind = FindInProjectUtil.buildStringToFindForIndicesFromRegExp(stringToFind, project);
       }
+      else {
+        myRegExpQuery = null;
+      }
 
       myStringToFindInIndices = stringToFind;
 
-      myHasTrigrams = hasTrigrams(myStringToFindInIndices);
+      myHasTrigrams = myRegExpQuery != null ? !myRegExpQuery.isAll() : hasTrigrams(myStringToFindInIndices);
     }
 
     @Override
     public
     @Nonnull
     Collection<VirtualFile> searchForOccurrences() {
-      String stringToFind = getStringToFindInIndexes(myFindModel, myProject);
+      String stringToFind = myStringToFindInIndices;
+      boolean hasRegExpTrigrams = myRegExpQuery != null && !myRegExpQuery.isAll();
 
-      if (stringToFind.isEmpty() || (DumbService.getInstance(myProject).isDumb() && !FileBasedIndex.isIndexAccessDuringDumbModeEnabled())) {
+      if (stringToFind.isEmpty() && !hasRegExpTrigrams || (DumbService.getInstance(myProject).isDumb() && !FileBasedIndex.isIndexAccessDuringDumbModeEnabled())) {
         return Collections.emptySet();
       }
 
 
       final GlobalSearchScope scope = GlobalSearchScopeUtil.toGlobalSearchScope(FindInProjectUtil.getScopeFromModel(myProject, myFindModel), myProject);
 
+      if (hasRegExpTrigrams) {
+        Set<VirtualFile> hits = FileBasedIndex.getInstance()
+                .ignoreDumbMode(DumbModeAccessType.RAW_INDEX_DATA_ACCEPTABLE, () -> myRegExpQuery.findFiles(scope));
+        return hits == null ? Collections.emptySet() : Collections.unmodifiableCollection(hits);
+      }
+
       final Set<Integer> keys = new THashSet<>();
-      TrigramBuilder.processTrigrams(stringToFind, new TrigramBuilder.TrigramProcessor() {
-        @Override
-        public boolean execute(int value) {
-          keys.add(value);
-          return true;
-        }
-      });
+      if (myRegExpQuery == null) {
+        // trigrams of regular expressions are all in myRegExpQuery
+        TrigramBuilder.processTrigrams(stringToFind, new TrigramBuilder.TrigramProcessor() {
+          @Override
+          public boolean execute(int value) {
+            keys.add(value);
+            return true;
+          }
+        });
+      }
 
       if (!keys.isEmpty()) {
         final List<VirtualFile> hits = new ArrayList<>();
@@ -142,16 +162,5 @@ public class IdeaIndexBasedFindInProjectSearchEngine implements FindInProjectSea
         }
       });
     }
-
-    @Nonnull
-    private static String getStringToFindInIndexes(@Nonnull FindModel findModel, @Nonnull Project project) {
-      String stringToFind = findModel.getStringToFind();
-
-      if (findModel.isRegularExpressions()) {
-        stringToFind = FindInProjectUtil.buildStringToFindForIndicesFromRegExp(stringToFind, project);
-      }
-
-      return stringToFind;
-    }
   }
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.impl;
+
+import com.intellij.find.FindManager;
+import com.intellij.find.FindModel;
+import com.intellij.find.FindResult;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.LocalSearchScope;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.text.CharArrayCharSequence;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Finds occurrences of {@link FindModel} string in a file by reading and decoding its content in chunks, without loading the document or
+ * building PSI. Line separators are converted to {@code \n} on the fly, so found offsets are the offsets in the document of the file.
+ * <p>
+ * The text is searched line by line: a chunk is searched up to its last line break and the rest is searched with the next chunk, so only
+ * the models which can't match line breaks are supported (see {@link #isApplicable}). Lines longer than {@link #MAX_LINE_LENGTH} are cut,
+ * and occurrences longer than {@link #MAX_MATCH_LENGTH} crossing the cut may be missed.
+ *
+ * @author VISTALL
+ * @since 2020-06-17
+ */
+final class StreamingFileSearcher {
+  static final boolean ENABLED = SystemProperties.getBooleanProperty("idea.find.streaming.search", true);
+
+  private static final int CHUNK_SIZE = 256 * 1024;
+  private static final int MAX_LINE_LENGTH = 4 * 1024 * 1024;
+  private static final int MAX_MATCH_LENGTH = 64 * 1024;
+  // chars kept before the search start for whole word checks and look-behinds
+  private static final int CONTEXT_LENGTH = 256;
+  // bytes read ahead to detect the charset and BOM
+  private static final int DETECT_CHARSET_LENGTH = 64 * 1024;
+  // regexp constructs which may match line breaks besides escapes: character classes starting with ^, the DOTALL flag and control chars
+  private static final Pattern LINE_BREAK_MATCHING = Pattern.compile("\\[\\^|\\(\\?[a-zA-Z]*s|[\\x00-\\x1F]");
+  // escaped letters and digits which can't match a line break: \d, \w, word boundaries, \A, \z, quotes and back references;
+  // any other, like \s, \R, \X, \N{...}, \p{...}, \Z (before the last line break of a chunk) or an escape unknown to this version
+  // of java, may match one
+  private static final String SINGLE_LINE_ESCAPES = "dwbBAzQEk123456789";
+
+  interface OccurrenceProcessor {
+    /**
+     * @param searchOffset offset the search which found the occurrence started from, no other occurrence starts between it and the found one
+     * @return false to stop the search
+     */
+    boolean process(@Nonnull FindResult occurrence, int searchOffset);
+  }
+
+  private StreamingFileSearcher() {
+  }
+
+  static boolean isApplicable(@Nonnull FindModel model) {
+    if (!ENABLED) return false;
+    String stringToFind = model.getStringToFind();
+    if (stringToFind.isEmpty()) return false;
+    // comments and literals are found by the lexer, which needs the whole text
+    if (model.getSearchContext() != FindModel.SearchContext.ANY) return false;
+    if (model.getCustomScope() instanceof LocalSearchScope) return false;
+    if (model.isRegularExpressions()) {
+      return !mayMatchLineBreak(stringToFind);
+    }
+    return stringToFind.indexOf('\n') < 0 && stringToFind.indexOf('\r') < 0;
+  }
+
+  private static boolean mayMatchLineBreak(@Nonnull String regexp) {
+    if (LINE_BREAK_MATCHING.matcher(regexp).find()) return true;
+    for (int i = 0; i < regexp.length(); i++) {
+      if (regexp.charAt(i) != '\\') continue;
+      if (++i == regexp.length()) return true;
+      char escaped = regexp.charAt(i);
+      if (Character.isLetterOrDigit(escaped) && SINGLE_LINE_ESCAPES.indexOf(escaped) < 0) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return false if the processor stopped the search
+   */
+  static boolean processOccurrences(@Nonnull VirtualFile file,
+                                    @Nonnull FindModel model,
+                                    @Nonnull FindManager findManager,
+                                    @Nonnull ProgressIndicator indicator,
+                                    @Nonnull OccurrenceProcessor processor) throws IOException {
+    try (InputStream stream = new BufferedInputStream(file.getInputStream(), DETECT_CHARSET_LENGTH)) {
+      stream.mark(DETECT_CHARSET_LENGTH);
+      byte[] head = new byte[DETECT_CHARSET_LENGTH];
+      int headLength = readFully(stream, head);
+      stream.reset();
+
+      Charset charset = LoadTextUtil.detectCharsetAndSetBOM(file, Arrays.copyOf(head, headLength), file.getFileType());
+      byte[] bom = file.getBOM();
+      if (bom != null && headLength >= bom.length && Arrays.equals(bom, Arrays.copyOf(head, bom.length))) {
+        long skipped = stream.skip(bom.length);
+        assert skipped == bom.length;
+      }
+      return processOccurrences(new InputStreamReader(stream, charset), file, model, findManager, indicator, processor);
+    }
+  }
+
+  /**
+   * Searches the text read from the reader, line separators included, as if it was the content of the file.
+   */
+  static boolean processOccurrences(@Nonnull Reader reader,
+                                    @Nonnull VirtualFile file,
+                                    @Nonnull FindModel model,
+                                    @Nonnull FindManager findManager,
+                                    @Nonnull ProgressIndicator indicator,
+                                    @Nonnull OccurrenceProcessor processor) throws IOException {
+    return new Search(reader, file, model, findManager, indicator, processor).run();
+  }
+
+  private static int readFully(@Nonnull InputStream stream, @Nonnull byte[] buffer) throws IOException {
+    int length = 0;
+    while (length < buffer.length) {
+      int read = stream.read(buffer, length, buffer.length - length);
+      if (read < 0) break;
+      length += read;
+    }
+    return length;
+  }
+
+  private static class Search {
+    private final Reader myReader;
+    private final VirtualFile myFile;
+    private final FindModel myModel;
+    private final FindManager myFindManager;
+    private final ProgressIndicator myIndicator;
+    private final OccurrenceProcessor myProcessor;
+
+    private final char[] myReadBuffer = new char[CHUNK_SIZE];
+    private char[] myText = new char[CHUNK_SIZE * 2];
+    private int myTextLength;
+    // offset of myText[0] in the file
+    private int myTextStart;
+    private boolean myLastCharIsCR;
+    private boolean myEof;
+
+    private Search(@Nonnull Reader reader,
+                   @Nonnull VirtualFile file,
+                   @Nonnull FindModel model,
+                   @Nonnull FindManager findManager,
+                   @Nonnull ProgressIndicator indicator,
+                   @Nonnull OccurrenceProcessor processor) {
+      myReader = reader;
+      myFile = file;
+      myModel = model;
+      myFindManager = findManager;
+      myIndicator = indicator;
+      myProcessor = processor;
+    }
+
+    private boolean run() throws IOException {
+      int searchFrom = 0;
+      while (!myEof) {
+        myIndicator.checkCanceled();
+        readChunk();
+
+        int searchTo = getSearchEnd(searchFrom);
+        if (searchTo <= searchFrom) continue;
+
+        CharSequence text = new CharArrayCharSequence(myText, 0, myTextLength);
+        int offset = searchFrom;
+        int nextSearchFrom = searchTo;
+        while (offset < searchTo) {
+          FindResult result = myFindManager.findString(text, offset, myModel, myFile);
+          if (!result.isStringFound() || result.getStartOffset() >= searchTo) break;
+          if (!myEof && result.getEndOffset() >= myTextLength) {
+            // may continue in the next chunk
+            nextSearchFrom = result.getStartOffset();
+            break;
+          }
+
+          FindResult occurrence = new FindResultImpl(myTextStart + result.getStartOffset(), myTextStart + result.getEndOffset());
+          if (!myProcessor.process(occurrence, myTextStart + offset)) return false;
+
+          int prevOffset = offset;
+          offset = result.getEndOffset();
+          if (prevOffset == offset || offset == result.getStartOffset()) {
+            // empty regexp match
+            ++offset;
+          }
+        }
+        if (nextSearchFrom == searchTo) nextSearchFrom = Math.max(offset, searchTo);
+        searchFrom = discardBefore(nextSearchFrom);
+      }
+      return true;
+    }
+
+    // returns the offset in the text the search can safely go up to
+    private int getSearchEnd(int searchFrom) {
+      if (myEof) return myTextLength;
+      for (int i = myTextLength - 1; i >= searchFrom; i--) {
+        if (myText[i] == '\n') return i + 1;
+      }
+      return myTextLength - searchFrom > MAX_LINE_LENGTH ? myTextLength - MAX_MATCH_LENGTH : searchFrom;
+    }
+
+    // drops the text before the offset except some context, returns the new position of the offset
+    private int discardBefore(int offset) {
+      int discarded = Math.max(0, Math.min(offset, myTextLength) - CONTEXT_LENGTH);
+      System.arraycopy(myText, discarded, myText, 0, myTextLength - discarded);
+      myTextLength -= discarded;
+      myTextStart += discarded;
+      return offset - discarded;
+    }
+
+    private void readChunk() throws IOException {
+      int read = myReader.read(myReadBuffer);
+      if (read < 0) {
+        myEof = true;
+        return;
+      }
+      if (myTextLength + read > myText.length) {
+        myText = Arrays.copyOf(myText, Math.max(myText.length * 2, myTextLength + read));
+      }
+      // \r\n and \r become \n, as in documents
+      for (int i = 0; i < read; i++) {
+        char c = myReadBuffer[i];
+        if (c == '\n' && myLastCharIsCR) {
+          myLastCharIsCR = false;
+          continue;
+        }
+        myLastCharIsCR = c == '\r';
+        myText[myTextLength++] = myLastCharIsCR ? '\n' : c;
+      }
+    }
+  }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.openapi.util.text.StringUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Compiles a {@link java.util.regex.Pattern} regular expression into a {@link TrigramQuery} every match of the expression satisfies,
+ * the same way Google Code Search does.
+ * <p>
+ * Every subexpression is described by the set of strings it matches exactly when the set is small, otherwise by the sets of possible
+ * prefixes and suffixes of its matches and the query its matches satisfy. Concatenation crosses exact strings, suffixes and prefixes of
+ * its parts, so trigrams spanning several subexpressions are found; alternation unites the sets and ORs the queries.
+ * Strings are lower-cased as {@link com.intellij.openapi.util.text.TrigramBuilder} does, so the result does not depend on the case
+ * sensitivity of the search. Constructs not understood by the builder (e.g. back references or a syntax error) match anything.
+ *
+ * @author VISTALL
+ * @since 2020-06-17
+ */
+public final class RegExpTrigramQueryBuilder {
+  // maximal size of the exact set before it is turned into prefixes and suffixes
+  private static final int MAX_EXACT = 16;
+  // maximal size of prefix and suffix sets, and of the character classes expanded into exact sets
+  private static final int MAX_SET = 16;
+
+  private final String myPattern;
+  private int myPos;
+
+  private RegExpTrigramQueryBuilder(@Nonnull String pattern) {
+    myPattern = pattern;
+  }
+
+  /**
+   * @return query every file containing a match of the regular expression satisfies, {@link TrigramQuery#ALL} if there is no such
+   * query or the expression is not valid
+   */
+  @Nonnull
+  public static TrigramQuery build(@Nonnull String regExp) {
+    RegExpTrigramQueryBuilder builder = new RegExpTrigramQueryBuilder(regExp);
+    try {
+      Info info = builder.parseAlternation();
+      if (builder.myPos < regExp.length()) return TrigramQuery.ALL; // unbalanced ')'
+      return info.toInexact().myMatch;
+    }
+    catch (UnsupportedSyntaxException e) {
+      return TrigramQuery.ALL;
+    }
+  }
+
+  @Nonnull
+  private Info parseAlternation() {
+    Info result = parseConcatenation();
+    while (myPos < myPattern.length() && myPattern.charAt(myPos) == '|') {
+      myPos++;
+      result = alternate(result, parseConcatenation());
+    }
+    return result;
+  }
+
+  @Nonnull
+  private Info parseConcatenation() {
+    Info result = Info.exact(Collections.singleton(""));
+    while (myPos < myPattern.length()) {
+      char c = myPattern.charAt(myPos);
+      if (c == '|' || c == ')') break;
+      result = concat(result, parseQuantified());
+    }
+    return result;
+  }
+
+  @Nonnull
+  private Info parseQuantified() {
+    Info atom = parseAtom();
+    while (myPos < myPattern.length()) {
+      char c = myPattern.charAt(myPos);
+      int min;
+      int max;
+      if (c == '*') {
+        min = 0;
+        max = -1;
+        myPos++;
+      }
+      else if (c == '+') {
+        min = 1;
+        max = -1;
+        myPos++;
+      }
+      else if (c == '?') {
+        min = 0;
+        max = 1;
+        myPos++;
+      }
+      else if (c == '{') {
+        int close = myPattern.indexOf('}', myPos);
+        if (close < 0) throw new UnsupportedSyntaxException();
+        String bounds = myPattern.substring(myPos + 1, close);
+        int comma = bounds.indexOf(',');
+        min = parseCount(comma < 0 ? bounds : bounds.substring(0, comma));
+        max = comma < 0 ? min : comma == bounds.length() - 1 ? -1 : parseCount(bounds.substring(comma + 1));
+        myPos = close + 1;
+      }
+      else {
+        break;
+      }
+      // lazy and possessive quantifiers match the same strings
+      if (myPos < myPattern.length() && (myPattern.charAt(myPos) == '?' || myPattern.charAt(myPos) == '+')) myPos++;
+      atom = repeat(atom, min, max);
+    }
+    return atom;
+  }
+
+  private static int parseCount(@Nonnull String text) {
+    try {
+      return Integer.parseInt(text.trim());
+    }
+    catch (NumberFormatException e) {
+      throw new UnsupportedSyntaxException();
+    }
+  }
+
+  @Nonnull
+  private Info parseAtom() {
+    char c = myPattern.charAt(myPos++);
+    switch (c) {
+      case '(':
+        return parseGroup();
+      case '[':
+        return parseClass();
+      case '.':
+        return Info.anyString();
+      case '^':
+      case '$':
+        return Info.emptyString();
+      case '\\':
+        return parseEscape();
+      case '*':
+      case '+':
+      case '?':
+      case '{':
+        throw new UnsupportedSyntaxException(); // dangling quantifier
+      default:
+        return Info.exact(Collections.singleton(lower(c)));
+    }
+  }
+
+  @Nonnull
+  private Info parseGroup() {
+    boolean lookaround = false;
+    if (myPattern.startsWith("?", myPos)) {
+      myPos++;
+      if (myPos >= myPattern.length()) throw new UnsupportedSyntaxException();
+      char kind = myPattern.charAt(myPos);
+      if (kind == ':' || kind == '>') {
+        myPos++;
+      }
+      else if (kind == '=' || kind == '!') {
+        myPos++;
+        lookaround = true;
+      }
+      else if (kind == '<' && myPos + 1 < myPattern.length() && (myPattern.charAt(myPos + 1) == '=' || myPattern.charAt(myPos + 1) == '!')) {
+        myPos += 2;
+        lookaround = true;
+      }
+      else if (kind == '<') {
+        // named group
+        int close = myPattern.indexOf('>', myPos);
+        if (close < 0) throw new UnsupportedSyntaxException();
+        myPos = close + 1;
+      }
+      else {
+        // flags, e.g. (?i) or (?i:...); case is ignored anyway, but (?x) changes the meaning of whitespace
+        int end = myPos;
+        while (end < myPattern.length() && myPattern.charAt(end) != ')' && myPattern.charAt(end) != ':') end++;
+        if (end >= myPattern.length() || myPattern.substring(myPos, end).contains("x")) throw new UnsupportedSyntaxException();
+        myPos = end + 1;
+        if (myPattern.charAt(end) == ')') return Info.emptyString();
+      }
+    }
+    Info result = parseAlternation();
+    if (myPos >= myPattern.length() || myPattern.charAt(myPos) != ')') throw new UnsupportedSyntaxException();
+    myPos++;
+    // lookarounds don't consume text, what they look at may overlap with the rest of the match
+    return lookaround ? Info.emptyString() : result;
+  }
+
+  @Nonnull
+  private Info parseClass() {
+    Set<String> chars = new LinkedHashSet<>();
+    boolean negated = myPattern.startsWith("^", myPos);
+    if (negated) myPos++;
+    boolean first = true;
+    boolean tooBig = negated;
+    while (true) {
+      if (myPos >= myPattern.length()) throw new UnsupportedSyntaxException();
+      char c = myPattern.charAt(myPos++);
+      if (c == ']' && !first) break;
+      first = false;
+      if (c == '[' || c == '&' && myPattern.startsWith("&", myPos)) {
+        // unions and intersections of classes
+        skipClass(c == '[' ? 1 : 0);
+        tooBig = true;
+        break;
+      }
+      int from;
+      if (c == '\\') {
+        if (myPos >= myPattern.length()) throw new UnsupportedSyntaxException();
+        int escaped = parseEscapedChar();
+        if (escaped < 0) {
+          tooBig = true;
+          continue;
+        }
+        from = escaped;
+      }
+      else {
+        from = c;
+      }
+      int to = from;
+      if (myPos + 1 < myPattern.length() && myPattern.charAt(myPos) == '-' && myPattern.charAt(myPos + 1) != ']') {
+        myPos++;
+        char next = myPattern.charAt(myPos++);
+        if (next == '\\') {
+          to = parseEscapedChar();
+          if (to < 0) throw new UnsupportedSyntaxException();
+        }
+        else {
+          to = next;
+        }
+      }
+      if (to - from >= MAX_SET) {
+        tooBig = true;
+        continue;
+      }
+      for (int ch = from; ch <= to && !tooBig; ch++) {
+        chars.add(lower((char)ch));
+      }
+      if (chars.size() > MAX_SET) tooBig = true;
+    }
+    return tooBig ? Info.anyString() : Info.exact(chars);
+  }
+
+  // skips the rest of the class with nested classes, depth is the number of already opened nested classes
+  private void skipClass(int depth) {
+    while (myPos < myPattern.length()) {
+      char c = myPattern.charAt(myPos++);
+      if (c == '\\') {
+        myPos++;
+      }
+      else if (c == '[') {
+        depth++;
+      }
+      else if (c == ']' && depth-- == 0) {
+        return;
+      }
+    }
+    throw new UnsupportedSyntaxException();
+  }
+
+  @Nonnull
+  private Info parseEscape() {
+    if (myPos >= myPattern.length()) throw new UnsupportedSyntaxException();
+    char c = myPattern.charAt(myPos);
+    switch (c) {
+      case 'b':
+      case 'B':
+      case 'A':
+      case 'z':
+      case 'Z':
+      case 'G':
+        myPos++;
+        return Info.emptyString();
+      case 'Q': {
+        int end = myPattern.indexOf("\\E", myPos + 1);
+        String quoted = myPattern.substring(myPos + 1, end < 0 ? myPattern.length() : end);
+        myPos = end < 0 ? myPattern.length() : end + 2;
+        return Info.exact(Collections.singleton(StringUtil.toLowerCase(quoted)));
+      }
+      default:
+        if (c >= '1' && c <= '9' || c == 'k') throw new UnsupportedSyntaxException(); // back reference
+        int escaped = parseEscapedChar();
+        return escaped < 0 ? Info.anyString() : Info.exact(Collections.singleton(lower((char)escaped)));
+    }
+  }
+
+  // parses an escaped char after the backslash, returns -1 for predefined classes like \d or \p{Alpha}
+  private int parseEscapedChar() {
+    char c = myPattern.charAt(myPos++);
+    switch (c) {
+      case 't':
+        return '\t';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 'f':
+        return '\f';
+      case 'a':
+        return '\u0007';
+      case 'e':
+        return '\u001B';
+      case '0': {
+        int end = myPos;
+        while (end < myPattern.length() && end < myPos + 3 && myPattern.charAt(end) >= '0' && myPattern.charAt(end) <= '7') end++;
+        return parseCode(myPos, end, 8);
+      }
+      case 'x':
+        if (myPattern.startsWith("{", myPos)) {
+          int close = myPattern.indexOf('}', myPos);
+          if (close < 0) throw new UnsupportedSyntaxException();
+          int code = parseCode(myPos + 1, close, 16);
+          myPos = close + 1;
+          return code > Character.MAX_VALUE ? -1 : code;
+        }
+        return parseCode(myPos, myPos + 2, 16);
+      case 'u':
+        return parseCode(myPos, myPos + 4, 16);
+      case 'c':
+        if (myPos >= myPattern.length()) throw new UnsupportedSyntaxException();
+        return myPattern.charAt(myPos++) ^ 64;
+      case 'p':
+      case 'P':
+        if (myPattern.startsWith("{", myPos)) {
+          int close = myPattern.indexOf('}', myPos);
+          if (close < 0) throw new UnsupportedSyntaxException();
+          myPos = close + 1;
+        }
+        else {
+          myPos++;
+        }
+        return -1;
+      default:
+        if (Character.isLetterOrDigit(c)) return -1; // \d, \w, \s, \h, \R and others
+        return c;
+    }
+  }
+
+  private int parseCode(int from, int to, int radix) {
+    if (to > myPattern.length() || from >= to) throw new UnsupportedSyntaxException();
+    try {
+      int code = Integer.parseInt(myPattern.substring(from, to), radix);
+      myPos = to;
+      return code;
+    }
+    catch (NumberFormatException e) {
+      throw new UnsupportedSyntaxException();
+    }
+  }
+
+  @Nonnull
+  private static String lower(char c) {
+    return String.valueOf(StringUtil.toLowerCase(c));
+  }
+
+  @Nonnull
+  private static Info concat(@Nonnull Info x, @Nonnull Info y) {
+    if (x.myExact != null && y.myExact != null && x.myExact.size() * y.myExact.size() <= MAX_EXACT) {
+      return Info.exact(cross(x.myExact, y.myExact));
+    }
+    Info ix = x.toInexact();
+    Info iy = y.toInexact();
+    TrigramQuery match = TrigramQuery.and(ix.myMatch, iy.myMatch);
+    // trigrams crossing the boundary of the parts
+    if (ix.mySuffix.size() * iy.myPrefix.size() <= MAX_SET) {
+      match = TrigramQuery.and(match, anyOf(cross(ix.mySuffix, iy.myPrefix)));
+    }
+    Set<String> prefix = x.myExact != null && x.myExact.size() * iy.myPrefix.size() <= MAX_SET ? cross(x.myExact, iy.myPrefix) : ix.myPrefix;
+    Set<String> suffix = y.myExact != null && ix.mySuffix.size() * y.myExact.size() <= MAX_SET ? cross(ix.mySuffix, y.myExact) : iy.mySuffix;
+    return Info.inexact(prefix, suffix, match);
+  }
+
+  @Nonnull
+  private static Info alternate(@Nonnull Info x, @Nonnull Info y) {
+    if (x.myExact != null && y.myExact != null && x.myExact.size() + y.myExact.size() <= MAX_EXACT) {
+      return Info.exact(union(x.myExact, y.myExact));
+    }
+    Info ix = x.toInexact();
+    Info iy = y.toInexact();
+    return Info.inexact(union(ix.myPrefix, iy.myPrefix), union(ix.mySuffix, iy.mySuffix), TrigramQuery.or(ix.myMatch, iy.myMatch));
+  }
+
+  @Nonnull
+  private static Info repeat(@Nonnull Info x, int min, int max) {
+    if (max == 0) return Info.emptyString();
+    if (min == 0) {
+      return max == 1 ? alternate(x, Info.emptyString()) : Info.anyString();
+    }
+    if (min == 1 && max == 1) return x;
+    // x{n,m} starts with a match of x and ends with a match of x
+    return x.toInexact();
+  }
+
+  @Nonnull
+  private static TrigramQuery anyOf(@Nonnull Set<String> strings) {
+    TrigramQuery result = TrigramQuery.NONE;
+    for (String string : strings) {
+      result = TrigramQuery.or(result, TrigramQuery.ofText(string));
+    }
+    return result;
+  }
+
+  @Nonnull
+  private static Set<String> cross(@Nonnull Set<String> left, @Nonnull Set<String> right) {
+    Set<String> result = new LinkedHashSet<>();
+    for (String l : left) {
+      for (String r : right) {
+        result.add(l + r);
+      }
+    }
+    return result;
+  }
+
+  @Nonnull
+  private static Set<String> union(@Nonnull Set<String> s1, @Nonnull Set<String> s2) {
+    Set<String> result = new LinkedHashSet<>(s1);
+    result.addAll(s2);
+    return result;
+  }
+
+  private static final class Info {
+    // all strings the expression matches, null if unknown or too many
+    @Nullable
+    private final Set<String> myExact;
+    // every match starts with one of the prefixes and ends with one of the suffixes, valid when myExact is null
+    private final Set<String> myPrefix;
+    private final Set<String> mySuffix;
+    // every match satisfies the query, valid when myExact is null
+    private final TrigramQuery myMatch;
+
+    private Info(@Nullable Set<String> exact, @Nonnull Set<String> prefix, @Nonnull Set<String> suffix, @Nonnull TrigramQuery match) {
+      myExact = exact;
+      myPrefix = prefix;
+      mySuffix = suffix;
+      myMatch = match;
+    }
+
+    @Nonnull
+    private static Info exact(@Nonnull Set<String> strings) {
+      return new Info(strings, Collections.emptySet(), Collections.emptySet(), TrigramQuery.ALL);
+    }
+
+    @Nonnull
+    private static Info emptyString() {
+      return exact(Collections.singleton(""));
+    }
+
+    @Nonnull
+    private static Info anyString() {
+      Set<String> empty = Collections.singleton("");
+      return new Info(null, empty, empty, TrigramQuery.ALL);
+    }
+
+    /**
+     * Trigrams of prefixes and suffixes go to the match query, and they are cut to two chars: only these can form trigrams with
+     * neighbour expressions.
+     */
+    @Nonnull
+    private static Info inexact(@Nonnull Set<String> prefix, @Nonnull Set<String> suffix, @Nonnull TrigramQuery match) {
+      match = TrigramQuery.and(match, TrigramQuery.and(anyOf(prefix), anyOf(suffix)));
+      return new Info(null, trim(prefix, true), trim(suffix, false), match);
+    }
+
+    @Nonnull
+    private static Set<String> trim(@Nonnull Set<String> strings, boolean prefix) {
+      Set<String> result = new LinkedHashSet<>();
+      for (String s : strings) {
+        result.add(s.length() <= 2 ? s : prefix ? s.substring(0, 2) : s.substring(s.length() - 2));
+      }
+      return result.size() > MAX_SET ? Collections.singleton("") : result;
+    }
+
+    @Nonnull
+    private Info toInexact() {
+      return myExact == null ? this : inexact(myExact, myExact, TrigramQuery.ALL);
+    }
+  }
+
+  private static class UnsupportedSyntaxException extends RuntimeException {
+    private UnsupportedSyntaxException() {
+      super(null, null, false, false);
+    }
+  }
+}
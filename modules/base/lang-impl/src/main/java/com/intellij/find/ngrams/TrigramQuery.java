@@ -0,0 +1,343 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.text.TrigramBuilder;
+import com.intellij.openapi.vfs.CompactVirtualFileSet;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.Processor;
+import com.intellij.util.indexing.FileBasedIndex;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Boolean combination of trigrams a file must contain in {@link TrigramIndex}: either all of them ({@link Kind#AND}) or any of them
+ * ({@link Kind#OR}), together with the same kind of combination of sub-queries.
+ * <p>
+ * Queries are built with {@link #and}, {@link #or} and {@link #ofText}, which simplify them on the fly, and evaluated against the index
+ * with set intersections and unions by {@link #findFiles}.
+ *
+ * @author VISTALL
+ * @since 2020-06-17
+ */
+public final class TrigramQuery {
+  public enum Kind {
+    /**
+     * any file matches
+     */
+    ALL,
+    /**
+     * no file matches
+     */
+    NONE,
+    AND,
+    OR
+  }
+
+  public static final TrigramQuery ALL = new TrigramQuery(Kind.ALL, new int[0], Collections.emptyList());
+  public static final TrigramQuery NONE = new TrigramQuery(Kind.NONE, new int[0], Collections.emptyList());
+
+  private final Kind myKind;
+  // sorted, distinct
+  private final int[] myTrigrams;
+  private final List<TrigramQuery> mySubQueries;
+
+  private TrigramQuery(@Nonnull Kind kind, @Nonnull int[] trigrams, @Nonnull List<TrigramQuery> subQueries) {
+    myKind = kind;
+    myTrigrams = trigrams;
+    mySubQueries = subQueries;
+  }
+
+  @Nonnull
+  public Kind getKind() {
+    return myKind;
+  }
+
+  public boolean isAll() {
+    return myKind == Kind.ALL;
+  }
+
+  /**
+   * @return sorted trigrams combined by the kind of the query
+   */
+  @Nonnull
+  public int[] getTrigrams() {
+    return myTrigrams.clone();
+  }
+
+  @Nonnull
+  public List<TrigramQuery> getSubQueries() {
+    return Collections.unmodifiableList(mySubQueries);
+  }
+
+  /**
+   * @return query which matches files containing all trigrams of the text, {@link #ALL} if the text has none
+   */
+  @Nonnull
+  public static TrigramQuery ofText(@Nonnull CharSequence text) {
+    TIntArrayList trigrams = new TIntArrayList();
+    TrigramBuilder.processTrigrams(text, new TrigramBuilder.TrigramProcessor() {
+      @Override
+      public boolean execute(int value) {
+        trigrams.add(value);
+        return true;
+      }
+    });
+    if (trigrams.isEmpty()) return ALL;
+    trigrams.sort();
+    return new TrigramQuery(Kind.AND, trigrams.toNativeArray(), Collections.emptyList());
+  }
+
+  @Nonnull
+  public static TrigramQuery and(@Nonnull TrigramQuery q1, @Nonnull TrigramQuery q2) {
+    return combine(Kind.AND, q1, q2);
+  }
+
+  @Nonnull
+  public static TrigramQuery or(@Nonnull TrigramQuery q1, @Nonnull TrigramQuery q2) {
+    return combine(Kind.OR, q1, q2);
+  }
+
+  @Nonnull
+  private static TrigramQuery combine(@Nonnull Kind kind, @Nonnull TrigramQuery q1, @Nonnull TrigramQuery q2) {
+    // ALL is the identity of AND and absorbs OR, NONE is the other way round
+    TrigramQuery identity = kind == Kind.AND ? ALL : NONE;
+    TrigramQuery absorbing = kind == Kind.AND ? NONE : ALL;
+    if (q1 == absorbing || q2 == absorbing) return absorbing;
+    if (q1 == identity) return q2;
+    if (q2 == identity || q1.equals(q2)) return q1;
+
+    // a single trigram means the same for both kinds
+    if (q1.isSingleTrigram()) q1 = new TrigramQuery(kind, q1.myTrigrams, Collections.emptyList());
+    if (q2.isSingleTrigram()) q2 = new TrigramQuery(kind, q2.myTrigrams, Collections.emptyList());
+
+    TIntHashSet trigrams = new TIntHashSet();
+    Set<TrigramQuery> subQueries = new LinkedHashSet<>();
+    for (TrigramQuery q : new TrigramQuery[]{q1, q2}) {
+      if (q.myKind == kind) {
+        trigrams.addAll(q.myTrigrams);
+        subQueries.addAll(q.mySubQueries);
+      }
+      else {
+        subQueries.add(q);
+      }
+    }
+    int[] sorted = trigrams.toArray();
+    Arrays.sort(sorted);
+    return new TrigramQuery(kind, sorted, new ArrayList<>(subQueries));
+  }
+
+  private boolean isSingleTrigram() {
+    return myTrigrams.length == 1 && mySubQueries.isEmpty();
+  }
+
+  /**
+   * @return files in the scope which contain trigrams required by the query, null if the query is {@link #ALL}
+   */
+  @Nullable
+  public Set<VirtualFile> findFiles(@Nonnull GlobalSearchScope scope) {
+    return findFiles(new IndexedFiles(scope));
+  }
+
+  @Nullable
+  Set<VirtualFile> findFiles(@Nonnull FileIndex index) {
+    switch (myKind) {
+      case ALL:
+        return null;
+      case NONE:
+        return Collections.emptySet();
+      case AND:
+        return findFilesWithAll(index);
+      default:
+        return findFilesWithAny(index);
+    }
+  }
+
+  /**
+   * Files by the trigrams they contain, {@link TrigramIndex} restricted to a scope outside of tests.
+   */
+  interface FileIndex {
+    /**
+     * @return empty mutable set the found files are collected into
+     */
+    @Nonnull
+    Set<VirtualFile> createFileSet();
+
+    void processFilesWithAll(@Nonnull Set<Integer> trigrams, @Nonnull Processor<VirtualFile> processor);
+
+    void processFilesWithAny(@Nonnull Set<Integer> trigrams, @Nonnull Processor<VirtualFile> processor);
+  }
+
+  private static final class IndexedFiles implements FileIndex {
+    private final GlobalSearchScope myScope;
+
+    private IndexedFiles(@Nonnull GlobalSearchScope scope) {
+      myScope = scope;
+    }
+
+    @Nonnull
+    @Override
+    public Set<VirtualFile> createFileSet() {
+      return new CompactVirtualFileSet();
+    }
+
+    @Override
+    public void processFilesWithAll(@Nonnull Set<Integer> trigrams, @Nonnull Processor<VirtualFile> processor) {
+      ProgressManager.checkCanceled();
+      FileBasedIndex.getInstance().getFilesWithKey(TrigramIndex.INDEX_ID, trigrams, processor, myScope);
+    }
+
+    @Override
+    public void processFilesWithAny(@Nonnull Set<Integer> trigrams, @Nonnull Processor<VirtualFile> processor) {
+      ProgressManager.checkCanceled();
+      FileBasedIndex.getInstance().processFilesContainingAnyKey(TrigramIndex.INDEX_ID, trigrams, myScope, null, null, processor);
+    }
+  }
+
+  @Nonnull
+  private Set<VirtualFile> findFilesWithAll(@Nonnull FileIndex index) {
+    Set<VirtualFile> result = null;
+    if (myTrigrams.length > 0) {
+      result = index.createFileSet();
+      index.processFilesWithAll(trigramSet(), collector(result));
+    }
+    for (TrigramQuery subQuery : mySubQueries) {
+      if (result != null && result.isEmpty()) break;
+      Set<VirtualFile> files = subQuery.findFiles(index);
+      if (files == null) continue;
+      if (result == null) {
+        result = files;
+      }
+      else {
+        result = intersect(result, files, index);
+      }
+    }
+    return result == null ? Collections.emptySet() : result;
+  }
+
+  // CompactVirtualFileSet can't remove files, so the intersection is collected into a new set
+  @Nonnull
+  private static Set<VirtualFile> intersect(@Nonnull Set<VirtualFile> set1, @Nonnull Set<VirtualFile> set2, @Nonnull FileIndex index) {
+    Set<VirtualFile> smaller = set1.size() <= set2.size() ? set1 : set2;
+    Set<VirtualFile> larger = smaller == set1 ? set2 : set1;
+    Set<VirtualFile> result = index.createFileSet();
+    for (VirtualFile file : smaller) {
+      if (larger.contains(file)) result.add(file);
+    }
+    return result;
+  }
+
+  // Set.add returns false for files added before, which would stop the index processing
+  @Nonnull
+  private static Processor<VirtualFile> collector(@Nonnull Set<VirtualFile> result) {
+    return file -> {
+      result.add(file);
+      return true;
+    };
+  }
+
+  @Nullable
+  private Set<VirtualFile> findFilesWithAny(@Nonnull FileIndex index) {
+    Set<VirtualFile> result = index.createFileSet();
+    if (myTrigrams.length > 0) {
+      index.processFilesWithAny(trigramSet(), collector(result));
+    }
+    for (TrigramQuery subQuery : mySubQueries) {
+      Set<VirtualFile> files = subQuery.findFiles(index);
+      if (files == null) return null;
+      result.addAll(files);
+    }
+    return result;
+  }
+
+  @Nonnull
+  private Set<Integer> trigramSet() {
+    Set<Integer> set = new HashSet<>(myTrigrams.length);
+    for (int trigram : myTrigrams) {
+      set.add(trigram);
+    }
+    return set;
+  }
+
+  /**
+   * @return whether a text with these trigrams may match the query
+   */
+  public boolean matches(@Nonnull TIntHashSet textTrigrams) {
+    switch (myKind) {
+      case ALL:
+        return true;
+      case NONE:
+        return false;
+      case AND:
+        for (int trigram : myTrigrams) {
+          if (!textTrigrams.contains(trigram)) return false;
+        }
+        for (TrigramQuery subQuery : mySubQueries) {
+          if (!subQuery.matches(textTrigrams)) return false;
+        }
+        return true;
+      default:
+        for (int trigram : myTrigrams) {
+          if (textTrigrams.contains(trigram)) return true;
+        }
+        for (TrigramQuery subQuery : mySubQueries) {
+          if (subQuery.matches(textTrigrams)) return true;
+        }
+        return false;
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof TrigramQuery)) return false;
+    TrigramQuery query = (TrigramQuery)o;
+    return myKind == query.myKind && Arrays.equals(myTrigrams, query.myTrigrams) && mySubQueries.equals(query.mySubQueries);
+  }
+
+  @Override
+  public int hashCode() {
+    return (myKind.hashCode() * 31 + Arrays.hashCode(myTrigrams)) * 31 + mySubQueries.hashCode();
+  }
+
+  /**
+   * Trigrams are printed as text, e.g. {@code abc AND (def OR ghi)}
+   */
+  @Override
+  public String toString() {
+    if (myKind == Kind.ALL || myKind == Kind.NONE) return myKind.name();
+    List<String> parts = new ArrayList<>();
+    for (int trigram : myTrigrams) {
+      parts.add(trigramToString(trigram));
+    }
+    for (TrigramQuery subQuery : mySubQueries) {
+      parts.add(subQuery.myKind == Kind.AND || subQuery.myKind == Kind.OR ? "(" + subQuery + ")" : subQuery.toString());
+    }
+    return String.join(" " + myKind.name() + " ", parts);
+  }
+
+  // exact for trigrams of chars below 256 only, as TrigramBuilder packs chars into 8 bits
+  @Nonnull
+  private static String trigramToString(int trigram) {
+    return new String(new char[]{(char)((trigram >> 16) & 0xFF), (char)((trigram >> 8) & 0xFF), (char)(trigram & 0xFF)});
+  }
+}
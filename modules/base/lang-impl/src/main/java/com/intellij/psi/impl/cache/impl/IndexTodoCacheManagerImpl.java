@@ -36,9 +36,10 @@ import javax.annotation.Nonnull;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -65,21 +66,21 @@ public class IndexTodoCacheManagerImpl extends TodoCacheManager {
     final FileBasedIndex fileBasedIndex = FileBasedIndex.getInstance();
     final Set<PsiFile> allFiles = new HashSet<>();
     final ProjectFileIndex projectFileIndex = ProjectRootManager.getInstance(myProject).getFileIndex();
+    final List<TodoIndexEntry> entries = new ArrayList<>();
     for (IndexPattern indexPattern : IndexPatternUtil.getIndexPatterns()) {
-      final Collection<VirtualFile> files = fileBasedIndex.getContainingFiles(
-              TodoIndex.NAME,
-              new TodoIndexEntry(indexPattern.getPatternString(), indexPattern.isCaseSensitive()), GlobalSearchScope.allScope(myProject));
-      ApplicationManager.getApplication().runReadAction(() -> {
-        for (VirtualFile file : files) {
-          if (projectFileIndex.isInContent(file)) {
-            final PsiFile psiFile = myPsiManager.findFile(file);
-            if (psiFile != null) {
-              allFiles.add(psiFile);
-            }
+      entries.add(new TodoIndexEntry(indexPattern.getPatternString(), indexPattern.isCaseSensitive()));
+    }
+    ApplicationManager.getApplication().runReadAction(() -> {
+      fileBasedIndex.processFilesContainingAnyKey(TodoIndex.NAME, entries, GlobalSearchScope.allScope(myProject), null, null, file -> {
+        if (projectFileIndex.isInContent(file)) {
+          final PsiFile psiFile = myPsiManager.findFile(file);
+          if (psiFile != null) {
+            allFiles.add(psiFile);
           }
         }
+        return true;
       });
-    }
+    });
     return allFiles.isEmpty() ? PsiFile.EMPTY_ARRAY : PsiUtilCore.toPsiFileArray(allFiles);
   }
 
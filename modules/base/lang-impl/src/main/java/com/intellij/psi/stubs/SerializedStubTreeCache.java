@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.ThrowableComputable;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.indexing.StorageException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of stub trees read from {@link StubUpdatingIndex}, keyed by file id. Hot files (e.g. library classes during resolve) are read
+ * from the index storage again and again, every read copies the serialized tree out of the values file. Cached trees are shared:
+ * {@link SerializedStubTree#getStub(boolean)} deserializes a fresh lazy stub tree on every call, since stub trees get bound to PSI.
+ * <p>
+ * The cache is bounded by the total size of serialized trees ({@code -Didea.stub.tree.cache.size.kb}). The owning index removes
+ * entries of every updated file under its write lock, so a cached tree is the indexed one. While the index keeps data of unsaved documents
+ * in memory the cache is bypassed: those trees are not the stored ones, and they are dropped when the in-memory mode ends.
+ *
+ * @author VISTALL
+ * @since 2020-06-13
+ */
+class SerializedStubTreeCache {
+  private static final long DEFAULT_CAPACITY = Math.min(Runtime.getRuntime().maxMemory() / 64, 32L * 1024 * 1024);
+  private static final long CAPACITY = SystemProperties.getIntProperty("idea.stub.tree.cache.size.kb", (int)(DEFAULT_CAPACITY / 1024)) * 1024L;
+  // one large file shouldn't evict all others
+  private static final long MAX_TREE_SIZE = CAPACITY / 8;
+
+  private final LinkedHashMap<Integer, SerializedStubTree> myTrees = new LinkedHashMap<>(64, 0.75f, true);
+  private long mySize;
+
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+
+  /**
+   * @param inMemoryMode whether the index may return in-memory data of the file instead of the stored one
+   * @param reader       reads the indexed data of the file from the index
+   */
+  @Nonnull
+  Map<Integer, SerializedStubTree> read(int fileId, boolean inMemoryMode, @Nonnull ThrowableComputable<Map<Integer, SerializedStubTree>, StorageException> reader)
+          throws StorageException {
+    if (inMemoryMode) return reader.compute();
+
+    SerializedStubTree cached = get(fileId);
+    if (cached != null) return Collections.singletonMap(fileId, cached);
+
+    Map<Integer, SerializedStubTree> data = reader.compute();
+    SerializedStubTree tree = data.size() == 1 ? data.get(fileId) : null;
+    if (tree != null) {
+      put(fileId, tree);
+    }
+    return data;
+  }
+
+  @Nullable
+  synchronized SerializedStubTree get(int fileId) {
+    SerializedStubTree tree = myTrees.get(fileId);
+    (tree == null ? myMisses : myHits).incrementAndGet();
+    return tree;
+  }
+
+  synchronized void put(int fileId, @Nonnull SerializedStubTree tree) {
+    long size = sizeOf(tree);
+    if (size > MAX_TREE_SIZE) return;
+
+    SerializedStubTree previous = myTrees.put(fileId, tree);
+    if (previous != null) mySize -= sizeOf(previous);
+    mySize += size;
+
+    for (Iterator<SerializedStubTree> iterator = myTrees.values().iterator(); mySize > CAPACITY && iterator.hasNext(); ) {
+      mySize -= sizeOf(iterator.next());
+      iterator.remove();
+    }
+  }
+
+  synchronized void remove(int fileId) {
+    SerializedStubTree previous = myTrees.remove(fileId);
+    if (previous != null) mySize -= sizeOf(previous);
+  }
+
+  synchronized void clear() {
+    myTrees.clear();
+    mySize = 0;
+  }
+
+  // trees built for indexing keep their output buffers, count them as they retain memory
+  private static long sizeOf(@Nonnull SerializedStubTree tree) {
+    return tree.myTreeBytes.length + tree.myIndexedStubBytes.length;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "stub tree cache: " + myTrees.size() + " trees, " + mySize / 1024 + "kb, hits: " + myHits + ", misses: " + myMisses;
+  }
+
+  static boolean isEnabled() {
+    return CAPACITY > 0;
+  }
+}
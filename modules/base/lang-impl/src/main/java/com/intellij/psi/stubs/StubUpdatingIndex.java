@@ -31,6 +31,7 @@ import com.intellij.psi.tree.IFileElementType;
 import com.intellij.psi.tree.IStubFileElementType;
 import com.intellij.util.BitUtil;
 import com.intellij.util.indexing.*;
+import com.intellij.util.indexing.impl.AbstractUpdateData;
 import com.intellij.util.indexing.impl.DebugAssertions;
 import com.intellij.util.indexing.impl.IndexStorage;
 import com.intellij.util.indexing.impl.InputDataDiffBuilder;
@@ -50,6 +51,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 public class StubUpdatingIndex extends SingleEntryFileBasedIndexExtension<SerializedStubTree> implements CustomImplementationFileBasedIndexExtension<Integer, SerializedStubTree> {
   static final Logger LOG = Logger.getInstance(StubUpdatingIndex.class);
@@ -280,6 +282,8 @@ public class StubUpdatingIndex extends SingleEntryFileBasedIndexExtension<Serial
   private static class MyIndex extends VfsAwareMapReduceIndex<Integer, SerializedStubTree, FileContent> {
     private StubIndexImpl myStubIndex;
     private final StubVersionMap myStubVersionMap = new StubVersionMap();
+    @Nullable
+    private final SerializedStubTreeCache myTreeCache = SerializedStubTreeCache.isEnabled() ? new SerializedStubTreeCache() : null;
 
     MyIndex(@Nonnull FileBasedIndexExtension<Integer, SerializedStubTree> extension, @Nonnull IndexStorage<Integer, SerializedStubTree> storage) throws StorageException, IOException {
       super(extension, storage, new EmptyForwardIndex(), new StubUpdatingForwardIndexAccessor(), null, null);
@@ -316,6 +320,57 @@ public class StubUpdatingIndex extends SingleEntryFileBasedIndexExtension<Serial
     }
 
 
+    @Nonnull
+    @Override
+    public Map<Integer, SerializedStubTree> getIndexedFileData(int fileId) throws StorageException {
+      SerializedStubTreeCache cache = myTreeCache;
+      if (cache == null) return super.getIndexedFileData(fileId);
+
+      // updates remove cached trees under the write lock, so a tree read here can't be put into the cache after its file was reindexed
+      Lock lock = getReadLock();
+      lock.lock();
+      try {
+        return cache.read(fileId, isInMemoryMode(), () -> super.getIndexedFileData(fileId));
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void updateWithMap(@Nonnull AbstractUpdateData<Integer, SerializedStubTree> updateData) throws StorageException {
+      Lock lock = getWriteLock();
+      lock.lock();
+      try {
+        super.updateWithMap(updateData);
+      }
+      finally {
+        invalidateCachedTree(updateData.getInputId());
+        lock.unlock();
+      }
+    }
+
+    private void invalidateCachedTree(int fileId) {
+      if (myTreeCache != null) myTreeCache.remove(fileId);
+    }
+
+    private void invalidateCachedTrees() {
+      if (myTreeCache != null) {
+        if (LOG.isDebugEnabled()) LOG.debug(myTreeCache.toString());
+        myTreeCache.clear();
+      }
+    }
+
+    @Override
+    public void cleanupMemoryStorage() {
+      try {
+        super.cleanupMemoryStorage();
+      }
+      finally {
+        invalidateCachedTrees();
+      }
+    }
+
     @Override
     protected void removeTransientDataForInMemoryKeys(int inputId, @Nonnull Map<? extends Integer, ? extends SerializedStubTree> map) {
       super.removeTransientDataForInMemoryKeys(inputId, map);
@@ -333,6 +388,7 @@ public class StubUpdatingIndex extends SingleEntryFileBasedIndexExtension<Serial
         throw new RuntimeException(e);
       }
       super.removeTransientDataForKeys(inputId, keys);
+      invalidateCachedTree(inputId);
       removeStubIndexKeys(inputId, maps);
     }
 
@@ -357,11 +413,13 @@ public class StubUpdatingIndex extends SingleEntryFileBasedIndexExtension<Serial
         stubIndex.clearAllIndices();
       }
       myStubVersionMap.clear();
+      invalidateCachedTrees();
       super.doClear();
     }
 
     @Override
     protected void doDispose() throws StorageException {
+      invalidateCachedTrees();
       try {
         super.doDispose();
       }
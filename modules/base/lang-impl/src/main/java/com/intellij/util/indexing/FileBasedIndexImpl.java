@@ -11,6 +11,7 @@ import com.intellij.notification.NotificationGroup;
 import com.intellij.notification.NotificationType;
 import com.intellij.openapi.actionSystem.ex.ActionUtil;
 import com.intellij.openapi.application.*;
+import com.intellij.openapi.application.ex.ApplicationManagerEx;
 import com.intellij.openapi.application.impl.LaterInvocator;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.impl.EditorHighlighterCache;
@@ -978,6 +979,22 @@ public final class FileBasedIndexImpl extends FileBasedIndex {
     return set != null && processVirtualFiles(set, filter, processor);
   }
 
+  @Override
+  public <K, V> boolean processFilesContainingAnyKey(@Nonnull ID<K, V> indexId,
+                                                     @Nonnull Collection<? extends K> dataKeys,
+                                                     @Nonnull GlobalSearchScope filter,
+                                                     @Nullable IdFilter idFilter,
+                                                     @Nullable Condition<? super V> valueChecker,
+                                                     @Nonnull Processor<? super VirtualFile> processor) {
+    if (dataKeys.isEmpty()) return true;
+    IdFilter filesFilter = idFilter != null ? idFilter : projectIndexableFiles(filter.getProject());
+    TIntHashSet set = processExceptions(indexId, null, filter, index -> InvertedIndexUtil.collectInputIdsContainingAnyKey(index, dataKeys, __ -> {
+      ProgressManager.checkCanceled();
+      return true;
+    }, valueChecker, filesFilter == null ? null : filesFilter::containsFileId));
+    return set == null || processVirtualFiles(set, filter, processor);
+  }
+
   private static final Key<SoftReference<ProjectIndexableFilesFilter>> ourProjectFilesSetKey = Key.create("projectFiles");
 
   @TestOnly
@@ -1580,7 +1597,10 @@ public final class FileBasedIndexImpl extends FileBasedIndex {
 
             if (IdIndex.ourSnapshotMappingsEnabled) {
               FileType substituteFileType = SubstitutedFileType.substituteFileType(file, fileType, finalProject);
-              byte[] hash = calculateHash(currentBytes, fc.getCharset(), fileType, substituteFileType);
+              byte[] hash = PrecomputedContentHash.get(content, fileType, substituteFileType, fc.getCharset());
+              if (hash == null) {
+                hash = calculateHash(currentBytes, fc.getCharset(), fileType, substituteFileType);
+              }
               fc.setHash(hash);
             }
 
@@ -1618,6 +1638,53 @@ public final class FileBasedIndexImpl extends FileBasedIndex {
     return setIndexedStatus.get();
   }
 
+  /**
+   * Computes the content hash needed by snapshot mappings before the content reaches indexing threads.
+   * Does nothing if a read action can't be started right away, the hash will be computed during indexing then.
+   */
+  void precomputeContentHash(@Nonnull Project project, @Nonnull com.intellij.ide.caches.FileContent content) {
+    if (!IdIndex.ourSnapshotMappingsEnabled) return;
+    VirtualFile file = content.getVirtualFile();
+    ApplicationManagerEx.getApplicationEx().tryRunReadAction(() -> {
+      if (!file.isValid() || file.isDirectory() || isTooLarge(file)) return;
+      byte[] bytes;
+      try {
+        bytes = content.getBytes();
+      }
+      catch (IOException e) {
+        return;
+      }
+      FileType fileType = file.getFileType();
+      FileType substituteFileType = SubstitutedFileType.substituteFileType(file, fileType, project);
+      Charset charset = file.getCharset();
+      content.putUserData(PrecomputedContentHash.KEY, new PrecomputedContentHash(fileType, substituteFileType, charset, calculateHash(bytes, charset, fileType, substituteFileType)));
+    });
+  }
+
+  private static final class PrecomputedContentHash {
+    private static final Key<PrecomputedContentHash> KEY = Key.create("precomputed.content.hash");
+
+    private final FileType myFileType;
+    private final FileType mySubstituteFileType;
+    private final Charset myCharset;
+    private final byte[] myHash;
+
+    private PrecomputedContentHash(FileType fileType, FileType substituteFileType, Charset charset, byte[] hash) {
+      myFileType = fileType;
+      mySubstituteFileType = substituteFileType;
+      myCharset = charset;
+      myHash = hash;
+    }
+
+    @Nullable
+    private static byte[] get(@Nonnull com.intellij.ide.caches.FileContent content, @Nonnull FileType fileType, @Nonnull FileType substituteFileType, @Nonnull Charset charset) {
+      PrecomputedContentHash hash = content.getUserData(KEY);
+      if (hash == null) return null;
+      content.putUserData(KEY, null);
+      return hash.myFileType == fileType && hash.mySubstituteFileType.equals(substituteFileType) && hash.myCharset.equals(charset) ? hash.myHash : null;
+    }
+  }
+
   @Nonnull
   public static byte[] calculateHash(@Nonnull byte[] currentBytes, @Nonnull Charset charset, @Nonnull FileType fileType, @Nonnull FileType substituteFileType) {
     return fileType.isBinary() ? ContentHashesSupport.calcContentHash(currentBytes, substituteFileType) : ContentHashesSupport.calcContentHashWithFileType(currentBytes, charset, substituteFileType);
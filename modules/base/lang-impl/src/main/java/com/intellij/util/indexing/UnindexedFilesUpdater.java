@@ -112,7 +112,7 @@ public class UnindexedFilesUpdater extends DumbModeTask {
   }
 
   private void indexFiles(ProgressIndicator indicator, List<VirtualFile> files) {
-    CacheUpdateRunner.processFiles(indicator, files, myProject, content -> myIndex.indexFileContent(myProject, content));
+    CacheUpdateRunner.processFiles(indicator, files, myProject, content -> myIndex.precomputeContentHash(myProject, content), content -> myIndex.indexFileContent(myProject, content));
   }
 
   @Override
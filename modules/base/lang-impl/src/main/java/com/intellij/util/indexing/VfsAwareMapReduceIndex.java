@@ -371,6 +371,13 @@ public class VfsAwareMapReduceIndex<Key, Value, Input> extends MapReduceIndex<Ke
     return true;
   }
 
+  /**
+   * @return whether data of updated inputs is kept in memory and returned instead of the stored one, see {@link MemoryIndexStorage}
+   */
+  protected boolean isInMemoryMode() {
+    return myInMemoryMode.get();
+  }
+
   private void installMemoryModeListener() {
     IndexStorage<Key, Value> storage = getStorage();
     if (storage instanceof MemoryIndexStorage) {
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.history.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author VISTALL
+ * @since 2020-06-14
+ */
+public class ChangeSetLogTest extends TempDirTestCase {
+  private File myDir;
+  private ChangeSetLog myLog;
+
+  @Before
+  public void setUpLog() throws IOException {
+    myDir = new File(myTempDir, "changes");
+    myLog = new ChangeSetLog(myDir);
+  }
+
+  @After
+  public void closeLog() {
+    myLog.close();
+  }
+
+  @Test
+  public void testEmpty() {
+    assertEquals(0, myLog.getFirstRecord());
+    assertEquals(0, myLog.getLastRecord());
+    assertEquals(0, myLog.getLastId());
+  }
+
+  @Test
+  public void testAppendAndReopen() throws IOException {
+    myLog.setVersionAndFSTimestamp(3, 123);
+    for (int i = 1; i <= 10; i++) {
+      assertEquals(i, myLog.append(i * 10, i, record(i, 100), 100));
+    }
+    assertEquals(10, myLog.getLastRecord());
+    assertEquals(9, myLog.getPrevRecord(10));
+    assertEquals(0, myLog.getPrevRecord(1));
+    assertEquals(50, myLog.getTimestamp(5));
+    assertArrayEquals(record(5, 100), myLog.read(5));
+
+    reopen();
+    assertEquals(3, myLog.getVersion());
+    assertEquals(123, myLog.getFSTimestamp());
+    assertEquals(10, myLog.getLastId());
+    assertEquals(1, myLog.getFirstRecord());
+    assertEquals(10, myLog.getLastRecord());
+    assertArrayEquals(record(10, 100), myLog.read(10));
+  }
+
+  @Test
+  public void testIncompleteRecordIsDropped() throws IOException {
+    myLog.append(1, 1, record(1, 10), 10);
+    myLog.close();
+    try (FileOutputStream out = new FileOutputStream(new File(myDir, "1.log"), true)) {
+      out.write(new byte[]{0, 0, 1, 0, 1, 2});
+    }
+
+    myLog = new ChangeSetLog(myDir);
+    assertEquals(1, myLog.getLastRecord());
+    assertEquals(2, myLog.append(2, 2, record(2, 10), 10));
+    assertArrayEquals(record(2, 10), myLog.read(2));
+  }
+
+  @Test
+  public void testDeleteRecordsDropsSegments() throws IOException {
+    int size = 256 * 1024;
+    int count = (int)(3 * ChangeSetLog.SEGMENT_SIZE / size);
+    for (int i = 1; i <= count; i++) {
+      myLog.append(i, i, record(i, size), size);
+    }
+    int segments = countSegments();
+    assertTrue(segments >= 3);
+
+    myLog.deleteRecordsUpTo(count - 1);
+    assertEquals(count, myLog.getFirstRecord());
+    assertEquals(0, myLog.getPrevRecord(count));
+    assertFalse(myLog.isLive(1));
+    assertEquals(1, countSegments());
+
+    reopen();
+    assertEquals(count, myLog.getFirstRecord());
+    assertEquals(count, myLog.getLastRecord());
+
+    myLog.deleteRecordsUpTo(count);
+    assertEquals(0, myLog.getLastRecord());
+    assertEquals(count + 1, myLog.append(1, 1, record(1, 10), 10));
+  }
+
+  @Test
+  public void testReadingWhileAppending() throws Exception {
+    for (int i = 1; i <= 100; i++) {
+      myLog.append(i, i, record(i, 1000), 1000);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 3; t++) {
+        futures.add(executor.submit(() -> {
+          for (int k = 0; k < 500; k++) {
+            int last = myLog.getLastRecord();
+            for (int record = last; record != 0 && record > last - 20; record = myLog.getPrevRecord(record)) {
+              assertEquals(record <= 100 ? 1000 : 10, myLog.read(record).length);
+            }
+          }
+          return null;
+        }));
+      }
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 2000; i++) {
+          myLog.append(i, i, record(i, 10), 10);
+        }
+        return null;
+      }));
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    assertEquals(2100, myLog.getLastRecord());
+  }
+
+  @Test
+  public void testInterruptedReadsAndAppends() throws IOException {
+    myLog.append(1, 1, record(1, 100), 100);
+
+    // reading from an interrupted thread closes the file channel
+    Thread.currentThread().interrupt();
+    try {
+      assertArrayEquals(record(1, 100), myLog.read(1));
+      assertEquals(2, myLog.append(2, 2, record(2, 100), 100));
+      assertTrue(Thread.currentThread().isInterrupted());
+    }
+    finally {
+      Thread.interrupted();
+    }
+
+    assertArrayEquals(record(1, 100), myLog.read(1));
+    assertEquals(3, myLog.append(3, 3, record(3, 100), 100));
+    reopen();
+    assertEquals(3, myLog.getLastRecord());
+    assertArrayEquals(record(2, 100), myLog.read(2));
+  }
+
+  private void reopen() throws IOException {
+    myLog.close();
+    myLog = new ChangeSetLog(myDir);
+  }
+
+  private int countSegments() {
+    String[] names = myDir.list((dir, name) -> name.endsWith(".log"));
+    return names == null ? 0 : names.length;
+  }
+
+  private static byte[] record(int id, int size) {
+    byte[] result = new byte[size];
+    Arrays.fill(result, (byte)id);
+    return result;
+  }
+}
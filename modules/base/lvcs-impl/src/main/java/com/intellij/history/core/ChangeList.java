@@ -132,21 +132,20 @@ public class ChangeList {
             return result;
           }
 
+          // the storage is safe to read concurrently with writing of a change set, only the current change set needs the lock
           private ChangeSet fetchNext() {
             if (currentBlock == null) {
               synchronized (ChangeList.this) {
                 if (myCurrentChangeSet != null) {
                   currentBlock = new ChangeSetHolder(-1, myCurrentChangeSet);
                 }
-                else {
-                  currentBlock = myStorage.readPrevious(-1, recursionGuard);
-                }
+              }
+              if (currentBlock == null) {
+                currentBlock = myStorage.readPrevious(-1, recursionGuard);
               }
             }
             else {
-              synchronized (ChangeList.this) {
-                currentBlock = myStorage.readPrevious(currentBlock.id, recursionGuard);
-              }
+              currentBlock = myStorage.readPrevious(currentBlock.id, recursionGuard);
             }
             if (currentBlock == null) return null;
             return currentBlock.changeSet;
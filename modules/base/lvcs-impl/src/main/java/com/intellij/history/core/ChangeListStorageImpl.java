@@ -24,11 +24,12 @@ import com.intellij.notification.Notification;
 import com.intellij.notification.NotificationListener;
 import com.intellij.notification.NotificationType;
 import com.intellij.notification.Notifications;
-import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.Clock;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.newvfs.ManagingFS;
 import com.intellij.util.Consumer;
-import com.intellij.util.io.storage.AbstractStorage;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
 import consulo.container.boot.ContainerPathManager;
 import gnu.trove.TIntHashSet;
 import javax.annotation.Nonnull;
@@ -36,30 +37,47 @@ import javax.annotation.Nullable;
 
 import javax.swing.event.HyperlinkEvent;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.MessageFormat;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Change sets are appended to a {@link ChangeSetLog}: reading older change sets doesn't wait for a change set being written, only
+ * writes and purges are serialized.
+ */
 public class ChangeListStorageImpl implements ChangeListStorage {
-  private static final int VERSION = 5;
-  private static final String STORAGE_FILE = "changes";
+  private static final int VERSION = 6;
+  private static final String STORAGE_DIR = "changes";
 
   private final File myStorageDir;
-  private LocalHistoryStorage myStorage;
-  private long myLastId;
+  private volatile ChangeSetLog myStorage;
+  private final AtomicLong myLastId = new AtomicLong();
+  private final Object myWriteLock = new Object();
 
-  private boolean isCompletelyBroken = false;
+  private volatile boolean isCompletelyBroken = false;
 
   public ChangeListStorageImpl(File storageDir) throws IOException {
     myStorageDir = storageDir;
     initStorage(myStorageDir);
   }
 
-  private synchronized void initStorage(File storageDir) throws IOException {
-    String path = storageDir.getPath() + "/" + STORAGE_FILE;
+  private void initStorage(File storageDir) throws IOException {
+    File path = new File(storageDir, STORAGE_DIR);
 
-    LocalHistoryStorage result = new LocalHistoryStorage(path);
+    ChangeSetLog result;
+    try {
+      result = new ChangeSetLog(path);
+    }
+    catch (IOException e) {
+      LocalHistoryLog.LOG.info("cannot open local history, rebuilding...", e);
+      if (!FileUtil.delete(storageDir)) {
+        throw new IOException("cannot clear storage dir: " + storageDir);
+      }
+      result = new ChangeSetLog(path);
+    }
 
     long fsTimestamp = getVFSTimestamp();
 
@@ -72,16 +90,15 @@ public class ChangeListStorageImpl implements ChangeListStorage {
           "local history version mismatch (was: {0}, expected: {1}), rebuilding...", storedVersion, VERSION));
       }
       if (timestampMismatch) LocalHistoryLog.LOG.info("FS has been rebuild, rebuilding local history...");
-      result.dispose();
+      result.close();
       if (!FileUtil.delete(storageDir)) {
         throw new IOException("cannot clear storage dir: " + storageDir);
       }
-      result = new LocalHistoryStorage(path);
-      result.setVersion(VERSION);
-      result.setFSTimestamp(fsTimestamp);
+      result = new ChangeSetLog(path);
+      result.setVersionAndFSTimestamp(VERSION, fsTimestamp);
     }
 
-    myLastId = result.getLastId();
+    myLastId.set(result.getLastId());
     myStorage = result;
   }
 
@@ -89,7 +106,10 @@ public class ChangeListStorageImpl implements ChangeListStorage {
     return ManagingFS.getInstance().getCreationTimestamp();
   }
 
-  private void handleError(Throwable e, @Nullable String message) {
+  private synchronized void handleError(@Nonnull ChangeSetLog storage, Throwable e, @Nullable String message) {
+    // another reader or the writer has already rebuilt the storage
+    if (storage != myStorage) return;
+
     long storageTimestamp = -1;
 
     long vfsTimestamp = getVFSTimestamp();
@@ -108,14 +128,16 @@ public class ChangeListStorageImpl implements ChangeListStorage {
                               ",storage timestamp:" + DateFormat.getDateTimeInstance().format(storageTimestamp) +
                               ",vfs timestamp:" + DateFormat.getDateTimeInstance().format(vfsTimestamp) + ")\n" + message, e);
 
-    myStorage.dispose();
-    try {
-      FileUtil.delete(myStorageDir);
-      initStorage(myStorageDir);
-    }
-    catch (Throwable ex) {
-      LocalHistoryLog.LOG.error("cannot recreate storage", ex);
-      isCompletelyBroken = true;
+    synchronized (myWriteLock) {
+      myStorage.close();
+      try {
+        FileUtil.delete(myStorageDir);
+        initStorage(myStorageDir);
+      }
+      catch (Throwable ex) {
+        LocalHistoryLog.LOG.error("cannot recreate storage", ex);
+        isCompletelyBroken = true;
+      }
     }
 
     notifyUser("Local History storage file has become corrupted and will be rebuilt.");
@@ -149,38 +171,44 @@ public class ChangeListStorageImpl implements ChangeListStorage {
                                               }), null);
   }
 
-  public synchronized void close() {
-    myStorage.dispose();
+  public void close() {
+    synchronized (myWriteLock) {
+      myStorage.close();
+    }
   }
 
-  public synchronized long nextId() {
-    return ++myLastId;
+  public long nextId() {
+    return myLastId.incrementAndGet();
   }
 
   @Nullable
-  public synchronized ChangeSetHolder readPrevious(int id, TIntHashSet recursionGuard) {
+  public ChangeSetHolder readPrevious(int id, TIntHashSet recursionGuard) {
     if (isCompletelyBroken) return null;
 
+    ChangeSetLog storage = myStorage;
     int prevId = 0;
     try {
-      prevId = id == -1 ? myStorage.getLastRecord() : doReadPrevSafely(id, recursionGuard);
+      prevId = id == -1 ? storage.getLastRecord() : doReadPrevSafely(storage, id, recursionGuard);
       if (prevId == 0) return null;
 
-      return doReadBlock(prevId);
+      return doReadBlock(storage, prevId);
     }
     catch (Throwable e) {
+      // purged while it was being read
+      if (prevId != 0 && !storage.isLive(prevId)) return null;
+
       String message = null;
       if (prevId != 0) {
         try {
-          Pair<Long, Integer> prevOS = myStorage.getOffsetAndSize(prevId);
-          long prevRecordTimestamp = myStorage.getTimestamp(prevId);
-          int lastRecord = myStorage.getLastRecord();
-          Pair<Long, Integer> lastOS = myStorage.getOffsetAndSize(lastRecord);
-          long lastRecordTimestamp = myStorage.getTimestamp(lastRecord);
+          long prevOffset = storage.getOffset(prevId);
+          long prevRecordTimestamp = storage.getTimestamp(prevId);
+          int lastRecord = storage.getLastRecord();
+          long lastOffset = storage.getOffset(lastRecord);
+          long lastRecordTimestamp = storage.getTimestamp(lastRecord);
 
-          message = "invalid record is: " + prevId + " offset: " + prevOS.first + " size: " + prevOS.second
+          message = "invalid record is: " + prevId + " offset: " + prevOffset
                     + " (created " + DateFormat.getDateTimeInstance().format(prevRecordTimestamp) + ") "
-                    + "last record is: " + lastRecord + " offset: " + lastOS.first + " size: " + lastOS.second
+                    + "last record is: " + lastRecord + " offset: " + lastOffset
                     + " (created " + DateFormat.getDateTimeInstance().format(lastRecordTimestamp) + ")";
         }
         catch (Exception e1) {
@@ -188,71 +216,73 @@ public class ChangeListStorageImpl implements ChangeListStorage {
         }
       }
 
-      handleError(e, message);
+      handleError(storage, e, message);
       return null;
     }
   }
 
   @Nonnull
-  private ChangeSetHolder doReadBlock(int id) throws IOException {
-    DataInputStream in = myStorage.readStream(id);
-    try {
+  private static ChangeSetHolder doReadBlock(@Nonnull ChangeSetLog storage, int id) throws IOException {
+    byte[] bytes = storage.read(id);
+    try (DataInputStream in = new DataInputStream(new UnsyncByteArrayInputStream(bytes))) {
       return new ChangeSetHolder(id, new ChangeSet(in));
     }
-    finally {
-      in.close();
-    }
   }
 
-  public synchronized void writeNextSet(ChangeSet changeSet) {
+  public void writeNextSet(ChangeSet changeSet) {
     if (isCompletelyBroken) return;
 
+    // serialized outside of the lock, a large change set doesn't delay other writers longer than its append
+    BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+    ChangeSetLog storage = myStorage;
     try {
-      AbstractStorage.StorageDataOutput out = myStorage.writeStream(myStorage.createNextRecord(), true);
-      try {
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
         changeSet.write(out);
       }
-      finally {
-        out.close();
+      synchronized (myWriteLock) {
+        storage = myStorage;
+        storage.append(Clock.getTime(), myLastId.get(), bytes.getInternalBuffer(), bytes.size());
       }
-      myStorage.setLastId(myLastId);
-      myStorage.force();
     }
     catch (IOException e) {
-      handleError(e, null);
+      handleError(storage, e, null);
     }
   }
 
-  public synchronized void purge(long period, int intervalBetweenActivities, Consumer<ChangeSet> processor) {
+  public void purge(long period, int intervalBetweenActivities, Consumer<ChangeSet> processor) {
     if (isCompletelyBroken) return;
 
     TIntHashSet recursionGuard = new TIntHashSet(1000);
 
+    ChangeSetLog storage = myStorage;
     try {
-      int firstObsoleteId = findFirstObsoleteBlock(period, intervalBetweenActivities, recursionGuard);
-      if (firstObsoleteId == 0) return;
+      synchronized (myWriteLock) {
+        storage = myStorage;
+        int firstObsoleteId = findFirstObsoleteBlock(storage, period, intervalBetweenActivities, recursionGuard);
+        if (firstObsoleteId == 0) return;
 
-      int eachBlockId = firstObsoleteId;
+        int eachBlockId = firstObsoleteId;
 
-      while (eachBlockId != 0) {
-        processor.consume(doReadBlock(eachBlockId).changeSet);
-        eachBlockId = doReadPrevSafely(eachBlockId, recursionGuard);
+        while (eachBlockId != 0) {
+          processor.consume(doReadBlock(storage, eachBlockId).changeSet);
+          eachBlockId = doReadPrevSafely(storage, eachBlockId, recursionGuard);
+        }
+        storage.deleteRecordsUpTo(firstObsoleteId);
       }
-      myStorage.deleteRecordsUpTo(firstObsoleteId);
-      myStorage.force();
     }
     catch (IOException e) {
-      handleError(e, null);
+      handleError(storage, e, null);
     }
   }
 
-  private int findFirstObsoleteBlock(long period, int intervalBetweenActivities, TIntHashSet recursionGuard) throws IOException {
+  private static int findFirstObsoleteBlock(@Nonnull ChangeSetLog storage, long period, int intervalBetweenActivities, TIntHashSet recursionGuard)
+          throws IOException {
     long prevTimestamp = 0;
     long length = 0;
 
-    int last = myStorage.getLastRecord();
+    int last = storage.getLastRecord();
     while (last != 0) {
-      long t = myStorage.getTimestamp(last);
+      long t = storage.getTimestamp(last);
       if (prevTimestamp == 0) prevTimestamp = t;
 
       long delta = prevTimestamp - t;
@@ -263,15 +293,15 @@ public class ChangeListStorageImpl implements ChangeListStorage {
 
       if (length >= period) return last;
 
-      last = doReadPrevSafely(last, recursionGuard);
+      last = doReadPrevSafely(storage, last, recursionGuard);
     }
 
     return 0;
   }
 
-  private int doReadPrevSafely(int id, TIntHashSet recursionGuard) throws IOException {
+  private static int doReadPrevSafely(@Nonnull ChangeSetLog storage, int id, TIntHashSet recursionGuard) throws IOException {
     recursionGuard.add(id);
-    int prev = myStorage.getPrevRecord(id);
+    int prev = storage.getPrevRecord(id);
     if (!recursionGuard.add(prev)) throw new IOException("Recursive records found");
     return prev;
   }
@@ -0,0 +1,497 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.history.core;
+
+import com.intellij.history.utils.LocalHistoryLog;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.ArrayUtil;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only storage of local history records split into segment files.
+ * <p>
+ * Records are numbered sequentially from 1 and are only appended to the last (active) segment, by a single writer at a time. A segment
+ * which reached {@link #SEGMENT_SIZE} is sealed and never changes again. Readers don't take locks: the writer publishes an immutable
+ * {@link Snapshot} after every append, and records are read with positional reads which don't interfere with appends.
+ * A reader interrupted during a read closes the file channel for everybody, so a segment reopens its channel in this case instead of
+ * reporting an error, which would make the caller rebuild the whole local history.
+ * <p>
+ * Deleting old records only moves the first live record forward, segments which contain no live records are then deleted as whole files.
+ *
+ * @author VISTALL
+ * @since 2020-06-14
+ */
+public class ChangeSetLog implements Closeable {
+  static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+
+  private static final String META_FILE = "meta";
+  private static final String SEGMENT_EXTENSION = ".log";
+  // record length, timestamp, last id
+  private static final int RECORD_HEADER_SIZE = 4 + 8 + 8;
+
+  private final File myDir;
+  private final Object myWriteLock = new Object();
+
+  private int myVersion;
+  private long myFSTimestamp;
+
+  private volatile Snapshot mySnapshot;
+
+  public ChangeSetLog(@Nonnull File dir) throws IOException {
+    myDir = dir;
+    FileUtil.ensureExists(dir);
+
+    int firstRecord = 1;
+    File metaFile = new File(dir, META_FILE);
+    if (metaFile.exists()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(metaFile)))) {
+        myVersion = in.readInt();
+        myFSTimestamp = in.readLong();
+        firstRecord = in.readInt();
+      }
+    }
+
+    List<Segment> segments = new ArrayList<>();
+    try {
+      for (int segmentStart : listSegments(dir)) {
+        File file = getSegmentFile(dir, segmentStart);
+        Segment segment = Segment.open(file, segmentStart);
+        if (!segments.isEmpty() && segments.get(segments.size() - 1).getRecordsEnd() != segmentStart) {
+          segment.close();
+          throw new IOException("Local history segment " + file + " doesn't follow the previous one");
+        }
+        segments.add(segment);
+      }
+    }
+    catch (IOException e) {
+      for (Segment segment : segments) {
+        segment.close();
+      }
+      throw e;
+    }
+
+    long lastId = 0;
+    int nextRecord = firstRecord;
+    if (!segments.isEmpty()) {
+      Segment last = segments.get(segments.size() - 1);
+      last.truncateIncompleteRecord();
+      if (last.myCount > 0) lastId = last.readLastId(last.myCount - 1);
+      nextRecord = Math.max(nextRecord, last.getRecordsEnd());
+    }
+    mySnapshot = new Snapshot(segments.toArray(new Segment[0]), firstRecord, nextRecord, lastId);
+    dropObsoleteSegments();
+  }
+
+  @Nonnull
+  private static int[] listSegments(@Nonnull File dir) {
+    String[] names = dir.list();
+    if (names == null) return ArrayUtil.EMPTY_INT_ARRAY;
+
+    int[] result = new int[names.length];
+    int count = 0;
+    for (String name : names) {
+      if (!name.endsWith(SEGMENT_EXTENSION)) continue;
+      try {
+        result[count++] = Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+      }
+      catch (NumberFormatException ignored) {
+      }
+    }
+    result = Arrays.copyOf(result, count);
+    Arrays.sort(result);
+    return result;
+  }
+
+  @Nonnull
+  private static File getSegmentFile(@Nonnull File dir, int segmentStart) {
+    return new File(dir, segmentStart + SEGMENT_EXTENSION);
+  }
+
+  public int getVersion() {
+    return myVersion;
+  }
+
+  public long getFSTimestamp() {
+    return myFSTimestamp;
+  }
+
+  public void setVersionAndFSTimestamp(int version, long timestamp) throws IOException {
+    synchronized (myWriteLock) {
+      myVersion = version;
+      myFSTimestamp = timestamp;
+      writeMeta(mySnapshot.myFirstRecord);
+    }
+  }
+
+  /**
+   * @return last id passed to {@link #append}
+   */
+  public long getLastId() {
+    return mySnapshot.myLastId;
+  }
+
+  /**
+   * @return id of the oldest live record, or 0 if there are no records
+   */
+  public int getFirstRecord() {
+    Snapshot snapshot = mySnapshot;
+    return snapshot.isEmpty() ? 0 : snapshot.myFirstRecord;
+  }
+
+  /**
+   * @return id of the newest record, or 0 if there are no records
+   */
+  public int getLastRecord() {
+    Snapshot snapshot = mySnapshot;
+    return snapshot.isEmpty() ? 0 : snapshot.myNextRecord - 1;
+  }
+
+  /**
+   * @return id of the record preceding the given one, or 0 if it's the oldest live record
+   */
+  public int getPrevRecord(int record) {
+    return isLive(mySnapshot, record - 1) ? record - 1 : 0;
+  }
+
+  public boolean isLive(int record) {
+    return isLive(mySnapshot, record);
+  }
+
+  private static boolean isLive(@Nonnull Snapshot snapshot, int record) {
+    return record >= snapshot.myFirstRecord && record < snapshot.myNextRecord;
+  }
+
+  public long getTimestamp(int record) throws IOException {
+    Snapshot snapshot = mySnapshot;
+    checkLive(snapshot, record);
+    Segment segment = snapshot.findSegment(record);
+    return segment.myTimestamps[record - segment.myStart];
+  }
+
+  public long getOffset(int record) throws IOException {
+    Snapshot snapshot = mySnapshot;
+    checkLive(snapshot, record);
+    Segment segment = snapshot.findSegment(record);
+    return segment.myOffsets[record - segment.myStart];
+  }
+
+  @Nonnull
+  public byte[] read(int record) throws IOException {
+    Snapshot snapshot = mySnapshot;
+    checkLive(snapshot, record);
+    Segment segment = snapshot.findSegment(record);
+    return segment.read(record - segment.myStart);
+  }
+
+  private static void checkLive(@Nonnull Snapshot snapshot, int record) throws IOException {
+    if (!isLive(snapshot, record)) {
+      throw new IOException("Record " + record + " is out of live records [" + snapshot.myFirstRecord + ", " + snapshot.myNextRecord + ")");
+    }
+  }
+
+  /**
+   * @return id of the appended record
+   */
+  public int append(long timestamp, long lastId, @Nonnull byte[] data, int length) throws IOException {
+    synchronized (myWriteLock) {
+      Snapshot snapshot = mySnapshot;
+      Segment[] segments = snapshot.mySegments;
+      Segment active = segments.length == 0 ? null : segments[segments.length - 1];
+      if (active == null || active.mySize >= SEGMENT_SIZE) {
+        active = Segment.create(getSegmentFile(myDir, snapshot.myNextRecord), snapshot.myNextRecord);
+        segments = ArrayUtil.append(segments, active);
+      }
+
+      int record = snapshot.myNextRecord;
+      active.append(timestamp, lastId, data, length);
+      mySnapshot = new Snapshot(segments, snapshot.myFirstRecord, record + 1, lastId);
+      return record;
+    }
+  }
+
+  /**
+   * Makes all records up to the given one inclusively obsolete and deletes segment files which don't contain live records anymore.
+   * Readers of deleted records get {@link IOException}s, {@link #isLive} tells such records apart.
+   */
+  public void deleteRecordsUpTo(int recordInclusively) throws IOException {
+    synchronized (myWriteLock) {
+      Snapshot snapshot = mySnapshot;
+      int firstRecord = Math.min(Math.max(snapshot.myFirstRecord, recordInclusively + 1), snapshot.myNextRecord);
+      if (firstRecord == snapshot.myFirstRecord) return;
+
+      // the first record is made persistent before files are deleted, so obsolete records can't come back after a crash
+      writeMeta(firstRecord);
+      mySnapshot = new Snapshot(snapshot.mySegments, firstRecord, snapshot.myNextRecord, snapshot.myLastId);
+      dropObsoleteSegments();
+    }
+  }
+
+  private void dropObsoleteSegments() {
+    Snapshot snapshot = mySnapshot;
+    Segment[] segments = snapshot.mySegments;
+    int dropped = 0;
+    // the active segment is kept, the numbering of new records continues from it
+    while (dropped < segments.length - 1 && segments[dropped].getRecordsEnd() <= snapshot.myFirstRecord) {
+      dropped++;
+    }
+    if (dropped == 0) return;
+
+    mySnapshot = new Snapshot(Arrays.copyOfRange(segments, dropped, segments.length), snapshot.myFirstRecord, snapshot.myNextRecord, snapshot.myLastId);
+    for (int i = 0; i < dropped; i++) {
+      segments[i].close();
+      if (!FileUtil.delete(segments[i].myFile)) {
+        LocalHistoryLog.LOG.warn("cannot delete obsolete local history segment " + segments[i].myFile);
+      }
+    }
+  }
+
+  private void writeMeta(int firstRecord) throws IOException {
+    File metaFile = new File(myDir, META_FILE);
+    File tempFile = new File(myDir, META_FILE + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+      out.writeInt(myVersion);
+      out.writeLong(myFSTimestamp);
+      out.writeInt(firstRecord);
+    }
+    try {
+      Files.move(tempFile.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(tempFile.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (myWriteLock) {
+      for (Segment segment : mySnapshot.mySegments) {
+        segment.close();
+      }
+    }
+  }
+
+  private static class Snapshot {
+    private final Segment[] mySegments;
+    private final int myFirstRecord;
+    private final int myNextRecord;
+    private final long myLastId;
+
+    private Snapshot(@Nonnull Segment[] segments, int firstRecord, int nextRecord, long lastId) {
+      mySegments = segments;
+      myFirstRecord = firstRecord;
+      myNextRecord = nextRecord;
+      myLastId = lastId;
+    }
+
+    private boolean isEmpty() {
+      return myFirstRecord >= myNextRecord;
+    }
+
+    @Nonnull
+    private Segment findSegment(int record) {
+      int low = 0;
+      int high = mySegments.length - 1;
+      while (low < high) {
+        int middle = (low + high + 1) >>> 1;
+        if (mySegments[middle].myStart <= record) {
+          low = middle;
+        }
+        else {
+          high = middle - 1;
+        }
+      }
+      return mySegments[low];
+    }
+  }
+
+  private interface ChannelOperation<T> {
+    T perform(@Nonnull FileChannel channel) throws IOException;
+  }
+
+  private static class Segment {
+    private final File myFile;
+    private final int myStart;
+    private volatile FileChannel myChannel;
+    private volatile boolean myClosed;
+
+    // written by the writer only, entries below the published record count never change
+    private volatile long[] myOffsets;
+    private volatile long[] myTimestamps;
+    private int myCount;
+    private long mySize;
+
+    private Segment(@Nonnull File file, @Nonnull FileChannel channel, int start) {
+      myFile = file;
+      myChannel = channel;
+      myStart = start;
+      myOffsets = new long[16];
+      myTimestamps = new long[16];
+    }
+
+    @Nonnull
+    static Segment create(@Nonnull File file, int start) throws IOException {
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      channel.truncate(0);
+      return new Segment(file, channel, start);
+    }
+
+    @Nonnull
+    static Segment open(@Nonnull File file, int start) throws IOException {
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      Segment segment = new Segment(file, channel, start);
+      try {
+        segment.readIndex();
+      }
+      catch (IOException e) {
+        segment.close();
+        throw e;
+      }
+      return segment;
+    }
+
+    private void readIndex() throws IOException {
+      long fileSize = perform(FileChannel::size);
+      ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+      long offset = 0;
+      while (offset + RECORD_HEADER_SIZE <= fileSize) {
+        header.clear();
+        readFully(header, offset);
+        header.flip();
+        int length = header.getInt();
+        long timestamp = header.getLong();
+        if (length < 0 || offset + RECORD_HEADER_SIZE + length > fileSize) break;
+
+        addRecord(offset, timestamp);
+        offset += RECORD_HEADER_SIZE + length;
+      }
+      mySize = offset;
+    }
+
+    // a record which was being written when the IDE was killed
+    void truncateIncompleteRecord() throws IOException {
+      if (perform(FileChannel::size) > mySize) {
+        LocalHistoryLog.LOG.info("truncating incomplete local history record in " + myFile);
+        perform(channel -> channel.truncate(mySize));
+      }
+    }
+
+    int getRecordsEnd() {
+      return myStart + myCount;
+    }
+
+    long readLastId(int index) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+      readFully(header, myOffsets[index]);
+      return header.getLong(4 + 8);
+    }
+
+    void append(long timestamp, long lastId, @Nonnull byte[] data, int length) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+      buffer.putInt(length).putLong(timestamp).putLong(lastId).put(data, 0, length);
+      buffer.flip();
+      long offset = mySize;
+      // not forced to disk, like the paged storage used before, which only flushed its buffers to the OS
+      while (buffer.hasRemaining()) {
+        perform(channel -> channel.write(buffer, offset + buffer.position()));
+      }
+      addRecord(offset, timestamp);
+      mySize = offset + RECORD_HEADER_SIZE + length;
+    }
+
+    private void addRecord(long offset, long timestamp) {
+      long[] offsets = myOffsets;
+      long[] timestamps = myTimestamps;
+      if (myCount == offsets.length) {
+        offsets = Arrays.copyOf(offsets, myCount * 2);
+        timestamps = Arrays.copyOf(timestamps, myCount * 2);
+      }
+      offsets[myCount] = offset;
+      timestamps[myCount] = timestamp;
+      myOffsets = offsets;
+      myTimestamps = timestamps;
+      myCount++;
+    }
+
+    @Nonnull
+    byte[] read(int index) throws IOException {
+      long offset = myOffsets[index];
+      ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+      readFully(lengthBuffer, offset);
+      byte[] result = new byte[lengthBuffer.getInt(0)];
+      readFully(ByteBuffer.wrap(result), offset + RECORD_HEADER_SIZE);
+      return result;
+    }
+
+    // the buffer is read from its start, so its position tells how much of it is read, as in append
+    private void readFully(@Nonnull ByteBuffer buffer, long offset) throws IOException {
+      while (buffer.hasRemaining()) {
+        int read = perform(channel -> channel.read(buffer, offset + buffer.position()));
+        if (read < 0) throw new EOFException("Unexpected end of local history segment " + myFile + " at " + (offset + buffer.position()));
+      }
+    }
+
+    // a failed operation doesn't transfer any bytes, so it's safe to repeat it on the reopened channel
+    private <T> T perform(@Nonnull ChannelOperation<T> operation) throws IOException {
+      boolean interrupted = false;
+      try {
+        while (true) {
+          FileChannel channel = myChannel;
+          try {
+            return operation.perform(channel);
+          }
+          catch (ClosedChannelException e) {
+            if (myClosed) throw e;
+            // the interrupted thread would close the reopened channel again
+            interrupted |= Thread.interrupted();
+            reopen(channel);
+          }
+        }
+      }
+      finally {
+        if (interrupted) Thread.currentThread().interrupt();
+      }
+    }
+
+    private synchronized void reopen(@Nonnull FileChannel closedChannel) throws IOException {
+      if (myChannel == closedChannel && !myClosed) {
+        LocalHistoryLog.LOG.info("reopening local history segment " + myFile + " closed by an interrupted thread");
+        myChannel = FileChannel.open(myFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      }
+    }
+
+    synchronized void close() {
+      myClosed = true;
+      try {
+        myChannel.close();
+      }
+      catch (IOException e) {
+        LocalHistoryLog.LOG.warn("cannot close local history segment " + myFile, e);
+      }
+    }
+  }
+}
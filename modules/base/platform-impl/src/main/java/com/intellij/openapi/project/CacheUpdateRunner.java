@@ -25,6 +25,7 @@ import consulo.util.dataholder.Key;
 import gnu.trove.THashSet;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.Collection;
 import java.util.Set;
 import java.util.concurrent.Future;
@@ -38,8 +39,20 @@ public class CacheUpdateRunner {
   public static final int DEFAULT_MAX_INDEXER_THREADS = 4;
 
   public static void processFiles(@Nonnull ProgressIndicator indicator, @Nonnull Collection<VirtualFile> files, @Nonnull Project project, @Nonnull Consumer<? super FileContent> processor) {
+    processFiles(indicator, files, project, null, processor);
+  }
+
+  /**
+   * @param preprocessor is called for loaded content on a separate pool before the content is passed to {@code processor},
+   *                     so that work not requiring indexing locks overlaps with processing of other files
+   */
+  public static void processFiles(@Nonnull ProgressIndicator indicator,
+                                  @Nonnull Collection<VirtualFile> files,
+                                  @Nonnull Project project,
+                                  @Nullable Consumer<? super FileContent> preprocessor,
+                                  @Nonnull Consumer<? super FileContent> processor) {
     indicator.checkCanceled();
-    final FileContentQueue queue = new FileContentQueue(project, files, indicator);
+    final FileContentQueue queue = new FileContentQueue(project, files, indicator, preprocessor);
     final double total = files.size();
     queue.startLoading();
 
@@ -84,6 +97,8 @@ public class CacheUpdateRunner {
       indicator.cancel();
       indicator.checkCanceled();
     }
+
+    if (LOG.isDebugEnabled()) LOG.debug("Processed " + files.size() + " files, " + queue.getStatistics());
   }
 
   interface ProgressUpdater {
@@ -234,7 +249,9 @@ public class CacheUpdateRunner {
               try {
                 myProgressUpdater.processingStarted(file);
                 if (!file.isDirectory() && !Boolean.TRUE.equals(file.getUserData(FAILED_TO_INDEX))) {
+                  long started = System.nanoTime();
                   myProcessor.consume(fileContent);
+                  myQueue.contentProcessed(System.nanoTime() - started);
                 }
                 myProgressUpdater.processingSuccessfullyFinished(file);
               }
@@ -9,14 +9,20 @@ import com.intellij.openapi.vfs.InvalidVirtualFileAccessException;
 import com.intellij.openapi.vfs.VFileProperty;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import com.intellij.util.Consumer;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.concurrency.SequentialTaskExecutor;
 import javax.annotation.Nonnull;
 
 import javax.annotation.Nullable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Deque;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -31,7 +37,11 @@ public class FileContentQueue {
   private static final long PROCESSED_FILE_BYTES_THRESHOLD = 1024 * 1024 * 3;
   private static final long LARGE_SIZE_REQUEST_THRESHOLD = PROCESSED_FILE_BYTES_THRESHOLD - 1024 * 300; // 300k for other threads
 
+  private static final int MAX_CONTENTS_BEING_PREPROCESSED = 64;
+
   private static final Executor ourExecutor = SequentialTaskExecutor.createSequentialApplicationPoolExecutor("FileContentQueue Pool");
+  private static final Executor ourPreprocessingExecutor =
+          AppExecutorUtil.createBoundedApplicationPoolExecutor("FileContentQueue Preprocessing Pool", Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() / 2, 4)));
 
   // Unbounded (!)
   private final LinkedBlockingDeque<FileContent> myLoadedContents = new LinkedBlockingDeque<>();
@@ -49,13 +59,43 @@ public class FileContentQueue {
   private final ProgressIndicator myProgressIndicator;
   private static final Deque<FileContentQueue> ourContentLoadingQueues = new LinkedBlockingDeque<>();
 
+  // runs between loading and processing of the content, e.g. to compute content hashes while indexer threads are busy
+  @Nullable
+  private final Consumer<? super FileContent> myPreprocessor;
+  private final AtomicInteger myContentsBeingPreprocessed = new AtomicInteger();
+  private final Statistics myStatistics = new Statistics();
+
   FileContentQueue(@Nonnull Project project, @Nonnull Collection<VirtualFile> files, @Nonnull final ProgressIndicator indicator) {
+    this(project, files, indicator, null);
+  }
+
+  FileContentQueue(@Nonnull Project project,
+                   @Nonnull Collection<VirtualFile> files,
+                   @Nonnull final ProgressIndicator indicator,
+                   @Nullable Consumer<? super FileContent> preprocessor) {
     myProject = project;
     int numberOfFiles = files.size();
     myContentsToLoad.set(numberOfFiles);
     // ABQ is more memory efficient for significant number of files (e.g. 500K)
-    myFilesQueue = numberOfFiles > 0 ? new ArrayBlockingQueue<>(numberOfFiles, false, files) : null;
+    myFilesQueue = numberOfFiles > 0 ? new ArrayBlockingQueue<>(numberOfFiles, false, sortByDirectory(files)) : null;
     myProgressIndicator = indicator;
+    myPreprocessor = preprocessor;
+  }
+
+  /**
+   * Files of the same directory are loaded one after another, they are likely to be close on disk and in the VFS content storage.
+   */
+  @Nonnull
+  private static Collection<VirtualFile> sortByDirectory(@Nonnull Collection<VirtualFile> files) {
+    if (files.size() < 2) return files;
+    List<VirtualFile> sorted = new ArrayList<>(files);
+    sorted.sort(Comparator.comparingInt(FileContentQueue::getParentId));
+    return sorted;
+  }
+
+  private static int getParentId(@Nonnull VirtualFile file) {
+    VirtualFile parent = file.getParent();
+    return parent instanceof VirtualFileWithId ? ((VirtualFileWithId)parent).getId() : 0;
   }
 
   public void startLoading() {
@@ -86,7 +126,7 @@ public class FileContentQueue {
 
   private PreloadState preloadNextContent() {
     try {
-      if (myLoadedBytesInQueue.get() > MAX_SIZE_OF_BYTES_IN_QUEUE) {
+      if (myLoadedBytesInQueue.get() > MAX_SIZE_OF_BYTES_IN_QUEUE || myContentsBeingPreprocessed.get() > MAX_CONTENTS_BEING_PREPROCESSED) {
         // wait a little for indexer threads to consume content, they will awake us earlier once we can proceed  
         synchronized (ourProceedWithLoadingLock) {
           //noinspection WaitNotInLoop
@@ -104,27 +144,82 @@ public class FileContentQueue {
     }
 
     if (myProgressIndicator.isCanceled()) return PreloadState.CANCELLED_OR_FINISHED;
-    return loadNextContent() ? PreloadState.PRELOADED_SUCCESSFULLY : PreloadState.CANCELLED_OR_FINISHED;
+    return loadNextContent(true) ? PreloadState.PRELOADED_SUCCESSFULLY : PreloadState.CANCELLED_OR_FINISHED;
   }
 
-  private boolean loadNextContent() {
+  private boolean loadNextContent(boolean preprocessAsynchronously) {
     // Contract: if file is taken from myFilesQueue then it will be loaded to myLoadedContents and myContentsToLoad will be decremented
     VirtualFile file = myFilesQueue.poll();
     if (file == null) return false;
 
+    boolean handedOver = false;
     try {
       FileContent content = new FileContent(file);
+      long started = System.nanoTime();
       if (!isValidFile(file) || !doLoadContent(content)) {
         content.setEmptyContent();
       }
-      myLoadedContents.offer(content);
+      else {
+        myStatistics.myLoadedFiles.incrementAndGet();
+        myStatistics.myLoadedBytes.addAndGet(content.getLength());
+        myStatistics.myLoadingNanos.addAndGet(System.nanoTime() - started);
+      }
+
+      if (myPreprocessor != null && preprocessAsynchronously) {
+        Statistics.updateMax(myStatistics.myMaxPreprocessingQueueDepth, myContentsBeingPreprocessed.incrementAndGet());
+        try {
+          ourPreprocessingExecutor.execute(() -> {
+            try {
+              preprocess(content);
+            }
+            finally {
+              myContentsBeingPreprocessed.decrementAndGet();
+              offerLoadedContent(content);
+              myContentsToLoad.addAndGet(-1);
+            }
+          });
+          handedOver = true;
+        }
+        catch (RejectedExecutionException e) {
+          myContentsBeingPreprocessed.decrementAndGet();
+          offerLoadedContent(content);
+        }
+      }
+      else {
+        // indexer thread loads content for itself, no sense to pass it to another thread
+        preprocess(content);
+        offerLoadedContent(content);
+      }
       return true;
     }
     finally {
-      myContentsToLoad.addAndGet(-1);
+      if (!handedOver) myContentsToLoad.addAndGet(-1);
     }
   }
 
+  private void preprocess(@Nonnull FileContent content) {
+    Consumer<? super FileContent> preprocessor = myPreprocessor;
+    if (preprocessor == null || myProgressIndicator.isCanceled()) return;
+
+    long started = System.nanoTime();
+    try {
+      preprocessor.consume(content);
+    }
+    catch (ProcessCanceledException ignore) {
+      // the content will be processed without preprocessed data
+    }
+    catch (Throwable e) {
+      LOG.error(e);
+    }
+    myStatistics.myPreprocessedFiles.incrementAndGet();
+    myStatistics.myPreprocessingNanos.addAndGet(System.nanoTime() - started);
+  }
+
+  private void offerLoadedContent(@Nonnull FileContent content) {
+    myLoadedContents.offer(content);
+    Statistics.updateMax(myStatistics.myMaxLoadedQueueDepth, myLoadedContents.size());
+  }
+
   private static boolean isValidFile(@Nonnull VirtualFile file) {
     return file.isValid() && !file.isDirectory() && !file.is(VFileProperty.SPECIAL) && !VfsUtilCore.isBrokenLink(file);
   }
@@ -214,7 +309,7 @@ public class FileContentQueue {
       if (result == null) {  // no loaded contents by other threads
         if (remainingContentsToLoad == 0) return null; // no items to load
 
-        if (!loadNextContent()) { // attempt to eagerly load content failed
+        if (!loadNextContent(false)) { // attempt to eagerly load content failed
           // last remaining contents are loaded by other threads, use timed poll for results
           waitForContentsToBeLoaded = true;
         }
@@ -248,6 +343,19 @@ public class FileContentQueue {
     }
   }
 
+  /**
+   * Records time spent by a consumer of the queue on the content obtained by {@link #take(ProgressIndicator)}.
+   */
+  public void contentProcessed(long processingNanos) {
+    myStatistics.myProcessedFiles.incrementAndGet();
+    myStatistics.myProcessingNanos.addAndGet(processingNanos);
+  }
+
+  @Nonnull
+  public String getStatistics() {
+    return myStatistics.toString();
+  }
+
   public void release(@Nonnull FileContent content) {
     synchronized (myProceedWithProcessingLock) {
       myBytesBeingProcessed -= content.getLength();
@@ -259,4 +367,29 @@ public class FileContentQueue {
     myLoadedBytesInQueue.addAndGet(content.getLength());
     myLoadedContents.addFirst(content);
   }
-}
\ No newline at end of file
+
+  private static class Statistics {
+    private final AtomicInteger myLoadedFiles = new AtomicInteger();
+    private final AtomicLong myLoadedBytes = new AtomicLong();
+    private final AtomicLong myLoadingNanos = new AtomicLong();
+    private final AtomicInteger myPreprocessedFiles = new AtomicInteger();
+    private final AtomicLong myPreprocessingNanos = new AtomicLong();
+    private final AtomicInteger myProcessedFiles = new AtomicInteger();
+    private final AtomicLong myProcessingNanos = new AtomicLong();
+    private final AtomicInteger myMaxLoadedQueueDepth = new AtomicInteger();
+    private final AtomicInteger myMaxPreprocessingQueueDepth = new AtomicInteger();
+
+    private static void updateMax(@Nonnull AtomicInteger max, int value) {
+      int current;
+      while ((current = max.get()) < value && !max.compareAndSet(current, value)) ;
+    }
+
+    @Override
+    public String toString() {
+      return "loading: " + myLoadedFiles.get() + " files, " + (myLoadedBytes.get() >> 10) + " KB in " + TimeUnit.NANOSECONDS.toMillis(myLoadingNanos.get()) + " ms" +
+             "; preprocessing: " + myPreprocessedFiles.get() + " files in " + TimeUnit.NANOSECONDS.toMillis(myPreprocessingNanos.get()) + " ms" +
+             "; processing: " + myProcessedFiles.get() + " files in " + TimeUnit.NANOSECONDS.toMillis(myProcessingNanos.get()) + " ms" +
+             "; max queue depth: loaded " + myMaxLoadedQueueDepth.get() + ", preprocessing " + myMaxPreprocessingQueueDepth.get();
+    }
+  }
+}
@@ -29,6 +29,7 @@ import com.intellij.openapi.vfs.impl.ZipHandler;
 import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
 import com.intellij.openapi.vfs.newvfs.persistent.FlushingDaemon;
 import com.intellij.util.CommonProcessors;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.MultiMap;
 import com.intellij.util.io.*;
@@ -42,10 +43,12 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.DataOutputStream;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author max
@@ -56,8 +59,11 @@ public class JarHandler extends ZipHandler {
   private static final Logger LOG = Logger.getInstance(JarHandler.class);
 
   private static final String JARS_FOLDER = "archives";
+  private static final String ENTRIES_FOLDER = "archiveEntries";
   private static final int FS_TIME_RESOLUTION = 2000;
 
+  private static final AtomicBoolean ourStaleEntriesRemoved = new AtomicBoolean();
+
   private final ArchiveFileSystemBase myFileSystem;
   private volatile File myFileWithMirrorResolved;
 
@@ -213,6 +219,19 @@ public class JarHandler extends ZipHandler {
     return builder.toString();
   }
 
+  @Nullable
+  @Override
+  protected File getEntriesCacheDirectory() {
+    String dir = System.getProperty("caches_dir");
+    File directory = new File(dir == null ? ContainerPathManager.get().getSystemPath() + "/caches/" : dir, ENTRIES_FOLDER);
+    if (ourStaleEntriesRemoved.compareAndSet(false, true)) {
+      // files of deleted jars are never read again, remove them once per session
+      long sessionStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+      AppExecutorUtil.getAppExecutorService().execute(() -> removeStaleEntriesCaches(directory, sessionStart));
+    }
+    return directory;
+  }
+
   @Nonnull
   private static String getJarsDir() {
     String dir = System.getProperty("jars_dir");
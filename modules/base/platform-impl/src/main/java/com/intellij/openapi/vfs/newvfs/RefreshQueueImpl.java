@@ -14,6 +14,7 @@ import com.intellij.openapi.vfs.VfsBundle;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
 import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.io.storage.HeavyProcessLatch;
@@ -26,6 +27,7 @@ import org.jetbrains.ide.PooledThreadExecutor;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Executor;
@@ -39,7 +41,11 @@ import java.util.concurrent.atomic.AtomicLong;
 public class RefreshQueueImpl extends RefreshQueue implements Disposable {
   private static final Logger LOG = Logger.getInstance(RefreshQueueImpl.class);
 
-  private final Executor myQueue = AppExecutorUtil.createBoundedApplicationPoolExecutor("RefreshQueue Pool", PooledThreadExecutor.INSTANCE, 1, this);
+  // sessions on roots which are not ancestors of each other are scanned concurrently
+  private static final int SCAN_PARALLELISM =
+          SystemProperties.getIntProperty("vfs.refresh.parallelism", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+
+  private final Executor myQueue = AppExecutorUtil.createBoundedApplicationPoolExecutor("RefreshQueue Pool", PooledThreadExecutor.INSTANCE, SCAN_PARALLELISM, this);
   private final Executor myEventProcessingQueue = AppExecutorUtil.createBoundedApplicationPoolExecutor("Async Refresh Event Processing", PooledThreadExecutor.INSTANCE, 1, this);
 
   private final ProgressIndicator myRefreshIndicator = RefreshProgress.create(VfsBundle.message("file.synchronize.progress"));
@@ -49,6 +55,10 @@ public class RefreshQueueImpl extends RefreshQueue implements Disposable {
   private final FrequentEventDetector myEventCounter = new FrequentEventDetector(100, 100, FrequentEventDetector.Level.WARN);
   private final AtomicLong myWriteActionCounter = new AtomicLong();
 
+  private final RefreshSessionScheduler<RefreshSessionImpl> myScheduler = new RefreshSessionScheduler<>();
+
+  private final RefreshStatistics myStatistics = new RefreshStatistics();
+
   @Nonnull
   private final Application myApplication;
 
@@ -85,30 +95,69 @@ public class RefreshQueueImpl extends RefreshQueue implements Disposable {
   }
 
   private void queueSession(@Nonnull RefreshSessionImpl session, @Nullable TransactionId transaction) {
+    RefreshSessionScheduler.Entry<RefreshSessionImpl> queued = createEntry(session, transaction);
+    if (myScheduler.queue(queued)) {
+      startScan(queued);
+    }
+    myEventCounter.eventHappened(session);
+  }
+
+  @Nonnull
+  private static RefreshSessionScheduler.Entry<RefreshSessionImpl> createEntry(@Nonnull RefreshSessionImpl session, @Nullable TransactionId transaction) {
+    return new RefreshSessionScheduler.Entry<>(session, transaction, session.isAsynchronous(), session.getRoots());
+  }
+
+  private void startScan(@Nonnull RefreshSessionScheduler.Entry<RefreshSessionImpl> queued) {
+    RefreshSessionImpl session = queued.getSession();
     myQueue.execute(() -> {
       startRefreshActivity();
+      long started = System.nanoTime();
       try (AccessToken ignored = HeavyProcessLatch.INSTANCE.processStarted("Doing file refresh. " + session)) {
         doScan(session);
       }
       finally {
+        myStatistics.scanned(System.nanoTime() - started);
         finishRefreshActivity();
+        List<RefreshSessionScheduler.Entry<RefreshSessionImpl>> toStart = myScheduler.scanFinished(queued);
         if (Registry.is("vfs.async.event.processing")) {
-          scheduleAsynchronousPreprocessing(session, transaction);
+          scheduleAsynchronousPreprocessing(queued.getTransaction());
         }
         else {
-          TransactionGuard.getInstance().submitTransaction(myApplication, transaction, () -> session.fireEvents(session.getEvents(), null));
+          TransactionGuard.getInstance().submitTransaction(myApplication, queued.getTransaction(), () -> {
+            List<RefreshSessionImpl> batch = myScheduler.takeScannedSessions(queued.getTransaction());
+            if (!batch.isEmpty()) {
+              fireEvents(batch, RefreshSessionImpl.getEvents(batch), null);
+            }
+          });
+        }
+        for (RefreshSessionScheduler.Entry<RefreshSessionImpl> waiting : toStart) {
+          startScan(waiting);
         }
       }
     });
-    myEventCounter.eventHappened(session);
   }
 
-  protected void scheduleAsynchronousPreprocessing(@Nonnull RefreshSessionImpl session, @Nullable TransactionId transaction) {
+  private void fireEvents(@Nonnull List<RefreshSessionImpl> batch,
+                          @Nonnull List<? extends VFileEvent> events,
+                          @Nullable List<? extends AsyncFileListener.ChangeApplier> appliers) {
+    long started = System.nanoTime();
+    try {
+      RefreshSessionImpl.fireEvents(batch, events, appliers);
+    }
+    finally {
+      myStatistics.applied(batch.size(), events.size(), System.nanoTime() - started);
+    }
+  }
+
+  protected void scheduleAsynchronousPreprocessing(@Nullable TransactionId transaction) {
     try {
       myEventProcessingQueue.execute(() -> {
+        List<RefreshSessionImpl> batch = myScheduler.takeScannedSessions(transaction);
+        if (batch.isEmpty()) return;
+
         startRefreshActivity();
-        try (AccessToken ignored = HeavyProcessLatch.INSTANCE.processStarted("Processing VFS events. " + session)) {
-          processAndFireEvents(session, transaction);
+        try (AccessToken ignored = HeavyProcessLatch.INSTANCE.processStarted("Processing VFS events. " + batch.size() + " sessions")) {
+          processAndFireEvents(batch, transaction);
         }
         finally {
           finishRefreshActivity();
@@ -120,6 +169,16 @@ public class RefreshQueueImpl extends RefreshQueue implements Disposable {
     }
   }
 
+  // sessions of a batch which was invalidated by a write action are processed again together with sessions scanned meanwhile
+  private void rescheduleAsynchronousPreprocessing(@Nonnull List<RefreshSessionImpl> batch, @Nullable TransactionId transaction) {
+    List<RefreshSessionScheduler.Entry<RefreshSessionImpl>> requeued = new ArrayList<>(batch.size());
+    for (RefreshSessionImpl session : batch) {
+      requeued.add(createEntry(session, transaction));
+    }
+    myScheduler.requeueScannedSessions(requeued);
+    scheduleAsynchronousPreprocessing(transaction);
+  }
+
   private synchronized void startRefreshActivity() {
     if (myBusyThreads++ == 0) {
       myRefreshIndicator.start();
@@ -132,10 +191,10 @@ public class RefreshQueueImpl extends RefreshQueue implements Disposable {
     }
   }
 
-  private void processAndFireEvents(@Nonnull RefreshSessionImpl session, @Nullable TransactionId transaction) {
+  private void processAndFireEvents(@Nonnull List<RefreshSessionImpl> batch, @Nullable TransactionId transaction) {
     while (true) {
       ProgressIndicator progress = new SensitiveProgressWrapper(myRefreshIndicator);
-      boolean success = ProgressIndicatorUtils.runWithWriteActionPriority(() -> tryProcessingEvents(session, transaction), progress);
+      boolean success = ProgressIndicatorUtils.runWithWriteActionPriority(() -> tryProcessingEvents(batch, transaction), progress);
       if (success) {
         break;
       }
@@ -144,21 +203,23 @@ public class RefreshQueueImpl extends RefreshQueue implements Disposable {
     }
   }
 
-  protected void tryProcessingEvents(@Nonnull RefreshSessionImpl session, @Nullable TransactionId transaction) {
-    List<? extends VFileEvent> events = ContainerUtil.filter(session.getEvents(), e -> {
+  protected void tryProcessingEvents(@Nonnull List<RefreshSessionImpl> batch, @Nullable TransactionId transaction) {
+    List<? extends VFileEvent> events = ContainerUtil.filter(RefreshSessionImpl.getEvents(batch), e -> {
       VirtualFile file = e instanceof VFileCreateEvent ? ((VFileCreateEvent)e).getParent() : e.getFile();
       return file == null || file.isValid();
     });
 
+    long started = System.nanoTime();
     List<AsyncFileListener.ChangeApplier> appliers = AsyncEventSupport.runAsyncListeners(events);
+    myStatistics.listenersRun(System.nanoTime() - started);
 
     long stamp = myWriteActionCounter.get();
     TransactionGuard.getInstance().submitTransaction(ApplicationManager.getApplication(), transaction, () -> {
       if (stamp == myWriteActionCounter.get()) {
-        session.fireEvents(events, appliers);
+        fireEvents(batch, events, appliers);
       }
       else {
-        scheduleAsynchronousPreprocessing(session, transaction);
+        rescheduleAsynchronousPreprocessing(batch, transaction);
       }
     });
   }
@@ -216,6 +277,78 @@ public class RefreshQueueImpl extends RefreshQueue implements Disposable {
     }
   }
 
+  @Nonnull
+  public RefreshStatistics getStatistics() {
+    return myStatistics;
+  }
+
+  /**
+   * Accumulated time of refresh phases: scanning file systems, running {@link AsyncFileListener}s and applying events in write actions.
+   */
+  public static class RefreshStatistics {
+    private final AtomicLong myScannedSessions = new AtomicLong();
+    private final AtomicLong myScanNanos = new AtomicLong();
+    private final AtomicLong myListenersNanos = new AtomicLong();
+    private final AtomicLong myAppliedBatches = new AtomicLong();
+    private final AtomicLong myAppliedSessions = new AtomicLong();
+    private final AtomicLong myAppliedEvents = new AtomicLong();
+    private final AtomicLong myApplyNanos = new AtomicLong();
+
+    private void scanned(long nanos) {
+      myScannedSessions.incrementAndGet();
+      myScanNanos.addAndGet(nanos);
+    }
+
+    private void listenersRun(long nanos) {
+      myListenersNanos.addAndGet(nanos);
+    }
+
+    private void applied(int sessions, int events, long nanos) {
+      myAppliedBatches.incrementAndGet();
+      myAppliedSessions.addAndGet(sessions);
+      myAppliedEvents.addAndGet(events);
+      myApplyNanos.addAndGet(nanos);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("applied " + events + " events of " + sessions + " sessions in " + nanos / 1000000 + "ms; " + this);
+      }
+    }
+
+    public long getScannedSessions() {
+      return myScannedSessions.get();
+    }
+
+    public long getScanTimeMs() {
+      return myScanNanos.get() / 1000000;
+    }
+
+    public long getAsyncListenersTimeMs() {
+      return myListenersNanos.get() / 1000000;
+    }
+
+    public long getAppliedBatches() {
+      return myAppliedBatches.get();
+    }
+
+    public long getAppliedSessions() {
+      return myAppliedSessions.get();
+    }
+
+    public long getAppliedEvents() {
+      return myAppliedEvents.get();
+    }
+
+    public long getApplyTimeMs() {
+      return myApplyNanos.get() / 1000000;
+    }
+
+    @Override
+    public String toString() {
+      return "scanned " + getScannedSessions() + " sessions in " + getScanTimeMs() + "ms, async listeners " + getAsyncListenersTimeMs() + "ms, " +
+             "applied " + getAppliedEvents() + " events of " + getAppliedSessions() + " sessions in " + getAppliedBatches() + " write actions, " +
+             getApplyTimeMs() + "ms";
+    }
+  }
+
   @Override
   public void dispose() {
     synchronized (mySessions) {
@@ -11,6 +11,7 @@ import com.intellij.openapi.vfs.ex.VirtualFileManagerEx;
 import com.intellij.openapi.vfs.impl.local.LocalFileSystemImpl;
 import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
 import com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker;
+import com.intellij.util.ExceptionUtil;
 import com.intellij.util.concurrency.Semaphore;
 import com.intellij.util.containers.ContainerUtil;
 import consulo.application.TransactionGuardEx;
@@ -19,10 +20,7 @@ import consulo.logging.Logger;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedHashSet;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -176,40 +174,82 @@ public class RefreshSessionImpl extends RefreshSession {
   }
 
   void fireEvents(@Nonnull List<? extends VFileEvent> events, @Nullable List<? extends AsyncFileListener.ChangeApplier> appliers) {
+    fireEvents(Collections.singletonList(this), events, appliers);
+  }
+
+  /**
+   * Applies events of several sessions scanned by the refresh queue in one write action, finish runnables are run in the order of sessions.
+   */
+  static void fireEvents(@Nonnull List<RefreshSessionImpl> sessions,
+                         @Nonnull List<? extends VFileEvent> events,
+                         @Nullable List<? extends AsyncFileListener.ChangeApplier> appliers) {
     try {
-      if ((myFinishRunnable != null || !events.isEmpty()) && !ApplicationManager.getApplication().isDisposed()) {
+      boolean hasFinishRunnables = ContainerUtil.exists(sessions, session -> session.myFinishRunnable != null);
+      if ((hasFinishRunnables || !events.isEmpty()) && !ApplicationManager.getApplication().isDisposed()) {
         if (LOG.isDebugEnabled()) LOG.debug("events are about to fire: " + events);
-        WriteAction.run(() -> fireEventsInWriteAction(events, appliers));
+        WriteAction.run(() -> fireEventsInWriteAction(sessions, events, appliers));
       }
     }
     finally {
-      mySemaphore.up();
+      for (RefreshSessionImpl session : sessions) {
+        session.mySemaphore.up();
+      }
     }
   }
 
-  private void fireEventsInWriteAction(List<? extends VFileEvent> events, @Nullable List<? extends AsyncFileListener.ChangeApplier> appliers) {
+  private static void fireEventsInWriteAction(@Nonnull List<RefreshSessionImpl> sessions,
+                                              @Nonnull List<? extends VFileEvent> events,
+                                              @Nullable List<? extends AsyncFileListener.ChangeApplier> appliers) {
     final VirtualFileManagerEx manager = (VirtualFileManagerEx)VirtualFileManager.getInstance();
+    final RefreshSessionImpl first = sessions.get(0);
 
-    manager.fireBeforeRefreshStart(myIsAsync);
+    manager.fireBeforeRefreshStart(first.myIsAsync);
     try {
       AsyncEventSupport.processEvents(events, appliers);
     }
     catch (AssertionError e) {
       if (FileStatusMap.CHANGES_NOT_ALLOWED_DURING_HIGHLIGHTING.equals(e.getMessage())) {
-        throw new AssertionError("VFS changes are not allowed during highlighting", myStartTrace);
+        throw new AssertionError("VFS changes are not allowed during highlighting", first.myStartTrace);
       }
       throw e;
     }
     finally {
       try {
-        manager.fireAfterRefreshFinish(myIsAsync);
+        manager.fireAfterRefreshFinish(first.myIsAsync);
       }
       finally {
-        if (myFinishRunnable != null) {
-          myFinishRunnable.run();
+        runFinishRunnables(sessions);
+      }
+    }
+  }
+
+  // every runnable is run even if a previous one fails, as it would be with separate write actions; the first failure is rethrown
+  private static void runFinishRunnables(@Nonnull List<RefreshSessionImpl> sessions) {
+    Throwable failure = null;
+    for (RefreshSessionImpl session : sessions) {
+      Runnable finishRunnable = session.myFinishRunnable;
+      if (finishRunnable == null) continue;
+      try {
+        finishRunnable.run();
+      }
+      catch (Throwable e) {
+        if (failure == null) {
+          failure = e;
+        }
+        else {
+          failure.addSuppressed(e);
         }
       }
     }
+    ExceptionUtil.rethrowAllAsUnchecked(failure);
+  }
+
+  /**
+   * @return files this session is going to refresh, empty for sessions created with events
+   */
+  @Nonnull
+  List<VirtualFile> getRoots() {
+    return Collections.unmodifiableList(myWorkQueue);
   }
 
   void waitFor() {
@@ -230,4 +270,14 @@ public class RefreshSessionImpl extends RefreshSession {
   public List<? extends VFileEvent> getEvents() {
     return new ArrayList<>(new LinkedHashSet<>(myEvents));
   }
+
+  @Nonnull
+  static List<? extends VFileEvent> getEvents(@Nonnull List<RefreshSessionImpl> sessions) {
+    if (sessions.size() == 1) return sessions.get(0).getEvents();
+    Set<VFileEvent> events = new LinkedHashSet<>();
+    for (RefreshSessionImpl session : sessions) {
+      events.addAll(session.myEvents);
+    }
+    return new ArrayList<>(events);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs;
+
+import com.intellij.openapi.application.TransactionId;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Decides which sessions of {@link RefreshQueueImpl} are scanned concurrently and which scanned sessions are applied in one write action.
+ * <p>
+ * Sessions on roots which are not ancestors of each other are scanned concurrently, a session overlapping a session being scanned
+ * or an earlier waiting session waits for them. Sessions without roots only deliver events, they keep their place relative to all other sessions.
+ *
+ * @author VISTALL
+ * @since 2020-10-17
+ */
+class RefreshSessionScheduler<S> {
+  static final class Entry<S> {
+    private final S mySession;
+    @Nullable
+    private final TransactionId myTransaction;
+    private final boolean myAsync;
+    private final List<VirtualFile> myRoots;
+
+    Entry(@Nonnull S session, @Nullable TransactionId transaction, boolean async, @Nonnull List<VirtualFile> roots) {
+      mySession = session;
+      myTransaction = transaction;
+      myAsync = async;
+      myRoots = new ArrayList<>(roots);
+    }
+
+    @Nonnull
+    S getSession() {
+      return mySession;
+    }
+
+    @Nullable
+    TransactionId getTransaction() {
+      return myTransaction;
+    }
+
+    private boolean overlaps(@Nonnull Entry<S> other) {
+      if (myRoots.isEmpty() || other.myRoots.isEmpty()) return true;
+      for (VirtualFile root : myRoots) {
+        for (VirtualFile otherRoot : other.myRoots) {
+          if (VfsUtilCore.isAncestor(root, otherRoot, false) || VfsUtilCore.isAncestor(otherRoot, root, false)) return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean canBeFiredTogetherWith(@Nonnull Entry<S> other) {
+      return Objects.equals(myTransaction, other.myTransaction) && myAsync == other.myAsync;
+    }
+  }
+
+  // guarded by this; sessions being scanned, and queued sessions waiting for a scanned session on an overlapping root, in launch order
+  private final List<Entry<S>> myScanningSessions = new ArrayList<>();
+  private final List<Entry<S>> myWaitingSessions = new ArrayList<>();
+  // guarded by this; scanned sessions whose events are not applied yet
+  private final List<Entry<S>> myScannedSessions = new ArrayList<>();
+
+  /**
+   * @return true if the session can be scanned right away, otherwise it is started by {@link #scanFinished} of the sessions it waits for
+   */
+  synchronized boolean queue(@Nonnull Entry<S> session) {
+    boolean start = !overlapsAny(session, myScanningSessions) && !overlapsAny(session, myWaitingSessions);
+    (start ? myScanningSessions : myWaitingSessions).add(session);
+    return start;
+  }
+
+  /**
+   * Moves the session to the scanned ones.
+   *
+   * @return waiting sessions which can be scanned now, in launch order
+   */
+  @Nonnull
+  synchronized List<Entry<S>> scanFinished(@Nonnull Entry<S> session) {
+    myScanningSessions.remove(session);
+    myScannedSessions.add(session);
+
+    List<Entry<S>> toStart = new ArrayList<>();
+    List<Entry<S>> stillWaiting = new ArrayList<>();
+    for (Entry<S> waiting : myWaitingSessions) {
+      if (!overlapsAny(waiting, myScanningSessions) && !overlapsAny(waiting, stillWaiting)) {
+        myScanningSessions.add(waiting);
+        toStart.add(waiting);
+      }
+      else {
+        stillWaiting.add(waiting);
+      }
+    }
+    myWaitingSessions.retainAll(stillWaiting);
+    return toStart;
+  }
+
+  /**
+   * Removes scanned sessions which can be fired in one write action with the oldest scanned session of the given transaction.
+   */
+  @Nonnull
+  synchronized List<S> takeScannedSessions(@Nullable TransactionId transaction) {
+    List<S> batch = new ArrayList<>();
+    Entry<S> first = null;
+    for (Iterator<Entry<S>> iterator = myScannedSessions.iterator(); iterator.hasNext(); ) {
+      Entry<S> scanned = iterator.next();
+      if (first == null ? Objects.equals(scanned.myTransaction, transaction) : first.canBeFiredTogetherWith(scanned)) {
+        if (first == null) first = scanned;
+        batch.add(scanned.mySession);
+        iterator.remove();
+      }
+    }
+    return batch;
+  }
+
+  /**
+   * Returns sessions of a batch which was invalidated by a write action, they are taken again before sessions scanned meanwhile.
+   */
+  synchronized void requeueScannedSessions(@Nonnull List<Entry<S>> batch) {
+    myScannedSessions.addAll(0, batch);
+  }
+
+  private static <S> boolean overlapsAny(@Nonnull Entry<S> session, @Nonnull List<Entry<S>> sessions) {
+    for (Entry<S> other : sessions) {
+      if (session.overlaps(other)) return true;
+    }
+    return false;
+  }
+}
@@ -41,6 +41,7 @@ import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * @author max
@@ -59,17 +60,18 @@ public class FSRecords {
   private static final boolean useSmallAttrTable = SystemProperties.getBooleanProperty("idea.use.small.attr.table.for.vfs", true);
   private static final boolean ourStoreRootsSeparately = SystemProperties.getBooleanProperty("idea.store.roots.separately", false);
 
-  //TODO[anyone] when bumping the version, please delete `ourSymlinkTargetAttr_old` and use it's value for `ourSymlinkTargetAttr`
-  private static final int VERSION = 53 +
+  private static final int VERSION = 54 +
                                      (WE_HAVE_CONTENT_HASHES ? 0x10 : 0) +
                                      (IOUtil.BYTE_BUFFERS_USE_NATIVE_BYTE_ORDER ? 0x37 : 0) +
                                      (bulkAttrReadSupport ? 0x27 : 0) +
                                      (inlineAttributes ? 0x31 : 0) +
                                      (ourStoreRootsSeparately ? 0x63 : 0) +
-                                     (useCompressionUtil ? 0x7f : 0) +
+                                     (useCompressionUtil ? 0x6f : 0) +
                                      (useSmallAttrTable ? 0x31 : 0) +
                                      (PersistentHashMapValueStorage.COMPRESSION_ENABLED ? 0x15 : 0);
 
+  private static final int NAMES_SHARDS = 8;
+
   private static final int PARENT_OFFSET = 0;
   private static final int PARENT_SIZE = 4;
   private static final int NAME_OFFSET = PARENT_OFFSET + PARENT_SIZE;
@@ -103,12 +105,14 @@ public class FSRecords {
   private static final int CORRUPTED_MAGIC = 0xabcf7f7f;
 
   private static final FileAttribute ourChildrenAttr = new FileAttribute("FsRecords.DIRECTORY_CHILDREN");
-  private static final FileAttribute ourSymlinkTargetAttr = new FileAttribute("FsRecords.SYMLINK_TARGET_2");
-  private static final FileAttribute ourSymlinkTargetAttr_old = new FileAttribute("FsRecords.SYMLINK_TARGET");
+  private static final FileAttribute ourSymlinkTargetAttr = new FileAttribute("FsRecords.SYMLINK_TARGET");
 
   private static final ReentrantReadWriteLock lock;
   private static final ReentrantReadWriteLock.ReadLock r;
   private static final ReentrantReadWriteLock.WriteLock w;
+  // write-locked together with the outermost w, so fixed-width record fields can be read under its cheaper non-reentrant read lock instead of r
+  private static final StampedLock ourRecordFieldsLock = new StampedLock();
+  private static long ourRecordFieldsLockStamp; // guarded by w
 
   private static volatile int ourLocalModificationCount;
   private static volatile boolean ourIsDisposed;
@@ -155,7 +159,7 @@ public class FSRecords {
   private static class DbConnection {
     private static boolean ourInitialized;
 
-    private static PersistentStringEnumerator myNames;
+    private static ShardedPersistentEnumerator<String> myNames;
     private static Storage myAttributes;
     private static RefCountingStorage myContents;
     private static ResizeableMappedFile myRecords;
@@ -253,7 +257,7 @@ public class FSRecords {
 
       final File vfsDependentEnumBaseFile = VfsDependentEnum.getBaseFile();
 
-      if (!namesFile.exists()) {
+      if (!ShardedPersistentEnumerator.exists(namesFile)) {
         invalidateIndex("'" + namesFile.getPath() + "' does not exist");
       }
 
@@ -264,7 +268,8 @@ public class FSRecords {
         }
 
         PagedFileStorage.StorageLockContext storageLockContext = new PagedFileStorage.StorageLockContext(false);
-        myNames = new PersistentStringEnumerator(namesFile, storageLockContext);
+        // names are enumerated by every indexing and refresh thread, shards don't share the storage lock with the other files
+        myNames = new ShardedPersistentEnumerator<>(namesFile, EnumeratorStringDescriptor.INSTANCE, 4096, NAMES_SHARDS);
 
         myAttributes = new Storage(attributesFile.getPath(), REASONABLY_SMALL) {
           @Override
@@ -456,7 +461,7 @@ public class FSRecords {
       myRecords.put(((long)id) * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
     }
 
-    private static PersistentStringEnumerator getNames() {
+    private static ShardedPersistentEnumerator<String> getNames() {
       return myNames;
     }
 
@@ -516,7 +521,7 @@ public class FSRecords {
     private static void handleError(@Nonnull Throwable e) throws RuntimeException, Error {
       assert lock.getReadHoldCount() == 0;
       if (!ourIsDisposed) { // No need to forcibly mark VFS corrupted if it is already shut down
-        w.lock(); // lock manually to avoid handleError() recursive calls
+        lockWrite(); // lock manually to avoid handleError() recursive calls
         try {
           if (!myCorrupted) {
             createBrokenMarkerFile(e);
@@ -525,7 +530,7 @@ public class FSRecords {
           }
         }
         finally {
-          w.unlock();
+          unlockWrite();
         }
       }
 
@@ -571,7 +576,7 @@ public class FSRecords {
     return DbConnection.myAttributes;
   }
 
-  private static PersistentStringEnumerator getNames() {
+  private static ShardedPersistentEnumerator<String> getNames() {
     return DbConnection.getNames();
   }
 
@@ -963,7 +968,7 @@ public class FSRecords {
 
   private static <T> T writeAndHandleErrors(@Nonnull ThrowableComputable<T, ?> action) {
     try {
-      w.lock();
+      lockWrite();
       return action.compute();
     }
     catch (Throwable e) {
@@ -971,13 +976,13 @@ public class FSRecords {
       throw new RuntimeException(e);
     }
     finally {
-      w.unlock();
+      unlockWrite();
     }
   }
 
   private static void writeAndHandleErrors(@Nonnull ThrowableRunnable<?> action) {
     try {
-      w.lock();
+      lockWrite();
       action.run();
     }
     catch (Throwable e) {
@@ -985,10 +990,66 @@ public class FSRecords {
       throw new RuntimeException(e);
     }
     finally {
-      w.unlock();
+      unlockWrite();
+    }
+  }
+
+  private static void lockWrite() {
+    w.lock();
+    if (lock.getWriteHoldCount() == 1) {
+      ourRecordFieldsLockStamp = ourRecordFieldsLock.writeLock();
     }
   }
 
+  private static void unlockWrite() {
+    if (lock.getWriteHoldCount() == 1) {
+      ourRecordFieldsLock.unlockWrite(ourRecordFieldsLockStamp);
+    }
+    w.unlock();
+  }
+
+  /**
+   * Reads fixed-width record field under a read stamp instead of the reentrant read lock. The stamp is exclusive with every outermost
+   * write section, so the records file can't be resized or closed, and the page being read can't be unmapped, while the field is read.
+   */
+  private static int readRecordInt(int id, int offset) {
+    if (lock.isWriteLockedByCurrentThread()) {
+      return readAndHandleErrors(() -> getRecordInt(id, offset)); // the write stamp is held by this thread already
+    }
+    Throwable error;
+    long stamp = ourRecordFieldsLock.readLock();
+    try {
+      return getRecordInt(id, offset);
+    }
+    catch (Throwable e) {
+      error = e;
+    }
+    finally {
+      ourRecordFieldsLock.unlockRead(stamp);
+    }
+    DbConnection.handleError(error); // takes the write lock, so the stamp must be released first
+    throw new RuntimeException(error);
+  }
+
+  private static long readRecordLong(int id, int offset) {
+    if (lock.isWriteLockedByCurrentThread()) {
+      return readAndHandleErrors(() -> getRecords().getLong(getOffset(id, offset)));
+    }
+    Throwable error;
+    long stamp = ourRecordFieldsLock.readLock();
+    try {
+      return getRecords().getLong(getOffset(id, offset));
+    }
+    catch (Throwable e) {
+      error = e;
+    }
+    finally {
+      ourRecordFieldsLock.unlockRead(stamp);
+    }
+    DbConnection.handleError(error);
+    throw new RuntimeException(error);
+  }
+
   static void updateList(int id, @Nonnull int[] childIds) {
     assert id > 0 : id;
     Arrays.sort(childIds);
@@ -1018,12 +1079,8 @@ public class FSRecords {
   static String readSymlinkTarget(int id) {
     return readAndHandleErrors(() -> {
       try (DataInputStream stream = readAttribute(id, ourSymlinkTargetAttr)) {
-        if (stream != null) return StringUtil.nullize(IOUtil.readUTF(stream));
-      }
-      try (DataInputStream stream = readAttribute(id, ourSymlinkTargetAttr_old)) {
-        if (stream != null) return StringUtil.nullize(stream.readUTF());
+        return stream != null ? StringUtil.nullize(IOUtil.readUTF(stream)) : null;
       }
-      return null;
     });
   }
 
@@ -1064,15 +1121,13 @@ public class FSRecords {
   }
 
   public static int getParent(int id) {
-    return readAndHandleErrors(() -> {
-      final int parentId = getRecordInt(id, PARENT_OFFSET);
-      if (parentId == id) {
-        LOG.error("Cyclic parent child relations in the database. id = " + id);
-        return 0;
-      }
+    final int parentId = readRecordInt(id, PARENT_OFFSET);
+    if (parentId == id) {
+      LOG.error("Cyclic parent child relations in the database. id = " + id);
+      return 0;
+    }
 
-      return parentId;
-    });
+    return parentId;
   }
 
   @Nullable
@@ -1148,7 +1203,7 @@ public class FSRecords {
   }
 
   public static int getNameId(int id) {
-    return readAndHandleErrors(() -> doGetNameId(id));
+    return readRecordInt(id, NAME_OFFSET);
   }
 
   private static int doGetNameId(int id) {
@@ -1191,7 +1246,7 @@ public class FSRecords {
   }
 
   static int getFlags(int id) {
-    return readAndHandleErrors(() -> doGetFlags(id));
+    return readRecordInt(id, FLAGS_OFFSET);
   }
 
   private static int doGetFlags(int id) {
@@ -1208,7 +1263,7 @@ public class FSRecords {
   }
 
   static long getLength(int id) {
-    return readAndHandleErrors(() -> getRecords().getLong(getOffset(id, LENGTH_OFFSET)));
+    return readRecordLong(id, LENGTH_OFFSET);
   }
 
   static void setLength(int id, long len) {
@@ -1223,7 +1278,7 @@ public class FSRecords {
   }
 
   static long getTimestamp(int id) {
-    return readAndHandleErrors(() -> getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET)));
+    return readRecordLong(id, TIMESTAMP_OFFSET);
   }
 
   static void setTimestamp(int id, long value) {
@@ -1238,7 +1293,7 @@ public class FSRecords {
   }
 
   static int getModCount(int id) {
-    return readAndHandleErrors(() -> getRecordInt(id, MOD_COUNT_OFFSET));
+    return readRecordInt(id, MOD_COUNT_OFFSET);
   }
 
   private static void setModCount(int id, int value) {
@@ -1307,7 +1362,7 @@ public class FSRecords {
   private static DataInputStream doReadContentById(int contentId) throws IOException {
     DataInputStream stream = getContentStorage().readStream(contentId);
     if (useCompressionUtil) {
-      byte[] bytes = CompressionUtil.readCompressed(stream);
+      byte[] bytes = CompressionUtil.readCompressedBlocks(stream);
       stream = new DataInputStream(new UnsyncByteArrayInputStream(bytes));
     }
 
@@ -1506,9 +1561,7 @@ public class FSRecords {
       else {
         recordId = getContentStorage().acquireNewRecord();
       }
-      try (AbstractStorage.StorageDataOutput output = getContentStorage().writeStream(recordId, true)) {
-        output.write(bytes);
-      }
+      getContentStorage().writeBytes(recordId, encodeContent(new ByteArraySequence(bytes)), true);
       return recordId;
     });
   }
@@ -1576,22 +1629,23 @@ public class FSRecords {
           fixedSize = myFixedSize;
         }
 
-        ByteArraySequence newBytes;
-        if (useCompressionUtil) {
-          BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
-          try (DataOutputStream outputStream = new DataOutputStream(out)) {
-            CompressionUtil.writeCompressed(outputStream, bytes.getBytes(), bytes.getOffset(), bytes.getLength());
-          }
-          newBytes = out.toByteArraySequence();
-        }
-        else {
-          newBytes = bytes;
-        }
-        contentStorage.writeBytes(page, newBytes, fixedSize);
+        contentStorage.writeBytes(page, encodeContent(bytes), fixedSize);
       });
     }
   }
 
+  // without lightweight compression the content storage deflates records itself
+  @Nonnull
+  private static ByteArraySequence encodeContent(@Nonnull ByteArraySequence bytes) throws IOException {
+    if (!useCompressionUtil) return bytes;
+
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    try (DataOutputStream outputStream = new DataOutputStream(out)) {
+      CompressionUtil.writeCompressedBlocks(outputStream, bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+    }
+    return out.toByteArraySequence();
+  }
+
   private static final boolean DUMP_STATISTICS = WE_HAVE_CONTENT_HASHES;  // TODO: remove once not needed
   private static long totalContents;
   private static long totalReuses;
@@ -42,6 +42,6 @@ public class ZipFileSystemImpl extends ArchiveFileSystemBase {
   @Nonnull
   @Override
   public ArchiveFile createArchiveFile(@Nonnull String filePath) throws IOException {
-    return new ZipArchiveFile(filePath);
+    return MappedZipArchiveFile.open(filePath);
   }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.impl;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.impl.ArchiveHandler.EntryInfo;
+import consulo.vfs.impl.archive.ArchiveFile;
+import consulo.vfs.impl.zip.ZipArchiveFile;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * @author VISTALL
+ * @since 2020-06-12
+ */
+public class ZipHandlerEntriesCacheTest extends Assert {
+  private File myDir;
+  private File myCacheDir;
+
+  @Before
+  public void setUp() throws IOException {
+    myDir = FileUtil.createTempDirectory("zip-entries", null);
+    myCacheDir = new File(myDir, "cache");
+  }
+
+  @After
+  public void tearDown() {
+    ZipHandler.clearFileAccessorCache();
+    FileUtil.delete(myDir);
+  }
+
+  @Test
+  public void testEntriesAreRestoredFromCache() throws IOException {
+    File zip = writeZip("a.zip", "dir/a.txt", "dir/sub/b.txt", "c.txt");
+    assertEquals(new HashSet<>(Arrays.asList("", "dir", "dir/a.txt", "dir/sub", "dir/sub/b.txt", "c.txt")),
+                 new TestZipHandler(zip).getEntriesMap().keySet());
+    assertEquals(1, cacheFileNames().length);
+
+    // entries are loaded from the cache, so the same map is built while the archive is unreadable
+    long timestamp = zip.lastModified();
+    FileUtil.writeToFile(zip, new byte[(int)zip.length()]);
+    assertTrue(zip.setLastModified(timestamp));
+    assertEquals(new HashSet<>(Arrays.asList("", "dir", "dir/a.txt", "dir/sub", "dir/sub/b.txt", "c.txt")),
+                 new TestZipHandler(zip).getEntriesMap().keySet());
+  }
+
+  @Test
+  public void testStaleCachesAreRemoved() throws IOException {
+    File deleted = writeZip("deleted.zip", "a.txt");
+    File changed = writeZip("changed.zip", "a.txt");
+    File kept = writeZip("kept.zip", "a.txt");
+    for (File zip : new File[]{deleted, changed, kept}) {
+      new TestZipHandler(zip).getEntriesMap();
+    }
+    assertEquals(3, cacheFileNames().length);
+    FileUtil.writeToFile(new File(myCacheDir, "garbage"), "not a cache");
+    File temp = new File(myCacheDir, "being-written.tmp");
+    FileUtil.writeToFile(temp, "");
+    File orphan = new File(myCacheDir, "left-by-crash.tmp");
+    FileUtil.writeToFile(orphan, "");
+    long sessionStart = temp.lastModified() - 1000;
+    assertTrue(orphan.setLastModified(sessionStart - 10000));
+
+    ZipHandler.clearFileAccessorCache();
+    FileUtil.delete(deleted);
+    assertTrue(changed.setLastModified(changed.lastModified() - 10000));
+
+    ZipHandler.removeStaleEntriesCaches(myCacheDir, sessionStart);
+    String[] names = cacheFileNames();
+    assertEquals(Arrays.toString(names), 2, names.length);
+    assertTrue(Arrays.toString(names), names[0].startsWith("kept.zip.") || names[1].startsWith("kept.zip."));
+    assertTrue(temp.exists());
+    assertFalse(orphan.exists());
+  }
+
+  @Test
+  public void testEntriesAreSavedAfterTheyArePublished() throws IOException {
+    File zip = writeZip("a.zip", "a.txt");
+    TestZipHandler handler = new TestZipHandler(zip) {
+      @Nonnull
+      @Override
+      protected Map<String, EntryInfo> createEntriesMap() throws IOException {
+        Map<String, EntryInfo> map = super.createEntriesMap();
+        // still under the lock of the handler, other threads waiting for the entries shouldn't wait for the file to be written too
+        assertFalse(myCacheDir.exists());
+        return map;
+      }
+    };
+    Map<String, EntryInfo> entries = handler.getEntriesMap();
+    assertEquals(1, cacheFileNames().length);
+
+    FileUtil.delete(myCacheDir);
+    assertSame(entries, handler.getEntriesMap());
+    assertFalse("entries are saved once", myCacheDir.exists());
+  }
+
+  @Nonnull
+  private String[] cacheFileNames() {
+    String[] names = myCacheDir.list();
+    assertNotNull(names);
+    return names;
+  }
+
+  @Nonnull
+  private File writeZip(@Nonnull String name, @Nonnull String... entries) throws IOException {
+    File file = new File(myDir, name);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+      for (String entry : entries) {
+        out.putNextEntry(new ZipEntry(entry));
+        out.write(entry.getBytes(StandardCharsets.UTF_8));
+        out.closeEntry();
+      }
+    }
+    return file;
+  }
+
+  private class TestZipHandler extends ZipHandler {
+    TestZipHandler(@Nonnull File file) {
+      super(file.getPath());
+    }
+
+    @Override
+    public ArchiveFile createArchiveFile(@Nonnull String path) throws IOException {
+      return new ZipArchiveFile(path);
+    }
+
+    @Override
+    protected File getEntriesCacheDirectory() {
+      return myCacheDir;
+    }
+  }
+}
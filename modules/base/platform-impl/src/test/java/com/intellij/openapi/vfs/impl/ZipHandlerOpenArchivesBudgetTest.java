@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.impl;
+
+import com.intellij.openapi.util.io.FileUtil;
+import consulo.vfs.impl.archive.ArchiveFile;
+import consulo.vfs.impl.zip.ZipArchiveFile;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * @author VISTALL
+ * @since 2020-10-17
+ */
+public class ZipHandlerOpenArchivesBudgetTest extends Assert {
+  private File myDir;
+
+  @Before
+  public void setUp() throws IOException {
+    myDir = FileUtil.createTempDirectory("zip-budget", null);
+  }
+
+  @After
+  public void tearDown() {
+    ZipHandler.clearFileAccessorCache();
+    FileUtil.delete(myDir);
+  }
+
+  @Test
+  public void testArchivesClosedOnPurposeDontIncreaseBudget() throws IOException {
+    ZipHandler handler = new TestZipHandler(writeZip("a.zip"));
+    int budget = ZipHandler.getOpenArchivesBudget();
+    for (int i = 0; i < 2 * ZipHandler.BUDGET_WINDOW; i++) {
+      // every request reopens the archive, but not because too few archives may stay open
+      ZipHandler.clearFileAccessorCache();
+      assertArrayEquals("a.txt".getBytes(StandardCharsets.UTF_8), handler.contentsToByteArray("a.txt"));
+    }
+    assertEquals(budget, ZipHandler.getOpenArchivesBudget());
+  }
+
+  @Test
+  public void testArchivesEvictedByCacheIncreaseBudget() throws IOException {
+    int budget = ZipHandler.getOpenArchivesBudget();
+    List<ZipHandler> handlers = new ArrayList<>();
+    for (int i = 0; i < 2 * budget; i++) {
+      handlers.add(new TestZipHandler(writeZip(i + ".zip")));
+    }
+    for (int i = 0; i < 2 * ZipHandler.BUDGET_WINDOW; i++) {
+      assertArrayEquals("a.txt".getBytes(StandardCharsets.UTF_8), handlers.get(i % handlers.size()).contentsToByteArray("a.txt"));
+    }
+    assertTrue(ZipHandler.getOpenArchivesBudget() > budget);
+  }
+
+  @Nonnull
+  private File writeZip(@Nonnull String name) throws IOException {
+    File file = new File(myDir, name);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+      out.putNextEntry(new ZipEntry("a.txt"));
+      out.write("a.txt".getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+    }
+    return file;
+  }
+
+  private static class TestZipHandler extends ZipHandler {
+    TestZipHandler(@Nonnull File file) {
+      super(file.getPath());
+    }
+
+    @Override
+    public ArchiveFile createArchiveFile(@Nonnull String path) throws IOException {
+      return new ZipArchiveFile(path);
+    }
+  }
+}
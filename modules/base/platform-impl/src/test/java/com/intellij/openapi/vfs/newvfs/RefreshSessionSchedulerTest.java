@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs;
+
+import com.intellij.openapi.application.TransactionId;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileSystem;
+import com.intellij.openapi.vfs.local.CoreLocalFileSystem;
+import com.intellij.openapi.vfs.newvfs.impl.StubVirtualFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author VISTALL
+ * @since 2020-10-17
+ */
+public class RefreshSessionSchedulerTest extends Assert {
+  private static final VirtualFileSystem ourFileSystem = new CoreLocalFileSystem();
+
+  private final TransactionId myTransaction = new TransactionId() {
+  };
+  private final TransactionId myOtherTransaction = new TransactionId() {
+  };
+
+  private final RefreshSessionScheduler<String> myScheduler = new RefreshSessionScheduler<>();
+
+  @Test
+  public void testSessionsOnDisjointRootsAreScannedConcurrently() {
+    VirtualFile root = new TestFile("root", null);
+    assertTrue(myScheduler.queue(entry("a", new TestFile("a", root))));
+    assertTrue(myScheduler.queue(entry("b", new TestFile("b", root))));
+  }
+
+  @Test
+  public void testSessionOnOverlappingRootWaits() {
+    VirtualFile a = new TestFile("a", null);
+    VirtualFile c = new TestFile("c", null);
+    RefreshSessionScheduler.Entry<String> first = entry("first", a);
+    RefreshSessionScheduler.Entry<String> child = entry("child", new TestFile("x", a));
+    RefreshSessionScheduler.Entry<String> again = entry("again", a);
+
+    assertTrue(myScheduler.queue(first));
+    assertFalse(myScheduler.queue(child));
+    assertFalse(myScheduler.queue(again));
+    assertTrue(myScheduler.queue(entry("disjoint", c)));
+
+    // the later waiting session overlaps the earlier one, so it keeps waiting
+    assertEquals(Collections.singletonList(child), myScheduler.scanFinished(first));
+    assertEquals(Collections.singletonList(again), myScheduler.scanFinished(child));
+    assertEquals(Collections.emptyList(), myScheduler.scanFinished(again));
+  }
+
+  @Test
+  public void testSessionWithoutRootsIsBarrier() {
+    VirtualFile a = new TestFile("a", null);
+    VirtualFile c = new TestFile("c", null);
+    RefreshSessionScheduler.Entry<String> scan = entry("scan", a);
+    RefreshSessionScheduler.Entry<String> events = entry("events");
+    RefreshSessionScheduler.Entry<String> later = entry("later", c);
+
+    assertTrue(myScheduler.queue(scan));
+    assertFalse(myScheduler.queue(events));
+    // disjoint from the session being scanned, but launched after the barrier
+    assertFalse(myScheduler.queue(later));
+
+    assertEquals(Collections.singletonList(events), myScheduler.scanFinished(scan));
+    assertEquals(Collections.singletonList(later), myScheduler.scanFinished(events));
+    assertEquals(Arrays.asList("scan", "events"), myScheduler.takeScannedSessions(null));
+  }
+
+  @Test
+  public void testScannedSessionsAreBatchedByTransactionAndMode() {
+    scanned(entry("1", myTransaction, true));
+    scanned(entry("2", myOtherTransaction, true));
+    scanned(entry("3", myTransaction, true));
+    scanned(entry("4", myTransaction, false));
+    scanned(entry("5", myOtherTransaction, true));
+
+    assertEquals(Arrays.asList("1", "3"), myScheduler.takeScannedSessions(myTransaction));
+    assertEquals(Arrays.asList("2", "5"), myScheduler.takeScannedSessions(myOtherTransaction));
+    assertEquals(Collections.singletonList("4"), myScheduler.takeScannedSessions(myTransaction));
+    assertEquals(Collections.emptyList(), myScheduler.takeScannedSessions(myTransaction));
+  }
+
+  @Test
+  public void testRequeuedBatchIsTakenBeforeSessionsScannedMeanwhile() {
+    scanned(entry("1", myTransaction, true));
+    assertEquals(Collections.singletonList("1"), myScheduler.takeScannedSessions(myTransaction));
+
+    scanned(entry("2", myTransaction, true));
+    myScheduler.requeueScannedSessions(Collections.singletonList(entry("1", myTransaction, true)));
+    assertEquals(Arrays.asList("1", "2"), myScheduler.takeScannedSessions(myTransaction));
+  }
+
+  private void scanned(@Nonnull RefreshSessionScheduler.Entry<String> entry) {
+    myScheduler.queue(entry);
+    assertEquals(Collections.emptyList(), myScheduler.scanFinished(entry));
+  }
+
+  @Nonnull
+  private static RefreshSessionScheduler.Entry<String> entry(@Nonnull String name, @Nonnull VirtualFile... roots) {
+    return new RefreshSessionScheduler.Entry<>(name, null, true, Arrays.asList(roots));
+  }
+
+  @Nonnull
+  private static RefreshSessionScheduler.Entry<String> entry(@Nonnull String name, @Nullable TransactionId transaction, boolean async) {
+    List<VirtualFile> roots = Collections.singletonList(new TestFile(name, null));
+    return new RefreshSessionScheduler.Entry<>(name, transaction, async, roots);
+  }
+
+  private static class TestFile extends StubVirtualFile {
+    private final String myName;
+    private final VirtualFile myParent;
+
+    TestFile(@Nonnull String name, @Nullable VirtualFile parent) {
+      myName = name;
+      myParent = parent;
+    }
+
+    @Nonnull
+    @Override
+    public String getName() {
+      return myName;
+    }
+
+    @Nullable
+    @Override
+    public VirtualFile getParent() {
+      return myParent;
+    }
+
+    @Nonnull
+    @Override
+    public VirtualFileSystem getFileSystem() {
+      return ourFileSystem;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.ShardedPersistentEnumerator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-width record fields are read without the read lock, while the records file grows and its pages are remapped.
+ *
+ * @author VISTALL
+ * @since 2020-06-19
+ */
+public class FSRecordsConcurrencyTest extends Assert {
+  private File myCachesDir;
+  private String myOldCachesDir;
+
+  @Before
+  public void setUp() throws IOException {
+    myCachesDir = FileUtil.createTempDirectory("fs-records", null);
+    myOldCachesDir = System.setProperty("caches_dir", myCachesDir.getPath());
+    // an existing names file means there are no stale indices to invalidate, which needs the application paths
+    FileUtil.createIfDoesntExist(ShardedPersistentEnumerator.getShardFile(new File(myCachesDir, "names" + FSRecords.VFS_FILES_EXTENSION), 0));
+    FSRecords.connect();
+  }
+
+  @After
+  public void tearDown() {
+    try {
+      FSRecords.dispose();
+    }
+    finally {
+      if (myOldCachesDir == null) {
+        System.clearProperty("caches_dir");
+      }
+      else {
+        System.setProperty("caches_dir", myOldCachesDir);
+      }
+      FileUtil.delete(myCachesDir);
+    }
+  }
+
+  @Test
+  public void testFieldsAreReadConsistentlyWhileRecordsGrow() throws Exception {
+    int recordsCount = 100000;
+    int readersCount = 4;
+    int firstId = FSRecords.getMaxId();
+    AtomicInteger lastWritten = new AtomicInteger();
+    AtomicBoolean done = new AtomicBoolean();
+    ExecutorService executor = Executors.newFixedThreadPool(readersCount + 1);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      futures.add(executor.submit(() -> {
+        try {
+          for (int i = 0; i < recordsCount; i++) {
+            int id = FSRecords.createRecord();
+            FSRecords.setLength(id, expectedLength(id));
+            FSRecords.setTimestamp(id, expectedTimestamp(id));
+            FSRecords.setFlags(id, expectedFlags(id), false);
+            lastWritten.set(id);
+          }
+        }
+        finally {
+          done.set(true);
+        }
+        return null;
+      }));
+      for (int i = 0; i < readersCount; i++) {
+        Random random = new Random(i);
+        futures.add(executor.submit(() -> {
+          while (!done.get()) {
+            int last = lastWritten.get();
+            if (last == 0) continue;
+            // every record up to the last written one has all its fields set, the last created one may have just some of them
+            int id = firstId + random.nextInt(last - firstId + 1);
+            assertEquals(expectedLength(id), FSRecords.getLength(id));
+            assertEquals(expectedTimestamp(id), FSRecords.getTimestamp(id));
+            assertEquals(expectedFlags(id), FSRecords.getFlags(id));
+            int lastCreated = FSRecords.getMaxId() - 1;
+            assertTrue(last <= lastCreated);
+            long length = FSRecords.getLength(lastCreated);
+            assertTrue(String.valueOf(length), length == 0 || length == expectedLength(lastCreated));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static long expectedLength(int id) {
+    return id * 3L;
+  }
+
+  private static long expectedTimestamp(int id) {
+    return Long.MAX_VALUE - id;
+  }
+
+  private static int expectedFlags(int id) {
+    return id & 0xFF;
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.vfs.impl.zip;
+
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.io.FileUtil;
+import consulo.vfs.impl.archive.ArchiveEntry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * @author VISTALL
+ * @since 2020-06-12
+ */
+public class MappedZipArchiveFileTest extends Assert {
+  private File myDir;
+
+  @Before
+  public void setUp() throws IOException {
+    myDir = FileUtil.createTempDirectory("mapped-zip", null);
+  }
+
+  @After
+  public void tearDown() {
+    FileUtil.delete(myDir);
+  }
+
+  @Test
+  public void testEntriesMatchZipFile() throws IOException {
+    Random random = new Random(42);
+    Map<String, byte[]> entries = new LinkedHashMap<>();
+    entries.put("META-INF/", null);
+    entries.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8));
+    entries.put("empty.txt", new byte[0]);
+    entries.put("dir/", null);
+    entries.put("dir/\u00fcnicode \u0444\u0430\u0439\u043b.txt", "text".getBytes(StandardCharsets.UTF_8));
+    entries.put("dir/random.bin", randomBytes(random, 300 * 1024));
+    entries.put("dir/repetitive.txt", repeat("public static void main(String[] args) {}\n", 20000));
+    for (int i = 0; i < 100; i++) {
+      entries.put("many/" + i + ".class", randomBytes(random, random.nextInt(2000)));
+    }
+    File zip = writeZip("test.zip", entries, new HashSet<>(Arrays.asList("dir/random.bin", "empty.txt", "many/7.class")));
+
+    MappedZipArchiveFile mapped = MappedZipArchiveFile.tryOpen(zip.getPath());
+    assertNotNull(mapped);
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      assertEquals(zipFile.size(), mapped.getSize());
+
+      List<String> expectedNames = new ArrayList<>();
+      for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+        expectedNames.add(e.nextElement().getName());
+      }
+      List<String> names = new ArrayList<>();
+      for (Iterator<? extends ArchiveEntry> it = mapped.entries(); it.hasNext(); ) {
+        names.add(it.next().getName());
+      }
+      assertEquals(expectedNames, names);
+
+      for (String name : expectedNames) {
+        ZipEntry expected = zipFile.getEntry(name);
+        ArchiveEntry entry = mapped.getEntry(name);
+        assertNotNull(name, entry);
+        assertEquals(name, expected.isDirectory(), entry.isDirectory());
+        assertEquals(name, expected.getSize(), entry.getSize());
+        assertEquals(name, expected.getTime(), entry.getTime());
+        if (!expected.isDirectory()) {
+          assertArrayEquals(name, load(zipFile.getInputStream(expected)), load(mapped.getInputStream(entry)));
+        }
+      }
+      // same as ZipFile#getEntry
+      assertEquals("dir/", mapped.getEntry("dir").getName());
+      assertNull(mapped.getEntry("missing"));
+    }
+    finally {
+      mapped.close();
+    }
+  }
+
+  @Test
+  public void testStreamsOutliveArchive() throws IOException {
+    byte[] content = repeat("content", 1000);
+    File zip = writeZip("test.zip", Collections.singletonMap("a.txt", content), Collections.emptySet());
+
+    MappedZipArchiveFile mapped = MappedZipArchiveFile.tryOpen(zip.getPath());
+    assertNotNull(mapped);
+    ArchiveEntry entry = mapped.getEntry("a.txt");
+    InputStream stream = mapped.getInputStream(entry);
+    mapped.close();
+    mapped.close();
+
+    assertArrayEquals(content, load(stream));
+    try {
+      mapped.getInputStream(entry);
+      fail("closed archive must not be read");
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  @Test
+  public void testChangedFileIsReadWithoutMapping() throws IOException {
+    // a mapped file can't be rewritten on Windows
+    Assume.assumeFalse(SystemInfo.isWindows);
+
+    File zip = writeZip("test.zip", Collections.singletonMap("a.txt", repeat("old", 10)), Collections.emptySet());
+    MappedZipArchiveFile mapped = MappedZipArchiveFile.tryOpen(zip.getPath());
+    assertNotNull(mapped);
+    try {
+      ArchiveEntry entry = mapped.getEntry("a.txt");
+      long timeStamp = zip.lastModified();
+
+      Map<String, byte[]> newEntries = new LinkedHashMap<>();
+      newEntries.put("a.txt", repeat("new", 1000));
+      newEntries.put("b.txt", repeat("b", 10));
+      writeZip("test.zip", newEntries, Collections.emptySet());
+      assertTrue(zip.setLastModified(timeStamp + 2000));
+
+      assertArrayEquals(repeat("new", 1000), load(mapped.getInputStream(entry)));
+    }
+    finally {
+      mapped.close();
+    }
+  }
+
+  private File writeZip(String name, Map<String, byte[]> entries, Set<String> stored) throws IOException {
+    File file = new File(myDir, name);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+      for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+        ZipEntry entry = new ZipEntry(e.getKey());
+        byte[] content = e.getValue();
+        if (stored.contains(e.getKey())) {
+          CRC32 crc = new CRC32();
+          crc.update(content);
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(content.length);
+          entry.setCompressedSize(content.length);
+          entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        if (content != null) out.write(content);
+        out.closeEntry();
+      }
+    }
+    return file;
+  }
+
+  private static byte[] load(InputStream stream) throws IOException {
+    assertNotNull(stream);
+    try {
+      return FileUtil.loadBytes(stream);
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private static byte[] randomBytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] repeat(String text, int times) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      builder.append(text);
+    }
+    return builder.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -142,6 +142,110 @@ public class CompressionUtil {
     }
   }
 
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * Writes bytes as independently LZ4-compressed blocks of {@link #BLOCK_SIZE} preceded by a block index (compressed sizes of all blocks).
+   * Unlike {@link #writeCompressed}, large contents don't leave thread local buffers of their size behind, and a part of contents can be
+   * read by {@link #readCompressedBlocks(DataInput, int, int)} without decompressing the preceding blocks.
+   */
+  public static void writeCompressedBlocks(@Nonnull DataOutput out, @Nonnull byte[] bytes, int start, int length) throws IOException {
+    LZ4Compressor compressor = compressor();
+    int blockCount = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    byte[] compressedBlock = spareBufferLocal.getBuffer(compressor.maxCompressedLength(BLOCK_SIZE));
+    BufferExposingByteArrayOutputStream blocks = new BufferExposingByteArrayOutputStream(length / 2 + 16);
+    int[] blockSizes = new int[blockCount];
+    for (int i = 0; i < blockCount; i++) {
+      int blockStart = start + i * BLOCK_SIZE;
+      int blockLength = Math.min(BLOCK_SIZE, start + length - blockStart);
+      int compressedSize = blockLength > COMPRESSION_THRESHOLD ? compressor.compress(bytes, blockStart, blockLength, compressedBlock, 0) : blockLength;
+      if (compressedSize < blockLength) {
+        blockSizes[i] = -compressedSize;
+        blocks.write(compressedBlock, 0, compressedSize);
+      }
+      else {
+        // incompressible block is stored as is
+        blockSizes[i] = blockLength;
+        blocks.write(bytes, blockStart, blockLength);
+      }
+    }
+
+    DataInputOutputUtil.writeINT(out, length);
+    for (int blockSize : blockSizes) {
+      DataInputOutputUtil.writeINT(out, blockSize);
+    }
+    out.write(blocks.getInternalBuffer(), 0, blocks.size());
+  }
+
+  @Nonnull
+  public static byte[] readCompressedBlocks(@Nonnull DataInput in) throws IOException {
+    return readCompressedBlocks(in, 0, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Reads {@code length} bytes starting at {@code offset} of contents written by {@link #writeCompressedBlocks}, fewer if the contents end earlier.
+   * Blocks before the range are skipped using the block index, only blocks overlapping the range are decompressed.
+   */
+  @Nonnull
+  public static byte[] readCompressedBlocks(@Nonnull DataInput in, int offset, int length) throws IOException {
+    int contentLength = DataInputOutputUtil.readINT(in);
+    int blockCount = (contentLength + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    int[] blockSizes = new int[blockCount];
+    for (int i = 0; i < blockCount; i++) {
+      blockSizes[i] = DataInputOutputUtil.readINT(in);
+    }
+
+    int from = Math.min(offset, contentLength);
+    int to = (int)Math.min((long)from + length, contentLength);
+    byte[] result = new byte[to - from];
+    if (result.length == 0) return result;
+
+    int firstBlock = from / BLOCK_SIZE;
+    int lastBlock = (to - 1) / BLOCK_SIZE;
+    long skipped = 0;
+    for (int i = 0; i < firstBlock; i++) {
+      skipped += Math.abs(blockSizes[i]);
+    }
+    skipFully(in, skipped);
+
+    byte[] block = spareBufferLocal.getBuffer(Math.min(contentLength, BLOCK_SIZE));
+    LZ4FastDecompressor decompressor = decompressor();
+    for (int i = firstBlock; i <= lastBlock; i++) {
+      int blockStart = i * BLOCK_SIZE;
+      int blockLength = Math.min(BLOCK_SIZE, contentLength - blockStart);
+      // only the first and the last block of the range may be read partially
+      int copyFrom = Math.max(from, blockStart);
+      int copyTo = Math.min(to, blockStart + blockLength);
+      if (blockSizes[i] < 0) {
+        in.readFully(block, 0, -blockSizes[i]);
+        if (copyTo - copyFrom == blockLength) {
+          decompressor.decompress(block, 0, result, blockStart - from, blockLength);
+        }
+        else {
+          byte[] decompressed = decompressor.decompress(block, 0, blockLength);
+          System.arraycopy(decompressed, copyFrom - blockStart, result, copyFrom - from, copyTo - copyFrom);
+        }
+      }
+      else {
+        skipFully(in, copyFrom - blockStart);
+        in.readFully(result, copyFrom - from, copyTo - copyFrom);
+      }
+    }
+    return result;
+  }
+
+  private static void skipFully(@Nonnull DataInput in, long count) throws IOException {
+    while (count > 0) {
+      int skipped = in.skipBytes((int)Math.min(count, Integer.MAX_VALUE));
+      if (skipped <= 0) {
+        // skipBytes doesn't tell the end of input apart, readByte throws EOFException there
+        in.readByte();
+        skipped = 1;
+      }
+      count -= skipped;
+    }
+  }
+
   private static final int STRING_COMPRESSION_THRESHOLD = 1024;
 
   @Nonnull
@@ -212,6 +212,16 @@ public class LinkedHashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>
     size = 0;
   }
 
+  @Nullable
+  public K getFirstKey() {
+    return back != null ? back.key : null;
+  }
+
+  @Nullable
+  public V getFirstValue() {
+    return back != null ? back.value : null;
+  }
+
   @Nullable
   public K getLastKey() {
     return top != null ? top.key : null;
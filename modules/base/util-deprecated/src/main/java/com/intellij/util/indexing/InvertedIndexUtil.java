@@ -17,6 +17,9 @@ package com.intellij.util.indexing;
 
 import com.intellij.openapi.util.Condition;
 import com.intellij.util.containers.EmptyIntHashSet;
+import com.intellij.util.indexing.containers.CompressedIdSet;
+import com.intellij.util.indexing.containers.IntIdsIterator;
+import com.intellij.util.indexing.impl.InvertedIndexValueIterator;
 import gnu.trove.TIntHashSet;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -31,13 +34,30 @@ public class InvertedIndexUtil {
                                                                        @Nullable Condition<? super V> valueChecker,
                                                                        @Nullable ValueContainer.IntPredicate idChecker) throws StorageException {
     TIntHashSet mainIntersection = null;
+    // while all visited file sets are still in their on-disk encoding they are intersected without expanding them
+    CompressedIdSet compressedIntersection = null;
 
     for (K dataKey : dataKeys) {
       if (keyChecker != null && !keyChecker.value(dataKey)) continue;
 
-      final TIntHashSet copy = new TIntHashSet();
       final ValueContainer<V> container = index.getData(dataKey);
 
+      if (mainIntersection == null) {
+        CompressedIdSet keyIds = unionOfCompressedFileSets(container, valueChecker);
+        if (keyIds != null) {
+          compressedIntersection = compressedIntersection == null ? keyIds : CompressedIdSet.intersect(compressedIntersection, keyIds);
+          if (compressedIntersection.isEmpty()) {
+            return EmptyIntHashSet.INSTANCE;
+          }
+          continue;
+        }
+        if (compressedIntersection != null) {
+          mainIntersection = toIntHashSet(compressedIntersection, idChecker);
+        }
+      }
+
+      final TIntHashSet copy = new TIntHashSet();
+
       for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
         final V value = valueIt.next();
         if (valueChecker != null && !valueChecker.value(value)) {
@@ -69,6 +89,81 @@ public class InvertedIndexUtil {
       }
     }
 
+    if (mainIntersection == null && compressedIntersection != null) {
+      mainIntersection = toIntHashSet(compressedIntersection, idChecker);
+      if (mainIntersection.isEmpty()) {
+        return EmptyIntHashSet.INSTANCE;
+      }
+    }
+
     return mainIntersection == null ? EmptyIntHashSet.INSTANCE : mainIntersection;
   }
+
+  /**
+   * @return ids of inputs containing at least one of {@code dataKeys}, keys are looked up in the iteration order of the collection
+   */
+  @Nonnull
+  public static <K, V, I> TIntHashSet collectInputIdsContainingAnyKey(@Nonnull InvertedIndex<? super K, V, I> index,
+                                                                      @Nonnull Collection<? extends K> dataKeys,
+                                                                      @Nullable Condition<? super K> keyChecker,
+                                                                      @Nullable Condition<? super V> valueChecker,
+                                                                      @Nullable ValueContainer.IntPredicate idChecker) throws StorageException {
+    TIntHashSet result = null;
+
+    for (K dataKey : dataKeys) {
+      if (keyChecker != null && !keyChecker.value(dataKey)) continue;
+
+      final ValueContainer<V> container = index.getData(dataKey);
+      for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+        final V value = valueIt.next();
+        if (valueChecker != null && !valueChecker.value(value)) {
+          continue;
+        }
+
+        ValueContainer.IntIterator iterator = valueIt.getInputIdsIterator();
+        if (result == null) {
+          result = new TIntHashSet(iterator.size());
+        }
+        while (iterator.hasNext()) {
+          final int id = iterator.next();
+          if (idChecker == null || idChecker.contains(id)) {
+            result.add(id);
+          }
+        }
+      }
+    }
+
+    return result == null || result.isEmpty() ? EmptyIntHashSet.INSTANCE : result;
+  }
+
+  /**
+   * @return union of ids of all values accepted by {@code valueChecker} or null if some of them is not stored as {@link CompressedIdSet}
+   */
+  @Nullable
+  private static <V> CompressedIdSet unionOfCompressedFileSets(@Nonnull ValueContainer<V> container, @Nullable Condition<? super V> valueChecker) {
+    CompressedIdSet result = CompressedIdSet.EMPTY;
+    for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+      final V value = valueIt.next();
+      if (valueChecker != null && !valueChecker.value(value)) {
+        continue;
+      }
+      if (!(valueIt instanceof InvertedIndexValueIterator)) return null;
+      Object fileSetObject = ((InvertedIndexValueIterator<V>)valueIt).getFileSetObject();
+      if (!(fileSetObject instanceof CompressedIdSet)) return null;
+      result = CompressedIdSet.union(result, (CompressedIdSet)fileSetObject);
+    }
+    return result;
+  }
+
+  @Nonnull
+  private static TIntHashSet toIntHashSet(@Nonnull CompressedIdSet ids, @Nullable ValueContainer.IntPredicate idChecker) {
+    TIntHashSet result = new TIntHashSet(ids.size());
+    for (IntIdsIterator iterator = ids.intIterator(); iterator.hasNext(); ) {
+      final int id = iterator.next();
+      if (idChecker == null || idChecker.contains(id)) {
+        result.add(id);
+      }
+    }
+    return result;
+  }
 }
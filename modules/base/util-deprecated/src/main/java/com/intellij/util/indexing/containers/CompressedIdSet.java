@@ -0,0 +1,381 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.containers;
+
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.indexing.ValueContainer;
+import com.intellij.util.io.DataInputOutputUtil;
+
+import javax.annotation.Nonnull;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Immutable set of input ids kept in the same delta + varint encoding that {@code ValueContainerImpl} uses on disk,
+ * so a file set read from index storage does not have to be expanded into an int container until it is modified.
+ * <p>
+ * Every {@link #SKIP_INTERVAL}-th id is remembered together with its offset to make {@link #contains(int)} logarithmic.
+ * Intersection and union of two ascending sets are done by streaming over the encoded bytes.
+ *
+ * @author VISTALL
+ * @since 2020-06-02
+ */
+public final class CompressedIdSet {
+  public static final CompressedIdSet EMPTY = new CompressedIdSet(ArrayUtil.EMPTY_BYTE_ARRAY, 0, 0, true, ArrayUtil.EMPTY_INT_ARRAY, ArrayUtil.EMPTY_INT_ARRAY);
+
+  private static final int SKIP_INTERVAL = 64;
+
+  private final byte[] myBytes;
+  private final int myLength;
+  private final int mySize;
+  private final boolean myAscending;
+  // id at every SKIP_INTERVAL-th position and offset of the delta following it
+  private final int[] mySkipIds;
+  private final int[] mySkipOffsets;
+
+  private CompressedIdSet(byte[] bytes, int length, int size, boolean ascending, int[] skipIds, int[] skipOffsets) {
+    myBytes = bytes;
+    myLength = length;
+    mySize = size;
+    myAscending = ascending;
+    mySkipIds = skipIds;
+    mySkipOffsets = skipOffsets;
+  }
+
+  /**
+   * Reads {@code size} delta encoded ids as written by {@link #saveTo(DataOutput)}. The encoded bytes are copied as is,
+   * the deltas are only summed up to build the skip index.
+   */
+  @Nonnull
+  public static CompressedIdSet read(@Nonnull DataInput in, int size) throws IOException {
+    Builder builder = new Builder(size);
+    for (int i = 0; i < size; i++) {
+      builder.copyEncoded(in);
+    }
+    return builder.build();
+  }
+
+  public int size() {
+    return mySize;
+  }
+
+  public boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  public boolean hasAscendingOrder() {
+    return myAscending;
+  }
+
+  /**
+   * @return number of bytes used by the encoded ids
+   */
+  public int getEncodedLength() {
+    return myLength;
+  }
+
+  public boolean contains(int id) {
+    if (!myAscending) {
+      for (IntIdsIterator iterator = intIterator(); iterator.hasNext(); ) {
+        if (iterator.next() == id) return true;
+      }
+      return false;
+    }
+
+    int offset = 0;
+    int prev = 0;
+    int remaining = mySize;
+    int skip = Arrays.binarySearch(mySkipIds, id);
+    if (skip >= 0) return true;
+    skip = -skip - 2;
+    if (skip >= 0) {
+      prev = mySkipIds[skip];
+      offset = mySkipOffsets[skip];
+      remaining = mySize - (skip + 1) * SKIP_INTERVAL;
+    }
+
+    byte[] bytes = myBytes;
+    while (remaining-- > 0) {
+      int val = bytes[offset++] & 0xFF;
+      if (val >= 192) {
+        int res = val - 192;
+        for (int sh = 6; ; sh += 7) {
+          int next = bytes[offset++] & 0xFF;
+          res |= (next & 0x7F) << sh;
+          if ((next & 0x80) == 0) break;
+        }
+        val = res;
+      }
+      prev += val;
+      if (prev >= id) return prev == id;
+    }
+    return false;
+  }
+
+  @Nonnull
+  public ValueContainer.IntPredicate intPredicate() {
+    return this::contains;
+  }
+
+  @Nonnull
+  public IntIdsIterator intIterator() {
+    return new DecodingIterator();
+  }
+
+  /**
+   * Writes the set in the {@code -size, delta...} form expected by {@link #read(DataInput, int)}, copying the encoded bytes as is.
+   */
+  public void saveTo(@Nonnull DataOutput out) throws IOException {
+    DataInputOutputUtil.writeINT(out, -mySize);
+    out.write(myBytes, 0, myLength);
+  }
+
+  @Nonnull
+  public ChangeBufferingList toChangeBufferingList() {
+    ChangeBufferingList list = new ChangeBufferingList(Math.max(mySize, 1));
+    for (IntIdsIterator iterator = intIterator(); iterator.hasNext(); ) {
+      list.add(iterator.next());
+    }
+    return list;
+  }
+
+  @Nonnull
+  public static CompressedIdSet intersect(@Nonnull CompressedIdSet first, @Nonnull CompressedIdSet second) {
+    if (first.isEmpty() || second.isEmpty()) return EMPTY;
+    if (!first.myAscending || !second.myAscending) {
+      CompressedIdSet smaller = first.mySize <= second.mySize ? first : second;
+      CompressedIdSet larger = smaller == first ? second : first;
+      return filter(smaller.sorted(), larger.intPredicate());
+    }
+
+    Builder builder = new Builder(Math.min(first.mySize, second.mySize));
+    IntIdsIterator it1 = first.intIterator();
+    IntIdsIterator it2 = second.intIterator();
+    int id1 = it1.next();
+    int id2 = it2.next();
+    while (true) {
+      if (id1 == id2) {
+        builder.add(id1);
+        if (!it1.hasNext() || !it2.hasNext()) break;
+        id1 = it1.next();
+        id2 = it2.next();
+      }
+      else if (id1 < id2) {
+        if (!it1.hasNext()) break;
+        id1 = it1.next();
+      }
+      else {
+        if (!it2.hasNext()) break;
+        id2 = it2.next();
+      }
+    }
+    return builder.build();
+  }
+
+  @Nonnull
+  public static CompressedIdSet union(@Nonnull CompressedIdSet first, @Nonnull CompressedIdSet second) {
+    if (first.isEmpty()) return second;
+    if (second.isEmpty()) return first;
+    first = first.sorted();
+    second = second.sorted();
+
+    Builder builder = new Builder(first.mySize + second.mySize);
+    IntIdsIterator it1 = first.intIterator();
+    IntIdsIterator it2 = second.intIterator();
+    int id1 = it1.next();
+    int id2 = it2.next();
+    boolean has1 = true;
+    boolean has2 = true;
+    while (has1 && has2) {
+      if (id1 == id2) {
+        builder.add(id1);
+        if (has1 = it1.hasNext()) id1 = it1.next();
+        if (has2 = it2.hasNext()) id2 = it2.next();
+      }
+      else if (id1 < id2) {
+        builder.add(id1);
+        if (has1 = it1.hasNext()) id1 = it1.next();
+      }
+      else {
+        builder.add(id2);
+        if (has2 = it2.hasNext()) id2 = it2.next();
+      }
+    }
+    while (has1) {
+      builder.add(id1);
+      if (has1 = it1.hasNext()) id1 = it1.next();
+    }
+    while (has2) {
+      builder.add(id2);
+      if (has2 = it2.hasNext()) id2 = it2.next();
+    }
+    return builder.build();
+  }
+
+  @Nonnull
+  public static CompressedIdSet filter(@Nonnull CompressedIdSet set, @Nonnull ValueContainer.IntPredicate predicate) {
+    Builder builder = new Builder(set.mySize);
+    for (IntIdsIterator iterator = set.intIterator(); iterator.hasNext(); ) {
+      int id = iterator.next();
+      if (predicate.contains(id)) builder.add(id);
+    }
+    return builder.build();
+  }
+
+  @Nonnull
+  private CompressedIdSet sorted() {
+    if (myAscending) return this;
+    int[] ids = new int[mySize];
+    int i = 0;
+    for (IntIdsIterator iterator = intIterator(); iterator.hasNext(); ) {
+      ids[i++] = iterator.next();
+    }
+    Arrays.sort(ids);
+    Builder builder = new Builder(mySize);
+    for (int j = 0; j < ids.length; j++) {
+      if (j == 0 || ids[j] != ids[j - 1]) builder.add(ids[j]);
+    }
+    return builder.build();
+  }
+
+  private static final class Builder {
+    private byte[] myBytes;
+    private int myLength;
+    private int mySize;
+    private int myPrev;
+    private boolean myAscending = true;
+    private int[] mySkipIds;
+    private int[] mySkipOffsets;
+    private int mySkipCount;
+
+    private Builder(int expectedSize) {
+      myBytes = new byte[Math.max(expectedSize, 4)];
+      int skips = expectedSize / SKIP_INTERVAL;
+      mySkipIds = new int[skips];
+      mySkipOffsets = new int[skips];
+    }
+
+    private void add(int id) {
+      int delta = id - myPrev;
+      ensureCapacity(5);
+      if (0 > delta || delta >= 192) {
+        myBytes[myLength++] = (byte)(192 + (delta & 0x3F));
+        delta >>>= 6;
+        while (delta >= 128) {
+          myBytes[myLength++] = (byte)((delta & 0x7F) | 0x80);
+          delta >>>= 7;
+        }
+      }
+      myBytes[myLength++] = (byte)delta;
+      added(id);
+    }
+
+    // same format as DataInputOutputUtil#readINT
+    private void copyEncoded(@Nonnull DataInput in) throws IOException {
+      ensureCapacity(1);
+      int val = in.readUnsignedByte();
+      myBytes[myLength++] = (byte)val;
+      if (val >= 192) {
+        int res = val - 192;
+        for (int sh = 6; ; sh += 7) {
+          ensureCapacity(1);
+          int next = in.readUnsignedByte();
+          myBytes[myLength++] = (byte)next;
+          res |= (next & 0x7F) << sh;
+          if ((next & 0x80) == 0) break;
+        }
+        val = res;
+      }
+      added(myPrev + val);
+    }
+
+    private void ensureCapacity(int bytes) {
+      if (myLength + bytes > myBytes.length) {
+        myBytes = Arrays.copyOf(myBytes, Math.max(myBytes.length * 2, myLength + bytes));
+      }
+    }
+
+    private void added(int id) {
+      if (mySize > 0 && id <= myPrev) myAscending = false;
+      myPrev = id;
+      if (++mySize % SKIP_INTERVAL == 0) {
+        if (mySkipCount == mySkipIds.length) {
+          int newLength = Math.max(mySkipCount * 2, 4);
+          mySkipIds = Arrays.copyOf(mySkipIds, newLength);
+          mySkipOffsets = Arrays.copyOf(mySkipOffsets, newLength);
+        }
+        mySkipIds[mySkipCount] = id;
+        mySkipOffsets[mySkipCount] = myLength;
+        mySkipCount++;
+      }
+    }
+
+    @Nonnull
+    private CompressedIdSet build() {
+      if (mySize == 0) return EMPTY;
+      byte[] bytes = myLength == myBytes.length ? myBytes : Arrays.copyOf(myBytes, myLength);
+      int[] skipIds = myAscending ? Arrays.copyOf(mySkipIds, mySkipCount) : ArrayUtil.EMPTY_INT_ARRAY;
+      int[] skipOffsets = myAscending ? Arrays.copyOf(mySkipOffsets, mySkipCount) : ArrayUtil.EMPTY_INT_ARRAY;
+      return new CompressedIdSet(bytes, myLength, mySize, myAscending, skipIds, skipOffsets);
+    }
+  }
+
+  private final class DecodingIterator implements IntIdsIterator {
+    private int myOffset;
+    private int myRead;
+    private int myPrev;
+
+    @Override
+    public boolean hasNext() {
+      return myRead < mySize;
+    }
+
+    @Override
+    public int next() {
+      byte[] bytes = myBytes;
+      int val = bytes[myOffset++] & 0xFF;
+      if (val >= 192) {
+        int res = val - 192;
+        for (int sh = 6; ; sh += 7) {
+          int next = bytes[myOffset++] & 0xFF;
+          res |= (next & 0x7F) << sh;
+          if ((next & 0x80) == 0) break;
+        }
+        val = res;
+      }
+      myRead++;
+      myPrev += val;
+      return myPrev;
+    }
+
+    @Override
+    public int size() {
+      return mySize;
+    }
+
+    @Override
+    public boolean hasAscendingOrder() {
+      return myAscending;
+    }
+
+    @Override
+    public IntIdsIterator createCopyInInitialState() {
+      return new DecodingIterator();
+    }
+  }
+}
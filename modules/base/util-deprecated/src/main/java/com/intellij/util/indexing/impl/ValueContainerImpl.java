@@ -21,6 +21,7 @@ import com.intellij.util.IntIntFunction;
 import com.intellij.util.SmartList;
 import com.intellij.util.indexing.ValueContainer;
 import com.intellij.util.indexing.containers.ChangeBufferingList;
+import com.intellij.util.indexing.containers.CompressedIdSet;
 import com.intellij.util.indexing.containers.IntIdsIterator;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataInputOutputUtil;
@@ -65,6 +66,11 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         resetFileSetForValue(value, list);
       }
     }
+    else if (fileSetObject instanceof CompressedIdSet) {
+      ChangeBufferingList list = ((CompressedIdSet)fileSetObject).toChangeBufferingList();
+      list.add(inputId);
+      resetFileSetForValue(value, list);
+    }
     else {
       ((ChangeBufferingList)fileSetObject).add(inputId);
     }
@@ -149,6 +155,16 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         return;
       }
     }
+    else if (fileSet instanceof CompressedIdSet) {
+      CompressedIdSet compressedSet = (CompressedIdSet)fileSet;
+      if (!compressedSet.contains(inputId)) return;
+      if (compressedSet.size() > 1) {
+        ChangeBufferingList changesList = compressedSet.toChangeBufferingList();
+        changesList.remove(inputId);
+        resetFileSetForValue(value, changesList);
+        return;
+      }
+    }
 
     Map<Value, Object> mapping = asMapping();
     if (mapping == null) {
@@ -308,6 +324,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
 
       return id -> id == singleId;
     }
+    if (input instanceof CompressedIdSet) {
+      return ((CompressedIdSet)input).intPredicate();
+    }
     return ((ChangeBufferingList)input).intPredicate();
   }
 
@@ -317,6 +336,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     if (input instanceof Integer) {
       return new SingleValueIterator(((Integer)input).intValue());
     }
+    if (input instanceof CompressedIdSet) {
+      return ((CompressedIdSet)input).intIterator();
+    }
     return ((ChangeBufferingList)input).intIterator();
   }
 
@@ -405,6 +427,12 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         list.ensureCapacity(count);
         return list;
       }
+      if (fileSetObject instanceof CompressedIdSet) {
+        ChangeBufferingList list = ((CompressedIdSet)fileSetObject).toChangeBufferingList();
+        list.ensureCapacity(count);
+        resetFileSetForValue(value, list);
+        return list;
+      }
       return null;
     }
 
@@ -443,10 +471,15 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       if (fileSetObject instanceof Integer) {
         DataInputOutputUtil.writeINT(out, (Integer)fileSetObject); // most common 90% case during index building
       }
+      else if (fileSetObject instanceof CompressedIdSet && ((CompressedIdSet)fileSetObject).hasAscendingOrder() && ((CompressedIdSet)fileSetObject).size() > 1) {
+        // unchanged since it was read from disk: the ids are already delta encoded
+        ((CompressedIdSet)fileSetObject).saveTo(out);
+      }
       else {
         // serialize positive file ids with delta encoding
-        ChangeBufferingList originalInput = (ChangeBufferingList)fileSetObject;
-        IntIdsIterator intIterator = originalInput.sortedIntIterator();
+        IntIdsIterator intIterator = fileSetObject instanceof CompressedIdSet
+                                     ? ((CompressedIdSet)fileSetObject).toChangeBufferingList().sortedIntIterator()
+                                     : ((ChangeBufferingList)fileSetObject).sortedIntIterator();
         if (DebugAssertions.DEBUG) DebugAssertions.assertTrue(intIterator.hasAscendingOrder());
 
         if (intIterator.size() == 1) {
@@ -501,6 +534,16 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
             addValue(idCountOrSingleValue, value);
             if (mapping != null) mapping.associateFileIdToValue(inputRemapping.fun(idCountOrSingleValue), value);
           }
+          else if (inputRemapping == IntIntFunction.IDENTITY && getFileSetObject(value) == null) {
+            // keep ids in their on-disk delta encoding until somebody modifies them
+            CompressedIdSet compressedSet = CompressedIdSet.read(stream, -idCountOrSingleValue);
+            attachFileSetForNewValue(value, compressedSet);
+            if (mapping != null) {
+              for (IntIdsIterator iterator = compressedSet.intIterator(); iterator.hasNext(); ) {
+                mapping.associateFileIdToValue(iterator.next(), value);
+              }
+            }
+          }
           else {
             idCountOrSingleValue = -idCountOrSingleValue;
             ChangeBufferingList changeBufferingList = ensureFileSetCapacityForValue(value, idCountOrSingleValue);
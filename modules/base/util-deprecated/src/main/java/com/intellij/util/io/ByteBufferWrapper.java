@@ -25,6 +25,8 @@ public abstract class ByteBufferWrapper {
   protected final long myPosition;
   protected final long myLength;
   protected volatile boolean myDirty;
+  // guarded by the page cache segment that holds this wrapper
+  long myLastAccessTime;
 
   protected ByteBufferWrapper(final File file, final long offset, final long length) {
     myFile = file;
@@ -2,13 +2,24 @@ package com.intellij.util.io;
 
 import consulo.logging.Logger;
 
+import java.util.concurrent.atomic.LongAdder;
+
 class IOStatistics {
   static final boolean DEBUG = System.getProperty("io.access.debug") != null;
   static final int MIN_IO_TIME_TO_REPORT = 100;
   static final Logger LOG = Logger.getInstance(IOStatistics.class);
   static final int KEYS_FACTOR_MASK = 0xFFFF;
 
+  // counters of PagedFileStorage page cache, shared by all StorageLock instances
+  static final LongAdder PAGE_CACHE_HITS = new LongAdder();
+  static final LongAdder PAGE_CACHE_MISSES = new LongAdder();
+  static final LongAdder PAGE_CACHE_EVICTIONS = new LongAdder();
+
   static void dump(String msg) {
     LOG.info(msg);
   }
+
+  static String getPageCacheStatistics() {
+    return "page cache hits:" + PAGE_CACHE_HITS.sum() + ", misses:" + PAGE_CACHE_MISSES.sum() + ", evictions:" + PAGE_CACHE_EVICTIONS.sum();
+  }
 }
@@ -8,6 +8,7 @@ import consulo.util.collection.ConcurrentIntObjectMap;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.hash.LinkedHashMap;
 import consulo.logging.Logger;
+import org.jetbrains.annotations.TestOnly;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -21,6 +22,8 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -384,21 +387,21 @@ public class PagedFileStorage implements Forceable {
     synchronized (myLastAccessedBufferCacheLock) {
       if (myLastPage == page) {
         ByteBuffer buf = myLastBuffer.getCachedBuffer();
-        if (buf != null && myLastChangeCount == myStorageLockContext.myStorageLock.myMappingChangeCount) {
+        if (buf != null && myLastChangeCount == myStorageLockContext.myStorageLock.myMappingChangeCount.get()) {
           if (modify) markDirty(myLastBuffer);
           return myLastBuffer;
         }
       }
       else if (myLastPage2 == page) {
         ByteBuffer buf = myLastBuffer2.getCachedBuffer();
-        if (buf != null && myLastChangeCount2 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
+        if (buf != null && myLastChangeCount2 == myStorageLockContext.myStorageLock.myMappingChangeCount.get()) {
           if (modify) markDirty(myLastBuffer2);
           return myLastBuffer2;
         }
       }
       else if (myLastPage3 == page) {
         ByteBuffer buf = myLastBuffer3.getCachedBuffer();
-        if (buf != null && myLastChangeCount3 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
+        if (buf != null && myLastChangeCount3 == myStorageLockContext.myStorageLock.myMappingChangeCount.get()) {
           if (modify) markDirty(myLastBuffer3);
           return myLastBuffer3;
         }
@@ -435,7 +438,7 @@ public class PagedFileStorage implements Forceable {
           myLastBuffer = byteBufferWrapper;
         }
 
-        myLastChangeCount = myStorageLockContext.myStorageLock.myMappingChangeCount;
+        myLastChangeCount = myStorageLockContext.myStorageLock.myMappingChangeCount.get();
       }
 
       return byteBufferWrapper;
@@ -445,6 +448,15 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
+  // maps the page into the page cache without touching its content, which another thread may evict at any moment
+  @TestOnly
+  void mapPage(long page) {
+    if (myStorageIndex == -1) {
+      myStorageIndex = myStorageLockContext.myStorageLock.registerPagedFileStorage(this);
+    }
+    myStorageLockContext.myStorageLock.get(myStorageIndex | (int)page);
+  }
+
   private void markDirty(ByteBufferWrapper buffer) {
     if (!isDirty) isDirty = true;
     buffer.markDirty();
@@ -474,46 +486,44 @@ public class PagedFileStorage implements Forceable {
   public static class StorageLock {
     private static final int FILE_INDEX_MASK = 0xFFFF0000;
     private static final int FILE_INDEX_SHIFT = 16;
+    private static final int MAX_SEGMENTS_COUNT = 64;
     public final StorageLockContext myDefaultStorageLockContext;
     private final ConcurrentIntObjectMap<PagedFileStorage> myIndex2Storage = ContainerUtil.createConcurrentIntObjectMap();
 
-    private final LinkedHashMap<Integer, ByteBufferWrapper> mySegments;
-    private final ReentrantLock mySegmentsAccessLock = new ReentrantLock(); // protects map operations of mySegments, needed for LRU order, mySize and myMappingChangeCount
-    // todo avoid locking for access
+    // pages are striped by key hash, every segment keeps its own LRU order under its own lock
+    private final PageSegment[] mySegments;
 
+    // protects adding and removing pages over all segments, so mySize always matches the cached pages and is checked against the limit
+    // by one thread at a time; segment locks only guard the LRU order of lookups which do not hold this lock
     private final ReentrantLock mySegmentsAllocationLock = new ReentrantLock();
     private final ConcurrentLinkedQueue<ByteBufferWrapper> mySegmentsToRemove = new ConcurrentLinkedQueue<>();
-    private volatile long mySize;
+    private final AtomicLong mySize = new AtomicLong();
     private volatile long mySizeLimit;
-    private volatile int myMappingChangeCount;
+    private final AtomicInteger myMappingChangeCount = new AtomicInteger();
 
     public StorageLock() {
       this(true);
     }
 
     public StorageLock(boolean checkThreadAccess) {
+      this(checkThreadAccess, UPPER_LIMIT);
+    }
+
+    @TestOnly
+    StorageLock(boolean checkThreadAccess, long sizeLimit) {
       myDefaultStorageLockContext = new StorageLockContext(this, checkThreadAccess);
 
-      mySizeLimit = UPPER_LIMIT;
-      mySegments = new LinkedHashMap<Integer, ByteBufferWrapper>(10, 0.75f, true) {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Integer, ByteBufferWrapper> eldest) {
-          return mySize > mySizeLimit;
-        }
-
-        @Nullable
-        @Override
-        public ByteBufferWrapper remove(Object key) {
-          // this method can be called after removeEldestEntry
-          ByteBufferWrapper wrapper = super.remove(key);
-          if (wrapper != null) {
-            ++myMappingChangeCount;
-            mySegmentsToRemove.offer(wrapper);
-            mySize -= wrapper.myLength;
-          }
-          return wrapper;
-        }
-      };
+      mySizeLimit = sizeLimit;
+      mySegments = new PageSegment[segmentsCount()];
+      for (int i = 0; i < mySegments.length; i++) {
+        mySegments[i] = new PageSegment();
+      }
+    }
+
+    private static int segmentsCount() {
+      int requested = SystemProperties.getIntProperty("idea.paged.storage.cache.segments", Runtime.getRuntime().availableProcessors() * 2);
+      int count = Integer.highestOneBit(Math.max(1, Math.min(requested, MAX_SEGMENTS_COUNT)));
+      return count < requested && count < MAX_SEGMENTS_COUNT ? count << 1 : count;
     }
 
     public void lock() {
@@ -540,28 +550,31 @@ public class PagedFileStorage implements Forceable {
       return myIndex2Storage.get(index);
     }
 
+    @Nonnull
+    private PageSegment getSegment(int key) {
+      // pages of one storage are adjacent keys, spread them over segments too
+      int hash = key * 0x9E3779B9;
+      hash ^= hash >>> 16;
+      return mySegments[hash & (mySegments.length - 1)];
+    }
+
     private ByteBufferWrapper get(Integer key) {
-      ByteBufferWrapper wrapper;
-      try {         // fast path
-        mySegmentsAccessLock.lock();
-        wrapper = mySegments.get(key);
-        if (wrapper != null) return wrapper;
-      }
-      finally {
-        mySegmentsAccessLock.unlock();
+      PageSegment segment = getSegment(key);
+      ByteBufferWrapper wrapper = segment.get(key); // fast path
+      if (wrapper != null) {
+        IOStatistics.PAGE_CACHE_HITS.increment();
+        return wrapper;
       }
 
       mySegmentsAllocationLock.lock();
       try {
         // check if anybody cared about our segment
-        mySegmentsAccessLock.lock();
-        try {
-          wrapper = mySegments.get(key);
-          if (wrapper != null) return wrapper;
-        }
-        finally {
-          mySegmentsAccessLock.unlock();
+        wrapper = segment.get(key);
+        if (wrapper != null) {
+          IOStatistics.PAGE_CACHE_HITS.increment();
+          return wrapper;
         }
+        IOStatistics.PAGE_CACHE_MISSES.increment();
 
         long started = IOStatistics.DEBUG ? System.currentTimeMillis() : 0;
         wrapper = createValue(key);
@@ -571,16 +584,12 @@ public class PagedFileStorage implements Forceable {
           if (finished - started > IOStatistics.MIN_IO_TIME_TO_REPORT) {
             IOStatistics.dump("Mapping " + wrapper.myLength + " from " + wrapper.myPosition + " file:" + wrapper.myFile + " for " + (finished - started));
           }
+          if ((IOStatistics.PAGE_CACHE_MISSES.sum() & IOStatistics.KEYS_FACTOR_MASK) == 0) {
+            IOStatistics.dump(IOStatistics.getPageCacheStatistics() + ", mapped:" + mySize.get() / MB + "MB");
+          }
         }
 
-        mySegmentsAccessLock.lock();
-        try {
-          mySegments.put(key, wrapper);
-          mySize += wrapper.myLength;
-        }
-        finally {
-          mySegmentsAccessLock.unlock();
-        }
+        segment.put(key, wrapper);
 
         ensureSize(mySizeLimit);
 
@@ -605,15 +614,19 @@ public class PagedFileStorage implements Forceable {
     private void ensureSize(long sizeLimit) {
       assert mySegmentsAllocationLock.isHeldByCurrentThread();
 
-      try {
-        mySegmentsAccessLock.lock();
-        while (mySize > sizeLimit) {
-          // we still have to drop something
-          mySegments.doRemoveEldestEntry();
+      while (mySize.get() > sizeLimit) {
+        // we still have to drop something: the least recently used page among the eldest pages of all segments
+        PageSegment victim = null;
+        long victimAccessTime = 0;
+        for (PageSegment segment : mySegments) {
+          ByteBufferWrapper eldest = segment.getEldest();
+          if (eldest != null && (victim == null || eldest.myLastAccessTime - victimAccessTime < 0)) {
+            victim = segment;
+            victimAccessTime = eldest.myLastAccessTime;
+          }
         }
-      }
-      finally {
-        mySegmentsAccessLock.unlock();
+        if (victim == null || !victim.removeEldest()) break;
+        IOStatistics.PAGE_CACHE_EVICTIONS.increment();
       }
 
       disposeRemovedSegments();
@@ -653,10 +666,10 @@ public class PagedFileStorage implements Forceable {
           if (mySizeLimit > LOWER_LIMIT) {
             mySizeLimit -= owner.myPageSize;
           }
-          long newSize = mySize - owner.myPageSize;
+          long newSize = mySize.get() - owner.myPageSize;
           if (newSize < 0) {
-            LOG.info("Currently allocated:" + mySize);
-            LOG.info("Mapping failed due to OOME. Current buffers: " + mySegments);
+            LOG.info("Currently allocated:" + mySize.get());
+            LOG.info("Mapping failed due to OOME. Current buffers: " + Arrays.toString(mySegments));
             LOG.info(oome);
             try {
               Class<?> aClass = Class.forName("java.nio.Bits");
@@ -697,41 +710,23 @@ public class PagedFileStorage implements Forceable {
 
     @Nullable
     private Map<Integer, ByteBufferWrapper> getBuffersOrderedForOwner(int index, StorageLockContext storageLockContext) {
-      mySegmentsAccessLock.lock();
-      try {
-        checkThreadAccess(storageLockContext);
-        Map<Integer, ByteBufferWrapper> mineBuffers = null;
-        for (Map.Entry<Integer, ByteBufferWrapper> entry : mySegments.entrySet()) {
-          if ((entry.getKey() & FILE_INDEX_MASK) == index) {
-            if (mineBuffers == null) {
-              mineBuffers = new TreeMap<>(Comparator.comparingInt(o -> o));
-            }
-            mineBuffers.put(entry.getKey(), entry.getValue());
-          }
-        }
-        return mineBuffers;
-      }
-      finally {
-        mySegmentsAccessLock.unlock();
+      checkThreadAccess(storageLockContext);
+      Map<Integer, ByteBufferWrapper> mineBuffers = null;
+      for (PageSegment segment : mySegments) {
+        mineBuffers = segment.collectBuffersForOwner(index, mineBuffers);
       }
+      return mineBuffers;
     }
 
     private void unmapBuffersForOwner(int index, StorageLockContext storageLockContext) {
       final Map<Integer, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index, storageLockContext);
 
       if (buffers != null) {
-        mySegmentsAccessLock.lock();
+        mySegmentsAllocationLock.lock();
         try {
           for (Integer key : buffers.keySet()) {
-            mySegments.remove(key);
+            getSegment(key).remove(key);
           }
-        }
-        finally {
-          mySegmentsAccessLock.unlock();
-        }
-
-        mySegmentsAllocationLock.lock();
-        try {
           disposeRemovedSegments();
         }
         finally {
@@ -766,21 +761,148 @@ public class PagedFileStorage implements Forceable {
     }
 
     public void invalidateBuffer(int page) {
-      mySegmentsAccessLock.lock();
-      try {
-        mySegments.remove(page);
-      }
-      finally {
-        mySegmentsAccessLock.unlock();
-      }
       mySegmentsAllocationLock.lock();
       try {
+        getSegment(page).remove(page);
         disposeRemovedSegments();
       }
       finally {
         mySegmentsAllocationLock.unlock();
       }
     }
+
+    @TestOnly
+    long getMappedSize() {
+      return mySize.get();
+    }
+
+    @TestOnly
+    long getCachedPagesSize() {
+      long size = 0;
+      for (PageSegment segment : mySegments) {
+        size += segment.getPagesSize();
+      }
+      return size;
+    }
+
+    private final class PageSegment {
+      private final ReentrantLock myLock = new ReentrantLock(); // protects map operations of myPages, needed for LRU order
+      private final LinkedHashMap<Integer, ByteBufferWrapper> myPages = new LinkedHashMap<>(10, 0.75f, true);
+
+      @Nullable
+      private ByteBufferWrapper get(int key) {
+        myLock.lock();
+        try {
+          ByteBufferWrapper wrapper = myPages.get(key);
+          if (wrapper != null) wrapper.myLastAccessTime = System.nanoTime();
+          return wrapper;
+        }
+        finally {
+          myLock.unlock();
+        }
+      }
+
+      private void put(int key, @Nonnull ByteBufferWrapper wrapper) {
+        assert mySegmentsAllocationLock.isHeldByCurrentThread();
+        myLock.lock();
+        try {
+          wrapper.myLastAccessTime = System.nanoTime();
+          myPages.put(key, wrapper);
+          mySize.addAndGet(wrapper.myLength);
+        }
+        finally {
+          myLock.unlock();
+        }
+      }
+
+      private void remove(int key) {
+        myLock.lock();
+        try {
+          doRemove(key);
+        }
+        finally {
+          myLock.unlock();
+        }
+      }
+
+      private void doRemove(int key) {
+        assert mySegmentsAllocationLock.isHeldByCurrentThread();
+        ByteBufferWrapper wrapper = myPages.remove(key);
+        if (wrapper != null) {
+          myMappingChangeCount.incrementAndGet();
+          mySegmentsToRemove.offer(wrapper);
+          mySize.addAndGet(-wrapper.myLength);
+        }
+      }
+
+      @Nullable
+      private ByteBufferWrapper getEldest() {
+        myLock.lock();
+        try {
+          return myPages.getFirstValue();
+        }
+        finally {
+          myLock.unlock();
+        }
+      }
+
+      private boolean removeEldest() {
+        myLock.lock();
+        try {
+          Integer key = myPages.getFirstKey();
+          if (key == null) return false;
+          doRemove(key);
+          return true;
+        }
+        finally {
+          myLock.unlock();
+        }
+      }
+
+      private long getPagesSize() {
+        myLock.lock();
+        try {
+          long size = 0;
+          for (ByteBufferWrapper wrapper : myPages.values()) {
+            size += wrapper.myLength;
+          }
+          return size;
+        }
+        finally {
+          myLock.unlock();
+        }
+      }
+
+      @Nullable
+      private Map<Integer, ByteBufferWrapper> collectBuffersForOwner(int index, @Nullable Map<Integer, ByteBufferWrapper> mineBuffers) {
+        myLock.lock();
+        try {
+          for (Map.Entry<Integer, ByteBufferWrapper> entry : myPages.entrySet()) {
+            if ((entry.getKey() & FILE_INDEX_MASK) == index) {
+              if (mineBuffers == null) {
+                mineBuffers = new TreeMap<>(Comparator.comparingInt(o -> o));
+              }
+              mineBuffers.put(entry.getKey(), entry.getValue());
+            }
+          }
+          return mineBuffers;
+        }
+        finally {
+          myLock.unlock();
+        }
+      }
+
+      @Override
+      public String toString() {
+        myLock.lock();
+        try {
+          return myPages.toString();
+        }
+        finally {
+          myLock.unlock();
+        }
+      }
+    }
   }
 
   public static class StorageLockContext {
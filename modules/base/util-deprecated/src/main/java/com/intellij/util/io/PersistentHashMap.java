@@ -3,6 +3,7 @@ package com.intellij.util.io;
 
 import consulo.logging.Logger;
 import com.intellij.openapi.util.LowMemoryWatcher;
+import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.ThreadLocalCachedValue;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
@@ -10,6 +11,10 @@ import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.*;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongLongHashMap;
 import org.jetbrains.annotations.NonNls;
 import javax.annotation.Nonnull;
 
@@ -17,9 +22,13 @@ import org.jetbrains.annotations.TestOnly;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.BooleanSupplier;
 
 /**
  * @author Eugene Zhuravlev
@@ -60,6 +69,13 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
   @NonNls
   static final String DATA_FILE_EXTENSION = ".values";
+  @NonNls
+  private static final String BACKGROUND_COMPACTION_SUFFIX = ".compacting";
+  // background compaction releases the map after copying this many value bytes
+  private static final int BACKGROUND_COMPACTION_BATCH_BYTES = 1024 * 1024;
+  // guarded by myEnumerator, not null while a background compaction copies values
+  @Nullable
+  private CompactionChanges<Key> myCompactionChanges;
   private long myLiveAndGarbageKeysCounter;
   // first four bytes contain live keys count (updated via LIVE_KEY_MASK), last four bytes - number of dead keys
   private int myReadCompactionGarbageSize;
@@ -197,6 +213,9 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       if (makesSenseToCompact()) {
         compact();
       }
+      if (!myIsReadOnly && !myIntMapping) {
+        PersistentHashMapCompactionService.register(this);
+      }
     }
     catch (IOException e) {
       try {
@@ -582,6 +601,13 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myEnumerator.unlockStorage();
     }
 
+    if (PersistentHashMapValueStorage.MAPPED_READS) {
+      final Ref<Value> mappedValue = myValueStorage.readMappedValue(valueOffset, myValueExternalizer);
+      if (mappedValue != null) {
+        return mappedValue.get();
+      }
+    }
+
     final PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(valueOffset);
 
     final Value valueRead;
@@ -723,6 +749,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
 
   private void doClose() throws IOException {
+    PersistentHashMapCompactionService.unregister(this);
     myEnumerator.lockStorage();
     try {
       try {
@@ -849,6 +876,224 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
   }
 
+  /**
+   * Online variant of {@link #compact()} used by {@link PersistentHashMapCompactionService}. Live values are copied into a new values file
+   * in batches and the map is released between batches, so concurrent reads and writes wait for one batch at most instead of the whole
+   * compaction. Records changed while the batches were copied are tracked, and only their values are copied once more when the files are
+   * swapped under the map lock.
+   * <p>
+   * Maps storing values in the enumerator ({@code myDirectlyStoreLongFileOffsetMode}) are only compacted on open.
+   *
+   * @param canceled checked between batches, compaction is abandoned and the new file is deleted when it returns true
+   * @return number of reclaimed bytes, or -1 if compaction wasn't needed, was canceled or the map was closed meanwhile
+   */
+  long compactInBackground(@Nonnull BooleanSupplier canceled) throws IOException {
+    synchronized (myEnumerator) {
+      if (myIsReadOnly || isClosed() || !makesSenseToCompact()) return -1;
+    }
+    return compactInBackground(canceled, BACKGROUND_COMPACTION_BATCH_BYTES);
+  }
+
+  // doesn't check whether compaction makes sense, for tests
+  long compactInBackground(@Nonnull BooleanSupplier canceled, int batchBytes) throws IOException {
+    final PersistentHashMapValueStorage storage;
+    final PersistentHashMapValueStorage newStorage;
+    final File newDataFile;
+    final List<CompactionRecordInfo> snapshot = new ArrayList<>();
+    synchronized (myEnumerator) {
+      if (myIsReadOnly || myIntMapping || myDirectlyStoreLongFileOffsetMode || isClosed()) return -1;
+      doForce();
+      storage = myValueStorage;
+      traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+        @Override
+        public boolean process(final int keyId) {
+          final long record = readValueId(keyId);
+          if (record != NULL_ADDR) {
+            snapshot.add(new CompactionRecordInfo(getCurrentKey(), record, keyId));
+          }
+          return true;
+        }
+      });
+      newDataFile = new File(getDataFile(myEnumerator.myFile).getPath() + BACKGROUND_COMPACTION_SUFFIX);
+      deleteFilesStartingWith(newDataFile);
+      newStorage = PersistentHashMapValueStorage.create(newDataFile.getPath(), storage.getOptions());
+      myCompactionChanges = new CompactionChanges<>();
+    }
+
+    // values are read in file order, old address -> new address
+    final TLongArrayList addresses = new TLongArrayList(snapshot.size());
+    for (CompactionRecordInfo info : snapshot) {
+      addresses.add(info.valueAddress);
+    }
+    addresses.sort();
+    final TLongLongHashMap newAddresses = new TLongLongHashMap(addresses.size());
+    final long started = System.currentTimeMillis();
+    boolean swapped = false;
+    try {
+      int next = 0;
+      while (next < addresses.size()) {
+        if (canceled.getAsBoolean()) return -1;
+        synchronized (myEnumerator) {
+          if (isClosed() || myValueStorage != storage) return -1;
+          long copied = 0;
+          for (; next < addresses.size() && copied < batchBytes; next++) {
+            long address = addresses.getQuick(next);
+            if (!newAddresses.containsKey(address)) {
+              copied += copyValue(address, storage, newStorage, newAddresses);
+            }
+          }
+        }
+        Thread.yield();
+      }
+
+      if (canceled.getAsBoolean()) return -1;
+      synchronized (myEnumerator) {
+        if (isClosed() || myValueStorage != storage) return -1;
+        try {
+          long sizeBefore = swapValueStorage(storage, newStorage, newDataFile, snapshot, newAddresses);
+          swapped = true;
+          long newSize = myValueStorage.getSize();
+          LOG.info("Compacted in background " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newSize + " bytes in " +
+                   (System.currentTimeMillis() - started) + "ms.");
+          return sizeBefore - newSize;
+        }
+        catch (IOException e) {
+          myEnumerator.markCorrupted();
+          throw e;
+        }
+      }
+    }
+    finally {
+      synchronized (myEnumerator) {
+        myCompactionChanges = null;
+      }
+      if (!swapped) {
+        newStorage.dispose();
+        deleteFilesStartingWith(newDataFile);
+      }
+    }
+  }
+
+  private static int copyValue(long address,
+                               @Nonnull PersistentHashMapValueStorage from,
+                               @Nonnull PersistentHashMapValueStorage to,
+                               @Nonnull TLongLongHashMap newAddresses) throws IOException {
+    PersistentHashMapValueStorage.ReadResult readResult = from.readBytes(address);
+    newAddresses.put(address, to.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0));
+    return readResult.buffer.length;
+  }
+
+  // called under the map lock when all values of the snapshot were copied
+  private long swapValueStorage(@Nonnull PersistentHashMapValueStorage storage,
+                                @Nonnull PersistentHashMapValueStorage newStorage,
+                                @Nonnull File newDataFile,
+                                @Nonnull List<CompactionRecordInfo> snapshot,
+                                @Nonnull TLongLongHashMap newAddresses) throws IOException {
+    // flushes appends made since the snapshot, they are tracked as changes too
+    doForce();
+    final CompactionChanges<Key> changes = myCompactionChanges;
+    myCompactionChanges = null;
+    final long sizeBefore = storage.getSize();
+
+    final List<CompactionRecordInfo> infos = new ArrayList<>(snapshot.size() + changes.myKeys.size());
+    for (CompactionRecordInfo info : snapshot) {
+      if (!changes.myStaleIds.contains(info.address)) infos.add(info);
+    }
+    final List<Key> changedKeys = new ArrayList<>(changes.myKeys.size());
+    for (int keyId : changes.myKeys.keys()) {
+      final long record = readValueId(keyId);
+      if (record != NULL_ADDR) {
+        infos.add(new CompactionRecordInfo(0, record, keyId));
+        changedKeys.add(changes.myKeys.get(keyId));
+      }
+    }
+
+    myEnumerator.lockStorage();
+    try {
+      for (CompactionRecordInfo info : infos) {
+        // values written after the snapshot (values file never has data at NULL_ADDR because of the header record)
+        if (!newAddresses.containsKey(info.valueAddress)) {
+          copyValue(info.valueAddress, storage, newStorage, newAddresses);
+        }
+        info.newValueAddress = newAddresses.get(info.valueAddress);
+      }
+
+      myEnumerator.markDirty(true);
+      myLiveAndGarbageKeysCounter = 0;
+      myReadCompactionGarbageSize = 0;
+      final int firstChanged = infos.size() - changedKeys.size();
+      for (int i = 0; i < infos.size(); i++) {
+        CompactionRecordInfo info = infos.get(i);
+        // keys of changed records are known, so they can be re-enumerated without reading them back
+        Key key = i >= firstChanged ? changedKeys.get(i - firstChanged) : null;
+        updateValueId(info.address, info.newValueAddress, info.valueAddress, key, info.key);
+        myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+      }
+
+      PersistentHashMapValueStorage.CreationTimeOptions options = storage.getOptions();
+      newStorage.dispose();
+      storage.dispose();
+
+      File dataFile = getDataFile(myEnumerator.myFile);
+      replaceFiles(newDataFile, dataFile);
+      myValueStorage = PersistentHashMapValueStorage.create(dataFile.getPath(), options);
+      myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+      myEnumerator.putMetaData2(myLargeIndexWatermarkId);
+    }
+    finally {
+      myEnumerator.unlockStorage();
+    }
+    return sizeBefore;
+  }
+
+  /**
+   * Records whose value ids were updated since the snapshot of a background compaction.
+   */
+  private static class CompactionChanges<Key> {
+    // ids of the records as they were before the update, their values in the snapshot are outdated
+    final TIntHashSet myStaleIds = new TIntHashSet();
+    // current ids of the updated records
+    final TIntObjectHashMap<Key> myKeys = new TIntObjectHashMap<>();
+
+    void recordUpdated(int oldKeyId, int newKeyId, @Nonnull Key key) {
+      myStaleIds.add(oldKeyId);
+      if (oldKeyId != newKeyId) myKeys.remove(oldKeyId);
+      myKeys.put(newKeyId, key);
+    }
+  }
+
+  // moves every file of the new storage over its counterpart with an atomic rename where the file system supports it,
+  // so the values file is never missing, and then deletes old files that have no counterpart
+  private static void replaceFiles(@Nonnull File newDataFile, @Nonnull File dataFile) throws IOException {
+    final String newBaseName = newDataFile.getName();
+    final String baseName = dataFile.getName();
+    File[] oldFiles = getFilesInDirectoryWithNameStartingWith(dataFile, baseName);
+    File[] newFiles = getFilesInDirectoryWithNameStartingWith(newDataFile, newBaseName);
+
+    List<String> replaced = new ArrayList<>();
+    if (newFiles != null) {
+      for (File f : newFiles) {
+        String nameAfterRename = StringUtil.replace(f.getName(), newBaseName, baseName);
+        File target = new File(f.getParentFile(), nameAfterRename);
+        try {
+          Files.move(f.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+          FileUtil.delete(target);
+          FileUtil.rename(f, target);
+        }
+        replaced.add(nameAfterRename);
+      }
+    }
+    if (oldFiles != null) {
+      for (File f : oldFiles) {
+        if (!f.getName().startsWith(newBaseName) && !replaced.contains(f.getName())) {
+          FileUtil.deleteWithRenaming(f);
+        }
+      }
+    }
+  }
+
   private static File[] getFilesInDirectoryWithNameStartingWith(@Nonnull File fileFromDirectory, @Nonnull final String baseFileName) {
     File parentFile = fileFromDirectory.getParentFile();
     return parentFile != null ? parentFile.listFiles(pathname -> pathname.getName().startsWith(baseFileName)) : null;
@@ -925,6 +1170,16 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private int requests;
 
   private int updateValueId(int keyId, long value, long oldValue, @Nullable Key key, int processingKey) throws IOException {
+    final int newKeyId = doUpdateValueId(keyId, value, oldValue, key, processingKey);
+    final CompactionChanges<Key> changes = myCompactionChanges;
+    // only compaction passes no key, and it replaces the value storage, which cancels the background compaction anyway
+    if (changes != null && key != null) {
+      changes.recordUpdated(keyId, newKeyId, key);
+    }
+    return newKeyId;
+  }
+
+  private int doUpdateValueId(int keyId, long value, long oldValue, @Nullable Key key, int processingKey) throws IOException {
     if (myDirectlyStoreLongFileOffsetMode) {
       ((PersistentBTreeEnumerator<Key>)myEnumerator).putNonNegativeValue(((InlineKeyDescriptor<Key>)myKeyDescriptor).fromInt(processingKey), value);
       return keyId;
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.util.ConcurrencyUtil;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.containers.ContainerUtil;
+import consulo.logging.Logger;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically compacts values files of open {@link PersistentHashMap}s which accumulated enough garbage, so long sessions don't have to
+ * wait for a restart (when the map is compacted on open) to get the disk space back. Compaction runs on a single minimum priority thread
+ * and is incremental, see {@link PersistentHashMap#compactInBackground}.
+ * <p>
+ * Off by default, enabled with {@code -Didea.persistent.hash.map.background.compaction=true}.
+ *
+ * @author VISTALL
+ * @since 2020-06-09
+ */
+public final class PersistentHashMapCompactionService {
+  private static final Logger LOG = Logger.getInstance(PersistentHashMapCompactionService.class);
+
+  private static final boolean ourEnabled = SystemProperties.getBooleanProperty("idea.persistent.hash.map.background.compaction", false);
+  private static final int ourCheckIntervalSeconds = SystemProperties.getIntProperty("idea.persistent.hash.map.background.compaction.interval", 600);
+
+  private static final Map<PersistentHashMap<?, ?>, Boolean> ourMaps = ContainerUtil.createConcurrentWeakMap();
+  private static final AtomicLong ourReclaimedBytes = new AtomicLong();
+  private static final AtomicLong ourCompactionsCount = new AtomicLong();
+  private static final AtomicLong ourCompactionTimeMs = new AtomicLong();
+
+  private static ScheduledExecutorService ourExecutor;
+
+  private PersistentHashMapCompactionService() {
+  }
+
+  static void register(@Nonnull PersistentHashMap<?, ?> map) {
+    if (!ourEnabled) return;
+    ourMaps.put(map, Boolean.TRUE);
+    ensureScheduled();
+  }
+
+  static void unregister(@Nonnull PersistentHashMap<?, ?> map) {
+    ourMaps.remove(map);
+  }
+
+  private static synchronized void ensureScheduled() {
+    if (ourExecutor != null) return;
+    ourExecutor = ConcurrencyUtil.newSingleScheduledThreadExecutor("PersistentHashMap Compaction", Thread.MIN_PRIORITY);
+    ourExecutor.scheduleWithFixedDelay(PersistentHashMapCompactionService::compactMaps, ourCheckIntervalSeconds, ourCheckIntervalSeconds, TimeUnit.SECONDS);
+  }
+
+  private static void compactMaps() {
+    for (PersistentHashMap<?, ?> map : new ArrayList<>(ourMaps.keySet())) {
+      // a map closed during compaction is unregistered, that cancels it
+      if (!ourMaps.containsKey(map)) continue;
+      long started = System.currentTimeMillis();
+      try {
+        long reclaimed = map.compactInBackground(() -> !ourMaps.containsKey(map));
+        if (reclaimed >= 0) {
+          ourReclaimedBytes.addAndGet(reclaimed);
+          ourCompactionsCount.incrementAndGet();
+          ourCompactionTimeMs.addAndGet(System.currentTimeMillis() - started);
+        }
+      }
+      catch (Throwable t) {
+        LOG.warn("Background compaction of " + map.getBaseFile() + " failed", t);
+        ourMaps.remove(map);
+      }
+    }
+  }
+
+  /**
+   * @return total number of bytes reclaimed from values files by background compaction during this session
+   */
+  public static long getReclaimedBytes() {
+    return ourReclaimedBytes.get();
+  }
+
+  public static long getCompactionsCount() {
+    return ourCompactionsCount.get();
+  }
+
+  public static long getCompactionTimeMs() {
+    return ourCompactionTimeMs.get();
+  }
+}
@@ -7,6 +7,7 @@ package com.intellij.util.io;
 
 import consulo.logging.Logger;
 import com.intellij.openapi.util.Comparing;
+import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.ThreadLocalCachedByteArray;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteArraySequence;
@@ -18,6 +19,7 @@ import org.jetbrains.annotations.TestOnly;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Comparator;
 import java.util.List;
@@ -34,6 +36,10 @@ public class PersistentHashMapValueStorage {
 
   private boolean myCompactionMode;
 
+  // lazily created view of fully written pages of the file used for reading values without copying them, see readMappedValue
+  @Nullable
+  private MappedValuesFile myMappedValuesFile;
+
   private static final int CACHE_PROTECTED_QUEUE_SIZE = 10;
   private static final int CACHE_PROBATIONAL_QUEUE_SIZE = 20;
   private static final long MAX_RETAINED_LIMIT_WHEN_COMPACTING = 100 * 1024 * 1024;
@@ -582,6 +588,61 @@ public class PersistentHashMapValueStorage {
     return new ReadResult(result, chunkCount);
   }
 
+  /**
+   * Deserializes the value stored at {@code tailChunkAddress} directly from memory mapped pages of the storage file,
+   * without reading its bytes into an intermediate array.
+   *
+   * {@link PersistentHashMap} tries it first only when {@link #MAPPED_READS} is on.
+   *
+   * @return null if the value can't be read this way and {@link #readBytes(long)} is to be used:
+   * the storage is read-only (pages are mapped in read-write mode), compressed or is being compacted, the value consists of several chunks or ends in the last, not completely written, page
+   */
+  @Nullable
+  <T> Ref<T> readMappedValue(long tailChunkAddress, @Nonnull DataExternalizer<T> externalizer) throws IOException {
+    if (myOptions.myReadOnly || myCompressedAppendableFile != null || myCompactionMode) return null;
+
+    forceAppender(myPath);
+    checkCancellation();
+
+    long size = mySize; // volatile read
+    if (tailChunkAddress <= 0 || tailChunkAddress > size) throw new PersistentEnumeratorBase.CorruptedException(myFile);
+
+    MappedValuesFile mappedFile = myMappedValuesFile;
+    if (mappedFile == null) {
+      myMappedValuesFile = mappedFile = new MappedValuesFile(myFile);
+    }
+
+    // appended bytes of the last page are not visible through already mapped page, only complete pages are read
+    long completePagesEnd = size / mappedFile.myPageSize * mappedFile.myPageSize;
+    if (tailChunkAddress + MAX_CHUNK_HEADER_LENGTH > completePagesEnd) return null;
+
+    mappedFile.lock();
+    try {
+      mappedFile.ensureLength(completePagesEnd);
+      MappedValueInputStream input = new MappedValueInputStream(mappedFile, tailChunkAddress, completePagesEnd);
+      DataInputStream dataInput = new DataInputStream(input);
+
+      final int chunkSize = DataInputOutputUtil.readINT(dataInput);
+      if (chunkSize < 0) {
+        throw new IOException("Value storage corrupted: negative chunk size: " + chunkSize);
+      }
+      if (!myOptions.myHasNoChunks && DataInputOutputUtil.readLONG(dataInput) != 0) {
+        return null; // chunks are to be assembled and compacted by readBytes
+      }
+      long valueEnd = input.getPosition() + chunkSize;
+      if (valueEnd > completePagesEnd) return null;
+      input.setLimit(valueEnd);
+
+      return Ref.create(externalizer.read(dataInput));
+    }
+    finally {
+      mappedFile.unlock();
+    }
+  }
+
+  private static final int MAX_CHUNK_HEADER_LENGTH = 5 /* max length - variable int */ + 10 /* max long offset*/;
+  static final boolean MAPPED_READS = SystemProperties.getBooleanProperty("idea.phmp.mapped.reads", false);
+
   private boolean allowedToCompactChunks() {
     return !myCompactionMode && !myOptions.myReadOnly;
   }
@@ -690,6 +751,8 @@ public class PersistentHashMapValueStorage {
 
       ourRandomAccessFileCache.remove(myPath);
 
+      closeMappedValuesFile();
+
       if (myCompactionModeReader != null) {
         myCompactionModeReader.dispose();
         myCompactionModeReader = null;
@@ -697,8 +760,23 @@ public class PersistentHashMapValueStorage {
     }
   }
 
+  private void closeMappedValuesFile() {
+    MappedValuesFile mappedFile = myMappedValuesFile;
+    if (mappedFile != null) {
+      myMappedValuesFile = null;
+      mappedFile.lock();
+      try {
+        mappedFile.close();
+      }
+      finally {
+        mappedFile.unlock();
+      }
+    }
+  }
+
   void switchToCompactionMode() {
     ourReadersCache.remove(myPath);
+    closeMappedValuesFile();
 
     ourRandomAccessFileCache.remove(myPath);
     // in compaction mode use faster reader
@@ -798,6 +876,90 @@ public class PersistentHashMapValueStorage {
     }
   }
 
+  private static class MappedValuesFile extends PagedFileStorage {
+    private MappedValuesFile(@Nonnull File file) throws IOException {
+      super(file, new StorageLockContext(false), BUFFER_SIZE, false);
+    }
+
+    void ensureLength(long length) {
+      // the file is appended to bypassing this storage, so cached length is refreshed when a further page is needed
+      if (mySize < length) mySize = -1;
+    }
+  }
+
+  /**
+   * Reads bytes of the pages mapped by {@link MappedValuesFile}, should be used under the lock of the storage.
+   */
+  private static class MappedValueInputStream extends InputStream {
+    private final PagedFileStorage myStorage;
+    private long myPosition;
+    private long myLimit;
+    private ByteBuffer myPage;
+    private long myPageStart;
+
+    private MappedValueInputStream(@Nonnull PagedFileStorage storage, long position, long limit) {
+      myStorage = storage;
+      myPosition = position;
+      myLimit = limit;
+    }
+
+    long getPosition() {
+      return myPosition;
+    }
+
+    void setLimit(long limit) {
+      myLimit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (myPosition >= myLimit) return -1;
+      ByteBuffer page = currentPage();
+      return page.get((int)(myPosition++ - myPageStart)) & 0xFF;
+    }
+
+    @Override
+    public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (myPosition >= myLimit) return -1;
+
+      int read = 0;
+      while (read < len && myPosition < myLimit) {
+        ByteBuffer page = currentPage();
+        int offsetInPage = (int)(myPosition - myPageStart);
+        int length = (int)Math.min(Math.min(len - read, myLimit - myPosition), page.limit() - offsetInPage);
+        page.position(offsetInPage);
+        page.get(b, off + read, length);
+        read += length;
+        myPosition += length;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, myLimit - myPosition));
+      myPosition += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int)Math.min(Integer.MAX_VALUE, myLimit - myPosition);
+    }
+
+    @Nonnull
+    private ByteBuffer currentPage() throws IOException {
+      ByteBuffer page = myPage;
+      if (page == null || myPosition < myPageStart || myPosition >= myPageStart + page.limit()) {
+        myPageStart = myPosition / myStorage.myPageSize * myStorage.myPageSize;
+        // duplicate has its own position, so bulk reads don't interfere with other users of the page
+        myPage = page = myStorage.getByteBuffer(myPosition, false).getBuffer().duplicate();
+      }
+      return page;
+    }
+  }
+
   private static class OutputStreamOverRandomAccessFileCache extends OutputStream {
     private final String myPath;
 
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.Forceable;
+import com.intellij.util.Processor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Enumerator split into independent {@link PersistentBTreeEnumerator} shards, the shard is chosen by key hash.
+ * <p>
+ * Every shard has its own storage lock context, so threads enumerating keys of different shards don't wait for each other, and
+ * {@link #valueOf(int)} only takes the lock of the shard encoded in the id. Plain enumerators share the default lock context of
+ * {@link PagedFileStorage}, which serializes all of them.
+ * <p>
+ * The shard number occupies the lowest {@link #SHARD_BITS} bits of an id, so ids are not compatible with the ids of a plain enumerator
+ * over the same keys. The shard count is a part of the storage version: reopening with another count throws
+ * {@link PersistentEnumeratorBase.VersionUpdatedException} as for any other format change.
+ *
+ * @author VISTALL
+ * @since 2020-06-10
+ */
+public class ShardedPersistentEnumerator<Data> implements DataEnumeratorEx<Data>, Closeable, Forceable {
+  static final int SHARD_BITS = 4;
+  public static final int MAX_SHARDS = 1 << SHARD_BITS;
+
+  private static final int SHARD_MASK = MAX_SHARDS - 1;
+  private static final int MAX_SHARD_LOCAL_ID = Integer.MAX_VALUE >>> SHARD_BITS;
+
+  private final KeyDescriptor<Data> myDataDescriptor;
+  private final PersistentBTreeEnumerator<Data>[] myShards;
+  private final int myShardMask;
+
+  public ShardedPersistentEnumerator(@Nonnull File file, @Nonnull KeyDescriptor<Data> dataDescriptor, int initialSize, int shardCount) throws IOException {
+    this(file, dataDescriptor, initialSize, shardCount, 0);
+  }
+
+  /**
+   * @param shardCount power of two not greater than {@link #MAX_SHARDS}
+   */
+  @SuppressWarnings("unchecked")
+  public ShardedPersistentEnumerator(@Nonnull File file, @Nonnull KeyDescriptor<Data> dataDescriptor, int initialSize, int shardCount, int version)
+          throws IOException {
+    if (shardCount <= 0 || shardCount > MAX_SHARDS || Integer.bitCount(shardCount) != 1) {
+      throw new IllegalArgumentException("Shard count should be a power of two not greater than " + MAX_SHARDS + ": " + shardCount);
+    }
+    myDataDescriptor = dataDescriptor;
+    myShardMask = shardCount - 1;
+    myShards = new PersistentBTreeEnumerator[shardCount];
+
+    int shardsVersion = (version << SHARD_BITS) + shardCount - 1;
+    int shardInitialSize = Math.max(initialSize / shardCount, 1024);
+    try {
+      for (int i = 0; i < shardCount; i++) {
+        myShards[i] = new PersistentBTreeEnumerator<>(getShardFile(file, i), dataDescriptor, shardInitialSize,
+                                                      new PagedFileStorage.StorageLockContext(false), shardsVersion);
+      }
+    }
+    catch (IOException | RuntimeException e) {
+      try {
+        close();
+      }
+      catch (Throwable ignored) {
+      }
+      throw e;
+    }
+  }
+
+  @Nonnull
+  public static File getShardFile(@Nonnull File file, int shard) {
+    return new File(file.getParentFile(), file.getName() + ".shard" + shard);
+  }
+
+  public static boolean exists(@Nonnull File file) {
+    return getShardFile(file, 0).exists();
+  }
+
+  public static void deleteFiles(@Nonnull File file) {
+    for (int i = 0; i < MAX_SHARDS; i++) {
+      IOUtil.deleteAllFilesStartingWith(getShardFile(file, i));
+    }
+  }
+
+  private int shardOf(Data value) {
+    int hash = myDataDescriptor.getHashCode(value);
+    // keys of adjacent hashes should go to different shards
+    hash ^= hash >>> 16;
+    return hash & myShardMask;
+  }
+
+  private static int encode(int localId, int shard) throws IOException {
+    if (localId == PersistentEnumeratorBase.NULL_ID) return PersistentEnumeratorBase.NULL_ID;
+    if (localId > MAX_SHARD_LOCAL_ID) throw new IOException("Enumerator shard " + shard + " is too large, id: " + localId);
+    return (localId << SHARD_BITS) | shard;
+  }
+
+  @Override
+  public int enumerate(@Nullable Data value) throws IOException {
+    int shard = shardOf(value);
+    return encode(myShards[shard].enumerate(value), shard);
+  }
+
+  @Override
+  public int tryEnumerate(Data value) throws IOException {
+    int shard = shardOf(value);
+    return encode(myShards[shard].tryEnumerate(value), shard);
+  }
+
+  @Nullable
+  @Override
+  public Data valueOf(int id) throws IOException {
+    if (id == PersistentEnumeratorBase.NULL_ID) return null;
+    int shard = id & SHARD_MASK;
+    if (shard > myShardMask) throw new IOException("Id " + id + " doesn't belong to any shard");
+    return myShards[shard].valueOf(id >>> SHARD_BITS);
+  }
+
+  public boolean processAllDataObjects(@Nonnull Processor<? super Data> processor) throws IOException {
+    for (PersistentBTreeEnumerator<Data> shard : myShards) {
+      if (!shard.processAllDataObject(processor, null)) return false;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean isDirty() {
+    for (PersistentBTreeEnumerator<Data> shard : myShards) {
+      if (shard.isDirty()) return true;
+    }
+    return false;
+  }
+
+  public boolean isCorrupted() {
+    for (PersistentBTreeEnumerator<Data> shard : myShards) {
+      if (shard.isCorrupted()) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void force() {
+    for (PersistentBTreeEnumerator<Data> shard : myShards) {
+      shard.force();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException exception = null;
+    for (PersistentBTreeEnumerator<Data> shard : myShards) {
+      if (shard == null) continue;
+      try {
+        shard.close();
+      }
+      catch (IOException e) {
+        if (exception == null) exception = e;
+      }
+    }
+    if (exception != null) throw exception;
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.impl;
+
+import com.intellij.util.IntIntFunction;
+import com.intellij.util.indexing.ValueContainer;
+import com.intellij.util.indexing.containers.CompressedIdSet;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author VISTALL
+ * @since 2020-06-02
+ */
+public class CompressedIdSetTest extends TestCase {
+  private static final EnumeratorStringDescriptor EXTERNALIZER = new EnumeratorStringDescriptor();
+
+  public void testEmpty() throws IOException {
+    CompressedIdSet set = assertRoundTrip();
+    assertSame(CompressedIdSet.EMPTY, set);
+    assertFalse(set.contains(0));
+    assertFalse(set.contains(1));
+  }
+
+  public void testSingleId() throws IOException {
+    CompressedIdSet set = assertRoundTrip(42);
+    assertFalse(set.contains(41));
+    assertFalse(set.contains(43));
+  }
+
+  public void testLargeIds() throws IOException {
+    CompressedIdSet set = assertRoundTrip(1, 191, 192, 16383, 16384, 1 << 20, (1 << 27) + 1, Integer.MAX_VALUE - 1, Integer.MAX_VALUE);
+    assertFalse(set.contains(193));
+    assertFalse(set.contains(Integer.MAX_VALUE - 2));
+  }
+
+  public void testDenseIds() throws IOException {
+    int[] ids = new int[10000];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = i + 1;
+    }
+    CompressedIdSet set = assertRoundTrip(ids);
+    // one byte per id, the skip index doesn't add to the encoded length
+    assertEquals(ids.length, set.getEncodedLength());
+    assertFalse(set.contains(0));
+    assertFalse(set.contains(10001));
+  }
+
+  // the skip index remembers every 64th id
+  public void testIdsAcrossSkipIndexBlocks() throws IOException {
+    Random random = new Random(17);
+    for (int size : new int[]{63, 64, 65, 127, 128, 129, 64 * 5 + 3}) {
+      int[] ids = new int[size];
+      int id = 0;
+      for (int i = 0; i < size; i++) {
+        id += 1 + random.nextInt(i % 3 == 0 ? 1000 : 10);
+        ids[i] = id;
+      }
+      CompressedIdSet set = assertRoundTrip(ids);
+      TIntHashSet oracle = new TIntHashSet(ids);
+      for (int i = 0; i <= id + 1; i++) {
+        assertEquals(size + ": " + i, oracle.contains(i), set.contains(i));
+      }
+    }
+  }
+
+  public void testUnsortedIds() throws IOException {
+    CompressedIdSet set = assertRoundTrip(500, 3, 70000, 42);
+    assertFalse(set.hasAscendingOrder());
+    assertFalse(set.contains(4));
+  }
+
+  public void testIntersectAndUnion() throws IOException {
+    Random random = new Random(42);
+    for (int round = 0; round < 200; round++) {
+      int[] ids1 = randomIds(random);
+      int[] ids2 = randomIds(random);
+      CompressedIdSet set1 = read(ids1);
+      CompressedIdSet set2 = read(ids2);
+
+      TIntHashSet union = new TIntHashSet(ids1);
+      union.addAll(ids2);
+      TIntHashSet intersection = new TIntHashSet(ids1);
+      intersection.retainAll(ids2);
+
+      assertSameIds(intersection, CompressedIdSet.intersect(set1, set2));
+      assertSameIds(intersection, CompressedIdSet.intersect(set2, set1));
+      assertSameIds(union, CompressedIdSet.union(set1, set2));
+      assertSameIds(union, CompressedIdSet.union(set2, set1));
+    }
+  }
+
+  public void testUnchangedSetIsSavedAsRead() throws IOException {
+    byte[] bytes = save(container(1, 5, 1000, 1001, 70000));
+    ValueContainerImpl<String> container = load(bytes);
+    InvertedIndexValueIterator<String> valueIterator = container.getValueIterator();
+    valueIterator.next();
+    assertTrue(valueIterator.getFileSetObject() instanceof CompressedIdSet);
+    assertTrue(Arrays.equals(bytes, save(container)));
+  }
+
+  public void testRemoveThenSave() throws IOException {
+    int[] ids = new int[300];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = i * 3 + 1;
+    }
+    ValueContainerImpl<String> container = load(save(container(ids)));
+    container.removeAssociatedValue(ids[100]);
+    container.removeAssociatedValue(2);
+    container.addValue(2000, "value");
+
+    TIntArrayList expected = new TIntArrayList(ids);
+    expected.remove(100);
+    expected.add(2000);
+    assertContainerIds(expected.toNativeArray(), load(save(container)));
+
+    // down to a single id
+    container = load(save(container(7, 9)));
+    container.removeAssociatedValue(7);
+    assertContainerIds(new int[]{9}, load(save(container)));
+  }
+
+  private static CompressedIdSet assertRoundTrip(int... ids) throws IOException {
+    byte[] encoded = encode(ids);
+    CompressedIdSet set = read(ids);
+    assertEquals(ids.length, set.size());
+    assertEquals(encoded.length, set.getEncodedLength());
+    assertIds(ids, set.intIterator());
+    for (int id : ids) {
+      assertTrue(String.valueOf(id), set.contains(id));
+    }
+
+    ByteArrayOutputStream saved = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(saved);
+    set.saveTo(out);
+    out.close();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(saved.toByteArray()));
+    assertEquals(-ids.length, DataInputOutputUtil.readINT(in));
+    byte[] savedIds = new byte[in.available()];
+    in.readFully(savedIds);
+    assertTrue(Arrays.equals(encoded, savedIds));
+    return set;
+  }
+
+  private static CompressedIdSet read(int... ids) throws IOException {
+    return CompressedIdSet.read(new DataInputStream(new ByteArrayInputStream(encode(ids))), ids.length);
+  }
+
+  // delta encoding of ValueContainerImpl#saveTo
+  private static byte[] encode(int... ids) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    int prev = 0;
+    for (int id : ids) {
+      DataInputOutputUtil.writeINT(out, id - prev);
+      prev = id;
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static int[] randomIds(Random random) {
+    int size = random.nextInt(4) == 0 ? random.nextInt(3) : random.nextInt(400);
+    int bound = 1 + random.nextInt(2000);
+    TIntHashSet ids = new TIntHashSet();
+    for (int i = 0; i < size; i++) {
+      ids.add(1 + random.nextInt(bound));
+    }
+    int[] result = ids.toArray();
+    if (random.nextBoolean()) Arrays.sort(result);
+    return result;
+  }
+
+  // union with an empty set returns the other set as is, which may be unsorted
+  private static void assertSameIds(TIntHashSet expected, CompressedIdSet set) {
+    int[] ids = expected.toArray();
+    Arrays.sort(ids);
+    TIntArrayList actual = new TIntArrayList();
+    for (ValueContainer.IntIterator iterator = set.intIterator(); iterator.hasNext(); ) {
+      actual.add(iterator.next());
+    }
+    actual.sort();
+    assertEquals(ids.length, set.size());
+    assertEquals(Arrays.toString(ids), Arrays.toString(actual.toNativeArray()));
+  }
+
+  private static void assertIds(int[] expected, ValueContainer.IntIterator iterator) {
+    TIntArrayList ids = new TIntArrayList();
+    while (iterator.hasNext()) {
+      ids.add(iterator.next());
+    }
+    assertEquals(Arrays.toString(expected), Arrays.toString(ids.toNativeArray()));
+  }
+
+  private static ValueContainerImpl<String> container(int... ids) {
+    ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    for (int id : ids) {
+      container.addValue(id, "value");
+    }
+    return container;
+  }
+
+  private static byte[] save(ValueContainerImpl<String> container) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    container.saveTo(out, EXTERNALIZER);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static ValueContainerImpl<String> load(byte[] bytes) throws IOException {
+    ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    container.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)), EXTERNALIZER, IntIntFunction.IDENTITY);
+    return container;
+  }
+
+  private static void assertContainerIds(int[] expected, ValueContainerImpl<String> container) {
+    int[] sorted = expected.clone();
+    Arrays.sort(sorted);
+    ValueContainer.ValueIterator<String> valueIterator = container.getValueIterator();
+    assertTrue(valueIterator.hasNext());
+    assertEquals("value", valueIterator.next());
+    TIntArrayList ids = new TIntArrayList();
+    for (ValueContainer.IntIterator iterator = valueIterator.getInputIdsIterator(); iterator.hasNext(); ) {
+      ids.add(iterator.next());
+    }
+    ids.sort();
+    assertEquals(Arrays.toString(sorted), Arrays.toString(ids.toNativeArray()));
+    assertFalse(valueIterator.hasNext());
+  }
+}
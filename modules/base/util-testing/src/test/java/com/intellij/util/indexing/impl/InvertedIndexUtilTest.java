@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.impl;
+
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Condition;
+import com.intellij.util.containers.EmptyIntHashSet;
+import com.intellij.util.indexing.InvertedIndex;
+import com.intellij.util.indexing.InvertedIndexUtil;
+import com.intellij.util.indexing.StorageException;
+import com.intellij.util.indexing.ValueContainer;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * The batched any-key lookup behind {@code FileBasedIndex.processFilesContainingAnyKey} must find the same inputs as looking up every key on its own.
+ *
+ * @author VISTALL
+ * @since 2020-10-17
+ */
+public class InvertedIndexUtilTest extends TestCase {
+  public void testUnionOfKeys() throws StorageException {
+    Random random = new Random(11);
+    for (int round = 0; round < 20; round++) {
+      TestIndex index = new TestIndex();
+      for (int i = 0; i < 200; i++) {
+        index.add("key" + random.nextInt(30), 1 + random.nextInt(500), random.nextInt(4));
+      }
+      List<String> keys = new ArrayList<>();
+      for (int i = 0; i < 1 + random.nextInt(10); i++) {
+        // some of the keys are missing from the index, some are repeated
+        keys.add("key" + random.nextInt(40));
+      }
+
+      assertEquals(keys.toString(), unionOfSingleKeys(index, keys, null, null, null),
+                   InvertedIndexUtil.collectInputIdsContainingAnyKey(index, keys, null, null, null));
+      assertEquals(keys.toString(), unionOfSingleKeys(index, keys, key -> !key.endsWith("1"), value -> value != 0, id -> id % 3 != 0),
+                   InvertedIndexUtil.collectInputIdsContainingAnyKey(index, keys, key -> !key.endsWith("1"), value -> value != 0, id -> id % 3 != 0));
+    }
+  }
+
+  public void testNothingFound() throws StorageException {
+    TestIndex index = new TestIndex();
+    index.add("a", 1, 0);
+    index.add("b", 2, 1);
+
+    assertSame(EmptyIntHashSet.INSTANCE, InvertedIndexUtil.collectInputIdsContainingAnyKey(index, Collections.<String>emptyList(), null, null, null));
+    assertSame(EmptyIntHashSet.INSTANCE, InvertedIndexUtil.collectInputIdsContainingAnyKey(index, Arrays.asList("c", "d"), null, null, null));
+    assertSame(EmptyIntHashSet.INSTANCE, InvertedIndexUtil.collectInputIdsContainingAnyKey(index, Arrays.asList("a", "b"), null, null, id -> id > 2));
+    assertEquals(new TIntHashSet(new int[]{2}), InvertedIndexUtil.collectInputIdsContainingAnyKey(index, Arrays.asList("a", "b"), null, value -> value == 1, null));
+  }
+
+  @Nonnull
+  private static TIntHashSet unionOfSingleKeys(@Nonnull TestIndex index,
+                                               @Nonnull List<String> keys,
+                                               @Nullable Condition<? super String> keyChecker,
+                                               @Nullable Condition<? super Integer> valueChecker,
+                                               @Nullable ValueContainer.IntPredicate idChecker) throws StorageException {
+    TIntHashSet result = new TIntHashSet();
+    for (String key : keys) {
+      if (keyChecker != null && !keyChecker.value(key)) continue;
+      for (ValueContainer.ValueIterator<Integer> it = index.getData(key).getValueIterator(); it.hasNext(); ) {
+        Integer value = it.next();
+        if (valueChecker != null && !valueChecker.value(value)) continue;
+        for (ValueContainer.IntIterator ids = it.getInputIdsIterator(); ids.hasNext(); ) {
+          int id = ids.next();
+          if (idChecker == null || idChecker.contains(id)) {
+            result.add(id);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  private static class TestIndex implements InvertedIndex<String, Integer, Void> {
+    private final Map<String, ValueContainerImpl<Integer>> myData = new HashMap<>();
+
+    void add(@Nonnull String key, int inputId, int value) {
+      myData.computeIfAbsent(key, __ -> new ValueContainerImpl<>()).addValue(inputId, value);
+    }
+
+    @Nonnull
+    @Override
+    public ValueContainer<Integer> getData(@Nonnull String key) {
+      ValueContainerImpl<Integer> container = myData.get(key);
+      return container != null ? container : new ValueContainerImpl<>();
+    }
+
+    @Nonnull
+    @Override
+    public Computable<Boolean> update(int inputId, @Nullable Void content) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void clear() {
+      myData.clear();
+    }
+
+    @Override
+    public void dispose() {
+    }
+  }
+}
@@ -21,8 +21,15 @@ import junit.framework.TestCase;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PagedFileStorageTest extends TestCase {
   private final PagedFileStorage.StorageLock lock = new PagedFileStorage.StorageLock();
@@ -118,6 +125,64 @@ public class PagedFileStorageTest extends TestCase {
     }
   }
 
+  public void testConcurrentLoadAndEvictionKeepMappedSizeWithinLimit() throws Exception {
+    int pageSize = Page.PAGE_SIZE;
+    int pagesCount = 64;
+    long sizeLimit = 16 * pageSize;
+    int threadsCount = 8;
+    PagedFileStorage.StorageLock storageLock = new PagedFileStorage.StorageLock(false, sizeLimit);
+    List<File> files = new ArrayList<>();
+    List<PagedFileStorage> storages = new ArrayList<>();
+    for (int i = 0; i < threadsCount; i++) {
+      File file = FileUtil.createTempFile("storage" + i, ".tmp");
+      PagedFileStorage storage = new PagedFileStorage(file, storageLock, pageSize, true);
+      storage.resize((long)pagesCount * pageSize);
+      storage.close();
+      files.add(file);
+      storages.add(storage);
+    }
+
+    AtomicLong maxMappedSize = new AtomicLong();
+    ExecutorService executor = Executors.newFixedThreadPool(threadsCount);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threadsCount; i++) {
+        PagedFileStorage storage = storages.get(i);
+        Random random = new Random(i);
+        futures.add(executor.submit(() -> {
+          for (int iteration = 0; iteration < 20000; iteration++) {
+            if (random.nextInt(500) == 0) {
+              storage.close(); // drops the pages of the storage in all segments
+            }
+            else {
+              storage.mapPage(random.nextInt(pagesCount));
+            }
+            maxMappedSize.accumulateAndGet(storageLock.getMappedSize(), Math::max);
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    // a loaded page is counted before the eldest page is evicted, pages are loaded one at a time
+    assertTrue(String.valueOf(maxMappedSize.get()), maxMappedSize.get() <= sizeLimit + pageSize);
+    assertTrue(String.valueOf(storageLock.getMappedSize()), storageLock.getMappedSize() <= sizeLimit);
+    assertEquals(storageLock.getCachedPagesSize(), storageLock.getMappedSize());
+
+    for (int i = 0; i < threadsCount; i++) {
+      storages.get(i).close();
+      assertTrue(files.get(i).delete());
+    }
+    assertEquals(0, storageLock.getMappedSize());
+    assertEquals(0, storageLock.getCachedPagesSize());
+  }
+
   private static final SimpleDateFormat FORMATTER = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
 
   private static void printPct(int pct) {
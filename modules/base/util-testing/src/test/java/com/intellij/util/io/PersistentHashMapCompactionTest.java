@@ -0,0 +1,220 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * @author VISTALL
+ * @since 2020-06-08
+ */
+public class PersistentHashMapCompactionTest extends TestCase {
+  public void testBackgroundCompactionWithConcurrentChanges() throws IOException {
+    File file = FileUtil.createTempFile("persistent", "map");
+    PersistentHashMap<String, List<String>> map = createStringListMap(file);
+    try {
+      Map<String, List<String>> expected = fillWithGarbage(map, 300);
+      PersistentHashMap<String, List<String>> compactedMap = map;
+      int[] calls = {0};
+      long reclaimed = map.compactInBackground(() -> {
+        // called between batches, outside of the map lock
+        int call = calls[0]++;
+        try {
+          String key = "key" + call;
+          switch (call % 4) {
+            case 0:
+              putValue(compactedMap, expected, key, "changed" + call);
+              break;
+            case 1:
+              compactedMap.remove(key);
+              expected.remove(key);
+              break;
+            case 2:
+              appendValue(compactedMap, expected, key, "appended" + call);
+              break;
+            default:
+              putValue(compactedMap, expected, "new" + call, "new" + call);
+              appendValue(compactedMap, expected, "appendedNew" + call, "appendedNew" + call);
+          }
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        return false;
+      }, 64);
+
+      assertTrue(calls[0] > 20);
+      assertTrue(String.valueOf(reclaimed), reclaimed > 0);
+      assertMapContent(expected, map);
+      assertNoCompactionFiles(file);
+
+      // changes after compaction are kept too
+      appendValue(map, expected, "key2", "afterCompaction");
+      map.close();
+      map = createStringListMap(file);
+      assertMapContent(expected, map);
+    }
+    finally {
+      clearMap(file, map);
+    }
+  }
+
+  public void testBackgroundCompactionCanceled() throws IOException {
+    File file = FileUtil.createTempFile("persistent", "map");
+    PersistentHashMap<String, List<String>> map = createStringListMap(file);
+    try {
+      Map<String, List<String>> expected = fillWithGarbage(map, 300);
+      long sizeBefore = map.getValueStorage().getSize();
+      int[] calls = {0};
+      assertEquals(-1, map.compactInBackground(() -> ++calls[0] > 3, 64));
+
+      assertEquals(4, calls[0]);
+      assertEquals(sizeBefore, map.getValueStorage().getSize());
+      assertMapContent(expected, map);
+      assertNoCompactionFiles(file);
+    }
+    finally {
+      clearMap(file, map);
+    }
+  }
+
+  public void testCloseDuringBackgroundCompaction() throws IOException {
+    File file = FileUtil.createTempFile("persistent", "map");
+    PersistentHashMap<String, List<String>> map = createStringListMap(file);
+    try {
+      Map<String, List<String>> expected = fillWithGarbage(map, 300);
+      PersistentHashMap<String, List<String>> compactedMap = map;
+      int[] calls = {0};
+      assertEquals(-1, map.compactInBackground(() -> {
+        if (++calls[0] == 3) {
+          try {
+            compactedMap.close();
+          }
+          catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return false;
+      }, 64));
+
+      assertEquals(3, calls[0]);
+      assertTrue(map.isClosed());
+      assertNoCompactionFiles(file);
+
+      map = createStringListMap(file);
+      assertMapContent(expected, map);
+    }
+    finally {
+      clearMap(file, map);
+    }
+  }
+
+  private static PersistentHashMap<String, List<String>> createStringListMap(File file) throws IOException {
+    return new PersistentHashMap<String, List<String>>(file, new EnumeratorStringDescriptor(), new DataExternalizer<List<String>>() {
+      @Override
+      public void save(DataOutput out, List<String> value) throws IOException {
+        for (String str : value) {
+          IOUtil.writeUTF(out, str);
+        }
+      }
+
+      // appended chunks are read together with the saved value
+      @Override
+      public List<String> read(DataInput in) throws IOException {
+        List<String> result = new ArrayList<String>();
+        DataInputStream stream = (DataInputStream)in;
+        while (stream.available() > 0) {
+          result.add(IOUtil.readUTF(stream));
+        }
+        return result;
+      }
+    });
+  }
+
+  // every key is written several times and some keys are removed, so the values file is mostly garbage
+  private static Map<String, List<String>> fillWithGarbage(PersistentHashMap<String, List<String>> map, int keys) throws IOException {
+    Map<String, List<String>> expected = new HashMap<String, List<String>>();
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < keys; i++) {
+        putValue(map, expected, "key" + i, "value" + i + "_" + round);
+      }
+    }
+    for (int i = 0; i < keys; i += 10) {
+      map.remove("key" + i);
+      expected.remove("key" + i);
+    }
+    for (int i = 5; i < keys; i += 10) {
+      appendValue(map, expected, "key" + i, "appended" + i);
+    }
+    map.force();
+    return expected;
+  }
+
+  private static void putValue(PersistentHashMap<String, List<String>> map, Map<String, List<String>> expected, String key, String value)
+    throws IOException {
+    map.put(key, Collections.singletonList(value));
+    expected.put(key, new ArrayList<String>(Collections.singletonList(value)));
+  }
+
+  private static void appendValue(PersistentHashMap<String, List<String>> map, Map<String, List<String>> expected, String key, final String value)
+    throws IOException {
+    map.appendData(key, new PersistentHashMap.ValueDataAppender() {
+      @Override
+      public void append(DataOutput out) throws IOException {
+        IOUtil.writeUTF(out, value);
+      }
+    });
+    List<String> values = expected.get(key);
+    if (values == null) expected.put(key, values = new ArrayList<String>());
+    values.add(value);
+  }
+
+  private static void assertMapContent(Map<String, List<String>> expected, PersistentHashMap<String, List<String>> map) throws IOException {
+    assertEquals(expected.keySet(), new HashSet<String>(map.getAllKeysWithExistingMapping()));
+    for (Map.Entry<String, List<String>> entry : expected.entrySet()) {
+      assertEquals(entry.getKey(), entry.getValue(), map.get(entry.getKey()));
+    }
+  }
+
+  private static void assertNoCompactionFiles(File file) {
+    File[] files = file.getParentFile().listFiles();
+    assertNotNull(files);
+    for (File f : files) {
+      assertFalse(f.getName(), f.getName().startsWith(file.getName()) && f.getName().contains(".compacting"));
+    }
+  }
+
+  private static void clearMap(final File file, PersistentHashMap<?, ?> map) throws IOException {
+    map.close();
+
+    File[] files = file.getParentFile().listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File pathname) {
+        return pathname.getName().startsWith(file.getName());
+      }
+    });
+    if (files != null) {
+      for (File f : files) {
+        FileUtil.delete(f);
+        assertFalse(f.exists());
+      }
+    }
+  }
+}
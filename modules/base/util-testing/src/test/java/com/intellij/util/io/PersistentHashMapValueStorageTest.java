@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Values read from mapped pages by {@link PersistentHashMapValueStorage#readMappedValue} must be the ones {@link PersistentHashMapValueStorage#readBytes} reads.
+ *
+ * @author VISTALL
+ * @since 2020-10-17
+ */
+public class PersistentHashMapValueStorageTest extends TestCase {
+  private static final DataExternalizer<byte[]> BYTES = new DataExternalizer<byte[]>() {
+    @Override
+    public void save(@Nonnull DataOutput out, byte[] value) throws IOException {
+      out.write(value);
+    }
+
+    @Override
+    public byte[] read(@Nonnull DataInput in) throws IOException {
+      return FileUtil.loadBytes((InputStream)in);
+    }
+  };
+
+  private File myDir;
+  private PersistentHashMapValueStorage myStorage;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("values", null);
+    myStorage = createStorage(false);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myStorage.dispose();
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testMappedReadsMatchCopyingReads() throws IOException {
+    Random random = new Random(7);
+    List<Long> addresses = new ArrayList<>();
+    List<byte[]> values = new ArrayList<>();
+    long pageSize = PagedFileStorage.BUFFER_SIZE;
+    while (new File(myDir, "values").length() < 2 * pageSize + 100000) {
+      byte[] value = new byte[random.nextInt(5) == 0 ? random.nextInt(1024 * 1024) : random.nextInt(300)];
+      random.nextBytes(value);
+      addresses.add(myStorage.appendBytes(value, 0, value.length, 0));
+      values.add(value);
+      myStorage.force();
+    }
+
+    int mapped = 0;
+    int crossingPages = 0;
+    for (int i = 0; i < addresses.size(); i++) {
+      long address = addresses.get(i);
+      byte[] expected = values.get(i);
+      assertTrue(Arrays.equals(expected, myStorage.readBytes(address).buffer));
+
+      Ref<byte[]> mappedValue = myStorage.readMappedValue(address, BYTES);
+      long valueEnd = i + 1 < addresses.size() ? addresses.get(i + 1) : new File(myDir, "values").length();
+      if (valueEnd <= 2 * pageSize) {
+        // only values ending in the not completely written last page are not read from mapped pages
+        assertNotNull(mappedValue);
+      }
+      if (mappedValue != null) {
+        assertTrue("value at " + address, Arrays.equals(expected, mappedValue.get()));
+        mapped++;
+        if (address / pageSize != (valueEnd - 1) / pageSize) crossingPages++;
+      }
+    }
+    assertTrue(mapped > addresses.size() / 2);
+    // the value across the end of the first page is read from both pages
+    assertEquals(1, crossingPages);
+  }
+
+  public void testValuesOfSeveralChunksAreNotMapped() throws IOException {
+    long first = myStorage.appendBytes(new byte[]{1, 2, 3}, 0, 3, 0);
+    long second = myStorage.appendBytes(new byte[]{4, 5}, 0, 2, first);
+    myStorage.force();
+
+    assertNull(myStorage.readMappedValue(second, BYTES));
+    assertTrue(Arrays.equals(new byte[]{1, 2, 3, 4, 5}, myStorage.readBytes(second).buffer));
+  }
+
+  public void testReadOnlyStorageIsNotMapped() throws IOException {
+    long address = myStorage.appendBytes(new byte[]{1, 2, 3}, 0, 3, 0);
+    myStorage.force();
+    myStorage.dispose();
+
+    myStorage = createStorage(true);
+    assertNull(myStorage.readMappedValue(address, BYTES));
+    assertTrue(Arrays.equals(new byte[]{1, 2, 3}, myStorage.readBytes(address).buffer));
+  }
+
+  @Nonnull
+  private PersistentHashMapValueStorage createStorage(boolean readOnly) {
+    // mapped reads need the plain, not compressed, file
+    PersistentHashMapValueStorage.CreationTimeOptions.DO_COMPRESSION.set(Boolean.FALSE);
+    try {
+      PersistentHashMapValueStorage.CreationTimeOptions options = PersistentHashMapValueStorage.CreationTimeOptions.threadLocalOptions();
+      return PersistentHashMapValueStorage.create(new File(myDir, "values").getPath(), readOnly ? options.setReadOnly() : options);
+    }
+    finally {
+      PersistentHashMapValueStorage.CreationTimeOptions.DO_COMPRESSION.remove();
+    }
+  }
+}
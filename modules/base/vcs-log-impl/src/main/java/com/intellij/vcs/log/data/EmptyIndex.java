@@ -18,11 +18,11 @@ package com.intellij.vcs.log.data;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcs.log.VcsLogDetailsFilter;
 import com.intellij.vcs.log.data.index.VcsLogIndex;
+import com.intellij.vcs.log.util.IntBitmapSet;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import java.util.List;
-import java.util.Set;
 
 public class EmptyIndex implements VcsLogIndex {
   @Override
@@ -50,7 +50,7 @@ public class EmptyIndex implements VcsLogIndex {
 
   @Nonnull
   @Override
-  public Set<Integer> filter(@Nonnull List<VcsLogDetailsFilter> detailsFilters) {
+  public IntBitmapSet filter(@Nonnull List<VcsLogDetailsFilter> detailsFilters) {
     throw new UnsupportedOperationException();
   }
 
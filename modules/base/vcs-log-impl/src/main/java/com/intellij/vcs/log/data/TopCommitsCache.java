@@ -43,7 +43,8 @@ public class TopCommitsCache {
     return myHashMap.getCommitIndex(metadata.getId(), metadata.getRoot());
   }
 
-  public void storeDetails(@Nonnull List<? extends VcsCommitMetadata> sortedDetails) {
+  // called concurrently when several roots are loaded, get() reads the concurrent map without the lock
+  public synchronized void storeDetails(@Nonnull List<? extends VcsCommitMetadata> sortedDetails) {
     List<VcsCommitMetadata> newDetails = ContainerUtil.filter(sortedDetails, metadata -> !myCache.containsValue(metadata));
     if (newDetails.isEmpty()) return;
     Iterator<VcsCommitMetadata> it = new MergingIterator(mySortedDetails, newDetails);
@@ -74,7 +75,7 @@ public class TopCommitsCache {
     return myCache.get(index);
   }
 
-  public void clear() {
+  public synchronized void clear() {
     myCache.clear();
     mySortedDetails.clear();
   }
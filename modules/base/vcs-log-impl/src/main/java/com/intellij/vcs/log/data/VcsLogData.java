@@ -173,7 +173,7 @@ public class VcsLogData implements Disposable, VcsLogDataProvider {
 
   @Nonnull
   public VisiblePackBuilder createVisiblePackBuilder() {
-    return new VisiblePackBuilder(myLogProviders, myHashMap, myTopCommitsDetailsCache, myDetailsGetter, myIndex);
+    return new VisiblePackBuilder(myLogProviders, myHashMap, myTopCommitsDetailsCache, myDetailsGetter, myIndex, getProgress());
   }
 
   @Override
@@ -55,4 +55,96 @@ public class VcsLogMultiRepoJoiner<CommitId, Commit extends GraphCommit<CommitId
     assert lastCommit != null;
     return lastCommit;
   }
+
+  /**
+   * Joins logs as they are loaded. Each added log is merged with the last joined run while that run is not longer,
+   * so every commit takes part in a logarithmic number of merges, and most of the merging is done before the last log arrives.
+   * Commits with equal timestamps are ordered by the index of their root, so the result doesn't depend on the order the logs are added in.
+   * Thread-safe.
+   */
+  public static class Incremental<CommitId, Commit extends GraphCommit<CommitId>> {
+    // joined runs, from the longest to the shortest
+    private final List<Run<Commit>> myRuns = new ArrayList<>();
+    private long myJoinTime;
+
+    public synchronized void add(int rootIndex, @Nonnull List<Commit> log) {
+      long start = System.currentTimeMillis();
+      int[] roots = new int[log.size()];
+      Arrays.fill(roots, rootIndex);
+      Run<Commit> run = new Run<>(log, roots);
+      while (!myRuns.isEmpty() && myRuns.get(myRuns.size() - 1).size() <= run.size()) {
+        run = merge(myRuns.remove(myRuns.size() - 1), run);
+      }
+      myRuns.add(run);
+      myJoinTime += System.currentTimeMillis() - start;
+    }
+
+    @Nonnull
+    public synchronized List<Commit> join() {
+      long start = System.currentTimeMillis();
+      Run<Commit> result = new Run<>(Collections.emptyList(), new int[0]);
+      for (int i = myRuns.size() - 1; i >= 0; i--) {
+        result = merge(myRuns.get(i), result);
+      }
+      myRuns.clear();
+      if (result.size() != 0) myRuns.add(result);
+      myJoinTime += System.currentTimeMillis() - start;
+      return result.myCommits;
+    }
+
+    /**
+     * @return total time in milliseconds spent on merging the logs
+     */
+    public synchronized long getJoinTime() {
+      return myJoinTime;
+    }
+
+    @Nonnull
+    private static <C extends GraphCommit<?>> Run<C> merge(@Nonnull Run<C> first, @Nonnull Run<C> second) {
+      if (first.size() == 0) return second;
+      if (second.size() == 0) return first;
+      List<C> commits = new ArrayList<>(first.size() + second.size());
+      int[] roots = new int[first.size() + second.size()];
+      int i = 0;
+      int j = 0;
+      while (i < first.size() && j < second.size()) {
+        long firstTimestamp = first.myCommits.get(i).getTimestamp();
+        long secondTimestamp = second.myCommits.get(j).getTimestamp();
+        if (firstTimestamp > secondTimestamp || firstTimestamp == secondTimestamp && first.myRoots[i] <= second.myRoots[j]) {
+          roots[commits.size()] = first.myRoots[i];
+          commits.add(first.myCommits.get(i++));
+        }
+        else {
+          roots[commits.size()] = second.myRoots[j];
+          commits.add(second.myCommits.get(j++));
+        }
+      }
+      for (; i < first.size(); i++) {
+        roots[commits.size()] = first.myRoots[i];
+        commits.add(first.myCommits.get(i));
+      }
+      for (; j < second.size(); j++) {
+        roots[commits.size()] = second.myRoots[j];
+        commits.add(second.myCommits.get(j));
+      }
+      return new Run<>(commits, roots);
+    }
+
+    // commits in the joined order and the index of the root of each commit
+    private static class Run<C> {
+      @Nonnull
+      private final List<C> myCommits;
+      @Nonnull
+      private final int[] myRoots;
+
+      private Run(@Nonnull List<C> commits, @Nonnull int[] roots) {
+        myCommits = commits;
+        myRoots = roots;
+      }
+
+      int size() {
+        return myCommits.size();
+      }
+    }
+  }
 }
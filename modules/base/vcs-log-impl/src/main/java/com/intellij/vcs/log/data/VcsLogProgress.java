@@ -22,14 +22,20 @@ import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.util.AbstractProgressIndicatorBase;
 import consulo.disposer.Disposer;
 import com.intellij.util.containers.ContainerUtil;
+import com.intellij.vcs.log.util.StopWatch;
+import consulo.logging.Logger;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Consumer;
 
 public class VcsLogProgress implements Disposable {
+  private static final Logger LOG = Logger.getInstance(VcsLogProgress.class);
+
   @Nonnull
   private final Object myLock = new Object();
   @Nonnull
@@ -38,6 +44,8 @@ public class VcsLogProgress implements Disposable {
   private Set<ProgressIndicator> myTasksWithVisibleProgress = ContainerUtil.newHashSet();
   @Nonnull
   private Set<ProgressIndicator> myTasksWithSilentProgress = ContainerUtil.newHashSet();
+  @Nonnull
+  private final Map<Stage, Long> myStageDurations = new EnumMap<>(Stage.class);
 
   @Nonnull
   public ProgressIndicator createProgressIndicator() {
@@ -73,6 +81,27 @@ public class VcsLogProgress implements Disposable {
     }
   }
 
+  /**
+   * Records the duration of the last run of a log loading stage and notifies listeners about it.
+   */
+  public void stageCompleted(@Nonnull Stage stage, long durationMs) {
+    LOG.debug(stage + " took " + StopWatch.formatTime(durationMs));
+    synchronized (myLock) {
+      myStageDurations.put(stage, durationMs);
+      if (!myListeners.isEmpty()) fireNotification(listener -> listener.stageCompleted(stage, durationMs));
+    }
+  }
+
+  /**
+   * @return durations in milliseconds of the last run of each stage which has completed at least once
+   */
+  @Nonnull
+  public Map<Stage, Long> getStageDurations() {
+    synchronized (myLock) {
+      return new EnumMap<>(myStageDurations);
+    }
+  }
+
   private void started(@Nonnull VcsLogProgressIndicator indicator) {
     synchronized (myLock) {
       if (indicator.isVisible()) {
@@ -140,9 +169,31 @@ public class VcsLogProgress implements Disposable {
     }
   }
 
+  public enum Stage {
+    /**
+     * reading commits and refs from all roots
+     */
+    READ,
+    /**
+     * joining commits of all roots, and joining new commits to the loaded log on refresh
+     */
+    JOIN,
+    /**
+     * building the permanent graph
+     */
+    GRAPH_BUILD,
+    /**
+     * building the first visible graph of a new permanent graph with the BEK sorting
+     */
+    BEK_SORT
+  }
+
   public interface ProgressListener {
     void progressStarted();
 
     void progressStopped();
+
+    default void stageCompleted(@Nonnull Stage stage, long durationMs) {
+    }
   }
 }
@@ -15,6 +15,9 @@
  */
 package com.intellij.vcs.log.data;
 
+import com.intellij.concurrency.SensitiveProgressWrapper;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
@@ -25,6 +28,8 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.Consumer;
 import com.intellij.util.Function;
 import com.intellij.util.NotNullFunction;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.ui.UIUtil;
 import com.intellij.vcs.log.*;
@@ -40,11 +45,16 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 public class VcsLogRefresherImpl implements VcsLogRefresher {
 
   private static final Logger LOG = Logger.getInstance(VcsLogRefresherImpl.class);
+  // roots are read concurrently, each by a VCS process
+  private static final ExecutorService ROOTS_LOADING_EXECUTOR =
+          AppExecutorUtil.createBoundedApplicationPoolExecutor("VcsLogRefresher Pool", SystemProperties.getIntProperty("vcs.log.loading.threads", 8));
 
   @Nonnull
   private final Project myProject;
@@ -119,11 +129,11 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
   public DataPack readFirstBlock() {
     try {
       LogInfo data = loadRecentData(new CommitCountRequirements(myRecentCommitCount).asMap(myProviders.keySet()));
-      Collection<List<GraphCommit<Integer>>> commits = data.getCommits();
       Map<VirtualFile, CompressedRefs> refs = data.getRefs();
-      List<GraphCommit<Integer>> compoundList = multiRepoJoin(commits);
+      List<GraphCommit<Integer>> compoundList = data.getJoinedCommits();
+      myProgress.stageCompleted(VcsLogProgress.Stage.JOIN, data.getJoinTime());
       compoundList = compoundList.subList(0, Math.min(myRecentCommitCount, compoundList.size()));
-      myDataPack = DataPack.build(compoundList, refs, myProviders, myHashMap, false);
+      myDataPack = buildDataPack(compoundList, refs, false);
       mySingleTaskController.request(RefreshRequest.RELOAD_ALL); // build/rebuild the full log in background
       return myDataPack;
     }
@@ -136,20 +146,23 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
   @Nonnull
   private LogInfo loadRecentData(@Nonnull final Map<VirtualFile, VcsLogProvider.Requirements> requirements) throws VcsException {
     final StopWatch sw = StopWatch.start("loading commits");
-    final LogInfo logInfo = new LogInfo(myHashMap);
+    long start = System.currentTimeMillis();
+    final LogInfo logInfo = new LogInfo(myHashMap, myProviders.keySet());
     new ProviderIterator() {
       @Override
       public void each(@Nonnull VirtualFile root, @Nonnull VcsLogProvider provider) throws VcsException {
+        long rootStart = System.currentTimeMillis();
         VcsLogProvider.DetailedLogData data = provider.readFirstBlock(root, requirements.get(root));
-        logInfo.put(root, compactCommits(data.getCommits(), root));
+        logInfo.putAndJoin(root, compactCommits(data.getCommits(), root));
         logInfo.put(root, data.getRefs());
         storeUsersAndDetails(data.getCommits());
-        sw.rootCompleted(root);
+        sw.rootCompleted(root, System.currentTimeMillis() - rootStart);
       }
     }.iterate(getProvidersForRoots(requirements.keySet()));
     myUserRegistry.flush();
     myIndex.scheduleIndex(false);
     sw.report();
+    myProgress.stageCompleted(VcsLogProgress.Stage.READ, System.currentTimeMillis() - start);
     return logInfo;
   }
 
@@ -174,6 +187,16 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
     return joined;
   }
 
+  @Nonnull
+  private DataPack buildDataPack(@Nonnull List<? extends GraphCommit<Integer>> commits,
+                                 @Nonnull Map<VirtualFile, CompressedRefs> refs,
+                                 boolean full) {
+    long start = System.currentTimeMillis();
+    DataPack dataPack = DataPack.build(commits, refs, myProviders, myHashMap, full);
+    myProgress.stageCompleted(VcsLogProgress.Stage.GRAPH_BUILD, System.currentTimeMillis() - start);
+    return dataPack;
+  }
+
   @Nonnull
   private List<GraphCommit<Integer>> compactCommits(@Nonnull List<? extends TimedVcsCommit> commits, @Nonnull final VirtualFile root) {
     StopWatch sw = StopWatch.start("compacting commits");
@@ -216,7 +239,7 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
     @Nonnull
     private DataPack myCurrentDataPack;
     @Nonnull
-    private final LogInfo myLoadedInfo = new LogInfo(myHashMap);
+    private final LogInfo myLoadedInfo = new LogInfo(myHashMap, myProviders.keySet());
 
     MyRefreshTask(@Nonnull DataPack currentDataPack) {
       super(VcsLogRefresherImpl.this.myProject, "Refreshing History...", false);
@@ -263,14 +286,16 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
           int commitCount = myRecentCommitCount;
           for (int attempt = 0; attempt <= 1; attempt++) {
             loadLogAndRefs(roots, currentRefs, commitCount);
+            long joinStart = System.currentTimeMillis();
             List<? extends GraphCommit<Integer>> compoundLog = multiRepoJoin(myLoadedInfo.getCommits());
             Map<VirtualFile, CompressedRefs> allNewRefs = getAllNewRefs(myLoadedInfo, currentRefs);
             List<GraphCommit<Integer>> joinedFullLog = join(compoundLog, permanentGraph.getAllCommits(), currentRefs, allNewRefs);
+            myProgress.stageCompleted(VcsLogProgress.Stage.JOIN, System.currentTimeMillis() - joinStart);
             if (joinedFullLog == null) {
               commitCount *= 5;
             }
             else {
-              return DataPack.build(joinedFullLog, allNewRefs, myProviders, myHashMap, true);
+              return buildDataPack(joinedFullLog, allNewRefs, true);
             }
           }
           // couldn't join => need to reload everything; if 5000 commits is still not enough, it's worth reporting:
@@ -352,8 +377,9 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
     private DataPack loadFullLog() throws VcsException {
       StopWatch sw = StopWatch.start("full log reload");
       LogInfo logInfo = readFullLogFromVcs();
-      List<? extends GraphCommit<Integer>> graphCommits = multiRepoJoin(logInfo.getCommits());
-      DataPack dataPack = DataPack.build(graphCommits, logInfo.getRefs(), myProviders, myHashMap, true);
+      List<? extends GraphCommit<Integer>> graphCommits = logInfo.getJoinedCommits();
+      myProgress.stageCompleted(VcsLogProgress.Stage.JOIN, logInfo.getJoinTime());
+      DataPack dataPack = buildDataPack(graphCommits, logInfo.getRefs(), true);
       sw.report();
       return dataPack;
     }
@@ -361,21 +387,24 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
     @Nonnull
     private LogInfo readFullLogFromVcs() throws VcsException {
       final StopWatch sw = StopWatch.start("read full log from VCS");
-      final LogInfo logInfo = new LogInfo(myHashMap);
+      long start = System.currentTimeMillis();
+      final LogInfo logInfo = new LogInfo(myHashMap, myProviders.keySet());
       new ProviderIterator() {
         @Override
         void each(@Nonnull final VirtualFile root, @Nonnull VcsLogProvider provider) throws VcsException {
+          long rootStart = System.currentTimeMillis();
           final List<GraphCommit<Integer>> graphCommits = ContainerUtil.newArrayList();
           VcsLogProvider.LogData data = provider.readAllHashes(root, commit -> graphCommits.add(compactCommit(commit, root)));
-          logInfo.put(root, graphCommits);
+          logInfo.putAndJoin(root, graphCommits);
           logInfo.put(root, data.getRefs());
           myUserRegistry.addUsers(data.getUsers());
-          sw.rootCompleted(root);
+          sw.rootCompleted(root, System.currentTimeMillis() - rootStart);
         }
       }.iterate(myProviders);
       myUserRegistry.flush();
       myIndex.scheduleIndex(true);
       sw.report();
+      myProgress.stageCompleted(VcsLogProgress.Stage.READ, System.currentTimeMillis() - start);
       return logInfo;
     }
   }
@@ -399,13 +428,70 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
     }
   }
 
+  /**
+   * Processes roots concurrently, so a refresh of many repositories waits for the slowest root instead of the sum of all of them.
+   * {@link #each} is called in pooled threads under a child of the progress indicator of the calling thread. The first failure cancels
+   * the child indicator, so the other roots stop, and is rethrown once all started roots have finished.
+   */
   private static abstract class ProviderIterator {
     abstract void each(@Nonnull VirtualFile root, @Nonnull VcsLogProvider provider) throws VcsException;
 
     final void iterate(@Nonnull Map<VirtualFile, VcsLogProvider> providers) throws VcsException {
+      if (providers.size() <= 1) {
+        for (Map.Entry<VirtualFile, VcsLogProvider> entry : providers.entrySet()) {
+          each(entry.getKey(), entry.getValue());
+        }
+        return;
+      }
+
+      ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+      ProgressIndicator rootsIndicator = indicator == null ? new EmptyProgressIndicator() : new SensitiveProgressWrapper(indicator);
+      AtomicReference<Throwable> failure = new AtomicReference<>();
+      List<Future<?>> futures = ContainerUtil.newArrayList();
       for (Map.Entry<VirtualFile, VcsLogProvider> entry : providers.entrySet()) {
-        each(entry.getKey(), entry.getValue());
+        futures.add(ROOTS_LOADING_EXECUTOR.submit(() -> ProgressManager.getInstance().executeProcessUnderProgress(() -> {
+          try {
+            rootsIndicator.checkCanceled();
+            each(entry.getKey(), entry.getValue());
+          }
+          catch (ProcessCanceledException ignored) {
+            // another root failed, or the calling thread's indicator was cancelled
+          }
+          catch (VcsException | RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+            rootsIndicator.cancel();
+          }
+        }, rootsIndicator)));
       }
+
+      boolean interrupted = false;
+      for (Future<?> future : futures) {
+        while (true) {
+          try {
+            future.get();
+            break;
+          }
+          catch (InterruptedException e) {
+            interrupted = true;
+            rootsIndicator.cancel();
+          }
+          catch (ExecutionException e) {
+            failure.compareAndSet(null, e.getCause());
+            break;
+          }
+        }
+      }
+      if (interrupted) Thread.currentThread().interrupt();
+
+      Throwable cause = failure.get();
+      if (cause != null) {
+        if (cause instanceof VcsException) throw (VcsException)cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+        if (cause instanceof Error) throw (Error)cause;
+        throw new RuntimeException(cause);
+      }
+      if (indicator != null) indicator.checkCanceled();
+      if (interrupted) throw new ProcessCanceledException();
     }
   }
 
@@ -433,34 +519,61 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
     private final VcsLogStorage myHashMap;
     private final Map<VirtualFile, CompressedRefs> myRefs = ContainerUtil.newHashMap();
     private final Map<VirtualFile, List<GraphCommit<Integer>>> myCommits = ContainerUtil.newHashMap();
+    private final VcsLogMultiRepoJoiner.Incremental<Integer, GraphCommit<Integer>> myJoiner = new VcsLogMultiRepoJoiner.Incremental<>();
+    // commits with equal timestamps are joined in this order of their roots, whichever root is loaded first
+    private final List<VirtualFile> myRootOrder;
 
-    public LogInfo(VcsLogStorage hashMap) {
+    public LogInfo(VcsLogStorage hashMap, @Nonnull Collection<VirtualFile> roots) {
       myHashMap = hashMap;
+      myRootOrder = ContainerUtil.sorted(roots, Comparator.comparing(VirtualFile::getPath));
     }
 
-    void put(@Nonnull VirtualFile root, @Nonnull List<GraphCommit<Integer>> commits) {
+    synchronized void put(@Nonnull VirtualFile root, @Nonnull List<GraphCommit<Integer>> commits) {
       myCommits.put(root, commits);
     }
 
+    /**
+     * Stores commits of a root and joins them with the commits of the roots loaded before, see {@link #getJoinedCommits()}.
+     * Each root must be added once.
+     */
+    void putAndJoin(@Nonnull VirtualFile root, @Nonnull List<GraphCommit<Integer>> commits) {
+      int rootIndex = myRootOrder.indexOf(root);
+      assert rootIndex >= 0 : root;
+      put(root, commits);
+      myJoiner.add(rootIndex, commits);
+    }
+
     void put(@Nonnull VirtualFile root, @Nonnull Set<VcsRef> refs) {
-      myRefs.put(root, new CompressedRefs(refs, myHashMap));
+      put(root, new CompressedRefs(refs, myHashMap));
     }
 
-    void put(@Nonnull VirtualFile root, @Nonnull CompressedRefs refs) {
+    synchronized void put(@Nonnull VirtualFile root, @Nonnull CompressedRefs refs) {
       myRefs.put(root, refs);
     }
 
     @Nonnull
-    Collection<List<GraphCommit<Integer>>> getCommits() {
+    synchronized Collection<List<GraphCommit<Integer>>> getCommits() {
       return myCommits.values();
     }
 
-    List<GraphCommit<Integer>> getCommits(@Nonnull VirtualFile root) {
+    synchronized List<GraphCommit<Integer>> getCommits(@Nonnull VirtualFile root) {
       return myCommits.get(root);
     }
 
+    /**
+     * @return commits of the roots added with {@link #putAndJoin}, ordered by time
+     */
+    @Nonnull
+    List<GraphCommit<Integer>> getJoinedCommits() {
+      return myJoiner.join();
+    }
+
+    long getJoinTime() {
+      return myJoiner.getJoinTime();
+    }
+
     @Nonnull
-    Map<VirtualFile, CompressedRefs> getRefs() {
+    synchronized Map<VirtualFile, CompressedRefs> getRefs() {
       return myRefs;
     }
   }
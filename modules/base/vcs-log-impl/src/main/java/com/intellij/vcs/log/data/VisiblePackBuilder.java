@@ -30,11 +30,13 @@ import com.intellij.vcs.log.graph.VisibleGraph;
 import com.intellij.vcs.log.impl.VcsLogFilterCollectionImpl.VcsLogFilterCollectionBuilder;
 import com.intellij.vcs.log.impl.VcsLogHashFilterImpl;
 import com.intellij.vcs.log.impl.VcsLogUtil;
+import com.intellij.vcs.log.util.IntBitmapSet;
 import com.intellij.vcs.log.util.StopWatch;
 import consulo.logging.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.lang.ref.WeakReference;
 
 import java.util.*;
 
@@ -52,17 +54,24 @@ class VisiblePackBuilder {
   private final Map<VirtualFile, VcsLogProvider> myLogProviders;
   @Nonnull
   private final VcsLogIndex myIndex;
+  @Nonnull
+  private final VcsLogProgress myProgress;
+  // the graph sorting was last timed for, the sorted order is computed once per permanent graph
+  @Nonnull
+  private WeakReference<PermanentGraph<Integer>> myBekTimedGraph = new WeakReference<>(null);
 
   VisiblePackBuilder(@Nonnull Map<VirtualFile, VcsLogProvider> providers,
                      @Nonnull VcsLogStorage hashMap,
                      @Nonnull TopCommitsCache topCommitsDetailsCache,
                      @Nonnull DataGetter<VcsFullCommitDetails> detailsGetter,
-                     @Nonnull VcsLogIndex index) {
+                     @Nonnull VcsLogIndex index,
+                     @Nonnull VcsLogProgress progress) {
     myHashMap = hashMap;
     myTopCommitsDetailsCache = topCommitsDetailsCache;
     myCommitDetailsGetter = detailsGetter;
     myLogProviders = providers;
     myIndex = index;
+    myProgress = progress;
   }
 
   @Nonnull
@@ -87,7 +96,7 @@ class VisiblePackBuilder {
       visibleGraph = EmptyVisibleGraph.getInstance();
     }
     else {
-      visibleGraph = dataPack.getPermanentGraph().createVisibleGraph(sortType, matchingHeads, filterResult.matchingCommits);
+      visibleGraph = createVisibleGraph(dataPack.getPermanentGraph(), sortType, matchingHeads, filterResult.matchingCommits);
     }
 
     LOG.debug(StopWatch.formatTime(System.currentTimeMillis() - start) + " for filtering by " + filters);
@@ -95,6 +104,21 @@ class VisiblePackBuilder {
     return Pair.create(new VisiblePack(dataPack, visibleGraph, filterResult.canRequestMore, filters), filterResult.commitCount);
   }
 
+  @Nonnull
+  private VisibleGraph<Integer> createVisibleGraph(@Nonnull PermanentGraph<Integer> permanentGraph,
+                                                  @Nonnull PermanentGraph.SortType sortType,
+                                                  @Nullable Set<Integer> matchingHeads,
+                                                  @Nullable Set<Integer> matchingCommits) {
+    if (sortType == PermanentGraph.SortType.Normal || myBekTimedGraph.get() == permanentGraph) {
+      return permanentGraph.createVisibleGraph(sortType, matchingHeads, matchingCommits);
+    }
+    long start = System.currentTimeMillis();
+    VisibleGraph<Integer> visibleGraph = permanentGraph.createVisibleGraph(sortType, matchingHeads, matchingCommits);
+    myBekTimedGraph = new WeakReference<>(permanentGraph);
+    myProgress.stageCompleted(VcsLogProgress.Stage.BEK_SORT, System.currentTimeMillis() - start);
+    return visibleGraph;
+  }
+
   @Nonnull
   private FilterResult filterByDetails(@Nonnull DataPack dataPack,
                                        @Nonnull VcsLogFilterCollection filters,
@@ -104,7 +128,7 @@ class VisiblePackBuilder {
     List<VcsLogDetailsFilter> detailsFilters = filters.getDetailsFilters();
     if (detailsFilters.isEmpty()) return new FilterResult(null, false, commitCount);
 
-    Set<Integer> filteredWidthIndex = null;
+    IntBitmapSet filteredWidthIndex = null;
     if (myIndex.canFilter(detailsFilters)) {
       Collection<VirtualFile> notIndexedRoots = ContainerUtil.filter(visibleRoots, root -> !myIndex.isIndexed(root));
 
@@ -117,7 +141,7 @@ class VisiblePackBuilder {
 
     FilterResult filteredWithVcs = filterWithVcs(dataPack.getPermanentGraph(), filters, detailsFilters, matchingHeads, commitCount);
 
-    Set<Integer> filteredCommits;
+    IntBitmapSet filteredCommits;
     if (filteredWidthIndex == null) {
       filteredCommits = filteredWithVcs.matchingCommits;
     }
@@ -125,7 +149,7 @@ class VisiblePackBuilder {
       filteredCommits = filteredWidthIndex;
     }
     else {
-      filteredCommits = ContainerUtil.union(filteredWidthIndex, filteredWithVcs.matchingCommits);
+      filteredCommits = IntBitmapSet.or(filteredWidthIndex, filteredWithVcs.matchingCommits);
     }
     return new FilterResult(filteredCommits, filteredWithVcs.canRequestMore, filteredWithVcs.commitCount);
   }
@@ -136,7 +160,7 @@ class VisiblePackBuilder {
                                      @Nonnull List<VcsLogDetailsFilter> detailsFilters,
                                      @Nullable Set<Integer> matchingHeads,
                                      @Nonnull CommitCountStage commitCount) {
-    Set<Integer> matchingCommits = null;
+    IntBitmapSet matchingCommits = null;
     if (commitCount == CommitCountStage.INITIAL) {
       matchingCommits = getMatchedCommitIndex(filterInMemory(graph, detailsFilters, matchingHeads));
       if (matchingCommits.size() < commitCount.getCount()) {
@@ -151,7 +175,7 @@ class VisiblePackBuilder {
       }
       catch (VcsException e) {
         //TODO show an error balloon or something else for non-ea guys.
-        matchingCommits = Collections.emptySet();
+        matchingCommits = new IntBitmapSet();
         LOG.error(e);
       }
     }
@@ -294,21 +318,25 @@ class VisiblePackBuilder {
   }
 
   @Nullable
-  private Set<Integer> getMatchedCommitIndex(@Nullable Collection<CommitId> commits) {
+  private IntBitmapSet getMatchedCommitIndex(@Nullable Collection<CommitId> commits) {
     if (commits == null) {
       return null;
     }
 
-    return ContainerUtil.map2Set(commits, commitId -> myHashMap.getCommitIndex(commitId.getHash(), commitId.getRoot()));
+    IntBitmapSet result = new IntBitmapSet();
+    for (CommitId commitId : commits) {
+      result.add(myHashMap.getCommitIndex(commitId.getHash(), commitId.getRoot()));
+    }
+    return result;
   }
 
   private static class FilterResult {
-    @Nullable private final Set<Integer> matchingCommits;
+    @Nullable private final IntBitmapSet matchingCommits;
     private final boolean canRequestMore;
     @Nonnull
     private final CommitCountStage commitCount;
 
-    private FilterResult(@Nullable Set<Integer> commits, boolean more, @Nonnull CommitCountStage count) {
+    private FilterResult(@Nullable IntBitmapSet commits, boolean more, @Nonnull CommitCountStage count) {
       matchingCommits = commits;
       canRequestMore = more;
       commitCount = count;
@@ -19,7 +19,6 @@ import com.intellij.openapi.progress.ProgressManager;
 import consulo.disposer.Disposable;
 import consulo.disposer.Disposer;
 import com.intellij.openapi.util.Pair;
-import com.intellij.util.Consumer;
 import com.intellij.util.indexing.*;
 import com.intellij.util.indexing.impl.IndexStorage;
 import com.intellij.util.indexing.impl.MapIndexStorage;
@@ -31,15 +30,15 @@ import com.intellij.util.io.EnumeratorIntegerDescriptor;
 import com.intellij.util.io.KeyDescriptor;
 import com.intellij.vcs.log.VcsFullCommitDetails;
 import com.intellij.vcs.log.impl.FatalErrorHandler;
+import com.intellij.vcs.log.util.IntBitmapSet;
 import com.intellij.vcs.log.util.PersistentUtil;
-import gnu.trove.TIntHashSet;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Set;
+import java.util.*;
+import java.util.function.IntConsumer;
 import java.util.function.ObjIntConsumer;
 
 import static com.intellij.vcs.log.data.index.VcsLogPersistentIndex.getVersion;
@@ -90,8 +89,8 @@ public class VcsLogFullDetailsIndex<T> implements Disposable {
   }
 
   @Nonnull
-  public TIntHashSet getCommitsWithAnyKey(@Nonnull Set<Integer> keys) throws StorageException {
-    TIntHashSet result = new TIntHashSet();
+  public IntBitmapSet getCommitsWithAnyKey(@Nonnull Set<Integer> keys) throws StorageException {
+    IntBitmapSet result = new IntBitmapSet();
 
     for (Integer key : keys) {
       iterateCommitIds(key, result::add);
@@ -101,17 +100,34 @@ public class VcsLogFullDetailsIndex<T> implements Disposable {
   }
 
   @Nonnull
-  public TIntHashSet getCommitsWithAllKeys(@Nonnull Collection<Integer> keys) throws StorageException {
-    return InvertedIndexUtil.collectInputIdsContainingAllKeys(myMapReduceIndex, keys, (k) -> {
+  public IntBitmapSet getCommitsWithAllKeys(@Nonnull Collection<Integer> keys) throws StorageException {
+    List<ValueContainer<T>> containers = new ArrayList<>(keys.size());
+    for (Integer key : keys) {
       ProgressManager.checkCanceled();
-      return true;
-    }, null, null);
+      containers.add(myMapReduceIndex.getData(key));
+    }
+    // the smallest sets go first, so the intersection gets small early
+    containers.sort(Comparator.comparingInt(ValueContainer::size));
+
+    IntBitmapSet result = null;
+    for (ValueContainer<T> container : containers) {
+      ProgressManager.checkCanceled();
+      IntBitmapSet intersection = new IntBitmapSet();
+      IntBitmapSet previous = result;
+      container.forEach((id, value) -> {
+        if (previous == null || previous.contains(id)) intersection.add(id);
+        return true;
+      });
+      result = intersection;
+      if (result.isEmpty()) break;
+    }
+    return result == null ? new IntBitmapSet() : result;
   }
 
-  private void iterateCommitIds(int key, @Nonnull Consumer<Integer> consumer) throws StorageException {
+  private void iterateCommitIds(int key, @Nonnull IntConsumer consumer) throws StorageException {
     ValueContainer<T> data = myMapReduceIndex.getData(key);
     data.forEach((id, value) -> {
-      consumer.consume(id);
+      consumer.accept(id);
       return true;
     });
   }
@@ -17,11 +17,11 @@ package com.intellij.vcs.log.data.index;
 
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcs.log.VcsLogDetailsFilter;
+import com.intellij.vcs.log.util.IntBitmapSet;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import java.util.List;
-import java.util.Set;
 
 public interface VcsLogIndex {
   void scheduleIndex(boolean full);
@@ -35,7 +35,7 @@ public interface VcsLogIndex {
   boolean canFilter(@Nonnull List<VcsLogDetailsFilter> filters);
 
   @Nonnull
-  Set<Integer> filter(@Nonnull List<VcsLogDetailsFilter> detailsFilters);
+  IntBitmapSet filter(@Nonnull List<VcsLogDetailsFilter> detailsFilters);
 
   @Nullable
   String getFullMessage(int index);
@@ -15,20 +15,26 @@
  */
 package com.intellij.vcs.log.data.index;
 
+import com.intellij.find.ngrams.RegExpTrigramQueryBuilder;
+import com.intellij.find.ngrams.TrigramQuery;
 import com.intellij.openapi.util.text.TrigramBuilder;
 import com.intellij.util.indexing.DataIndexer;
 import com.intellij.util.indexing.StorageException;
 import com.intellij.util.io.VoidDataExternalizer;
 import com.intellij.vcs.log.VcsFullCommitDetails;
+import com.intellij.vcs.log.VcsLogTextFilter;
 import com.intellij.vcs.log.impl.FatalErrorHandler;
+import com.intellij.vcs.log.util.IntBitmapSet;
 import consulo.disposer.Disposable;
 import gnu.trove.THashMap;
-import gnu.trove.TIntHashSet;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import static com.intellij.vcs.log.data.index.VcsLogPersistentIndex.getVersion;
 
@@ -43,7 +49,7 @@ public class VcsLogMessagesTrigramIndex extends VcsLogFullDetailsIndex<Void> {
   }
 
   @Nullable
-  public TIntHashSet getCommitsForSubstring(@Nonnull String string) throws StorageException {
+  public IntBitmapSet getCommitsForSubstring(@Nonnull String string) throws StorageException {
     MyTrigramProcessor trigramProcessor = new MyTrigramProcessor();
     TrigramBuilder.processTrigrams(string, trigramProcessor);
 
@@ -52,6 +58,97 @@ public class VcsLogMessagesTrigramIndex extends VcsLogFullDetailsIndex<Void> {
     return getCommitsWithAllKeys(trigramProcessor.map.keySet());
   }
 
+  /**
+   * Evaluates the query with unions and intersections of commit sets of its trigrams.
+   *
+   * @return commits which messages contain trigrams required by the query, null if the query does not restrict commits
+   */
+  @Nullable
+  public IntBitmapSet getCommitsForQuery(@Nonnull TrigramQuery query) throws StorageException {
+    return getCommitsForQuery(query, new CommitIndex() {
+      @Nonnull
+      @Override
+      public IntBitmapSet getCommitsWithAllKeys(@Nonnull Collection<Integer> trigrams) throws StorageException {
+        return VcsLogMessagesTrigramIndex.this.getCommitsWithAllKeys(trigrams);
+      }
+
+      @Nonnull
+      @Override
+      public IntBitmapSet getCommitsWithAnyKey(@Nonnull Set<Integer> trigrams) throws StorageException {
+        return VcsLogMessagesTrigramIndex.this.getCommitsWithAnyKey(trigrams);
+      }
+    });
+  }
+
+  // trigrams are lower-cased in the index, so the query fits case insensitive filters as well
+  @Nonnull
+  static TrigramQuery createQuery(@Nonnull VcsLogTextFilter filter) {
+    return filter.isRegex() ? RegExpTrigramQueryBuilder.build(filter.getText()) : TrigramQuery.ofText(filter.getText());
+  }
+
+  @Nullable
+  static IntBitmapSet getCommitsForQuery(@Nonnull TrigramQuery query, @Nonnull CommitIndex index) throws StorageException {
+    switch (query.getKind()) {
+      case ALL:
+        return null;
+      case NONE:
+        return new IntBitmapSet();
+      case AND:
+        return getCommitsForAll(query, index);
+      default:
+        return getCommitsForAny(query, index);
+    }
+  }
+
+  @Nullable
+  private static IntBitmapSet getCommitsForAll(@Nonnull TrigramQuery query, @Nonnull CommitIndex index) throws StorageException {
+    IntBitmapSet result = null;
+    int[] trigrams = query.getTrigrams();
+    if (trigrams.length > 0) {
+      result = index.getCommitsWithAllKeys(toKeys(trigrams));
+    }
+    for (TrigramQuery subQuery : query.getSubQueries()) {
+      if (result != null && result.isEmpty()) break;
+      IntBitmapSet commits = getCommitsForQuery(subQuery, index);
+      if (commits == null) continue;
+      if (result == null) {
+        result = commits;
+      }
+      else {
+        result = IntBitmapSet.and(result, commits);
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  private static IntBitmapSet getCommitsForAny(@Nonnull TrigramQuery query, @Nonnull CommitIndex index) throws StorageException {
+    IntBitmapSet result = index.getCommitsWithAnyKey(toKeys(query.getTrigrams()));
+    for (TrigramQuery subQuery : query.getSubQueries()) {
+      IntBitmapSet commits = getCommitsForQuery(subQuery, index);
+      if (commits == null) return null;
+      result.addAll(commits);
+    }
+    return result;
+  }
+
+  @Nonnull
+  private static Set<Integer> toKeys(@Nonnull int[] trigrams) {
+    Set<Integer> keys = new HashSet<>(trigrams.length);
+    for (int trigram : trigrams) {
+      keys.add(trigram);
+    }
+    return keys;
+  }
+
+  interface CommitIndex {
+    @Nonnull
+    IntBitmapSet getCommitsWithAllKeys(@Nonnull Collection<Integer> trigrams) throws StorageException;
+
+    @Nonnull
+    IntBitmapSet getCommitsWithAnyKey(@Nonnull Set<Integer> trigrams) throws StorageException;
+  }
+
   public static class TrigramMessageIndexer implements DataIndexer<Integer, Void, VcsFullCommitDetails> {
     @Nonnull
     @Override
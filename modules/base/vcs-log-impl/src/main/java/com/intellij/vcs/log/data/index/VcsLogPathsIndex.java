@@ -33,9 +33,9 @@ import com.intellij.util.text.CaseInsensitiveStringHashingStrategy;
 import com.intellij.vcs.log.VcsFullCommitDetails;
 import com.intellij.vcs.log.impl.FatalErrorHandler;
 import com.intellij.vcs.log.impl.VcsChangesLazilyParsedDetails;
+import com.intellij.vcs.log.util.IntBitmapSet;
 import com.intellij.vcs.log.util.PersistentUtil;
 import gnu.trove.THashMap;
-import gnu.trove.TIntHashSet;
 import javax.annotation.Nonnull;
 
 import java.io.DataInput;
@@ -82,13 +82,13 @@ public class VcsLogPathsIndex extends VcsLogFullDetailsIndex<Integer> {
     myPathsIndexer.getPathsEnumerator().force();
   }
 
-  public TIntHashSet getCommitsForPaths(@Nonnull Collection<FilePath> paths) throws IOException, StorageException {
+  public IntBitmapSet getCommitsForPaths(@Nonnull Collection<FilePath> paths) throws IOException, StorageException {
     Set<Integer> allPathIds = ContainerUtil.newHashSet();
     for (FilePath path : paths) {
       allPathIds.add(myPathsIndexer.myPathsEnumerator.enumerate(path.getPath()));
     }
 
-    TIntHashSet result = new TIntHashSet();
+    IntBitmapSet result = new IntBitmapSet();
     Set<Integer> renames = allPathIds;
     while (!renames.isEmpty()) {
       renames = addCommitsAndGetRenames(renames, allPathIds, result);
@@ -101,7 +101,7 @@ public class VcsLogPathsIndex extends VcsLogFullDetailsIndex<Integer> {
   @Nonnull
   public Set<Integer> addCommitsAndGetRenames(@Nonnull Set<Integer> newPathIds,
                                               @Nonnull Set<Integer> allPathIds,
-                                              @Nonnull TIntHashSet commits)
+                                              @Nonnull IntBitmapSet commits)
           throws StorageException {
     Set<Integer> renames = ContainerUtil.newHashSet();
     for (Integer key : newPathIds) {
@@ -15,6 +15,7 @@
  */
 package com.intellij.vcs.log.data.index;
 
+import com.intellij.find.ngrams.TrigramQuery;
 import consulo.disposer.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.ServiceManager;
@@ -29,13 +30,13 @@ import com.intellij.util.EmptyConsumer;
 import com.intellij.util.Processor;
 import com.intellij.util.ThrowableRunnable;
 import com.intellij.util.containers.ContainerUtil;
-import com.intellij.util.containers.EmptyIntHashSet;
 import com.intellij.util.indexing.StorageException;
 import com.intellij.util.io.*;
 import com.intellij.vcs.log.*;
 import com.intellij.vcs.log.data.*;
 import com.intellij.vcs.log.impl.FatalErrorHandler;
 import com.intellij.vcs.log.ui.filter.VcsLogTextFilterImpl;
+import com.intellij.vcs.log.util.IntBitmapSet;
 import com.intellij.vcs.log.util.PersistentSet;
 import com.intellij.vcs.log.util.PersistentSetImpl;
 import com.intellij.vcs.log.util.StopWatch;
@@ -208,8 +209,8 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
   }
 
   @Nonnull
-  private <T> TIntHashSet filter(@Nonnull PersistentMap<Integer, T> map, @Nonnull Condition<T> condition) {
-    TIntHashSet result = new TIntHashSet();
+  private <T> IntBitmapSet filter(@Nonnull PersistentMap<Integer, T> map, @Nonnull Condition<T> condition) {
+    IntBitmapSet result = new IntBitmapSet();
     if (myIndexStorage == null) return result;
     try {
       Processor<Integer> processor = integer -> {
@@ -242,7 +243,7 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
   }
 
   @Nonnull
-  private TIntHashSet filterUsers(@Nonnull Set<VcsUser> users) {
+  private IntBitmapSet filterUsers(@Nonnull Set<VcsUser> users) {
     if (myIndexStorage != null) {
       try {
         return myIndexStorage.users.getCommitsForUsers(users);
@@ -254,11 +255,11 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
         processRuntimeException(e);
       }
     }
-    return new TIntHashSet();
+    return new IntBitmapSet();
   }
 
   @Nonnull
-  private TIntHashSet filterPaths(@Nonnull Collection<FilePath> paths) {
+  private IntBitmapSet filterPaths(@Nonnull Collection<FilePath> paths) {
     if (myIndexStorage != null) {
       try {
         return myIndexStorage.paths.getCommitsForPaths(paths);
@@ -270,34 +271,33 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
         processRuntimeException(e);
       }
     }
-    return new TIntHashSet();
+    return new IntBitmapSet();
   }
 
   @Nonnull
-  public TIntHashSet filterMessages(@Nonnull VcsLogTextFilter filter) {
+  public IntBitmapSet filterMessages(@Nonnull VcsLogTextFilter filter) {
     if (myIndexStorage != null) {
       try {
-        if (!filter.isRegex()) {
-          TIntHashSet commitsForSearch = myIndexStorage.trigrams.getCommitsForSubstring(filter.getText());
-          if (commitsForSearch != null) {
-            TIntHashSet result = new TIntHashSet();
-            commitsForSearch.forEach(commit -> {
-              try {
-                String value = myIndexStorage.messages.get(commit);
-                if (value != null) {
-                  if (VcsLogTextFilterImpl.matches(filter, value)) {
-                    result.add(commit);
-                  }
+        TrigramQuery query = VcsLogMessagesTrigramIndex.createQuery(filter);
+        IntBitmapSet commitsForSearch = myIndexStorage.trigrams.getCommitsForQuery(query);
+        if (commitsForSearch != null) {
+          IntBitmapSet result = new IntBitmapSet();
+          commitsForSearch.forEachId(commit -> {
+            try {
+              String value = myIndexStorage.messages.get(commit);
+              if (value != null) {
+                if (VcsLogTextFilterImpl.matches(filter, value)) {
+                  result.add(commit);
                 }
               }
-              catch (IOException e) {
-                myFatalErrorsConsumer.consume(this, e);
-                return false;
-              }
-              return true;
-            });
-            return result;
-          }
+            }
+            catch (IOException e) {
+              myFatalErrorsConsumer.consume(this, e);
+              return false;
+            }
+            return true;
+          });
+          return result;
         }
       }
       catch (StorageException e) {
@@ -310,7 +310,7 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
       return filter(myIndexStorage.messages, message -> VcsLogTextFilterImpl.matches(filter, message));
     }
 
-    return EmptyIntHashSet.INSTANCE;
+    return new IntBitmapSet();
   }
 
   private void processRuntimeException(@Nonnull RuntimeException e) {
@@ -339,17 +339,17 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
 
   @Override
   @Nonnull
-  public Set<Integer> filter(@Nonnull List<VcsLogDetailsFilter> detailsFilters) {
+  public IntBitmapSet filter(@Nonnull List<VcsLogDetailsFilter> detailsFilters) {
     VcsLogTextFilter textFilter = ContainerUtil.findInstance(detailsFilters, VcsLogTextFilter.class);
     VcsLogUserFilter userFilter = ContainerUtil.findInstance(detailsFilters, VcsLogUserFilter.class);
     VcsLogStructureFilter pathFilter = ContainerUtil.findInstance(detailsFilters, VcsLogStructureFilter.class);
 
-    TIntHashSet filteredByMessage = null;
+    IntBitmapSet filteredByMessage = null;
     if (textFilter != null) {
       filteredByMessage = filterMessages(textFilter);
     }
 
-    TIntHashSet filteredByUser = null;
+    IntBitmapSet filteredByUser = null;
     if (userFilter != null) {
       Set<VcsUser> users = ContainerUtil.newHashSet();
       for (VirtualFile root : myRoots) {
@@ -359,12 +359,13 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
       filteredByUser = filterUsers(users);
     }
 
-    TIntHashSet filteredByPath = null;
+    IntBitmapSet filteredByPath = null;
     if (pathFilter != null) {
       filteredByPath = filterPaths(pathFilter.getFiles());
     }
 
-    return TroveUtil.intersect(filteredByMessage, filteredByPath, filteredByUser);
+    IntBitmapSet result = IntBitmapSet.intersect(filteredByMessage, filteredByPath, filteredByUser);
+    return result == null ? new IntBitmapSet() : result;
   }
 
   @Nullable
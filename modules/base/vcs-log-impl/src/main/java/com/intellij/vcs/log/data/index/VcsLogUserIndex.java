@@ -26,8 +26,8 @@ import com.intellij.vcs.log.VcsFullCommitDetails;
 import com.intellij.vcs.log.VcsUser;
 import com.intellij.vcs.log.data.VcsUserRegistryImpl;
 import com.intellij.vcs.log.impl.FatalErrorHandler;
+import com.intellij.vcs.log.util.IntBitmapSet;
 import gnu.trove.THashMap;
-import gnu.trove.TIntHashSet;
 import javax.annotation.Nonnull;
 
 import java.io.IOException;
@@ -52,7 +52,7 @@ public class VcsLogUserIndex extends VcsLogFullDetailsIndex<Void> {
     ((UserIndexer)myIndexer).setFatalErrorConsumer(e -> consumer.consume(this, e));
   }
 
-  public TIntHashSet getCommitsForUsers(@Nonnull Set<VcsUser> users) throws IOException, StorageException {
+  public IntBitmapSet getCommitsForUsers(@Nonnull Set<VcsUser> users) throws IOException, StorageException {
     Set<Integer> ids = ContainerUtil.newHashSet();
     for (VcsUser user : users) {
       ids.add(myUserRegistry.getUserId(user));
@@ -0,0 +1,494 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.IntPredicate;
+
+/**
+ * Compressed set of int ids, such as commit indexes, in the spirit of Roaring bitmaps.
+ * <p>
+ * Ids are split by their upper 16 bits into chunks. A chunk keeps its lower 16 bits either in a sorted array while it has at most
+ * {@link #MAX_ARRAY_SIZE} ids, or in a bitmap of 8K bytes otherwise. Dense sets take a bit per id and sparse sets two bytes per id,
+ * {@link #contains(int)} is a binary search over chunks, and intersections and unions work chunk by chunk without boxing ids.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author VISTALL
+ * @since 2020-06-17
+ */
+public final class IntBitmapSet extends AbstractSet<Integer> {
+  private static final int MAX_ARRAY_SIZE = 4096;
+  private static final int BITMAP_WORDS = (1 << 16) / 64;
+
+  // upper 16 bits of the ids of the chunks, sorted
+  private int[] myKeys;
+  private Chunk[] myChunks;
+  private int myChunkCount;
+  private int mySize;
+
+  public IntBitmapSet() {
+    this(4);
+  }
+
+  private IntBitmapSet(int chunkCapacity) {
+    myKeys = new int[chunkCapacity];
+    myChunks = new Chunk[chunkCapacity];
+  }
+
+  @Nonnull
+  public static IntBitmapSet of(@Nonnull int... ids) {
+    IntBitmapSet set = new IntBitmapSet();
+    for (int id : ids) {
+      set.add(id);
+    }
+    return set;
+  }
+
+  /**
+   * @return true if the id was not in the set
+   */
+  public boolean add(int id) {
+    int key = id >>> 16;
+    int index = findChunk(key);
+    if (index < 0) {
+      index = -index - 1;
+      insertChunk(index, key, new ArrayChunk());
+    }
+    Chunk chunk = myChunks[index];
+    int sizeBefore = chunk.size();
+    myChunks[index] = chunk.add((char)id);
+    if (myChunks[index].size() == sizeBefore) return false;
+    mySize++;
+    return true;
+  }
+
+  @Override
+  public boolean add(Integer id) {
+    return add(id.intValue());
+  }
+
+  public void addAll(@Nonnull IntBitmapSet set) {
+    IntBitmapSet union = or(this, set);
+    myKeys = union.myKeys;
+    myChunks = union.myChunks;
+    myChunkCount = union.myChunkCount;
+    mySize = union.mySize;
+  }
+
+  public boolean contains(int id) {
+    int index = findChunk(id >>> 16);
+    return index >= 0 && myChunks[index].contains((char)id);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return o instanceof Integer && contains(((Integer)o).intValue());
+  }
+
+  @Override
+  public int size() {
+    return mySize;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  /**
+   * Passes ids to the processor in ascending unsigned order.
+   *
+   * @return false if the processor stopped the iteration
+   */
+  public boolean forEachId(@Nonnull IntPredicate processor) {
+    for (int i = 0; i < myChunkCount; i++) {
+      int high = myKeys[i] << 16;
+      Chunk chunk = myChunks[i];
+      for (int low = chunk.next(0); low >= 0; low = chunk.next(low + 1)) {
+        if (!processor.test(high | low)) return false;
+      }
+    }
+    return true;
+  }
+
+  @Nonnull
+  public int[] toIntArray() {
+    int[] result = new int[mySize];
+    int[] index = {0};
+    forEachId(id -> {
+      result[index[0]++] = id;
+      return true;
+    });
+    return result;
+  }
+
+  @Nonnull
+  @Override
+  public Iterator<Integer> iterator() {
+    return new Iterator<Integer>() {
+      private int myChunkIndex = 0;
+      private int myLow = myChunkCount > 0 ? myChunks[0].next(0) : -1;
+
+      @Override
+      public boolean hasNext() {
+        return myLow >= 0;
+      }
+
+      @Override
+      public Integer next() {
+        if (myLow < 0) throw new NoSuchElementException();
+        int id = (myKeys[myChunkIndex] << 16) | myLow;
+        myLow = myChunks[myChunkIndex].next(myLow + 1);
+        while (myLow < 0 && ++myChunkIndex < myChunkCount) {
+          myLow = myChunks[myChunkIndex].next(0);
+        }
+        return id;
+      }
+    };
+  }
+
+  /**
+   * @return intersection of the sets, null arguments stand for "all ids" and are skipped; null if all arguments are null.
+   * The only not null argument is returned as is.
+   */
+  @Nullable
+  public static IntBitmapSet intersect(@Nonnull IntBitmapSet... sets) {
+    IntBitmapSet result = null;
+    for (IntBitmapSet set : sets) {
+      if (set == null) continue;
+      result = result == null ? set : and(result, set);
+    }
+    return result;
+  }
+
+  @Nonnull
+  public static IntBitmapSet and(@Nonnull IntBitmapSet first, @Nonnull IntBitmapSet second) {
+    IntBitmapSet result = new IntBitmapSet(Math.max(1, Math.min(first.myChunkCount, second.myChunkCount)));
+    int i = 0;
+    int j = 0;
+    while (i < first.myChunkCount && j < second.myChunkCount) {
+      int key1 = first.myKeys[i];
+      int key2 = second.myKeys[j];
+      if (key1 < key2) {
+        i++;
+      }
+      else if (key1 > key2) {
+        j++;
+      }
+      else {
+        Chunk chunk = first.myChunks[i++].and(second.myChunks[j++]);
+        if (chunk.size() > 0) result.appendChunk(key1, chunk);
+      }
+    }
+    return result;
+  }
+
+  @Nonnull
+  public static IntBitmapSet or(@Nonnull IntBitmapSet first, @Nonnull IntBitmapSet second) {
+    IntBitmapSet result = new IntBitmapSet(Math.max(1, first.myChunkCount + second.myChunkCount));
+    int i = 0;
+    int j = 0;
+    while (i < first.myChunkCount || j < second.myChunkCount) {
+      int key1 = i < first.myChunkCount ? first.myKeys[i] : Integer.MAX_VALUE;
+      int key2 = j < second.myChunkCount ? second.myKeys[j] : Integer.MAX_VALUE;
+      if (key1 < key2) {
+        result.appendChunk(key1, first.myChunks[i++].copy());
+      }
+      else if (key1 > key2) {
+        result.appendChunk(key2, second.myChunks[j++].copy());
+      }
+      else {
+        result.appendChunk(key1, first.myChunks[i++].or(second.myChunks[j++]));
+      }
+    }
+    return result;
+  }
+
+  private int findChunk(int key) {
+    return Arrays.binarySearch(myKeys, 0, myChunkCount, key);
+  }
+
+  private void insertChunk(int index, int key, @Nonnull Chunk chunk) {
+    ensureChunkCapacity();
+    System.arraycopy(myKeys, index, myKeys, index + 1, myChunkCount - index);
+    System.arraycopy(myChunks, index, myChunks, index + 1, myChunkCount - index);
+    myKeys[index] = key;
+    myChunks[index] = chunk;
+    myChunkCount++;
+  }
+
+  // keys must be appended in ascending order
+  private void appendChunk(int key, @Nonnull Chunk chunk) {
+    ensureChunkCapacity();
+    myKeys[myChunkCount] = key;
+    myChunks[myChunkCount] = chunk;
+    myChunkCount++;
+    mySize += chunk.size();
+  }
+
+  private void ensureChunkCapacity() {
+    if (myChunkCount == myKeys.length) {
+      myKeys = Arrays.copyOf(myKeys, myKeys.length * 2);
+      myChunks = Arrays.copyOf(myChunks, myChunks.length * 2);
+    }
+  }
+
+  private interface Chunk {
+    int size();
+
+    boolean contains(char value);
+
+    /**
+     * @return the chunk with the value added, a new one if this chunk got too large for its representation
+     */
+    @Nonnull
+    Chunk add(char value);
+
+    /**
+     * @return the smallest value not less than {@code from} or -1
+     */
+    int next(int from);
+
+    @Nonnull
+    Chunk and(@Nonnull Chunk other);
+
+    @Nonnull
+    Chunk or(@Nonnull Chunk other);
+
+    @Nonnull
+    Chunk copy();
+  }
+
+  private static final class ArrayChunk implements Chunk {
+    private char[] myValues;
+    private int mySize;
+
+    private ArrayChunk() {
+      this(new char[4], 0);
+    }
+
+    private ArrayChunk(@Nonnull char[] values, int size) {
+      myValues = values;
+      mySize = size;
+    }
+
+    @Override
+    public int size() {
+      return mySize;
+    }
+
+    @Override
+    public boolean contains(char value) {
+      return Arrays.binarySearch(myValues, 0, mySize, value) >= 0;
+    }
+
+    @Nonnull
+    @Override
+    public Chunk add(char value) {
+      int index = Arrays.binarySearch(myValues, 0, mySize, value);
+      if (index >= 0) return this;
+      if (mySize == MAX_ARRAY_SIZE) return toBitmap().add(value);
+
+      index = -index - 1;
+      if (mySize == myValues.length) {
+        myValues = Arrays.copyOf(myValues, Math.min(MAX_ARRAY_SIZE, Math.max(4, myValues.length * 2)));
+      }
+      System.arraycopy(myValues, index, myValues, index + 1, mySize - index);
+      myValues[index] = value;
+      mySize++;
+      return this;
+    }
+
+    @Override
+    public int next(int from) {
+      if (from > Character.MAX_VALUE) return -1;
+      int index = Arrays.binarySearch(myValues, 0, mySize, (char)from);
+      if (index < 0) index = -index - 1;
+      return index < mySize ? myValues[index] : -1;
+    }
+
+    @Nonnull
+    @Override
+    public Chunk and(@Nonnull Chunk other) {
+      char[] result = new char[Math.min(mySize, other.size())];
+      int size = 0;
+      if (other instanceof ArrayChunk) {
+        ArrayChunk array = (ArrayChunk)other;
+        int i = 0;
+        int j = 0;
+        while (i < mySize && j < array.mySize) {
+          char v1 = myValues[i];
+          char v2 = array.myValues[j];
+          if (v1 < v2) {
+            i++;
+          }
+          else if (v1 > v2) {
+            j++;
+          }
+          else {
+            result[size++] = v1;
+            i++;
+            j++;
+          }
+        }
+      }
+      else {
+        for (int i = 0; i < mySize; i++) {
+          if (other.contains(myValues[i])) result[size++] = myValues[i];
+        }
+      }
+      return new ArrayChunk(result, size);
+    }
+
+    @Nonnull
+    @Override
+    public Chunk or(@Nonnull Chunk other) {
+      if (other instanceof BitmapChunk) return other.or(this);
+
+      ArrayChunk array = (ArrayChunk)other;
+      char[] result = new char[mySize + array.mySize];
+      int size = 0;
+      int i = 0;
+      int j = 0;
+      while (i < mySize || j < array.mySize) {
+        int v1 = i < mySize ? myValues[i] : Integer.MAX_VALUE;
+        int v2 = j < array.mySize ? array.myValues[j] : Integer.MAX_VALUE;
+        if (v1 <= v2) i++;
+        if (v2 <= v1) j++;
+        result[size++] = (char)Math.min(v1, v2);
+      }
+      ArrayChunk union = new ArrayChunk(result, size);
+      return size > MAX_ARRAY_SIZE ? union.toBitmap() : union;
+    }
+
+    @Nonnull
+    @Override
+    public Chunk copy() {
+      return new ArrayChunk(Arrays.copyOf(myValues, mySize), mySize);
+    }
+
+    @Nonnull
+    private BitmapChunk toBitmap() {
+      BitmapChunk bitmap = new BitmapChunk(new long[BITMAP_WORDS], 0);
+      for (int i = 0; i < mySize; i++) {
+        bitmap.add(myValues[i]);
+      }
+      return bitmap;
+    }
+  }
+
+  private static final class BitmapChunk implements Chunk {
+    private final long[] myWords;
+    private int mySize;
+
+    private BitmapChunk(@Nonnull long[] words, int size) {
+      myWords = words;
+      mySize = size;
+    }
+
+    @Override
+    public int size() {
+      return mySize;
+    }
+
+    @Override
+    public boolean contains(char value) {
+      return (myWords[value >>> 6] & (1L << value)) != 0;
+    }
+
+    @Nonnull
+    @Override
+    public Chunk add(char value) {
+      long word = myWords[value >>> 6];
+      long bit = 1L << value;
+      if ((word & bit) == 0) {
+        myWords[value >>> 6] = word | bit;
+        mySize++;
+      }
+      return this;
+    }
+
+    @Override
+    public int next(int from) {
+      int index = from >>> 6;
+      if (index >= BITMAP_WORDS) return -1;
+      long word = myWords[index] & (-1L << from);
+      while (true) {
+        if (word != 0) return index * 64 + Long.numberOfTrailingZeros(word);
+        if (++index == BITMAP_WORDS) return -1;
+        word = myWords[index];
+      }
+    }
+
+    @Nonnull
+    @Override
+    public Chunk and(@Nonnull Chunk other) {
+      if (other instanceof ArrayChunk) return other.and(this);
+
+      long[] words = new long[BITMAP_WORDS];
+      int size = 0;
+      for (int i = 0; i < BITMAP_WORDS; i++) {
+        words[i] = myWords[i] & ((BitmapChunk)other).myWords[i];
+        size += Long.bitCount(words[i]);
+      }
+      BitmapChunk intersection = new BitmapChunk(words, size);
+      return size > MAX_ARRAY_SIZE ? intersection : intersection.toArray();
+    }
+
+    @Nonnull
+    @Override
+    public Chunk or(@Nonnull Chunk other) {
+      BitmapChunk union = (BitmapChunk)copy();
+      if (other instanceof ArrayChunk) {
+        ArrayChunk array = (ArrayChunk)other;
+        for (int i = 0; i < array.mySize; i++) {
+          union.add(array.myValues[i]);
+        }
+      }
+      else {
+        int size = 0;
+        for (int i = 0; i < BITMAP_WORDS; i++) {
+          union.myWords[i] |= ((BitmapChunk)other).myWords[i];
+          size += Long.bitCount(union.myWords[i]);
+        }
+        union.mySize = size;
+      }
+      return union;
+    }
+
+    @Nonnull
+    @Override
+    public Chunk copy() {
+      return new BitmapChunk(myWords.clone(), mySize);
+    }
+
+    @Nonnull
+    private ArrayChunk toArray() {
+      char[] values = new char[mySize];
+      int size = 0;
+      for (int value = next(0); value >= 0; value = next(value + 1)) {
+        values[size++] = (char)value;
+      }
+      return new ArrayChunk(values, size);
+    }
+  }
+}
@@ -49,12 +49,19 @@ public class StopWatch {
     return new StopWatch(operation);
   }
 
-  public void rootCompleted(@Nonnull VirtualFile root) {
+  public synchronized void rootCompleted(@Nonnull VirtualFile root) {
     long totalDuration = System.currentTimeMillis() - myStartTime;
     long duration = totalDuration - sum(myDurationPerRoot.values());
     myDurationPerRoot.put(root, duration);
   }
 
+  /**
+   * For roots processed concurrently, which measure their own duration.
+   */
+  public synchronized void rootCompleted(@Nonnull VirtualFile root, long duration) {
+    myDurationPerRoot.put(root, duration);
+  }
+
   private static long sum(@Nonnull Collection<Long> durations) {
     long sum = 0;
     for (Long duration : durations) {
@@ -63,7 +70,7 @@ public class StopWatch {
     return sum;
   }
 
-  public void report() {
+  public synchronized void report() {
     String message = myOperation + " took " + formatTime(System.currentTimeMillis() - myStartTime);
     if (myDurationPerRoot.size() > 1) {
       message += "\n" + StringUtil.join(myDurationPerRoot.entrySet(),
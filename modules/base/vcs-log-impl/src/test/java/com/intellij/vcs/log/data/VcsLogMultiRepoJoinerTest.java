@@ -1,9 +1,11 @@
 package com.intellij.vcs.log.data;
 
+import com.intellij.vcs.log.Hash;
 import com.intellij.vcs.log.TimedVcsCommit;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static com.intellij.vcs.log.TimedCommitParser.log;
@@ -27,4 +29,40 @@ public class VcsLogMultiRepoJoinerTest {
     assertEquals(expected, joined);
   }
 
+  @Test
+  public void incrementalJoinTest() {
+    List<TimedVcsCommit> first = log("6|-a2|-a0", "3|-a1|-a0", "1|-a0|-");
+    List<TimedVcsCommit> second = log("4|-b1|-b0", "2|-b0|-");
+    List<TimedVcsCommit> third = log("7|-c1|-c0", "5|-c0|-");
+    List<TimedVcsCommit> fourth = log("8|-d0|-");
+
+    List<TimedVcsCommit> expected =
+      log("8|-d0|-", "7|-c1|-c0", "6|-a2|-a0", "5|-c0|-", "4|-b1|-b0", "3|-a1|-a0", "2|-b0|-", "1|-a0|-");
+
+    VcsLogMultiRepoJoiner.Incremental<Hash, TimedVcsCommit> joiner = new VcsLogMultiRepoJoiner.Incremental<>();
+    joiner.add(1, second);
+    joiner.add(3, fourth);
+    joiner.add(0, first);
+    joiner.add(4, Collections.emptyList());
+    joiner.add(2, third);
+
+    assertEquals(expected, joiner.join());
+  }
+
+  @Test
+  public void incrementalJoinOrdersEqualTimestampsByRoot() {
+    List<TimedVcsCommit> first = log("5|-a2|-a1", "3|-a1|-a0", "3|-a0|-");
+    List<TimedVcsCommit> second = log("5|-b1|-b0", "3|-b0|-");
+    List<TimedVcsCommit> third = log("5|-c0|-");
+
+    List<TimedVcsCommit> expected = log("5|-a2|-a1", "5|-b1|-b0", "5|-c0|-", "3|-a1|-a0", "3|-a0|-", "3|-b0|-");
+
+    for (List<Integer> order : Arrays.asList(Arrays.asList(0, 1, 2), Arrays.asList(2, 1, 0), Arrays.asList(1, 2, 0), Arrays.asList(2, 0, 1))) {
+      VcsLogMultiRepoJoiner.Incremental<Hash, TimedVcsCommit> joiner = new VcsLogMultiRepoJoiner.Incremental<>();
+      for (int root : order) {
+        joiner.add(root, Arrays.asList(first, second, third).get(root));
+      }
+      assertEquals(order.toString(), expected, joiner.join());
+    }
+  }
 }
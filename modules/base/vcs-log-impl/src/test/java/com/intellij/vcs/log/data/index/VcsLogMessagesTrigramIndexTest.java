@@ -0,0 +1,156 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.data.index;
+
+import com.intellij.find.ngrams.TrigramQuery;
+import com.intellij.openapi.util.text.TrigramBuilder;
+import com.intellij.util.indexing.StorageException;
+import com.intellij.vcs.log.VcsLogTextFilter;
+import com.intellij.vcs.log.ui.filter.VcsLogTextFilterImpl;
+import com.intellij.vcs.log.util.IntBitmapSet;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author VISTALL
+ * @since 2020-10-17
+ */
+public class VcsLogMessagesTrigramIndexTest {
+  private static final String[] MESSAGES = {
+    "Fix NPE in the commit details panel",
+    "fixed #123: wrong date in the log",
+    "IDEA-4567 support for annotated tags",
+    "CONSULO-89: refresh the branches popup",
+    "Revert \"IDEA-4567 support for annotated tags\"",
+    "NullPointerException when the root is removed",
+    "cleanup: remove unused imports",
+    "Set the commit count limit",
+    "getCount(int) returns the number of commits",
+    "aa bb cc",
+    "Merge branch 'master' into feature",
+    "merge conflicts in the history"
+  };
+
+  private final InMemoryIndex myIndex = new InMemoryIndex(MESSAGES);
+
+  @Test
+  public void testRegex() throws StorageException {
+    IntBitmapSet candidates = assertSameAsScan(new VcsLogTextFilterImpl("fix(ed)? #\\d+", true, true));
+    assertRestricts(candidates);
+    candidates = assertSameAsScan(new VcsLogTextFilterImpl("(get|set)Count\\(int", true, true));
+    assertRestricts(candidates);
+    assertSameAsScan(new VcsLogTextFilterImpl("^Merge branch", true, true));
+  }
+
+  @Test
+  public void testOr() throws StorageException {
+    IntBitmapSet candidates = assertSameAsScan(new VcsLogTextFilterImpl("IDEA-\\d+|CONSULO-\\d+", true, true));
+    assertRestricts(candidates);
+    assertEquals(3, candidates.size());
+    assertSameAsScan(new VcsLogTextFilterImpl("cleanup|revert", true, true));
+  }
+
+  @Test
+  public void testCaseInsensitive() throws StorageException {
+    assertRestricts(assertSameAsScan(new VcsLogTextFilterImpl("NULLPOINTER", false, false)));
+    assertRestricts(assertSameAsScan(new VcsLogTextFilterImpl("npe|Merge", true, false)));
+    assertRestricts(assertSameAsScan(new VcsLogTextFilterImpl("MERGE", false, false)));
+    assertRestricts(assertSameAsScan(new VcsLogTextFilterImpl("MERGE", false, true)));
+  }
+
+  @Test
+  public void testAllFallback() throws StorageException {
+    // back references and texts without trigrams don't restrict commits, so all messages are scanned
+    assertNull(assertSameAsScan(new VcsLogTextFilterImpl("(\\w) \\1", true, true)));
+    assertNull(assertSameAsScan(new VcsLogTextFilterImpl("aa.*", true, true)));
+    assertNull(assertSameAsScan(new VcsLogTextFilterImpl("fi", false, false)));
+    assertNull(assertSameAsScan(new VcsLogTextFilterImpl("(", true, true)));
+  }
+
+  /**
+   * Filters messages the way {@link VcsLogPersistentIndex#filterMessages} does and checks the result against the scan of all messages.
+   *
+   * @return candidate commits found in the index, null if the query did not restrict them
+   */
+  @Nullable
+  private IntBitmapSet assertSameAsScan(@Nonnull VcsLogTextFilter filter) throws StorageException {
+    TrigramQuery query = VcsLogMessagesTrigramIndex.createQuery(filter);
+    IntBitmapSet candidates = VcsLogMessagesTrigramIndex.getCommitsForQuery(query, myIndex);
+    assertEquals(query.toString(), query.isAll(), candidates == null);
+
+    Set<Integer> expected = new TreeSet<>();
+    Set<Integer> actual = new TreeSet<>();
+    for (int commit = 0; commit < MESSAGES.length; commit++) {
+      boolean matches = VcsLogTextFilterImpl.matches(filter, MESSAGES[commit]);
+      if (matches) expected.add(commit);
+      if (candidates == null || candidates.contains(commit)) {
+        if (matches) actual.add(commit);
+      }
+    }
+    assertEquals(filter + " " + query, expected, actual);
+    return candidates;
+  }
+
+  private static void assertRestricts(@Nullable IntBitmapSet candidates) {
+    assertNotNull(candidates);
+    assertFalse(candidates.isEmpty());
+    assertTrue(String.valueOf(candidates.size()), candidates.size() < MESSAGES.length);
+  }
+
+  private static class InMemoryIndex implements VcsLogMessagesTrigramIndex.CommitIndex {
+    private final Map<Integer, IntBitmapSet> myCommits = new HashMap<>();
+
+    InMemoryIndex(@Nonnull String[] messages) {
+      for (int commit = 0; commit < messages.length; commit++) {
+        int id = commit;
+        TrigramBuilder.processTrigrams(messages[commit], new TrigramBuilder.TrigramProcessor() {
+          @Override
+          public boolean execute(int trigram) {
+            myCommits.computeIfAbsent(trigram, key -> new IntBitmapSet()).add(id);
+            return true;
+          }
+        });
+      }
+    }
+
+    @Nonnull
+    @Override
+    public IntBitmapSet getCommitsWithAllKeys(@Nonnull Collection<Integer> trigrams) {
+      IntBitmapSet result = null;
+      for (Integer trigram : trigrams) {
+        IntBitmapSet commits = myCommits.getOrDefault(trigram, new IntBitmapSet());
+        result = IntBitmapSet.and(result == null ? commits : result, commits);
+      }
+      return result == null ? new IntBitmapSet() : result;
+    }
+
+    @Nonnull
+    @Override
+    public IntBitmapSet getCommitsWithAnyKey(@Nonnull Set<Integer> trigrams) {
+      IntBitmapSet result = new IntBitmapSet();
+      for (Integer trigram : trigrams) {
+        IntBitmapSet commits = myCommits.get(trigram);
+        if (commits != null) result.addAll(commits);
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.util;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author VISTALL
+ * @since 2020-06-17
+ */
+public class IntBitmapSetTest {
+  @Test
+  public void testAddAndContains() {
+    IntBitmapSet set = IntBitmapSet.of(5, 70000, 3, 5, Integer.MAX_VALUE);
+    assertEquals(4, set.size());
+    assertTrue(set.contains(3));
+    assertTrue(set.contains(70000));
+    assertTrue(set.contains(Integer.MAX_VALUE));
+    assertFalse(set.contains(4));
+    assertFalse(set.contains(70000 + 65536));
+    assertFalse(set.add(3));
+    assertEquals(Arrays.asList(3, 5, 70000, Integer.MAX_VALUE), new ArrayList<>(set));
+  }
+
+  @Test
+  public void testDenseChunk() {
+    IntBitmapSet set = new IntBitmapSet();
+    for (int i = 0; i < 10000; i++) {
+      set.add(i * 3);
+    }
+    assertEquals(10000, set.size());
+    for (int i = 0; i < 30000; i++) {
+      assertEquals(String.valueOf(i), i % 3 == 0, set.contains(i));
+    }
+    int[] ids = set.toIntArray();
+    assertEquals(10000, ids.length);
+    assertEquals(29997, ids[ids.length - 1]);
+  }
+
+  @Test
+  public void testAndOrMatchHashSets() {
+    Random random = new Random(42);
+    for (int iteration = 0; iteration < 50; iteration++) {
+      Set<Integer> expected1 = randomSet(random);
+      Set<Integer> expected2 = randomSet(random);
+      IntBitmapSet set1 = toBitmap(expected1);
+      IntBitmapSet set2 = toBitmap(expected2);
+      assertEquals(expected1, set1);
+
+      Set<Integer> intersection = new HashSet<>(expected1);
+      intersection.retainAll(expected2);
+      IntBitmapSet and = IntBitmapSet.and(set1, set2);
+      assertEquals(intersection, and);
+      assertEquals(intersection.size(), and.size());
+
+      Set<Integer> union = new HashSet<>(expected1);
+      union.addAll(expected2);
+      IntBitmapSet or = IntBitmapSet.or(set1, set2);
+      assertEquals(union, or);
+      assertEquals(union.size(), or.size());
+
+      assertEquals(expected1, set1);
+      assertEquals(expected2, set2);
+    }
+  }
+
+  @Test
+  public void testIntersectSkipsNulls() {
+    assertNull(IntBitmapSet.intersect(null, null));
+    IntBitmapSet set = IntBitmapSet.of(1, 2, 3);
+    assertSame(set, IntBitmapSet.intersect(null, set));
+    assertEquals(IntBitmapSet.of(2), IntBitmapSet.intersect(set, null, IntBitmapSet.of(2, 4)));
+  }
+
+  private static Set<Integer> randomSet(Random random) {
+    Set<Integer> set = new HashSet<>();
+    // mix of sparse and dense chunks
+    int dense = random.nextInt(3);
+    for (int i = 0; i < 20000; i++) {
+      int chunk = random.nextInt(4);
+      int bound = chunk < dense ? 8192 : 65536;
+      set.add(chunk * 65536 + random.nextInt(bound));
+    }
+    return set;
+  }
+
+  private static IntBitmapSet toBitmap(Set<Integer> set) {
+    IntBitmapSet bitmap = new IntBitmapSet();
+    for (Integer id : set) {
+      bitmap.add(id);
+    }
+    return bitmap;
+  }
+}
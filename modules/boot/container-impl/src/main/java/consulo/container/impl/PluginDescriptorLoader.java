@@ -15,7 +15,9 @@
  */
 package consulo.container.impl;
 
+import consulo.container.impl.classloader.PluginLoadStatistics;
 import consulo.container.plugin.PluginId;
+import consulo.container.util.StatCollector;
 import consulo.util.nodep.Comparing;
 import consulo.util.nodep.io.FileUtilRt;
 import consulo.util.nodep.text.StringUtilRt;
@@ -28,6 +30,8 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLDecoder;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -38,6 +42,103 @@ import java.util.zip.ZipFile;
 public class PluginDescriptorLoader {
   public static final String PLUGIN_XML = "plugin.xml";
 
+  private static final int MAX_LOADING_THREADS = 8;
+
+  /**
+   * Load descriptors of all given plugin directories on a bounded pool.
+   *
+   * @return array with same order as {@code pluginPaths}, element is null if path is not a plugin
+   */
+  @Nonnull
+  public static PluginDescriptorImpl[] loadDescriptors(@Nonnull final File[] pluginPaths,
+                                                       final boolean isHeadlessMode,
+                                                       final boolean isPreInstalledPath,
+                                                       @Nonnull final ContainerLogger containerLogger,
+                                                       @Nonnull final StatCollector stat) {
+    final PluginDescriptorImpl[] result = new PluginDescriptorImpl[pluginPaths.length];
+    final long started = System.currentTimeMillis();
+
+    int threads = Math.min(pluginPaths.length, getLoadingThreadsCount());
+    if (threads <= 1) {
+      for (int i = 0; i < pluginPaths.length; i++) {
+        result[i] = loadDescriptorWithStat(pluginPaths[i], isHeadlessMode, isPreInstalledPath, containerLogger, stat);
+      }
+    }
+    else {
+      ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private final AtomicInteger myCounter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+          Thread thread = new Thread(r, "Plugin Descriptor Loader #" + myCounter.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+      try {
+        List<Future<PluginDescriptorImpl>> futures = new ArrayList<Future<PluginDescriptorImpl>>(pluginPaths.length);
+        for (final File pluginPath : pluginPaths) {
+          futures.add(executor.submit(new Callable<PluginDescriptorImpl>() {
+            @Override
+            public PluginDescriptorImpl call() throws Exception {
+              return loadDescriptorWithStat(pluginPath, isHeadlessMode, isPreInstalledPath, containerLogger, stat);
+            }
+          }));
+        }
+
+        // collect in submission order, so result does not depend on scheduling
+        for (int i = 0; i < futures.size(); i++) {
+          try {
+            result[i] = futures.get(i).get();
+          }
+          catch (ExecutionException e) {
+            containerLogger.error("Cannot load " + pluginPaths[i], e.getCause());
+          }
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+      finally {
+        executor.shutdownNow();
+      }
+    }
+
+    PluginLoadStatistics.get().addDescriptorsLoad(pluginPaths.length, threads, System.currentTimeMillis() - started);
+    return result;
+  }
+
+  private static int getLoadingThreadsCount() {
+    String value = System.getProperty("consulo.plugin.descriptor.loading.threads");
+    if (value != null) {
+      try {
+        return Math.max(1, Integer.parseInt(value));
+      }
+      catch (NumberFormatException ignored) {
+      }
+    }
+    return Math.min(Runtime.getRuntime().availableProcessors(), MAX_LOADING_THREADS);
+  }
+
+  @Nullable
+  private static PluginDescriptorImpl loadDescriptorWithStat(File pluginPath,
+                                                             boolean isHeadlessMode,
+                                                             boolean isPreInstalledPath,
+                                                             ContainerLogger containerLogger,
+                                                             StatCollector stat) {
+    Runnable mark = stat.mark(pluginPath.getName() + ".load");
+    long started = System.currentTimeMillis();
+    try {
+      return loadDescriptor(pluginPath, isHeadlessMode, isPreInstalledPath, containerLogger);
+    }
+    finally {
+      PluginLoadStatistics.get().addDescriptorLoadTime(System.currentTimeMillis() - started);
+      mark.run();
+    }
+  }
+
   @Nullable
   public static PluginDescriptorImpl loadDescriptor(final File pluginPath, boolean isHeadlessMode, boolean isPreInstalledPath, ContainerLogger containerLogger) {
     return loadDescriptor(pluginPath, PLUGIN_XML, isHeadlessMode, isPreInstalledPath, containerLogger);
@@ -28,6 +28,7 @@ import consulo.util.nodep.SystemInfoRt;
 
 import javax.annotation.Nonnull;
 import java.io.File;
+import java.io.FileFilter;
 import java.net.URL;
 import java.util.*;
 
@@ -47,24 +48,30 @@ public class BootstrapClassLoaderUtil {
     PluginDescriptorImpl base = initalizePlatformBase(modulesDirectory, containerLogger);
     mark.run();
 
+    PluginLoadStatistics.initialize(false);
+
     List<PluginDescriptorImpl> descriptors = new ArrayList<PluginDescriptorImpl>();
     descriptors.add(base);
 
-    File[] files = modulesDirectory.listFiles();
-    assert files != null;
-    for (File moduleDirectory : files) {
-      if (CONSULO_PLATFORM_BASE.equals(moduleDirectory.getName())) {
-        continue;
+    File[] files = modulesDirectory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File pathname) {
+        return !CONSULO_PLATFORM_BASE.equals(pathname.getName());
       }
+    });
+    assert files != null;
 
-      mark = stat.mark(moduleDirectory.getName() + ".load");
-      PluginDescriptorImpl descriptor = PluginDescriptorLoader.loadDescriptor(moduleDirectory, false, true, containerLogger);
+    PluginDescriptorImpl[] moduleDescriptors = PluginDescriptorLoader.loadDescriptors(files, false, true, containerLogger, stat);
 
+    for (int i = 0; i < files.length; i++) {
+      File moduleDirectory = files[i];
+      PluginDescriptorImpl descriptor = moduleDescriptors[i];
       if (descriptor == null) {
-        mark.run();
         continue;
       }
 
+      mark = stat.mark(moduleDirectory.getName() + ".initialize");
+
       ClassLoader[] parentClassLoaders = {base.getPluginClassLoader()};
 
       ClassLoader loader = PluginClassLoaderFactory.create(filesToUrls(descriptor.getClassPath()), parentClassLoaders, descriptor.getPluginId(), null, moduleDirectory);
@@ -81,8 +88,6 @@ public class BootstrapClassLoaderUtil {
 
     PluginHolderModificator.initialize(descriptors);
 
-    PluginLoadStatistics.initialize(false);
-
     for (PluginDescriptor pluginDescriptor : PluginHolderModificator.getPlugins()) {
       ServiceLoader<ContainerStartup> loader = ServiceLoader.load(ContainerStartup.class, pluginDescriptor.getPluginClassLoader());
 
@@ -17,8 +17,10 @@ package consulo.container.impl.classloader;
 
 import consulo.container.plugin.PluginId;
 import consulo.container.classloader.PluginClassLoader;
+import consulo.util.nodep.classloader.UrlClassLoader;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.net.URL;
 import java.util.List;
@@ -33,4 +35,18 @@ public class PluginClassLoaderFactory {
   public static <C extends ClassLoader & PluginClassLoader> C create(@Nonnull List<URL> urls, @Nonnull ClassLoader[] parents, PluginId pluginId, String version, File pluginRoot) {
     return (C)new PluginClassLoaderImpl(urls, parents, pluginId, version, pluginRoot);
   }
+
+  /**
+   * @param cachePool pool shared between plugin class loaders, see {@link UrlClassLoader#createPersistentCachePool(File)}
+   */
+  @SuppressWarnings("unchecked")
+  @Nonnull
+  public static <C extends ClassLoader & PluginClassLoader> C create(@Nonnull List<URL> urls,
+                                                                     @Nonnull ClassLoader[] parents,
+                                                                     PluginId pluginId,
+                                                                     String version,
+                                                                     File pluginRoot,
+                                                                     @Nullable UrlClassLoader.CachePool cachePool) {
+    return (C)new PluginClassLoaderImpl(urls, parents, pluginId, version, pluginRoot, cachePool);
+  }
 }
@@ -15,6 +15,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Eugene Zhuravlev
@@ -28,9 +29,24 @@ class PluginClassLoaderImpl extends UrlClassLoader implements PluginClassLoader
   private final PluginId myPluginId;
   private final String myPluginVersion;
   private final List<String> myLibDirectories;
+  // names of classes none of the parents could load; parents don't get new classes, so such lookups are not repeated
+  private final Set<String> myClassesMissingInParents = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private static final int MAX_CLASSES_MISSING_IN_PARENTS = 10000;
+
+  private static final CachingCondition ourJarsOnlyCondition = new CachingCondition() {
+    @Override
+    public boolean shouldCacheData(@Nonnull URL url) {
+      // directories may change while we are running, they have own persistent index
+      return "file".equals(url.getProtocol()) && url.getPath().endsWith(".jar");
+    }
+  };
 
   public PluginClassLoaderImpl(@Nonnull List<URL> urls, @Nonnull ClassLoader[] parents, PluginId pluginId, String version, File pluginRoot) {
-    super(build().urls(urls).urlsWithProtectionDomain(new HashSet<URL>(urls)).allowLock().useCache());
+    this(urls, parents, pluginId, version, pluginRoot, null);
+  }
+
+  public PluginClassLoaderImpl(@Nonnull List<URL> urls, @Nonnull ClassLoader[] parents, PluginId pluginId, String version, File pluginRoot, @Nullable CachePool cachePool) {
+    super(configure(build().urls(urls).urlsWithProtectionDomain(new HashSet<URL>(urls)).allowLock(), cachePool));
     myParents = parents;
     myPluginId = pluginId;
     myPluginVersion = version;
@@ -38,6 +54,11 @@ class PluginClassLoaderImpl extends UrlClassLoader implements PluginClassLoader
     myLibDirectories = libDir.exists() ? Collections.singletonList(libDir.getAbsolutePath()) : Collections.<String>emptyList();
   }
 
+  @Nonnull
+  private static Builder configure(@Nonnull Builder builder, @Nullable CachePool cachePool) {
+    return cachePool == null ? builder.useCache() : builder.useCache(cachePool, ourJarsOnlyCondition);
+  }
+
   @Override
   public Class loadClass(@Nonnull String name, boolean resolve) throws ClassNotFoundException {
     Class c = tryLoadingClass(name, resolve, null);
@@ -132,8 +153,15 @@ class PluginClassLoaderImpl extends UrlClassLoader implements PluginClassLoader
       c = loadClassInsideSelf(name);
     }
 
-    if (c == null) {
+    if (c == null && !myClassesMissingInParents.contains(name)) {
       c = processResourcesInParents(name, loadClassInPluginCL, loadClassInCl, visited, null);
+      // with visited loaders skipped the miss only holds for the current lookup
+      if (c == null && visited == null) {
+        if (myClassesMissingInParents.size() >= MAX_CLASSES_MISSING_IN_PARENTS) {
+          myClassesMissingInParents.clear();
+        }
+        myClassesMissingInParents.add(name);
+      }
     }
 
     if (c != null) {
@@ -154,6 +182,11 @@ class PluginClassLoaderImpl extends UrlClassLoader implements PluginClassLoader
 
   @Nullable
   private Class loadClassInsideSelf(@Nonnull String name) {
+    if (!getClassPath().mayHaveClassesInPackageOf(name)) {
+      // the package index of the class path tells it's not here, so don't create a class loading lock for the name
+      return findLoadedClass(name);
+    }
+
     synchronized (getClassLoadingLock(name)) {
       Class c = findLoadedClass(name);
       if (c != null) {
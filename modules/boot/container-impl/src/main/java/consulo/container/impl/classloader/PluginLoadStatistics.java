@@ -21,6 +21,7 @@ import consulo.container.StartupError;
 import javax.annotation.Nonnull;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 /**
@@ -83,12 +84,32 @@ public class PluginLoadStatistics {
     return ourInstance;
   }
 
+  private final AtomicInteger myDescriptorsCount = new AtomicInteger();
+  private final AtomicLong myDescriptorsLoadTime = new AtomicLong();
+  private final AtomicLong myDescriptorsWallTime = new AtomicLong();
+  private volatile int myDescriptorsLoadThreads;
+
   PluginLoadStatistics() {
   }
 
   void addPluginClass(@Nonnull PluginId pluginId) {
   }
 
+  public void addDescriptorLoadTime(long durationMs) {
+    myDescriptorsLoadTime.addAndGet(durationMs);
+  }
+
+  public void addDescriptorsLoad(int pluginPathsCount, int threads, long wallTimeMs) {
+    myDescriptorsCount.addAndGet(pluginPathsCount);
+    myDescriptorsWallTime.addAndGet(wallTimeMs);
+    myDescriptorsLoadThreads = Math.max(myDescriptorsLoadThreads, threads);
+  }
+
+  public void dumpDescriptorLoadStatistics(Consumer<String> logInfo) {
+    logInfo.accept("Loaded " + myDescriptorsCount.get() + " plugin descriptors in " + myDescriptorsWallTime.get() + " ms " +
+                   "(" + myDescriptorsLoadTime.get() + " ms total on " + Math.max(1, myDescriptorsLoadThreads) + " threads)");
+  }
+
   public void dumpPluginClassStatistics(Consumer<String> logInfo) {
   }
 }
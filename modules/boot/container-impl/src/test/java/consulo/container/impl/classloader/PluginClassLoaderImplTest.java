@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.container.impl.classloader;
+
+import consulo.container.StartupError;
+import consulo.container.plugin.PluginId;
+import consulo.util.nodep.classloader.UrlClassLoader;
+import consulo.util.nodep.io.FileUtilRt;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * @author VISTALL
+ * @since 2020-10-16
+ */
+public class PluginClassLoaderImplTest extends Assert {
+  public static class Sample {
+  }
+
+  private static final String SAMPLE_PATH = Sample.class.getName().replace('.', '/') + ".class";
+
+  private File myDir;
+
+  @BeforeClass
+  public static void initializeStatistics() {
+    try {
+      PluginLoadStatistics.get();
+    }
+    catch (StartupError e) {
+      PluginLoadStatistics.initialize(false);
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    myDir = FileUtilRt.createTempDirectory("plugin-class-loader", null, false);
+  }
+
+  @After
+  public void tearDown() {
+    FileUtilRt.delete(myDir);
+  }
+
+  @Test
+  public void testClassesAreFoundInParentsAndMissesAreRepeatable() throws Exception {
+    UrlClassLoader.CachePool pool = UrlClassLoader.createPersistentCachePool(new File(myDir, "classpath.index"));
+    PluginClassLoaderImpl parent = createLoader("parent", pool, new ClassLoader[]{ClassLoader.getSystemClassLoader().getParent()}, SAMPLE_PATH);
+    PluginClassLoaderImpl child = createLoader("child", pool, new ClassLoader[]{parent}, "other/Resource.txt");
+
+    Class<?> sample = child.loadClass(Sample.class.getName());
+    assertSame(parent, sample.getClassLoader());
+    assertNotSame(Sample.class, sample);
+
+    for (int i = 0; i < 2; i++) {
+      // missing in a package the parent has, and in a package none of the loaders have
+      assertNotLoaded(child, Sample.class.getPackage().getName() + ".Missing");
+      assertNotLoaded(child, "unknown.pkg.Missing");
+      assertNotLoaded(parent, "unknown.pkg.Missing");
+    }
+    assertSame(sample, child.loadClass(Sample.class.getName()));
+    assertSame(sample, parent.loadClass(Sample.class.getName()));
+    assertSame(String.class, child.loadClass(String.class.getName()));
+  }
+
+  @Test
+  public void testParentSkippedByPackageIndexStillServesItsParents() throws Exception {
+    UrlClassLoader.CachePool pool = UrlClassLoader.createPersistentCachePool(new File(myDir, "classpath.index"));
+    PluginClassLoaderImpl root = createLoader("root", pool, new ClassLoader[]{ClassLoader.getSystemClassLoader().getParent()}, SAMPLE_PATH);
+    PluginClassLoaderImpl middle = createLoader("middle", pool, new ClassLoader[]{root}, "other/Resource.txt");
+    PluginClassLoaderImpl child = createLoader("child", pool, new ClassLoader[]{middle}, "another/Resource.txt");
+
+    // middle has no classes in the package of Sample, so only its parent can define it
+    assertNotLoaded(middle, "other.Missing");
+    assertSame(root, child.loadClass(Sample.class.getName()).getClassLoader());
+    assertSame(root, middle.loadClass(Sample.class.getName()).getClassLoader());
+  }
+
+  private static void assertNotLoaded(@Nonnull ClassLoader loader, @Nonnull String name) {
+    try {
+      loader.loadClass(name);
+      fail(name + " must not be found");
+    }
+    catch (ClassNotFoundException ignored) {
+    }
+  }
+
+  @Nonnull
+  private PluginClassLoaderImpl createLoader(@Nonnull String name, @Nonnull UrlClassLoader.CachePool pool, @Nonnull ClassLoader[] parents, @Nonnull String entry)
+          throws IOException {
+    File jar = new File(myDir, name + ".jar");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      out.putNextEntry(new ZipEntry(entry));
+      out.write(entry.equals(SAMPLE_PATH) ? loadSampleBytes() : entry.getBytes("UTF-8"));
+      out.closeEntry();
+    }
+    finally {
+      out.close();
+    }
+    return new PluginClassLoaderImpl(Collections.singletonList(jar.toURI().toURL()), parents, PluginId.getId(name), "1.0", myDir, pool);
+  }
+
+  @Nonnull
+  private static byte[] loadSampleBytes() throws IOException {
+    InputStream stream = PluginClassLoaderImplTest.class.getClassLoader().getResourceAsStream(SAMPLE_PATH);
+    assertNotNull(stream);
+    try {
+      return FileUtilRt.loadBytes(stream);
+    }
+    finally {
+      stream.close();
+    }
+  }
+}
@@ -135,6 +135,13 @@ public class ClassPath {
     return null;
   }
 
+  /**
+   * @return false if it's known that this class path has no classes in the package of the class, i.e. the class can't be found here
+   */
+  public boolean mayHaveClassesInPackageOf(String className) {
+    return !myCanUseCache || !myAllUrlsWereProcessed || myCache.hasClassesInPackageOf(className);
+  }
+
   public Enumeration<URL> getResources(final String name) {
     return new MyEnumeration(name);
   }
@@ -157,6 +157,29 @@ public class ClasspathCache {
     return null;
   }
 
+  boolean hasClassesInPackageOf(String className) {
+    int hash = getClassPackageNameHash(className);
+
+    myLock.readLock().lock();
+    try {
+      return myClassPackagesCache.get(hash) != null;
+    }
+    finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  // same as getPackageNameHash(className.replace('.', '/') + UrlClassLoader.CLASS_EXTENSION), without building the path
+  static int getClassPackageNameHash(String className) {
+    final int idx = className.lastIndexOf('.');
+    int h = 0;
+    for (int off = 0; off < idx; off++) {
+      char c = className.charAt(off);
+      h = 31 * h + (c == '.' ? '/' : c);
+    }
+    return h;
+  }
+
   static int getPackageNameHash(String resourcePath) {
     final int idx = resourcePath.lastIndexOf('/');
     int h = 0;
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.util.nodep.classloader;
+
+import consulo.util.nodep.LoggerRt;
+import consulo.util.nodep.io.DataInputOutputUtilRt;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.net.URI;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache pool which stores package index of jars on disk, so next start with same jars doesn't need to scan them.
+ * Entries are checked against length and timestamp of the jar, stale entries are rebuilt.
+ *
+ * @author VISTALL
+ * @since 2020-10-16
+ */
+class PersistentCachePoolImpl extends CachePoolImpl {
+  private static final int VERSION = 1;
+
+  private static class Entry {
+    private final long myLength;
+    private final long myTimestamp;
+    private final ClasspathCache.LoaderData myData;
+    // entries not used by this session are dropped on save, so the index follows the current plugin set
+    private volatile boolean myUsed;
+
+    private Entry(long length, long timestamp, ClasspathCache.LoaderData data) {
+      myLength = length;
+      myTimestamp = timestamp;
+      myData = data;
+    }
+  }
+
+  private final File myStoreFile;
+  private final Map<String, Entry> myEntries = new ConcurrentHashMap<String, Entry>();
+  private volatile boolean myDirty;
+
+  PersistentCachePoolImpl(@Nonnull File storeFile) {
+    myStoreFile = storeFile;
+    load();
+  }
+
+  @Override
+  void cacheData(@Nonnull URL url, @Nonnull ClasspathCache.LoaderData data) {
+    super.cacheData(url, data);
+
+    File file = urlToFile(url);
+    if (file != null && file.isFile()) {
+      Entry entry = new Entry(file.length(), file.lastModified(), data);
+      entry.myUsed = true;
+      myEntries.put(url.toExternalForm(), entry);
+      myDirty = true;
+    }
+  }
+
+  @Override
+  ClasspathCache.LoaderData getCachedData(@Nonnull URL url) {
+    ClasspathCache.LoaderData data = super.getCachedData(url);
+    if (data != null) {
+      return data;
+    }
+
+    String key = url.toExternalForm();
+    Entry entry = myEntries.get(key);
+    if (entry == null) {
+      return null;
+    }
+
+    File file = urlToFile(url);
+    if (file == null || file.length() != entry.myLength || file.lastModified() != entry.myTimestamp) {
+      myEntries.remove(key);
+      myDirty = true;
+      return null;
+    }
+
+    entry.myUsed = true;
+    super.cacheData(url, entry.myData);
+    return entry.myData;
+  }
+
+  void save() {
+    if (!myDirty) {
+      return;
+    }
+    myDirty = false;
+
+    File parent = myStoreFile.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      return;
+    }
+
+    File tempFile = new File(myStoreFile.getPath() + ".tmp");
+    boolean isOk = false;
+    DataOutputStream writer = null;
+    try {
+      writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      DataInputOutputUtilRt.writeINT(writer, VERSION);
+      Map<String, Entry> entries = new HashMap<String, Entry>();
+      for (Map.Entry<String, Entry> e : myEntries.entrySet()) {
+        if (e.getValue().myUsed) {
+          entries.put(e.getKey(), e.getValue());
+        }
+      }
+      DataInputOutputUtilRt.writeINT(writer, entries.size());
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        writer.writeUTF(e.getKey());
+        writer.writeLong(e.getValue().myLength);
+        writer.writeLong(e.getValue().myTimestamp);
+        e.getValue().myData.save(writer);
+      }
+      isOk = true;
+    }
+    catch (IOException e) {
+      LoggerRt.getInstance(PersistentCachePoolImpl.class).info("Cannot save classpath index " + myStoreFile, e);
+    }
+    finally {
+      if (writer != null) {
+        try {
+          writer.close();
+        }
+        catch (IOException ignore) {
+          isOk = false;
+        }
+      }
+    }
+
+    if (isOk) {
+      myStoreFile.delete();
+      isOk = tempFile.renameTo(myStoreFile);
+    }
+    if (!isOk) {
+      tempFile.delete();
+    }
+  }
+
+  private void load() {
+    if (!myStoreFile.isFile()) {
+      return;
+    }
+
+    boolean isOk = false;
+    DataInputStream reader = null;
+    try {
+      reader = new DataInputStream(new BufferedInputStream(new FileInputStream(myStoreFile)));
+      if (DataInputOutputUtilRt.readINT(reader) == VERSION) {
+        int size = DataInputOutputUtilRt.readINT(reader);
+        for (int i = 0; i < size; i++) {
+          String url = reader.readUTF();
+          long length = reader.readLong();
+          long timestamp = reader.readLong();
+          myEntries.put(url, new Entry(length, timestamp, new ClasspathCache.LoaderData(reader)));
+        }
+        isOk = true;
+      }
+    }
+    catch (IOException ignore) {
+    }
+    finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        }
+        catch (IOException ignore) {
+        }
+      }
+    }
+
+    if (!isOk) {
+      myEntries.clear();
+      myStoreFile.delete();
+    }
+  }
+
+  @Nullable
+  private static File urlToFile(@Nonnull URL url) {
+    if (!"file".equals(url.getProtocol())) {
+      return null;
+    }
+    try {
+      return new File(new URI(url.toExternalForm()));
+    }
+    catch (Throwable ignore) { // URISyntaxException or IllegalArgumentException
+      return new File(url.getPath());
+    }
+  }
+}
@@ -457,4 +457,19 @@ public class UrlClassLoader extends ClassLoader {
   public static CachePool createCachePool() {
     return new CachePoolImpl();
   }
+
+  /**
+   * @return a new pool like {@link #createCachePool()}, which also keeps package index of jars in {@code storeFile} between runs.
+   * Call {@link #saveCachePool(CachePool)} to write collected data.
+   */
+  @Nonnull
+  public static CachePool createPersistentCachePool(@Nonnull File storeFile) {
+    return new PersistentCachePoolImpl(storeFile);
+  }
+
+  public static void saveCachePool(@Nonnull CachePool pool) {
+    if (pool instanceof PersistentCachePoolImpl) {
+      ((PersistentCachePoolImpl)pool).save();
+    }
+  }
 }
\ No newline at end of file
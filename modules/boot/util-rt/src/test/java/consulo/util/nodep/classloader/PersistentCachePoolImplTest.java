@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013-2020 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.util.nodep.classloader;
+
+import consulo.util.nodep.io.FileUtilRt;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * @author VISTALL
+ * @since 2020-10-16
+ */
+public class PersistentCachePoolImplTest extends Assert {
+  private static final UrlClassLoader.CachingCondition ALL = new UrlClassLoader.CachingCondition() {
+    @Override
+    public boolean shouldCacheData(@Nonnull URL url) {
+      return true;
+    }
+  };
+
+  private File myDir;
+  private File myStoreFile;
+
+  @Before
+  public void setUp() throws IOException {
+    myDir = FileUtilRt.createTempDirectory("classpath-index", null, false);
+    myStoreFile = new File(myDir, "classpath.index");
+  }
+
+  @After
+  public void tearDown() {
+    FileUtilRt.delete(myDir);
+  }
+
+  @Test
+  public void testIndexIsReusedAfterReload() throws IOException {
+    File jar = writeJar("a.jar", "pkg/A.class", "res/text.txt");
+    URL url = jar.toURI().toURL();
+
+    PersistentCachePoolImpl pool = new PersistentCachePoolImpl(myStoreFile);
+    assertNotNull(createLoader(url, pool).getResource("res/text.txt"));
+    ClasspathCache.LoaderData built = pool.getCachedData(url);
+    assertNotNull(built);
+    pool.save();
+    assertTrue(myStoreFile.isFile());
+
+    PersistentCachePoolImpl reloaded = new PersistentCachePoolImpl(myStoreFile);
+    ClasspathCache.LoaderData restored = reloaded.getCachedData(url);
+    assertNotNull(restored);
+    assertNotSame(built, restored);
+    assertTrue(restored.getNameFilter().maybeContains("A"));
+    assertTrue(restored.getNameFilter().maybeContains("text.txt"));
+
+    // the loader takes the restored index instead of scanning the jar, and still finds what is there
+    UrlClassLoader loader = createLoader(url, reloaded);
+    assertNotNull(loader.getResource("res/text.txt"));
+    assertNull(loader.getResource("res/missing.txt"));
+    assertSame(restored, reloaded.getCachedData(url));
+    assertTrue(loader.getClassPath().mayHaveClassesInPackageOf("pkg.A"));
+    assertFalse(loader.getClassPath().mayHaveClassesInPackageOf("other.B"));
+  }
+
+  @Test
+  public void testIndexOfChangedJarIsRebuilt() throws IOException {
+    File jar = writeJar("a.jar", "pkg/A.class");
+    URL url = jar.toURI().toURL();
+    PersistentCachePoolImpl pool = new PersistentCachePoolImpl(myStoreFile);
+    assertNotNull(createLoader(url, pool).getResource("pkg/A.class"));
+    pool.save();
+
+    long timestamp = jar.lastModified();
+    writeJar("a.jar", "pkg/A.class", "pkg/B.class");
+    assertTrue(jar.setLastModified(timestamp - 10000));
+
+    PersistentCachePoolImpl reloaded = new PersistentCachePoolImpl(myStoreFile);
+    assertNull(reloaded.getCachedData(url));
+    assertNotNull(createLoader(url, reloaded).getResource("pkg/B.class"));
+    assertNotNull(reloaded.getCachedData(url));
+
+    // a pool which has not used an entry drops it on save, so indices of removed jars are not kept forever
+    reloaded.save();
+    File other = writeJar("b.jar", "pkg/C.class");
+    PersistentCachePoolImpl unused = new PersistentCachePoolImpl(myStoreFile);
+    assertNotNull(createLoader(other.toURI().toURL(), unused).getResource("pkg/C.class"));
+    unused.save();
+    assertNull(new PersistentCachePoolImpl(myStoreFile).getCachedData(url));
+  }
+
+  @Test
+  public void testBrokenStoreIsIgnored() throws IOException {
+    FileOutputStream out = new FileOutputStream(myStoreFile);
+    try {
+      out.write(new byte[]{1, 5, 42});
+    }
+    finally {
+      out.close();
+    }
+
+    File jar = writeJar("a.jar", "pkg/A.class");
+    PersistentCachePoolImpl pool = new PersistentCachePoolImpl(myStoreFile);
+    assertFalse(myStoreFile.exists());
+    assertNull(pool.getCachedData(jar.toURI().toURL()));
+  }
+
+  @Nonnull
+  private static UrlClassLoader createLoader(@Nonnull URL url, @Nonnull PersistentCachePoolImpl pool) {
+    return UrlClassLoader.build().urls(url).useCache(pool, ALL).get();
+  }
+
+  @Nonnull
+  private File writeJar(@Nonnull String name, @Nonnull String... entries) throws IOException {
+    File file = new File(myDir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      for (String entry : entries) {
+        out.putNextEntry(new ZipEntry(entry));
+        out.write(entry.getBytes("UTF-8"));
+        out.closeEntry();
+      }
+    }
+    finally {
+      out.close();
+    }
+    return file;
+  }
+}